@@ -0,0 +1,272 @@
+package org.sphx.api;
+
+import java.util.Arrays;
+
+import org.sphx.util.LongIntHashMap;
+
+/**
+ * Attributes of documents by document ID, stored in primitive columns.
+ * Filled by {@link SphinxMultiGet}.
+ *
+ * <pre>
+ * int rating = attrs.getAttrIndex(&quot;rating&quot;);
+ * for (long docId : attrs.getDocIds()) {
+ * 	float value = attrs.getFloat(docId, rating, 0);
+ * }
+ * </pre>
+ *
+ * Integer, timestamp, bool, ordinal and bigint attributes are read with
+ * {@link #getLong(long, int, long)}, floats with
+ * {@link #getFloat(long, int, float)} and multi-valued attributes with
+ * {@link #getMulti(long, int)}. Not thread safe.
+ */
+public class SphinxAttributeMap {
+
+	private static final int INITIAL_ROWS = 64;
+
+	private final LongIntHashMap rows = new LongIntHashMap();
+	private String[] names;
+	private int[] types;
+	private long[] docIds = new long[INITIAL_ROWS];
+	private long[][] columns;
+	private long[][][] multiColumns;
+	private int size;
+
+	/**
+	 * Get amount of documents.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Check whether a document was found.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @return true if found
+	 */
+	public boolean contains(final long docId) {
+		return rows.containsKey(docId);
+	}
+
+	/**
+	 * Get IDs of the found documents.
+	 *
+	 * @return document IDs, in the order received
+	 */
+	public long[] getDocIds() {
+		return Arrays.copyOf(docIds, size);
+	}
+
+	/**
+	 * Get attribute names.
+	 *
+	 * @return names, empty if nothing was found
+	 */
+	public String[] getAttrNames() {
+		if (names == null) {
+			return new String[0];
+		}
+		return names.clone();
+	}
+
+	/**
+	 * Get attribute type.
+	 *
+	 * @param attr
+	 *            attribute number
+	 * @return SPH_ATTR_xxx type
+	 */
+	public int getAttrType(final int attr) {
+		return types[attr];
+	}
+
+	/**
+	 * Find attribute number.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @return attribute number, -1 if not present
+	 */
+	public int getAttrIndex(final String name) {
+		if (names != null) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get value of an integer, timestamp, bool, ordinal or bigint attribute.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @param attr
+	 *            attribute number
+	 * @param missing
+	 *            value returned if the document was not found
+	 * @return the value
+	 */
+	public long getLong(final long docId, final int attr, final long missing) {
+		int row = rows.get(docId, -1);
+		if (row < 0) {
+			return missing;
+		}
+		return columns[attr][row];
+	}
+
+	/**
+	 * Get value of a float attribute.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @param attr
+	 *            attribute number
+	 * @param missing
+	 *            value returned if the document was not found
+	 * @return the value
+	 */
+	public float getFloat(final long docId, final int attr, final float missing) {
+		int row = rows.get(docId, -1);
+		if (row < 0) {
+			return missing;
+		}
+		return Float.intBitsToFloat((int) columns[attr][row]);
+	}
+
+	/**
+	 * Get values of a multi-valued attribute.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @param attr
+	 *            attribute number
+	 * @return the values, null if the document was not found
+	 */
+	public long[] getMulti(final long docId, final int attr) {
+		int row = rows.get(docId, -1);
+		if (row < 0) {
+			return null;
+		}
+		return multiColumns[attr][row];
+	}
+
+	/**
+	 * Add all documents of another map with the same attributes.
+	 *
+	 * @param other
+	 *            the map
+	 * @throws SphinxException
+	 *             if attributes differ
+	 */
+	public void addAll(final SphinxAttributeMap other) throws SphinxException {
+		if (other.names == null) {
+			return;
+		}
+		setSchema(other.names, other.types);
+		for (int i = 0; i < other.size; i++) {
+			int row = addDocument(other.docIds[i]);
+			for (int attr = 0; attr < names.length; attr++) {
+				if (columns[attr] != null) {
+					columns[attr][row] = other.columns[attr][i];
+				} else {
+					multiColumns[attr][row] = other.multiColumns[attr][i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set attributes of the following documents; all result sets stored into
+	 * one map must have the same attributes.
+	 *
+	 * @param attrNames
+	 *            attribute names
+	 * @param attrTypes
+	 *            attribute types
+	 * @throws SphinxException
+	 *             if attributes differ from those already set
+	 */
+	void setSchema(final String[] attrNames, final int[] attrTypes) throws SphinxException {
+		if (names != null) {
+			if (!Arrays.equals(names, attrNames) || !Arrays.equals(types, attrTypes)) {
+				throw new SphinxException("result sets have different attributes: " + Arrays.asList(names) + " and "
+						+ Arrays.asList(attrNames));
+			}
+			return;
+		}
+		names = attrNames.clone();
+		types = attrTypes.clone();
+		columns = new long[names.length][];
+		multiColumns = new long[names.length][][];
+		for (int i = 0; i < names.length; i++) {
+			if ((types[i] & SphinxClient.SPH_ATTR_MULTI) != 0) {
+				multiColumns[i] = new long[docIds.length][];
+			} else {
+				columns[i] = new long[docIds.length];
+			}
+		}
+	}
+
+	/**
+	 * Add document, or find it if already present.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @return row of the document
+	 */
+	int addDocument(final long docId) {
+		int row = rows.get(docId, -1);
+		if (row >= 0) {
+			return row;
+		}
+		if (size == docIds.length) {
+			int capacity = size * 2;
+			docIds = Arrays.copyOf(docIds, capacity);
+			for (int i = 0; i < names.length; i++) {
+				if (columns[i] != null) {
+					columns[i] = Arrays.copyOf(columns[i], capacity);
+				} else {
+					multiColumns[i] = Arrays.copyOf(multiColumns[i], capacity);
+				}
+			}
+		}
+		rows.put(docId, size);
+		docIds[size] = docId;
+		return size++;
+	}
+
+	/**
+	 * Set raw value of a scalar attribute; floats as their bits.
+	 *
+	 * @param row
+	 *            document row
+	 * @param attr
+	 *            attribute number
+	 * @param value
+	 *            the value
+	 */
+	void set(final int row, final int attr, final long value) {
+		columns[attr][row] = value;
+	}
+
+	/**
+	 * Set values of a multi-valued attribute.
+	 *
+	 * @param row
+	 *            document row
+	 * @param attr
+	 *            attribute number
+	 * @param values
+	 *            the values
+	 */
+	void setMulti(final int row, final int attr, final long[] values) {
+		multiColumns[attr][row] = values;
+	}
+}
@@ -0,0 +1,69 @@
+package org.sphx.api;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Attribute values override of a search request, see
+ * {@link SphinxClient#setOverride(SphinxAttributeOverride)}. There can be only
+ * one override per attribute, so overrides are equal if they override the
+ * same attribute.
+ */
+public abstract class SphinxAttributeOverride {
+
+	/**
+	 * Get attribute name.
+	 *
+	 * @return the attribute name
+	 */
+	public abstract String getAttrName();
+
+	/**
+	 * Get attribute type.
+	 *
+	 * @return the attribute type
+	 */
+	public abstract int getAttrType();
+
+	/**
+	 * Write override block of a search request.
+	 *
+	 * @param out
+	 *            request stream
+	 * @throws IOException
+	 *             if write failed
+	 */
+	abstract void encode(DataOutputStream out) throws IOException;
+
+	/**
+	 * Get hash code.
+	 * @return hashcode
+	 */
+	public int hashCode() {
+		int result = 0;
+		if (getAttrName() != null) {
+			result = getAttrName().hashCode();
+		}
+		return result;
+	}
+
+	/**
+	 * Equals.
+	 * @param obj another object
+	 * @return true if equal
+	 */
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SphinxAttributeOverride)) {
+			return false;
+		}
+		String attrName = getAttrName();
+		String other = ((SphinxAttributeOverride) obj).getAttrName();
+		if (attrName == null) {
+			return other == null;
+		}
+		return attrName.equals(other);
+	}
+}
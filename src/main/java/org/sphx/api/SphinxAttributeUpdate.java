@@ -0,0 +1,298 @@
+package org.sphx.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed attribute update, see
+ * {@link SphinxClient#updateAttributes(String, SphinxAttributeUpdate)}.
+ *
+ * <pre>
+ * SphinxAttributeUpdate update = new SphinxAttributeUpdate();
+ * update.addAttribute(&quot;rating&quot;, SphinxClient.SPH_ATTR_FLOAT);
+ * update.addAttribute(&quot;group_id&quot;, SphinxClient.SPH_ATTR_INTEGER);
+ * update.addDocument(1);
+ * update.setFloat(&quot;rating&quot;, 4.5f);
+ * update.setInt(&quot;group_id&quot;, 123);
+ * </pre>
+ *
+ * Every document needs a value of every attribute. The update protocol of
+ * searchd (version 0x102) carries one 32-bit value per attribute: floats are
+ * sent as their IEEE 754 bits, which searchd stores unchanged, and bigint
+ * values must be in the 0..2^32-1 range, which searchd stores zero-extended.
+ * Larger bigint values can not be updated in place and are rejected.
+ */
+public class SphinxAttributeUpdate {
+
+	private static final int MAX_ATTRS = 64;
+	private static final int INITIAL_ROWS = 16;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<Integer> types = new ArrayList<Integer>();
+	private final Map<String, Integer> attrIds = new HashMap<String, Integer>();
+	private final List<int[]> values = new ArrayList<int[]>();
+	private final List<int[][]> multiValues = new ArrayList<int[][]>();
+	private long[] docIds = new long[INITIAL_ROWS];
+	private long[] masks = new long[INITIAL_ROWS];
+	private int size;
+
+	/**
+	 * Add attribute to update. All attributes must be added before the first
+	 * document.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @param type
+	 *            one of SPH_ATTR_INTEGER, SPH_ATTR_TIMESTAMP, SPH_ATTR_BOOL,
+	 *            SPH_ATTR_FLOAT, SPH_ATTR_BIGINT, or SPH_ATTR_MULTI combined
+	 *            with SPH_ATTR_INTEGER
+	 * @throws SphinxException
+	 *             if invalid attribute
+	 */
+	public void addAttribute(final String name, final int type) throws SphinxException {
+		check(size == 0, "attributes must be added before documents");
+		check(name != null && name.length() > 0, "no attribute name provided");
+		check(!attrIds.containsKey(name), "attribute '" + name + "' is already added");
+		check(names.size() < MAX_ATTRS, "up to " + MAX_ATTRS + " attributes can be updated at once");
+		check(type == SphinxClient.SPH_ATTR_INTEGER || type == SphinxClient.SPH_ATTR_TIMESTAMP
+				|| type == SphinxClient.SPH_ATTR_BOOL || type == SphinxClient.SPH_ATTR_FLOAT
+				|| type == SphinxClient.SPH_ATTR_BIGINT
+				|| type == (SphinxClient.SPH_ATTR_MULTI | SphinxClient.SPH_ATTR_INTEGER),
+				"attribute '" + name + "' has unsupported type " + type);
+		attrIds.put(name, Integer.valueOf(names.size()));
+		names.add(name);
+		types.add(Integer.valueOf(type));
+		if (isMulti(type)) {
+			values.add(null);
+			multiValues.add(new int[docIds.length][]);
+		} else {
+			values.add(new int[docIds.length]);
+			multiValues.add(null);
+		}
+	}
+
+	/**
+	 * Add document; the following set* calls apply to it.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @throws SphinxException
+	 *             if no attributes were added
+	 */
+	public void addDocument(final long docId) throws SphinxException {
+		check(!names.isEmpty(), "no attribute names provided");
+		if (size == docIds.length) {
+			int capacity = docIds.length * 2;
+			docIds = Arrays.copyOf(docIds, capacity);
+			masks = Arrays.copyOf(masks, capacity);
+			for (int i = 0; i < names.size(); i++) {
+				if (values.get(i) != null) {
+					values.set(i, Arrays.copyOf(values.get(i), capacity));
+				} else {
+					multiValues.set(i, Arrays.copyOf(multiValues.get(i), capacity));
+				}
+			}
+		}
+		docIds[size] = docId;
+		masks[size] = 0;
+		size++;
+	}
+
+	/**
+	 * Set value of an integer, timestamp or bool attribute.
+	 *
+	 * @param attr
+	 *            attribute name
+	 * @param value
+	 *            the value, taken as unsigned 32-bit
+	 * @throws SphinxException
+	 *             if no document or wrong attribute type
+	 */
+	public void setInt(final String attr, final int value) throws SphinxException {
+		int id = attribute(attr);
+		int type = types.get(id).intValue();
+		check(type != SphinxClient.SPH_ATTR_FLOAT && !isMulti(type), "attribute '" + attr + "' is not an integer");
+		if (type == SphinxClient.SPH_ATTR_BIGINT) {
+			setBigint(attr, value & (SphinxClient.MAX_DWORD - 1));
+			return;
+		}
+		put(id, value);
+	}
+
+	/**
+	 * Set value of a bigint attribute.
+	 *
+	 * @param attr
+	 *            attribute name
+	 * @param value
+	 *            the value, 0..2^32-1
+	 * @throws SphinxException
+	 *             if no document, wrong attribute type or the value does not
+	 *             fit into the update protocol
+	 */
+	public void setBigint(final String attr, final long value) throws SphinxException {
+		int id = attribute(attr);
+		check(types.get(id).intValue() == SphinxClient.SPH_ATTR_BIGINT, "attribute '" + attr + "' is not a bigint");
+		check(value >= 0 && value < SphinxClient.MAX_DWORD, "bigint value " + value + " of attribute '" + attr
+				+ "' is out of 0..2^32-1 range: searchd updates carry 32-bit values, reindex to change it");
+		put(id, (int) value);
+	}
+
+	/**
+	 * Set value of a float attribute.
+	 *
+	 * @param attr
+	 *            attribute name
+	 * @param value
+	 *            the value
+	 * @throws SphinxException
+	 *             if no document or wrong attribute type
+	 */
+	public void setFloat(final String attr, final float value) throws SphinxException {
+		int id = attribute(attr);
+		check(types.get(id).intValue() == SphinxClient.SPH_ATTR_FLOAT, "attribute '" + attr + "' is not a float");
+		put(id, Float.floatToIntBits(value));
+	}
+
+	/**
+	 * Set values of a multi-valued attribute.
+	 *
+	 * @param attr
+	 *            attribute name
+	 * @param value
+	 *            the values, empty to clear
+	 * @throws SphinxException
+	 *             if no document or wrong attribute type
+	 */
+	public void setMulti(final String attr, final int[] value) throws SphinxException {
+		int id = attribute(attr);
+		check(isMulti(types.get(id).intValue()), "attribute '" + attr + "' is not multi-valued");
+		check(value != null, "no values provided");
+		multiValues.get(id)[size - 1] = value.clone();
+		masks[size - 1] |= 1L << id;
+	}
+
+	/**
+	 * Get amount of documents.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Encode update request.
+	 *
+	 * @param index
+	 *            index name(s) to update
+	 * @return request data
+	 * @throws SphinxException
+	 *             if some document misses a value
+	 */
+	ByteArrayOutputStream encode(final String index) throws SphinxException {
+		long all = -1L >>> (Long.SIZE - names.size());
+		for (int row = 0; row < size; row++) {
+			if (masks[row] != all) {
+				int missing = Long.numberOfTrailingZeros(~masks[row]);
+				throw new SphinxException("document " + docIds[row] + " has no value of attribute '"
+						+ names.get(missing) + "'");
+			}
+		}
+		ByteArrayOutputStream reqBuf = new ByteArrayOutputStream();
+		DataOutputStream req = new DataOutputStream(reqBuf);
+		try {
+			SphinxClient.writeNetUTF8(req, index);
+			req.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				SphinxClient.writeNetUTF8(req, names.get(i));
+				if (isMulti(types.get(i).intValue())) {
+					req.writeInt(1);
+				} else {
+					req.writeInt(0);
+				}
+			}
+			req.writeInt(size);
+			for (int row = 0; row < size; row++) {
+				req.writeLong(docIds[row]);
+				for (int i = 0; i < names.size(); i++) {
+					if (values.get(i) != null) {
+						req.writeInt(values.get(i)[row]);
+					} else {
+						int[] mva = multiValues.get(i)[row];
+						req.writeInt(mva.length);
+						for (int j = 0; j < mva.length; j++) {
+							req.writeInt(mva[j]);
+						}
+					}
+				}
+			}
+			req.flush();
+		} catch (IOException e) {
+			throw new SphinxException("internal error: failed to build request: " + e);
+		}
+		return reqBuf;
+	}
+
+	/**
+	 * Store dword value of the current document.
+	 *
+	 * @param id
+	 *            attribute number
+	 * @param value
+	 *            the value
+	 */
+	private void put(final int id, final int value) {
+		values.get(id)[size - 1] = value;
+		masks[size - 1] |= 1L << id;
+	}
+
+	/**
+	 * Find attribute of the current document.
+	 *
+	 * @param attr
+	 *            attribute name
+	 * @return attribute number
+	 * @throws SphinxException
+	 *             if no document or unknown attribute
+	 */
+	private int attribute(final String attr) throws SphinxException {
+		check(size > 0, "no document added");
+		Integer id = attrIds.get(attr);
+		check(id != null, "attribute '" + attr + "' is not added");
+		return id.intValue();
+	}
+
+	/**
+	 * Check for multi-valued type.
+	 *
+	 * @param type
+	 *            attribute type
+	 * @return true if multi-valued
+	 */
+	private static boolean isMulti(final int type) {
+		return (type & SphinxClient.SPH_ATTR_MULTI) != 0;
+	}
+
+	/**
+	 * Throw exception if condition is false.
+	 *
+	 * @param condition
+	 *            the condition
+	 * @param message
+	 *            the exception message
+	 * @throws SphinxException
+	 *             if condition is false
+	 */
+	private static void check(final boolean condition, final String message) throws SphinxException {
+		if (!condition) {
+			throw new SphinxException(message);
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package org.sphx.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends large amounts of plain attribute updates to searchd.
+ *
+ * Updates come in columnar form, either as arrays or streamed from a
+ * {@link SphinxUpdateSource}, and are split into chunks bounded by document
+ * count and request size. Chunks are encoded on the calling thread and sent
+ * in parallel, every worker thread keeping its own persistent connection
+ * (see {@link SphinxClient#open()}). At most two chunks per thread are held in
+ * memory, so streaming sources of any size are fine.
+ *
+ * <pre>
+ * SphinxBulkUpdater updater = new SphinxBulkUpdater(new SphinxClientFactory(&quot;localhost&quot;, 3312), 4);
+ * int[] updated = updater.update(&quot;products&quot;, new String[] { &quot;price&quot;, &quot;stock&quot; }, ids,
+ * 		new int[][] { prices, stocks });
+ * </pre>
+ *
+ * Updates set absolute values, so a failed bulk update may simply be
+ * repeated.
+ */
+public class SphinxBulkUpdater {
+
+	private static final int DEFAULT_CHUNK_DOCS = 10000;
+	private static final int DEFAULT_CHUNK_BYTES = 1048576;
+	private static final int DOCID_SIZE = 8;
+	private static final int VALUE_SIZE = 4;
+	private static final int CHUNKS_PER_THREAD = 2;
+
+	private final SphinxClientFactory factory;
+	private final int threads;
+	private int chunkDocs = DEFAULT_CHUNK_DOCS;
+	private int chunkBytes = DEFAULT_CHUNK_BYTES;
+
+	/**
+	 * Creates updater.
+	 *
+	 * @param clientFactory
+	 *            creates clients of the worker threads
+	 * @param threadCount
+	 *            amount of chunks sent in parallel
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxBulkUpdater(final SphinxClientFactory clientFactory, final int threadCount) throws SphinxException {
+		if (clientFactory == null || threadCount < 1) {
+			throw new SphinxException("client factory is required and thread count must be positive");
+		}
+		this.factory = clientFactory;
+		this.threads = threadCount;
+	}
+
+	/**
+	 * Set chunk bounds; default is 10000 documents and 1 MB. Keep the size
+	 * well below max_packet_size of searchd.
+	 *
+	 * @param maxDocs
+	 *            maximum documents per request
+	 * @param maxBytes
+	 *            maximum request size
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public void setChunkSize(final int maxDocs, final int maxBytes) throws SphinxException {
+		if (maxDocs < 1 || maxBytes < 1) {
+			throw new SphinxException("chunk bounds must be positive");
+		}
+		chunkDocs = maxDocs;
+		chunkBytes = maxBytes;
+	}
+
+	/**
+	 * Update attributes of given documents.
+	 *
+	 * @param index
+	 *            index name(s) to update; might be distributed
+	 * @param attrs
+	 *            names of the attributes to update
+	 * @param docIds
+	 *            document IDs
+	 * @param columns
+	 *            new values, one array per attribute, each as long as docIds
+	 * @return amount of found and updated documents, per chunk
+	 * @throws SphinxException
+	 *             on invalid parameters or if some chunk failed
+	 */
+	public int[] update(final String index, final String[] attrs, final long[] docIds, final int[][] columns)
+			throws SphinxException {
+		check(docIds != null && docIds.length > 0, "no update entries provided");
+		check(columns != null && attrs != null && columns.length == attrs.length,
+				"one value column per attribute expected");
+		for (int i = 0; i < columns.length; i++) {
+			check(columns[i] != null && columns[i].length == docIds.length, "column #" + i + " has wrong length");
+		}
+		return update(index, attrs, new SphinxUpdateSource() {
+			private int pos;
+
+			public int next(final long[] ids, final int[][] values) {
+				int n = Math.min(ids.length, docIds.length - pos);
+				System.arraycopy(docIds, pos, ids, 0, n);
+				for (int i = 0; i < columns.length; i++) {
+					System.arraycopy(columns[i], pos, values[i], 0, n);
+				}
+				pos += n;
+				return n;
+			}
+		});
+	}
+
+	/**
+	 * Update attributes with updates read from a source.
+	 *
+	 * @param index
+	 *            index name(s) to update; might be distributed
+	 * @param attrs
+	 *            names of the attributes to update
+	 * @param source
+	 *            the updates
+	 * @return amount of found and updated documents, per chunk
+	 * @throws SphinxException
+	 *             on invalid parameters or if some chunk failed
+	 */
+	public int[] update(final String index, final String[] attrs, final SphinxUpdateSource source)
+			throws SphinxException {
+		check(index != null && index.length() > 0, "no index name provided");
+		check(attrs != null && attrs.length > 0, "no attribute names provided");
+		check(source != null, "no update source provided");
+
+		/* names are sent UTF-8 encoded, measure them as sent */
+		int header = encode(index, attrs, new long[0], new int[attrs.length][0], 0).size();
+		int rows = Math.max(1, Math.min(chunkDocs, (chunkBytes - header) / (DOCID_SIZE + VALUE_SIZE * attrs.length)));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		BlockingQueue<SphinxClient> clients = new LinkedBlockingQueue<SphinxClient>();
+		List<Future<Integer>> chunks = new ArrayList<Future<Integer>>();
+		try {
+			long[] ids = new long[rows];
+			int[][] values = new int[attrs.length][rows];
+			int waited = 0;
+			for (int n = source.next(ids, values); n > 0; n = source.next(ids, values)) {
+				chunks.add(pool.submit(new Chunk(encode(index, attrs, ids, values, n), clients)));
+				/* bound memory held by encoded chunks */
+				if (chunks.size() - waited >= threads * CHUNKS_PER_THREAD) {
+					result(chunks, waited++);
+				}
+			}
+			int[] updated = new int[chunks.size()];
+			for (int i = 0; i < updated.length; i++) {
+				updated[i] = result(chunks, i);
+			}
+			return updated;
+		} finally {
+			pool.shutdownNow();
+			try {
+				/* let running chunks return their clients, if some chunk failed */
+				pool.awaitTermination(SphinxClient.SPH_CLIENT_TIMEOUT_MILLISEC, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (SphinxClient client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a chunk.
+	 *
+	 * @param chunks
+	 *            submitted chunks
+	 * @param i
+	 *            chunk number
+	 * @return updated documents
+	 * @throws SphinxException
+	 *             if the chunk failed
+	 */
+	private static int result(final List<Future<Integer>> chunks, final int i) throws SphinxException {
+		try {
+			return chunks.get(i).get().intValue();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SphinxException) {
+				throw (SphinxException) e.getCause();
+			}
+			throw new SphinxException("update chunk #" + i + " failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting for update chunk #" + i);
+		}
+	}
+
+	/**
+	 * Encode update request.
+	 *
+	 * @param index
+	 *            index name
+	 * @param attrs
+	 *            attribute names
+	 * @param ids
+	 *            document IDs
+	 * @param values
+	 *            value columns
+	 * @param rows
+	 *            amount of rows to take
+	 * @return request data
+	 * @throws SphinxException
+	 *             if encoding failed
+	 */
+	static ByteArrayOutputStream encode(final String index, final String[] attrs, final long[] ids,
+			final int[][] values, final int rows) throws SphinxException {
+		ByteArrayOutputStream reqBuf = new ByteArrayOutputStream(rows * (DOCID_SIZE + VALUE_SIZE * attrs.length));
+		DataOutputStream req = new DataOutputStream(reqBuf);
+		try {
+			SphinxClient.writeNetUTF8(req, index);
+			req.writeInt(attrs.length);
+			for (int i = 0; i < attrs.length; i++) {
+				SphinxClient.writeNetUTF8(req, attrs[i]);
+				req.writeInt(0);
+			}
+			req.writeInt(rows);
+			for (int row = 0; row < rows; row++) {
+				req.writeLong(ids[row]);
+				for (int i = 0; i < values.length; i++) {
+					req.writeInt(values[i][row]);
+				}
+			}
+			req.flush();
+		} catch (IOException e) {
+			throw new SphinxException("internal error: failed to build request: " + e);
+		}
+		return reqBuf;
+	}
+
+	/**
+	 * Send encoded update request.
+	 *
+	 * @param client
+	 *            the client
+	 * @param request
+	 *            request data
+	 * @return amount of found and updated documents
+	 * @throws SphinxException
+	 *             if update failed
+	 */
+	static int send(final SphinxClient client, final ByteArrayOutputStream request) throws SphinxException {
+		SphinxProtocol protocol = client.getProtocol();
+		DataInputStream in = client.executeCommand(SphinxClient.SEARCHD_COMMAND_UPDATE,
+				protocol.getUpdateVersion(), protocol.encodeUpdate(request));
+		try {
+			return in.readInt();
+		} catch (IOException e) {
+			throw new SphinxException("incomplete reply");
+		}
+	}
+
+	/**
+	 * Throw exception if condition is false.
+	 *
+	 * @param condition
+	 *            the condition
+	 * @param message
+	 *            the exception message
+	 * @throws SphinxException
+	 *             if condition is false
+	 */
+	private static void check(final boolean condition, final String message) throws SphinxException {
+		if (!condition) {
+			throw new SphinxException(message);
+		}
+	}
+
+	/** Sends one chunk over a pooled persistent connection. */
+	private final class Chunk implements Callable<Integer> {
+		private final ByteArrayOutputStream request;
+		private final BlockingQueue<SphinxClient> clients;
+
+		/**
+		 * Create chunk.
+		 *
+		 * @param req
+		 *            encoded request
+		 * @param pool
+		 *            idle clients
+		 */
+		private Chunk(final ByteArrayOutputStream req, final BlockingQueue<SphinxClient> pool) {
+			this.request = req;
+			this.clients = pool;
+		}
+
+		/**
+		 * Send the chunk.
+		 *
+		 * @return updated documents
+		 * @throws SphinxException
+		 *             if update failed
+		 */
+		public Integer call() throws SphinxException {
+			SphinxClient client = clients.poll();
+			if (client == null) {
+				client = factory.newClient();
+				client.open();
+			}
+			try {
+				return Integer.valueOf(send(client, request));
+			} finally {
+				/* a rejected chunk leaves the connection open; a broken one is reopened by the next chunk */
+				clients.add(client);
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package org.sphx.api;
+
+/**
+ * Isolated permit pool for one kind of searchd command.
+ *
+ * Assigning separate bulkheads to e.g. excerpts and searches keeps a burst of
+ * slow excerpt requests from occupying every connection to searchd: once the
+ * excerpt bulkhead is full further excerpts wait a short time and are
+ * rejected with {@link SphinxRejectedException}, while searches keep their own
+ * permits. A bulkhead may also carry its own time budget, which tightens the
+ * request timeout of the commands it guards.
+ *
+ * @see SphinxClient#setBulkhead(int, SphinxBulkhead)
+ */
+public class SphinxBulkhead {
+
+	private final String name;
+	private final int maxConcurrent;
+	private final long maxWaitMillis;
+	private int timeoutMillis;
+
+	private int inFlight;
+	private int peakInFlight;
+	private int queued;
+	private long admitted;
+	private long rejected;
+	private long waitedMillis;
+
+	/**
+	 * Creates bulkhead.
+	 *
+	 * @param bulkheadName
+	 *            name used in messages
+	 * @param concurrency
+	 *            maximum concurrent commands
+	 * @param waitMillis
+	 *            maximum wait for a permit, 0 rejects immediately
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxBulkhead(final String bulkheadName, final int concurrency, final long waitMillis)
+			throws SphinxException {
+		if (concurrency < 1 || waitMillis < 0) {
+			throw new SphinxException("concurrency must be positive and wait must not be negative");
+		}
+		this.name = bulkheadName;
+		this.maxConcurrent = concurrency;
+		this.maxWaitMillis = waitMillis;
+	}
+
+	/**
+	 * Set time budget of the guarded commands. The shorter of this and the
+	 * client request timeout applies.
+	 *
+	 * @param millis
+	 *            timeout in milliseconds, 0 means "do not limit"
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setTimeout(final int millis) throws SphinxException {
+		if (millis < 0) {
+			throw new SphinxException("timeout must not be negative");
+		}
+		timeoutMillis = millis;
+	}
+
+	/**
+	 * Get time budget of the guarded commands.
+	 *
+	 * @return timeout in milliseconds, 0 if not limited
+	 */
+	public synchronized int getTimeout() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Take a permit, waiting up to the maximum wait.
+	 *
+	 * @throws SphinxException
+	 *             if no permit became free or the thread is interrupted
+	 */
+	public void acquire() throws SphinxException {
+		acquire(null);
+	}
+
+	/**
+	 * Take a permit, waiting up to the maximum wait unless cancelled.
+	 *
+	 * @param token
+	 *            cancellation token of the request, may be null
+	 * @throws SphinxException
+	 *             if no permit became free, the request was cancelled or the
+	 *             thread is interrupted
+	 */
+	public synchronized void acquire(final SphinxCancellationToken token) throws SphinxException {
+		long start = System.currentTimeMillis();
+		if (inFlight >= maxConcurrent) {
+			queued++;
+			if (token != null) {
+				token.watch(this);
+			}
+			try {
+				long left = maxWaitMillis;
+				while (inFlight >= maxConcurrent) {
+					if (token != null) {
+						token.check();
+					}
+					if (left <= 0) {
+						rejected++;
+						throw new SphinxRejectedException("bulkhead '" + name + "' is full (" + maxConcurrent
+								+ " concurrent commands)");
+					}
+					wait(left);
+					left = start + maxWaitMillis - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SphinxException("interrupted while waiting for bulkhead '" + name + "'");
+			} finally {
+				queued--;
+				if (token != null) {
+					token.unwatch(this);
+				}
+			}
+		}
+		inFlight++;
+		peakInFlight = Math.max(peakInFlight, inFlight);
+		admitted++;
+		waitedMillis += System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Return a permit.
+	 */
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Get bulkhead name.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get commands in progress.
+	 *
+	 * @return in-flight commands
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Get highest amount of concurrent commands seen.
+	 *
+	 * @return peak in-flight commands
+	 */
+	public synchronized int getPeakInFlight() {
+		return peakInFlight;
+	}
+
+	/**
+	 * Get commands waiting for a permit.
+	 *
+	 * @return queue depth
+	 */
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	/**
+	 * Get amount of rejected commands.
+	 *
+	 * @return rejected commands
+	 */
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	/**
+	 * Get average wait for a permit of admitted commands.
+	 *
+	 * @return average wait in milliseconds
+	 */
+	public synchronized double getAverageWaitMillis() {
+		if (admitted == 0) {
+			return 0;
+		}
+		return (double) waitedMillis / admitted;
+	}
+}
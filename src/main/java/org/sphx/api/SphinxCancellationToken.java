@@ -0,0 +1,143 @@
+package org.sphx.api;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handle to abandon a request from another thread.
+ *
+ * Cancelling closes the connection of the exchange in progress, even one
+ * still connecting, and wakes a caller waiting for a {@link SphinxScheduler}
+ * ticket, a {@link SphinxBulkhead} or a {@link SphinxConcurrencyLimiter}
+ * permit or pausing between retries. The caller returns at once with
+ * {@link SphinxCancelledException}, and no further attempts or retries are
+ * made. A token is used for one request; see
+ * {@link SphinxClient#setCancellationToken(SphinxCancellationToken)} and
+ * {@link SphinxSearchSession}.
+ */
+public class SphinxCancellationToken {
+
+	private boolean cancelled;
+	private Socket socket;
+	private final List<Object> monitors = new ArrayList<Object>();
+
+	/**
+	 * Cancel the request. Does nothing if already cancelled.
+	 */
+	public void cancel() {
+		Socket sock;
+		Object[] waiting;
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			sock = socket;
+			socket = null;
+			waiting = monitors.toArray();
+			notifyAll();
+		}
+		/* not under the token lock: waiters check the token holding their monitor */
+		for (int i = 0; i < waiting.length; i++) {
+			synchronized (waiting[i]) {
+				waiting[i].notifyAll();
+			}
+		}
+		if (sock != null) {
+			try {
+				sock.close();
+			} catch (IOException e) {
+				/* the reader fails anyway */
+			}
+		}
+	}
+
+	/**
+	 * Check whether the request was cancelled.
+	 *
+	 * @return true if cancelled
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Fail if the request was cancelled.
+	 *
+	 * @throws SphinxCancelledException
+	 *             if cancelled
+	 */
+	synchronized void check() throws SphinxCancelledException {
+		if (cancelled) {
+			throw new SphinxCancelledException("request cancelled");
+		}
+	}
+
+	/**
+	 * Register connection of the exchange in progress.
+	 *
+	 * @param sock
+	 *            the connection
+	 * @throws SphinxCancelledException
+	 *             if already cancelled
+	 */
+	synchronized void attach(final Socket sock) throws SphinxCancelledException {
+		check();
+		socket = sock;
+	}
+
+	/**
+	 * Forget connection of a finished exchange.
+	 *
+	 * @param sock
+	 *            the connection
+	 */
+	synchronized void detach(final Socket sock) {
+		if (socket == sock) {
+			socket = null;
+		}
+	}
+
+	/**
+	 * Register monitor of a queue the request waits in, to be notified on
+	 * cancel. The waiter checks {@link #isCancelled()} after every wake up.
+	 *
+	 * @param monitor
+	 *            the monitor
+	 */
+	synchronized void watch(final Object monitor) {
+		monitors.add(monitor);
+	}
+
+	/**
+	 * Forget monitor of a queue the request left.
+	 *
+	 * @param monitor
+	 *            the monitor
+	 */
+	synchronized void unwatch(final Object monitor) {
+		monitors.remove(monitor);
+	}
+
+	/**
+	 * Sleep unless cancelled meanwhile.
+	 *
+	 * @param millis
+	 *            time to sleep
+	 * @throws SphinxCancelledException
+	 *             if cancelled before or during the sleep
+	 * @throws InterruptedException
+	 *             if thread was interrupted
+	 */
+	synchronized void sleep(final long millis) throws SphinxCancelledException, InterruptedException {
+		long until = System.currentTimeMillis() + millis;
+		long left = millis;
+		while (!cancelled && left > 0) {
+			wait(left);
+			left = until - System.currentTimeMillis();
+		}
+		check();
+	}
+}
@@ -0,0 +1,17 @@
+package org.sphx.api;
+
+/** Exception thrown when a request is abandoned through its
+ *  {@link SphinxCancellationToken}. */
+public class SphinxCancelledException extends SphinxException {
+	/**
+	 * serial Version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Constructor from error message string.
+	 * @param message message about error.
+	 */
+	public SphinxCancelledException(final String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,478 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per-endpoint circuit breaker for searchd calls.
+ *
+ * Outcomes of the last calls to every endpoint are kept in a sliding window.
+ * When the failure rate or the slow call rate of the window reaches its
+ * threshold the circuit opens and calls fail fast with
+ * {@link SphinxCircuitOpenException}. After the open duration the circuit
+ * becomes half-open and lets a few probe calls through: the circuit closes
+ * once all of them succeeded and opens again on the first failed or slow
+ * probe. One breaker is usually shared by all clients of an application.
+ */
+public class SphinxCircuitBreaker {
+
+	/** Circuit states. */
+	public enum State {
+		/** Calls pass, outcomes are recorded. */
+		CLOSED,
+		/** Calls are rejected. */
+		OPEN,
+		/** A limited number of probe calls pass. */
+		HALF_OPEN
+	}
+
+	private static final int DEFAULT_WINDOW_SIZE = 100;
+	private static final int DEFAULT_MINIMUM_CALLS = 10;
+	private static final float DEFAULT_FAILURE_RATE = 50.0f;
+	private static final float DEFAULT_SLOW_CALL_RATE = 100.0f;
+	private static final long DEFAULT_SLOW_CALL_MILLIS = 5000;
+	private static final long DEFAULT_OPEN_MILLIS = 10000;
+	private static final int DEFAULT_HALF_OPEN_CALLS = 3;
+	private static final float PERCENT = 100.0f;
+
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private int minimumCalls = DEFAULT_MINIMUM_CALLS;
+	private float failureRateThreshold = DEFAULT_FAILURE_RATE;
+	private float slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE;
+	private long slowCallMillis = DEFAULT_SLOW_CALL_MILLIS;
+	private long openMillis = DEFAULT_OPEN_MILLIS;
+	private int halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+
+	private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+	private final List<SphinxCircuitBreakerListener> listeners =
+		new CopyOnWriteArrayList<SphinxCircuitBreakerListener>();
+
+	/**
+	 * Set size of the sliding window, in calls.
+	 *
+	 * @param size
+	 *            amount of last calls used to compute rates
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setWindowSize(final int size) throws SphinxException {
+		check(size > 0, "window size must be positive");
+		windowSize = size;
+		circuits.clear();
+	}
+
+	/**
+	 * Set minimum amount of recorded calls before rates are evaluated.
+	 *
+	 * @param calls
+	 *            minimum calls
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setMinimumCalls(final int calls) throws SphinxException {
+		check(calls > 0, "minimum calls must be positive");
+		minimumCalls = calls;
+	}
+
+	/**
+	 * Set failure rate, in percents, which opens the circuit.
+	 *
+	 * @param rate
+	 *            failure rate in 0..100 range
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setFailureRateThreshold(final float rate) throws SphinxException {
+		check(rate > 0 && rate <= PERCENT, "failure rate must be in 0..100 range");
+		failureRateThreshold = rate;
+	}
+
+	/**
+	 * Set slow call rate, in percents, which opens the circuit.
+	 *
+	 * @param rate
+	 *            slow call rate in 0..100 range
+	 * @param durationMillis
+	 *            calls taking at least this time are slow
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setSlowCallRateThreshold(final float rate, final long durationMillis)
+			throws SphinxException {
+		check(rate > 0 && rate <= PERCENT, "slow call rate must be in 0..100 range");
+		check(durationMillis > 0, "slow call duration must be positive");
+		slowCallRateThreshold = rate;
+		slowCallMillis = durationMillis;
+	}
+
+	/**
+	 * Set how long the circuit stays open before probe calls are let through.
+	 *
+	 * @param durationMillis
+	 *            open duration, in milliseconds
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setOpenDuration(final long durationMillis) throws SphinxException {
+		check(durationMillis >= 0, "open duration must not be negative");
+		openMillis = durationMillis;
+	}
+
+	/**
+	 * Set amount of probe calls permitted in half-open state.
+	 *
+	 * @param calls
+	 *            probe calls
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setHalfOpenCalls(final int calls) throws SphinxException {
+		check(calls > 0, "half-open calls must be positive");
+		halfOpenCalls = calls;
+	}
+
+	/**
+	 * Register state transition listener.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(final SphinxCircuitBreakerListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove state transition listener.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void removeListener(final SphinxCircuitBreakerListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Ask permission to call an endpoint. Every granted permission must be
+	 * followed by {@link #onSuccess(String, long)} or
+	 * {@link #onFailure(String, long)}.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @return true if call is permitted
+	 */
+	public boolean tryAcquire(final String endpoint) {
+		State from = null;
+		boolean permitted;
+		synchronized (this) {
+			Circuit circuit = circuit(endpoint);
+			if (circuit.state == State.OPEN && System.currentTimeMillis() - circuit.openedAt >= openMillis) {
+				from = circuit.state;
+				circuit.halfOpen();
+			}
+			switch (circuit.state) {
+			case CLOSED:
+				permitted = true;
+				break;
+			case HALF_OPEN:
+				permitted = circuit.probes < halfOpenCalls;
+				if (permitted) {
+					circuit.probes++;
+				}
+				break;
+			default:
+				permitted = false;
+				break;
+			}
+			if (!permitted) {
+				circuit.rejected++;
+			}
+		}
+		if (from != null) {
+			fire(endpoint, from, State.HALF_OPEN);
+		}
+		return permitted;
+	}
+
+	/**
+	 * Record successful call.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @param durationMillis
+	 *            call duration, in milliseconds
+	 */
+	public void onSuccess(final String endpoint, final long durationMillis) {
+		record(endpoint, false, durationMillis >= slowCallMillis);
+	}
+
+	/**
+	 * Record failed call.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @param durationMillis
+	 *            call duration, in milliseconds
+	 */
+	public void onFailure(final String endpoint, final long durationMillis) {
+		record(endpoint, true, durationMillis >= slowCallMillis);
+	}
+
+	/**
+	 * Get circuit state of an endpoint.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @return the state
+	 */
+	public synchronized State getState(final String endpoint) {
+		return circuit(endpoint).state;
+	}
+
+	/**
+	 * Get failure rate of the current window.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @return failure rate in percents, or -1 if less than minimum calls
+	 *         recorded
+	 */
+	public synchronized float getFailureRate(final String endpoint) {
+		Circuit circuit = circuit(endpoint);
+		return rate(circuit, circuit.failures);
+	}
+
+	/**
+	 * Get slow call rate of the current window.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @return slow call rate in percents, or -1 if less than minimum calls
+	 *         recorded
+	 */
+	public synchronized float getSlowCallRate(final String endpoint) {
+		Circuit circuit = circuit(endpoint);
+		return rate(circuit, circuit.slowCalls);
+	}
+
+	/**
+	 * Get amount of calls rejected without contacting the endpoint.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @return rejected calls
+	 */
+	public synchronized long getRejectedCount(final String endpoint) {
+		return circuit(endpoint).rejected;
+	}
+
+	/**
+	 * Get how many times the circuit of an endpoint was opened.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @return open transitions
+	 */
+	public synchronized long getOpenCount(final String endpoint) {
+		return circuit(endpoint).opened;
+	}
+
+	/**
+	 * Get endpoints known to this breaker.
+	 *
+	 * @return list of host:port
+	 */
+	public synchronized List<String> getEndpoints() {
+		return new ArrayList<String>(circuits.keySet());
+	}
+
+	/**
+	 * Record call outcome and evaluate thresholds.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @param failure
+	 *            call failed
+	 * @param slow
+	 *            call was slow
+	 */
+	private void record(final String endpoint, final boolean failure, final boolean slow) {
+		State from;
+		State to;
+		synchronized (this) {
+			Circuit circuit = circuit(endpoint);
+			from = circuit.state;
+			switch (circuit.state) {
+			case HALF_OPEN:
+				circuit.probes--;
+				if (failure || slow) {
+					circuit.open();
+				} else if (++circuit.probeSuccesses >= halfOpenCalls) {
+					circuit.close();
+				}
+				break;
+			case CLOSED:
+				circuit.add(failure, slow);
+				if (circuit.calls >= minimumCalls
+						&& (rate(circuit, circuit.failures) >= failureRateThreshold
+						|| rate(circuit, circuit.slowCalls) >= slowCallRateThreshold)) {
+					circuit.open();
+				}
+				break;
+			default:
+				/* late outcome of a call started before the circuit opened */
+				break;
+			}
+			to = circuit.state;
+		}
+		if (from != to) {
+			fire(endpoint, from, to);
+		}
+	}
+
+	/**
+	 * Rate of flagged calls in the window.
+	 *
+	 * @param circuit
+	 *            the circuit
+	 * @param flagged
+	 *            amount of flagged calls
+	 * @return rate in percents, or -1 if less than minimum calls recorded
+	 */
+	private float rate(final Circuit circuit, final int flagged) {
+		if (circuit.calls < minimumCalls) {
+			return -1;
+		}
+		return flagged * PERCENT / circuit.calls;
+	}
+
+	/**
+	 * Get or create circuit (must hold the lock).
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @return the circuit
+	 */
+	private Circuit circuit(final String endpoint) {
+		Circuit circuit = circuits.get(endpoint);
+		if (circuit == null) {
+			circuit = new Circuit(windowSize);
+			circuits.put(endpoint, circuit);
+		}
+		return circuit;
+	}
+
+	/**
+	 * Notify listeners.
+	 *
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @param from
+	 *            previous state
+	 * @param to
+	 *            new state
+	 */
+	private void fire(final String endpoint, final State from, final State to) {
+		for (SphinxCircuitBreakerListener listener : listeners) {
+			listener.onStateTransition(endpoint, from, to);
+		}
+	}
+
+	/**
+	 * Internal method. Sanity check.
+	 *
+	 * @param condition
+	 *            the condition
+	 * @param err
+	 *            the error message
+	 * @throws SphinxException
+	 *             if condition is false
+	 */
+	private static void check(final boolean condition, final String err) throws SphinxException {
+		if (!condition) {
+			throw new SphinxException(err);
+		}
+	}
+
+	/** State and sliding window of one endpoint. */
+	private static final class Circuit {
+		private final boolean[] failed;
+		private final boolean[] slow;
+		private int next;
+		private int calls;
+		private int failures;
+		private int slowCalls;
+		private State state = State.CLOSED;
+		private long openedAt;
+		private int probes;
+		private int probeSuccesses;
+		private long rejected;
+		private long opened;
+
+		/**
+		 * Create circuit.
+		 *
+		 * @param size
+		 *            window size
+		 */
+		private Circuit(final int size) {
+			failed = new boolean[size];
+			slow = new boolean[size];
+		}
+
+		/**
+		 * Add outcome to the window, evicting the oldest one.
+		 *
+		 * @param isFailure
+		 *            call failed
+		 * @param isSlow
+		 *            call was slow
+		 */
+		private void add(final boolean isFailure, final boolean isSlow) {
+			if (calls == failed.length) {
+				if (failed[next]) {
+					failures--;
+				}
+				if (slow[next]) {
+					slowCalls--;
+				}
+			} else {
+				calls++;
+			}
+			failed[next] = isFailure;
+			slow[next] = isSlow;
+			if (isFailure) {
+				failures++;
+			}
+			if (isSlow) {
+				slowCalls++;
+			}
+			next = (next + 1) % failed.length;
+		}
+
+		/** Switch to open state. */
+		private void open() {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			opened++;
+		}
+
+		/** Switch to half-open state. */
+		private void halfOpen() {
+			state = State.HALF_OPEN;
+			probes = 0;
+			probeSuccesses = 0;
+		}
+
+		/** Switch to closed state with an empty window. */
+		private void close() {
+			state = State.CLOSED;
+			next = 0;
+			calls = 0;
+			failures = 0;
+			slowCalls = 0;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package org.sphx.api;
+
+/** Receives circuit state transitions from {@link SphinxCircuitBreaker}. */
+public interface SphinxCircuitBreakerListener {
+
+	/**
+	 * Called after the circuit of an endpoint changed its state.
+	 * 
+	 * @param endpoint
+	 *            endpoint as host:port
+	 * @param from
+	 *            previous state
+	 * @param to
+	 *            new state
+	 */
+	void onStateTransition(String endpoint, SphinxCircuitBreaker.State from, SphinxCircuitBreaker.State to);
+}
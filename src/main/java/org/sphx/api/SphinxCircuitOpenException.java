@@ -0,0 +1,29 @@
+package org.sphx.api;
+
+/** Exception thrown without contacting searchd when the circuit
+ *  for its endpoint is open. */
+public class SphinxCircuitOpenException extends SphinxException {
+	/**
+	 * serial Version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Endpoint (host:port) with the open circuit. */
+	private final String endpoint;
+
+	/** Constructor from endpoint.
+	 * @param openEndpoint endpoint (host:port) with the open circuit.
+	 */
+	public SphinxCircuitOpenException(final String openEndpoint) {
+		super("circuit breaker is open for " + openEndpoint);
+		this.endpoint = openEndpoint;
+	}
+
+	/**
+	 * Get endpoint with the open circuit.
+	 * @return endpoint as host:port
+	 */
+	public final String getEndpoint() {
+		return endpoint;
+	}
+}
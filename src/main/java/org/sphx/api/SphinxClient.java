@@ -21,18 +21,17 @@ import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import static org.sphx.util.Validator.isNotEmpty;
 import static org.sphx.util.Validator.isEmpty;
 
@@ -46,7 +45,6 @@ public class SphinxClient {
 
 	private static final Integer DEFAULT_EXCEPTS_AROUND = Integer.valueOf(5);
 	private static final Integer DEFAULT_EXCEPTS_LIMIT = Integer.valueOf(256);
-	private static final float MILLSEC_IN_SEC = 1000.0f;
 	private static final int DEFAULT_LIMIT = 20;
 	protected static final int DEFAULT_SEARCHD_PORT = 3312;
 	public static final long MAX_DWORD = 4294967296L; /* 2 ^ 32 */
@@ -98,6 +96,7 @@ public class SphinxClient {
 	public static final int SPH_ATTR_BOOL = 4;
 	public static final int SPH_ATTR_FLOAT = 5;
 	public static final int SPH_ATTR_BIGINT = 6;
+	public static final int SPH_ATTR_STRING = 7;
 	public static final int SPH_ATTR_MULTI = 0x40000000;
 
 	/* searchd commands */
@@ -119,9 +118,9 @@ public class SphinxClient {
 	public static final int VER_COMMAND_QUERY = 0x100;
 
 	/* filter types */
-	private static final int SPH_FILTER_VALUES = 0;
-	private static final int SPH_FILTER_RANGE = 1;
-	//private static final int SPH_FILTER_FLOATRANGE = 2;
+	static final int SPH_FILTER_VALUES = 0;
+	static final int SPH_FILTER_RANGE = 1;
+	static final int SPH_FILTER_FLOATRANGE = 2;
 
 	private String host;
 	protected int port;
@@ -131,11 +130,12 @@ public class SphinxClient {
 	private int[] weights;
 	private int sortMode;
 	private String sortby;
-	private int minId;
-	private int maxId;
+	private long minId;
+	private long maxId;
 	private ByteArrayOutputStream rawFilters;
 	private DataOutputStream filters;
 	private int filterCount;
+	private List<SphinxFilterSet> filterSets;
 	private String groupBy;
 	private int groupFunc;
 	private String groupSort;
@@ -150,19 +150,25 @@ public class SphinxClient {
 	private float longitude;
 	private String error;
 	private String warning;
-	private ArrayList reqs;
+	private ArrayList<byte[]> reqs;
 	private Map indexWeights;
 	private int rankingMode;
 	private int maxQueryTime;
 	private Map fieldWeights;
-	protected HashSet overrides;
+	protected HashSet<SphinxAttributeOverride> overrides;
 	private String selectList;
+	private ArrayList<Integer> reqQueryTimeOffsets;
+	private int subQueryRetries;
+	private final SphinxDispatcher dispatcher;
+	private boolean persistent;
+	private SphinxConnection persistentConnection;
+	private SphinxProtocol protocol;
 
 	/** Sphinx client timeout. */
 	public static final int SPH_CLIENT_TIMEOUT_MILLISEC = 30000;
 	private static final int DEFAULT_MAX_MATCHES = 1000;
 	private static final int MAX_PORT_VALUE = 65536;
-	private static final int SPH_MSG_OFFSET = 4;
+	private static final int INT_SIZE = 4;
 
 	/**
 	 * Creates a new SphinxClient instance.
@@ -188,9 +194,10 @@ public class SphinxClient {
 		sortMode = SPH_SORT_RELEVANCE;
 		sortby = "";
 		minId = 0;
-		maxId = 0xFFFFFFFF;
+		maxId = -1L;
 
 		filterCount = 0;
+		filterSets = new ArrayList<SphinxFilterSet>();
 		rawFilters = new ByteArrayOutputStream();
 		filters = new DataOutputStream(rawFilters);
 
@@ -211,13 +218,16 @@ public class SphinxClient {
 
 		error = "";
 		warning = "";
-		reqs = new ArrayList();
+		reqs = new ArrayList<byte[]>();
 		weights = null;
 		indexWeights = new LinkedHashMap();
 		fieldWeights = new LinkedHashMap();
 		rankingMode = SPH_RANK_PROXIMITY_BM25;
-		overrides = new HashSet();
+		overrides = new HashSet<SphinxAttributeOverride>();
 		selectList = "*";
+		reqQueryTimeOffsets = new ArrayList<Integer>();
+		dispatcher = new SphinxDispatcher(this);
+		protocol = SphinxProtocol.V0_9_9;
 	}
 
 	/**
@@ -328,27 +338,6 @@ public class SphinxClient {
 		return v;
 	}
 
-	/**
-	 * Exchange versions with sphinx searchd.
-	 * 
-	 * @param sIn
-	 *            input stream
-	 * @param sOut
-	 *            output stream
-	 * @throws IOException
-	 *             if IO error occur
-	 * @throws SphinxException
-	 *             if invalid version of searchd.
-	 */
-	private void hello(final DataInputStream sIn, final DataOutputStream sOut) throws SphinxException,
-			IOException {
-		int version = sIn.readInt();
-		if (version < 1) {
-			throw new SphinxException("expected searchd protocol version 1+, got version " + version);
-		}
-		sOut.writeInt(VER_MAJOR_PROTO);
-	}
-
 	/**
 	 * Close closeable.
 	 * 
@@ -373,85 +362,48 @@ public class SphinxClient {
 	 *             if io error occur.
 	 */
 	protected Socket getSocket() throws IOException {
-		Socket socket = new Socket(host, port);
-		socket.setSoTimeout(SPH_CLIENT_TIMEOUT_MILLISEC);
-		return socket;
+		return getSocket(host, port);
 	}
 
 	/**
-	 * Internal method. Get and check response packet from searchd.
+	 * Get socket to given server.
 	 * 
-	 * @param sIn
-	 *            input stream
-	 * @throws SphinxException
-	 *             when error occur
-	 * @return response data
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 * @return the socket
+	 * @throws IOException
+	 *             if io error occur.
 	 */
-	private byte[] response(final DataInputStream sIn) throws SphinxException {
-
-		/* response */
-		short status = 0, ver = 0;
-		int len = 0;
-
-		try {
-			/* read status fields */
-			status = sIn.readShort();
-			ver = sIn.readShort();
-			len = sIn.readInt();
-
-			/* read response if non-empty */
-			if (len <= 0) {
-				throw new SphinxException("invalid response packet size (len=" + len + ")");
-			}
-
-			byte[] response = new byte[len];
-			sIn.readFully(response, 0, len);
-
-			/* check status */
-			switch (status) {
-			case SEARCHD_OK:
-				break;
-			case SEARCHD_WARNING:
-				DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
-				int iWarnLen = in.readInt();
-				warning = new String(response, SPH_MSG_OFFSET, iWarnLen);
-				System.arraycopy(response, SPH_MSG_OFFSET + iWarnLen, response, 0, response.length
-						- SPH_MSG_OFFSET - iWarnLen);
-				break;
-			case SEARCHD_ERROR:
-				throw new SphinxException("searchd error: "
-						+ new String(response, SPH_MSG_OFFSET, response.length - SPH_MSG_OFFSET));
-			case SEARCHD_RETRY:
-				throw new SphinxException("temporary searchd error: "
-						+ new String(response, SPH_MSG_OFFSET, response.length - SPH_MSG_OFFSET));
-			default:
-				throw new SphinxException("searched returned unknown status, code=" + status);
-			}
+	protected Socket getSocket(final String sphinxHost, final int sphinxPort) throws IOException {
+		Socket socket = new Socket();
+		dispatcher.connect(socket, new InetSocketAddress(sphinxHost, sphinxPort));
+		return socket;
+	}
 
-			return response;
+	/**
+	 * Get searchd host.
+	 * 
+	 * @return the host
+	 */
+	String getHost() {
+		return host;
+	}
 
-		} catch (IOException e) {
-			String message = "received zero-sized searchd response" + " (searchd crashed?): "
-					+ e.getMessage();
-			if (len != 0) {
-				/* get trace, to provide even more failure details */
-				PrintWriter ew = new PrintWriter(new StringWriter());
-				e.printStackTrace(ew);
-				ew.flush();
-				ew.close();
-				String sTrace = ew.toString();
-
-				/* build error message */
-				message = "failed to read searchd response (status=" + status + ", ver=" + ver + ", len="
-						+ len + ", trace=" + sTrace + ")";
-			}
-			throw new SphinxException(message);
-		}
+	/**
+	 * Get searchd port.
+	 * 
+	 * @return the port
+	 */
+	int getPort() {
+		return port;
 	}
 
 	/**
 	 * Internal method. Connect to searchd, send request, get response as
-	 * DataInputStream.
+	 * DataInputStream. Temporary failures are retried according to the retry
+	 * policy, if any.
 	 * 
 	 * @param command
 	 *            the command
@@ -465,56 +417,130 @@ public class SphinxClient {
 	 */
 	DataInputStream executeCommand(final int command, final int version, final ByteArrayOutputStream req)
 			throws SphinxException {
-		/* connect */
+		return dispatcher.execute(command, version, req);
+	}
+
+	/**
+	 * Internal method. Single request/response exchange with searchd.
+	 * 
+	 * @param command
+	 *            the command
+	 * @param version
+	 *            the clien version
+	 * @param req
+	 *            the request data
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 * @throws SphinxException
+	 *             if some error happened.
+	 * @return result data stream
+	 */
+	DataInputStream exchange(final int command, final int version, final ByteArrayOutputStream req,
+			final String sphinxHost, final int sphinxPort) throws SphinxException {
+		boolean primary = sphinxHost.equals(host) && sphinxPort == port;
 		Socket sock = null;
-		InputStream sIn = null;
-		OutputStream sOut = null;
+		SphinxConnection conn = null;
+		boolean keep = false;
+		SphinxTimeoutException.Stage stage = SphinxTimeoutException.Stage.CONNECT;
 		try {
-			sock = getSocket();
-			sIn = sock.getInputStream();
-			sOut = sock.getOutputStream();
-			DataInputStream dIn = new DataInputStream(sIn);
-			DataOutputStream dOut = new DataOutputStream(sOut);
-			hello(dIn, dOut);
-			request(command, version, req, dOut);
-			byte[] data = response(dIn);
+			dispatcher.remainingMillis(stage);
+			if (primary && persistentConnection != null) {
+				conn = persistentConnection;
+				dispatcher.attach(conn.getSocket());
+			} else {
+				if (primary) {
+					sock = getSocket();
+				} else {
+					sock = getSocket(sphinxHost, sphinxPort);
+				}
+				conn = new SphinxConnection(sock);
+				dispatcher.attach(sock);
+				stage = SphinxTimeoutException.Stage.READ;
+				conn.hello(dispatcher.remainingMillis(stage));
+				if (primary && persistent) {
+					conn.persist();
+					persistentConnection = conn;
+				}
+			}
+			/* blocking writes can not time out; at least do not start late */
+			stage = SphinxTimeoutException.Stage.WRITE;
+			dispatcher.remainingMillis(stage);
+			conn.request(command, version, req);
+			stage = SphinxTimeoutException.Stage.READ;
+			byte[] data = conn.response(dispatcher);
+			if (conn.getWarning() != null) {
+				warning = conn.getWarning();
+			}
+			keep = conn == persistentConnection;
 			/* spawn that tampon */
 			return new DataInputStream(new ByteArrayInputStream(data));
+		} catch (SocketTimeoutException e) {
+			throw new SphinxTimeoutException(stage, stage.name().toLowerCase() + " to " + sphinxHost + ":"
+					+ sphinxPort + " timed out: " + e);
 		} catch (ConnectException e) {
-			throw new SphinxException("connection to " + host + ":" + port + " failed: " + e);
+			throw new SphinxNetworkException("connection to " + sphinxHost + ":" + sphinxPort + " failed: " + e);
 		} catch (SphinxException e) {
+			/* an error reply leaves the connection usable, unless cancel closed it */
+			keep = conn != null && conn == persistentConnection && conn.isReplied() && !conn.getSocket().isClosed();
 			throw e;
 		} catch (Exception e) {
-			throw new SphinxException("network error: " + e);
+			throw new SphinxNetworkException("network error: " + e);
 		} finally {
-			close(sIn);
-			close(sOut);
-			close(sock);
+			if (conn == null) {
+				close(sock);
+			} else {
+				dispatcher.detach(conn.getSocket());
+				if (!keep) {
+					conn.close();
+					if (conn == persistentConnection) {
+						persistentConnection = null;
+					}
+				}
+			}
 		}
 	}
 
 	/**
-	 * Send request to sphinx.
+	 * Open persistent connection to the main searchd server. Subsequent
+	 * requests reuse it instead of connecting every time, which matters for
+	 * many small requests such as bulk updates. If the connection breaks, the
+	 * failed request reports the error and the next one reconnects. Requires
+	 * searchd 0.9.9+.
 	 * 
-	 * @param command
-	 *            the command
-	 * @param version
-	 *            the version
-	 * @param req
-	 *            request data
-	 * @param dOut
-	 *            output stream
-	 * @throws IOException
-	 *             throw IOException when io error occur.
+	 * @throws SphinxException
+	 *             if connection failed
 	 */
-	private void request(final int command, final int version, final ByteArrayOutputStream req,
-			final DataOutputStream dOut) throws IOException {
+	public void open() throws SphinxException {
+		check(!persistent, "already connected");
+		boolean started = dispatcher.beginCall();
+		SphinxConnection conn = null;
+		try {
+			conn = new SphinxConnection(getSocket());
+			conn.hello(dispatcher.remainingMillis(SphinxTimeoutException.Stage.READ));
+			conn.persist();
+			persistentConnection = conn;
+			persistent = true;
+		} catch (IOException e) {
+			throw new SphinxNetworkException("connection to " + host + ":" + port + " failed: " + e);
+		} finally {
+			if (conn != null && !persistent) {
+				conn.close();
+			}
+			dispatcher.endCall(started);
+		}
+	}
 
-		dOut.writeShort(command);
-		dOut.writeShort(version);
-		byte[] reqBytes = req.toByteArray();
-		dOut.writeInt(reqBytes.length);
-		dOut.write(reqBytes);
+	/**
+	 * Close persistent connection opened by {@link #open()}.
+	 */
+	public void close() {
+		persistent = false;
+		if (persistentConnection != null) {
+			persistentConnection.close();
+			persistentConnection = null;
+		}
 	}
 
 	/**
@@ -533,6 +559,123 @@ public class SphinxClient {
 		}
 	}
 
+	/**
+	 * Set circuit breaker guarding calls to searchd. Usually one breaker is
+	 * shared by all clients, it tracks every host:port separately.
+	 * 
+	 * @param breaker
+	 *            the circuit breaker, null to disable
+	 */
+	public void setCircuitBreaker(final SphinxCircuitBreaker breaker) {
+		dispatcher.setCircuitBreaker(breaker);
+	}
+
+	/**
+	 * Set client-side retry policy. Unlike {@link #setRetries(int, int)},
+	 * which is forwarded to searchd for distributed agents, this makes the
+	 * client itself repeat requests failed with temporary errors.
+	 * 
+	 * @param policy
+	 *            the retry policy, null to disable
+	 * @param budget
+	 *            retry budget shared between clients, null for unlimited
+	 */
+	public void setRetryPolicy(final SphinxRetryPolicy policy, final SphinxRetryBudget budget) {
+		dispatcher.setRetryPolicy(policy, budget);
+	}
+
+	/**
+	 * Set adaptive limiter of concurrent exchanges with searchd. Usually one
+	 * limiter is shared by all clients talking to the same searchd.
+	 * 
+	 * @param limiter
+	 *            the limiter, null to disable
+	 */
+	public void setConcurrencyLimiter(final SphinxConcurrencyLimiter limiter) {
+		dispatcher.setConcurrencyLimiter(limiter);
+	}
+
+	/**
+	 * Set scheduler admitting searches and excerpts of this client. Usually
+	 * one scheduler is shared by all clients, each client tagged with its
+	 * traffic class and tenant.
+	 * 
+	 * @param scheduler
+	 *            the scheduler, null to disable
+	 * @param trafficClass
+	 *            traffic class defined in the scheduler
+	 * @param tenant
+	 *            tenant, may be null
+	 * @throws SphinxException
+	 *             if traffic class is empty
+	 */
+	public void setScheduler(final SphinxScheduler scheduler, final String trafficClass, final String tenant)
+			throws SphinxException {
+		check(scheduler == null || isNotEmpty(trafficClass), "traffic class must not be empty");
+		dispatcher.setScheduler(scheduler, trafficClass, tenant);
+	}
+
+	/**
+	 * Set bulkhead of a searchd command, so the command gets its own pool of
+	 * concurrent requests and cannot starve other commands.
+	 * 
+	 * @param command
+	 *            one of SEARCHD_COMMAND_* constants
+	 * @param bulkhead
+	 *            the bulkhead, null to remove
+	 * @throws SphinxException
+	 *             if command is unknown
+	 */
+	public void setBulkhead(final int command, final SphinxBulkhead bulkhead) throws SphinxException {
+		check(command >= SEARCHD_COMMAND_SEARCH && command <= SEARCHD_COMMAND_QUERY, "unknown searchd command");
+		dispatcher.setBulkhead(command, bulkhead);
+	}
+
+	/**
+	 * Set token to cancel the following requests from another thread.
+	 * Cancelling closes the connection in progress and the request fails
+	 * with {@link SphinxCancelledException}.
+	 * 
+	 * @param token
+	 *            the token, null for none
+	 */
+	public void setCancellationToken(final SphinxCancellationToken token) {
+		dispatcher.setCancellationToken(token);
+	}
+
+	/**
+	 * Add searchd server used by retries when the previous attempt failed.
+	 * Attempts go round-robin over the main server and failover servers.
+	 * 
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 * @throws SphinxException
+	 *             if params are invalid
+	 */
+	public void addFailoverServer(final String sphinxHost, final int sphinxPort) throws SphinxException {
+		check(sphinxHost != null && sphinxHost.length() > 0, "host name must not be empty");
+		check(sphinxPort > 0 && sphinxPort < MAX_PORT_VALUE, "port must be in 1..65535 range");
+		dispatcher.addFailoverServer(sphinxHost, sphinxPort);
+	}
+
+	/**
+	 * Set time budget of every call to searchd, covering connect, request,
+	 * reply and client-side retries. The time left is also sent as max query
+	 * time, so searchd stops working on queries the client gave up on. Stages
+	 * running out of time fail with {@link SphinxTimeoutException}.
+	 * 
+	 * @param millis
+	 *            timeout in milliseconds, 0 means "do not limit"
+	 * @throws SphinxException
+	 *             if invalid value.
+	 */
+	public void setRequestTimeout(final int millis) throws SphinxException {
+		check(millis >= 0, "request timeout must not be negative");
+		dispatcher.setRequestTimeout(millis);
+	}
+
 	/**
 	 * Set matches offset and limit to return to client, max matches to retrieve
 	 * on server, and cutoff.
@@ -618,7 +761,7 @@ public class SphinxClient {
 	public void setMatchMode(final int modeValue) throws SphinxException {
 		check(modeValue == SPH_MATCH_ALL || modeValue == SPH_MATCH_ANY || modeValue == SPH_MATCH_PHRASE
 				|| modeValue == SPH_MATCH_BOOLEAN || modeValue == SPH_MATCH_EXTENDED
-				|| modeValue == SPH_MATCH_EXTENDED2,
+				|| modeValue == SPH_MATCH_FULLSCAN || modeValue == SPH_MATCH_EXTENDED2,
 				"unknown mode value; use one of the SPH_MATCH_xxx constants");
 		mode = modeValue;
 	}
@@ -650,7 +793,6 @@ public class SphinxClient {
 	 *             if invalid value.
 	 */
 	public void setSortMode(final int modeValue, final String sortbyValue) throws SphinxException {
-
 		check(modeValue == SPH_SORT_RELEVANCE || modeValue == SPH_SORT_ATTR_DESC
 				|| modeValue == SPH_SORT_ATTR_ASC || modeValue == SPH_SORT_TIME_SEGMENTS
 				|| modeValue == SPH_SORT_EXTENDED || modeValue == SPH_SORT_EXPR,
@@ -684,6 +826,42 @@ public class SphinxClient {
 		System.arraycopy(weightValues, 0, weights, 0, weightValues.length);
 	}
 
+	/**
+	 * Get matches offset.
+	 * 
+	 * @return the offset
+	 */
+	int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Get matches limit.
+	 * 
+	 * @return the limit
+	 */
+	int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Get max matches to retrieve on server.
+	 * 
+	 * @return the max matches
+	 */
+	int getMaxMatches() {
+		return maxMatches;
+	}
+
+	/**
+	 * Get select-list.
+	 * 
+	 * @return the select-list
+	 */
+	String getSelectList() {
+		return selectList;
+	}
+
 	/**
 	 * Get per-field weights.
 	 * 
@@ -740,6 +918,22 @@ public class SphinxClient {
 	 */
 	public void setIDRange(final int min, final int max) throws SphinxException {
 		check(min <= max, "min must be less or equal to max");
+		minId = min & (MAX_DWORD - 1);
+		maxId = max & (MAX_DWORD - 1);
+	}
+
+	/**
+	 * Set 64-bit document IDs range to match. IDs are unsigned.
+	 * 
+	 * @param min
+	 *            minimum value
+	 * @param max
+	 *            maximum value
+	 * @throws SphinxException
+	 *             if invalid value.
+	 */
+	public void setIDRange(final long min, final long max) throws SphinxException {
+		check((min ^ Long.MIN_VALUE) <= (max ^ Long.MIN_VALUE), "min must be less or equal to max");
 		minId = min;
 		maxId = max;
 	}
@@ -760,21 +954,33 @@ public class SphinxClient {
 	public void setFilter(final String attribute, final int[] values, final boolean exclude)
 			throws SphinxException {
 		check(isNotEmpty(values), "values array must not be null or empty");
-		check(isNotEmpty(attribute), "attribute name must not be null or empty");
+		long[] longValues = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			longValues[i] = values[i];
+		}
+		setFilter(attribute, longValues, exclude);
+	}
 
+	/**
+	 * Set values filter of 64-bit values. Values are sent sorted and without
+	 * duplicates. For lists too large for one searchd packet see
+	 * {@link SphinxSplitFilter}.
+	 * 
+	 * @param attribute
+	 *            the attribute for filter
+	 * @param values
+	 *            array of values
+	 * @param exclude
+	 *            exclude
+	 * @throws SphinxException
+	 *             if invalid value.
+	 */
+	public void setFilter(final String attribute, final long[] values, final boolean exclude)
+			throws SphinxException {
+		check(isNotEmpty(values), "values array must not be null or empty");
+		check(isNotEmpty(attribute), "attribute name must not be null or empty");
 		try {
-			writeNetUTF8(filters, attribute);
-			filters.writeInt(SPH_FILTER_VALUES);
-			filters.writeInt(values.length);
-			for (int i = 0; i < values.length; i++) {
-				filters.writeLong(values[i]);
-			}
-			int excludeValue = 0;
-			if (exclude) {
-				excludeValue = 1;
-			}
-			filters.writeInt(excludeValue);
-
+			SphinxFilterSet.writeValues(filters, attribute, SphinxFilterSet.distinct(values), exclude);
 		} catch (Exception e) {
 			check(false, "IOException: " + e.getMessage());
 		}
@@ -796,9 +1002,7 @@ public class SphinxClient {
 	 */
 	public void setFilter(final String attribute, final int value, final boolean exclude)
 			throws SphinxException {
-
-		int[] values = {value};
-		setFilter(attribute, values, exclude);
+		setFilter(attribute, new int[] { value }, exclude);
 	}
 
 	/**
@@ -818,18 +1022,29 @@ public class SphinxClient {
 	 */
 	public void setFilterRange(final String attribute, final int min, final int max, final boolean exclude)
 			throws SphinxException {
+		setFilterRange(attribute, (long) min, (long) max, exclude);
+	}
+
+	/**
+	 * Set 64-bit integer range filter, e.g. for bigint attributes. Only match
+	 * records if attribute value is beetwen min and max (inclusive).
+	 * 
+	 * @param attribute
+	 *            the attribute for filter
+	 * @param min
+	 *            minimum value
+	 * @param max
+	 *            maximum value
+	 * @param exclude
+	 *            exclude
+	 * @throws SphinxException
+	 *             if invalid value or IOException occur.
+	 */
+	public void setFilterRange(final String attribute, final long min, final long max, final boolean exclude)
+			throws SphinxException {
 		check(min <= max, "min must be less or equal to max");
 		try {
-			writeNetUTF8(filters, attribute);
-			filters.writeInt(SPH_FILTER_RANGE);
-			filters.writeLong(min);
-			filters.writeLong(max);
-			int excludeValue = 0;
-			if (exclude) {
-				excludeValue = 1;
-			}
-			filters.writeInt(excludeValue);
-
+			SphinxFilterSet.writeRange(filters, attribute, min, max, exclude);
 		} catch (Exception e) {
 			check(false, "IOException: " + e.getMessage());
 		}
@@ -853,24 +1068,29 @@ public class SphinxClient {
 	 */
 	public void setFilterFloatRange(final String attribute, final float min, final float max,
 			final boolean exclude) throws SphinxException {
-
 		check(min <= max, "min must be less or equal to max");
 		try {
-			writeNetUTF8(filters, attribute);
-			filters.writeInt(SPH_FILTER_RANGE);
-			filters.writeFloat(min);
-			filters.writeFloat(max);
-			int excludeValue = 0;
-			if (exclude) {
-				excludeValue = 1;
-			}
-			filters.writeInt(excludeValue);
+			SphinxFilterSet.writeFloatRange(filters, attribute, min, max, exclude);
 		} catch (Exception e) {
 			check(false, "IOException: " + e.getMessage());
 		}
 		filterCount++;
 	}
 
+	/**
+	 * Attach pre-encoded filters to the following queries, in addition to
+	 * the filters set one by one.
+	 * 
+	 * @param set
+	 *            the filter set
+	 * @throws SphinxException
+	 *             if no filter set
+	 */
+	public void addFilterSet(final SphinxFilterSet set) throws SphinxException {
+		check(set != null, "filter set must not be null");
+		filterSets.add(set);
+	}
+
 	/**
 	 * Setup geographical anchor point. Required to use
 	 * 
@@ -945,6 +1165,14 @@ public class SphinxClient {
 		groupDistinct = attribute;
 	}
 
+	/** Reset grouping settings (for multi-queries). */
+	public void resetGroupBy() {
+		groupBy = "";
+		groupFunc = SPH_GROUPBY_DAY;
+		groupSort = "@group desc";
+		groupDistinct = "";
+	}
+
 	/**
 	 * Set distributed retries count and delay.
 	 * 
@@ -980,6 +1208,7 @@ public class SphinxClient {
 		rawFilters = new ByteArrayOutputStream();
 		filters = new DataOutputStream(rawFilters);
 		filterCount = 0;
+		filterSets = new ArrayList<SphinxFilterSet>();
 
 		/* reset GEO anchor */
 		latitudeAttr = null;
@@ -1036,8 +1265,7 @@ public class SphinxClient {
 		check(isEmpty(reqs), "AddQuery() and Query() can not be combined; " + "use RunQueries() instead");
 
 		addQuery(query, index, comment);
-		SphinxResult[] results = runQueries();
-		SphinxResult res = results[0];
+		SphinxResult res = runQueries()[0];
 		warning = res.warning;
 		error = res.error;
 		if (error != null) {
@@ -1046,7 +1274,6 @@ public class SphinxClient {
 		return res;
 	}
 
-
 	/**
 	 * Add new query using {@link SphinxSearch} to current search request.
 	 * 
@@ -1057,7 +1284,8 @@ public class SphinxClient {
 	 *             if error happened
 	 */
 	public int addQuery(final SphinxSearch sphinxSearch) throws SphinxException {
-		return addQuery(sphinxSearch.buildQuery(), sphinxSearch.getIndex(), sphinxSearch.getComment());
+		return addQuery(sphinxSearch.buildQuery(), sphinxSearch.getIndex(), sphinxSearch.getComment(),
+				sphinxSearch.getFilterSets());
 	}
 
 	/**
@@ -1074,6 +1302,26 @@ public class SphinxClient {
 	 * @return position query in queries collection.
 	 */
 	public int addQuery(final String query, final String index, final String comment) throws SphinxException {
+		return addQuery(query, index, comment, Collections.<SphinxFilterSet>emptyList());
+	}
+
+	/**
+	 * Add new query with current settings and additional filters.
+	 * 
+	 * @param query
+	 *            the query
+	 * @param index
+	 *            the index name
+	 * @param comment
+	 *            the comment
+	 * @param querySets
+	 *            filter sets of this query only
+	 * @throws SphinxException
+	 *             if error happened
+	 * @return position query in queries collection.
+	 */
+	private int addQuery(final String query, final String index, final String comment,
+			final List<SphinxFilterSet> querySets) throws SphinxException {
 		ByteArrayOutputStream req = new ByteArrayOutputStream();
 
 		/* build request */
@@ -1086,26 +1334,28 @@ public class SphinxClient {
 			out.writeInt(sortMode);
 			writeNetUTF8(out, sortby);
 			writeNetUTF8(out, query);
-			int weightLen = 0;
-			if (weights != null) {
-				weightLen = weights.length;
-			}
-
-			out.writeInt(weightLen);
-			if (weights != null) {
+			if (weights == null) {
+				out.writeInt(0);
+			} else {
+				out.writeInt(weights.length);
 				for (int i = 0; i < weights.length; i++) {
 					out.writeInt(weights[i]);
 				}
 			}
 
 			writeNetUTF8(out, index);
-			out.writeInt(0);
-			out.writeInt(minId);
-			out.writeInt(maxId);
+			out.writeInt(1);
+			out.writeLong(minId);
+			out.writeLong(maxId);
 
 			/* filters */
-			out.writeInt(filterCount);
-			out.write(rawFilters.toByteArray());
+			List<SphinxFilterSet> sets = new ArrayList<SphinxFilterSet>(filterSets);
+			sets.addAll(querySets);
+			int count = filterCount;
+			for (SphinxFilterSet set : sets) {
+				count += set.getFilterCount();
+			}
+			protocol.writeFilters(out, count, rawFilters.toByteArray(), sets);
 
 			/* group-by, max matches, sort-by-group flag */
 			out.writeInt(groupFunc);
@@ -1129,7 +1379,6 @@ public class SphinxClient {
 				writeNetUTF8(out, longitudeAttr);
 				out.writeFloat(latitude);
 				out.writeFloat(longitude);
-
 			}
 
 			/* per-index weights */
@@ -1142,6 +1391,7 @@ public class SphinxClient {
 			}
 
 			/* max query time */
+			int queryTimeOffset = out.size();
 			out.writeInt(maxQueryTime);
 
 			/* per-field weights */
@@ -1156,41 +1406,14 @@ public class SphinxClient {
 			/* comment */
 			writeNetUTF8(out, comment);
 
-			/* attribute overrides */
-			out.writeInt(overrides.size());
-			Iterator iterator = overrides.iterator();
-			while (iterator.hasNext()) {
-				SphinxOverride so = (SphinxOverride) iterator.next();
-				writeNetUTF8(out, so.getAttrName());
-				out.writeInt(so.getAttrType());
-				out.writeInt(so.getValues().size());
-				Iterator valuesIterator = so.getValues().entrySet().iterator();
-				while (valuesIterator.hasNext()) {
-					Map.Entry map = (Entry) valuesIterator.next();
-					long docId = ((Number) map.getKey()).longValue();
-					Number value = (Number) map.getValue();
-					out.writeLong(docId);
-					switch (so.getAttrType()) {
-					case SPH_ATTR_FLOAT:
-						out.writeFloat(value.floatValue());
-						break;
-					case SPH_ATTR_BIGINT:
-						out.writeLong(value.longValue());
-						break;
-					default:
-						out.writeInt(value.intValue());
-						break;
-					}
-				}
-			}
-
-			/* select list */
-			writeNetUTF8(out, selectList);
+			/* attribute overrides, select list */
+			protocol.writeQueryTail(out, overrides, selectList);
 
 			/* done! */
 			out.flush();
 			int qIndex = reqs.size();
 			reqs.add(qIndex, req.toByteArray());
+			reqQueryTimeOffsets.add(Integer.valueOf(queryTimeOffset));
 			return qIndex;
 
 		} catch (IOException e) {
@@ -1207,132 +1430,148 @@ public class SphinxClient {
 	}
 
 	/**
-	 * Run all previously added search queries.
+	 * Remove the last added query.
+	 * 
+	 * @return encoded size of the query
+	 */
+	int removeLastQuery() {
+		reqQueryTimeOffsets.remove(reqQueryTimeOffsets.size() - 1);
+		return reqs.remove(reqs.size() - 1).length;
+	}
+
+	/**
+	 * Run all previously added search queries. If sub-query retries are
+	 * enabled, queries which came back with an error or SEARCHD_RETRY status
+	 * are sent again as a smaller batch and their fresh results replace the
+	 * failed ones.
 	 * 
 	 * @return result from sphinx.
 	 * @throws SphinxException
 	 *             if error or no queries for run.
 	 */
 	public SphinxResult[] runQueries() throws SphinxException {
+		return runQueries(null);
+	}
 
+	/**
+	 * Run queries added so far, storing their matches into an attribute map
+	 * instead of the results.
+	 * 
+	 * @param into
+	 *            receives the matches, null to keep them in the results
+	 * @return results, without matches if stored into the map
+	 * @throws SphinxException
+	 *             if request failed
+	 */
+	SphinxResult[] runQueries(final SphinxAttributeMap into) throws SphinxException {
 		check(isNotEmpty(reqs), "no queries defined, issue AddQuery() first");
 
-		/* build the mega-request */
-		int nreqs = reqs.size();
-		ByteArrayOutputStream reqBuf = new ByteArrayOutputStream();
-		try {
-			DataOutputStream req = new DataOutputStream(reqBuf);
-			req.writeInt(nreqs);
-			for (int i = 0; i < nreqs; i++) {
-				req.write((byte[]) reqs.get(i));
-			}
-			req.flush();
-
-		} catch (Exception e) {
-			throw new SphinxException("internal error: failed to build request: " + e);
-		}
-
-		DataInputStream in = executeCommand(SEARCHD_COMMAND_SEARCH, VER_COMMAND_SEARCH, reqBuf);
-		SphinxResult[] results = new SphinxResult[nreqs];
-		reqs = new ArrayList();
-
+		/* dequeue first, so a failed or cancelled request leaves the client reusable */
+		ArrayList<byte[]> queries = reqs;
+		ArrayList<Integer> offsets = reqQueryTimeOffsets;
+		reqs = new ArrayList<byte[]>();
+		reqQueryTimeOffsets = new ArrayList<Integer>();
+		boolean started = dispatcher.beginCall();
 		try {
-			for (int ires = 0; ires < nreqs; ires++) {
-				SphinxResult res = new SphinxResult();
-				results[ires] = res;
-
-				int status = in.readInt();
-				res.setStatus(status);
-				if (status != SEARCHD_OK) {
-					String message = readNetUTF8(in);
-					if (status == SEARCHD_WARNING) {
-						res.warning = message;
-					} else {
-						res.error = message;
-						continue;
+			SphinxResult[] results = runQueries(queries, offsets, into);
+
+			for (int retry = 1; retry <= subQueryRetries; retry++) {
+				ArrayList<Integer> failed = new ArrayList<Integer>();
+				ArrayList<byte[]> retryQueries = new ArrayList<byte[]>();
+				ArrayList<Integer> retryOffsets = new ArrayList<Integer>();
+				for (int i = 0; i < results.length; i++) {
+					int status = results[i].getStatus();
+					if (status == SEARCHD_ERROR || status == SEARCHD_RETRY) {
+						failed.add(Integer.valueOf(i));
+						retryQueries.add(queries.get(i));
+						retryOffsets.add(offsets.get(i));
 					}
 				}
-
-				/* read fields */
-				int nfields = in.readInt();
-				res.fields = new String[nfields];
-				// TODO FIXME: int pos = 0;
-				for (int i = 0; i < nfields; i++) {
-					res.fields[i] = readNetUTF8(in);
+				if (failed.isEmpty() || !dispatcher.pause(retry)) {
+					break;
 				}
-
-				/* read arrts */
-				int nattrs = in.readInt();
-				res.attrTypes = new int[nattrs];
-				res.attrNames = new String[nattrs];
-				for (int i = 0; i < nattrs; i++) {
-					String attrName = readNetUTF8(in);
-					int attrType = in.readInt();
-					res.attrNames[i] = attrName;
-					res.attrTypes[i] = attrType;
+				SphinxResult[] retried;
+				try {
+					retried = runQueries(retryQueries, retryOffsets, into);
+				} catch (SphinxCancelledException e) {
+					throw e;
+				} catch (SphinxException e) {
+					/* keep the results we already have */
+					break;
 				}
-
-				/* read match count */
-				int count = in.readInt();
-				int id64 = in.readInt();
-
-				for (int matchesNo = 0; matchesNo < count; matchesNo++) {
-					SphinxMatch docInfo;
-					boolean isDword = (id64 == 0);
-					long curDocId = 0;
-					if (isDword) {
-						curDocId = readDword(in);
-					} else {
-						curDocId = in.readLong();
-					}
-					docInfo = new SphinxMatch(curDocId, in.readInt());
-
-					/* read matches */
-					for (int attrNumber = 0; attrNumber < res.attrTypes.length; attrNumber++) {
-						// TODO FIXME: String attrName =
-						// res.attrNames[attrNumber];
-						int type = res.attrTypes[attrNumber];
-
-						/* handle bigints */
-						if (type == SPH_ATTR_BIGINT) {
-							docInfo.setAttribute(res.attrNames[attrNumber], Long.valueOf(in.readLong()));
-						}
-
-						/* handle floats */
-						if (type == SPH_ATTR_FLOAT) {
-							docInfo.setAttribute(res.attrNames[attrNumber], Float.valueOf(in.readFloat()));
-							continue;
-						}
-
-						/* handle everything else as unsigned ints */
-						long val = readDword(in);
-						if ((type & SPH_ATTR_MULTI) != 0) {
-							long[] vals = new long[(int) val];
-							for (int k = 0; k < val; k++) {
-								vals[k] = readDword(in);
-							}
-							docInfo.setAttribute(res.attrNames[attrNumber], vals);
-						} else {
-							docInfo.setAttribute(res.attrNames[attrNumber], Long.valueOf(val));
-						}
-					}
-					res.addMatch(docInfo);
+				for (int i = 0; i < retried.length; i++) {
+					results[failed.get(i).intValue()] = retried[i];
 				}
+			}
+			return results;
+		} finally {
+			dispatcher.endCall(started);
+		}
+	}
+
+	/**
+	 * Set how many times failed sub-queries of a multi-query are re-issued
+	 * by {@link #runQueries()}. Only queries with SEARCHD_ERROR or
+	 * SEARCHD_RETRY status are sent again, reusing their encoded requests.
+	 * 
+	 * @param count
+	 *            amount of retry rounds, 0 disables
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public void setSubQueryRetries(final int count) throws SphinxException {
+		check(count >= 0, "count must not be negative");
+		subQueryRetries = count;
+	}
 
-				res.total = in.readInt();
-				res.totalFound = in.readInt();
-				res.time = in.readInt() / MILLSEC_IN_SEC;
+	/**
+	 * Internal method. Send encoded queries as one multi-query and parse
+	 * results.
+	 * 
+	 * @param queries
+	 *            encoded queries (byte arrays)
+	 * @param queryTimeOffsets
+	 *            offsets of max query time in the encoded queries
+	 * @param into
+	 *            receives the matches, null to keep them in the results
+	 * @return result from sphinx.
+	 * @throws SphinxException
+	 *             if error.
+	 */
+	private SphinxResult[] runQueries(final ArrayList<byte[]> queries, final ArrayList<Integer> queryTimeOffsets,
+			final SphinxAttributeMap into) throws SphinxException {
+		/* cap max query time by the time left to the caller */
+		int timeLeft = 0;
+		if (dispatcher.hasDeadline()) {
+			timeLeft = dispatcher.remainingMillis(SphinxTimeoutException.Stage.WRITE);
+		}
 
-				res.words = new SphinxWordInfo[in.readInt()];
-				for (int i = 0; i < res.words.length; i++) {
-					res.words[i] = new SphinxWordInfo(readNetUTF8(in), readDword(in), readDword(in));
+		/* build the mega-request */
+		int nreqs = queries.size();
+		ByteArrayOutputStream reqBuf = new ByteArrayOutputStream();
+		try {
+			DataOutputStream req = new DataOutputStream(reqBuf);
+			protocol.writeSearchHeader(req, nreqs);
+			for (int i = 0; i < nreqs; i++) {
+				byte[] query = queries.get(i);
+				int offset = queryTimeOffsets.get(i).intValue();
+				int queryTime = new DataInputStream(new ByteArrayInputStream(query, offset, INT_SIZE)).readInt();
+				if (timeLeft > 0 && (queryTime == 0 || queryTime > timeLeft)) {
+					req.write(query, 0, offset);
+					req.writeInt(timeLeft);
+					req.write(query, offset + INT_SIZE, query.length - offset - INT_SIZE);
+				} else {
+					req.write(query);
 				}
 			}
-			return results;
+			req.flush();
 
-		} catch (IOException e) {
-			throw new SphinxException("incomplete reply");
+		} catch (Exception e) {
+			throw new SphinxException("internal error: failed to build request: " + e);
 		}
+
+		DataInputStream in = executeCommand(SEARCHD_COMMAND_SEARCH, protocol.getSearchVersion(), reqBuf);
+		return SphinxResultReader.read(in, nreqs, into);
 	}
 
 	/**
@@ -1462,7 +1701,10 @@ public class SphinxClient {
 	 * 
 	 * @throws SphinxException
 	 *             on invalid parameters
+	 * @deprecated use {@link #updateAttributes(String, SphinxAttributeUpdate)},
+	 *             which also updates float and bigint attributes
 	 */
+	@Deprecated
 	public int updateAttributes(final String index, final String[] attrs, final long[][] values)
 			throws SphinxException {
 		return updateAttributes(index, attrs, values, false);
@@ -1501,7 +1743,10 @@ public class SphinxClient {
 	 * 
 	 * @throws SphinxException
 	 *             on invalid parameters
+	 * @deprecated use {@link #updateAttributes(String, SphinxAttributeUpdate)},
+	 *             which also updates float and bigint attributes
 	 */
+	@Deprecated
 	public int updateAttributes(final String index, final String[] attrs, final long[][] values,
 			final boolean mva) throws SphinxException {
 		/* check args */
@@ -1556,14 +1801,25 @@ public class SphinxClient {
 			throw new SphinxException("internal error: failed to build request: " + e);
 		}
 
-		/* get and parse response */
-		DataInputStream in = executeCommand(SEARCHD_COMMAND_UPDATE, VER_COMMAND_UPDATE, reqBuf);
+		return SphinxBulkUpdater.send(this, reqBuf);
+	}
 
-		try {
-			return in.readInt();
-		} catch (Exception e) {
-			throw new SphinxException("incomplete reply");
-		}
+	/**
+	 * Connect to searchd server and update attributes of documents with typed
+	 * values, see {@link SphinxAttributeUpdate}.
+	 * 
+	 * @param index
+	 *            index name(s) to update; might be distributed
+	 * @param update
+	 *            documents and their new attribute values
+	 * @return amount of actually found and updated documents (might be 0)
+	 * @throws SphinxException
+	 *             on invalid parameters or if update failed
+	 */
+	public int updateAttributes(final String index, final SphinxAttributeUpdate update) throws SphinxException {
+		check(isNotEmpty(index), "no index name provided");
+		check(update != null && update.size() > 0, "no update entries provided");
+		return SphinxBulkUpdater.send(this, update.encode(index));
 	}
 
 	/**
@@ -1623,6 +1879,30 @@ public class SphinxClient {
 		}
 	}
 
+	/**
+	 * Set wire protocol of searchd, see {@link SphinxProtocol#probe}; default
+	 * is {@link SphinxProtocol#V0_9_9}. Queries are encoded when added, so set
+	 * it before adding them.
+	 *
+	 * @param searchdProtocol
+	 *            the protocol
+	 * @throws SphinxException
+	 *             on invalid parameters
+	 */
+	public void setProtocol(final SphinxProtocol searchdProtocol) throws SphinxException {
+		check(searchdProtocol != null, "protocol must not be null");
+		this.protocol = searchdProtocol;
+	}
+
+	/**
+	 * Get wire protocol of searchd.
+	 *
+	 * @return the protocol
+	 */
+	public SphinxProtocol getProtocol() {
+		return protocol;
+	}
+
 	/**
 	 * Set select-list (attributes or expressions), SQL-like syntax.
 	 * 
@@ -1640,7 +1920,7 @@ public class SphinxClient {
 	 * Clear all attribute value overrides (for multi-queries).
 	 */
 	public void resetOverrides() {
-		this.overrides = new HashSet();
+		this.overrides = new HashSet<SphinxAttributeOverride>();
 	}
 
 	/**
@@ -1671,19 +1951,50 @@ public class SphinxClient {
 		override.setAttrName(attrName);
 		override.setAttrType(attrType);
 		override.setValues(values);
-		if (overrides.contains(override)) {
-			overrides.remove(override);
-		}
+		setOverride(override);
+	}
+
+	/**
+	 * Set attribute values override, replacing an override of the same
+	 * attribute. A {@link SphinxPrimitiveOverride} is encoded once and reused
+	 * by every query.
+	 * 
+	 * @param override
+	 *            the override
+	 * @throws SphinxException
+	 *             if parameters are invalid
+	 */
+	public void setOverride(final SphinxAttributeOverride override) throws SphinxException {
+		check(override != null && isNotEmpty(override.getAttrName()), "attrName must not be empty");
+		check(!(override instanceof SphinxOverride) || ((SphinxOverride) override).getValues() != null,
+				"values must be not empty");
+		overrides.remove(override);
 		overrides.add(override);
 	}
 
-	/* @since 0.9.10
-	public void getStatus() throws SphinxException, IOException {
-		ByteArrayOutputStream req = new ByteArrayOutputStream();
-		DataInputStream in = executeCommand(SEARCHD_COMMAND_STATUS, VER_COMMAND_STATUS, req);
-		String s;
-		while ((s = in.readLine()) == null) {
-			System.out.println(s);
+	/**
+	 * Connect to searchd server and get its status counters, such as
+	 * uptime, connections and query counts.
+	 * 
+	 * @return rows of status, each holding a counter name and its value
+	 * @throws SphinxException
+	 *             if the protocol has no status command or the request failed
+	 */
+	public String[][] status() throws SphinxException {
+		check(protocol.supportsStatus(), "status needs searchd 0.9.9 or newer");
+		ByteArrayOutputStream reqBuf = new ByteArrayOutputStream();
+		reqBuf.write(new byte[] { 0, 0, 0, 1 }, 0, INT_SIZE);
+		DataInputStream in = executeCommand(SEARCHD_COMMAND_STATUS, VER_COMMAND_STATUS, reqBuf);
+		try {
+			String[][] res = new String[in.readInt()][in.readInt()];
+			for (int i = 0; i < res.length; i++) {
+				for (int j = 0; j < res[i].length; j++) {
+					res[i][j] = readNetUTF8(in);
+				}
+			}
+			return res;
+		} catch (IOException e) {
+			throw new SphinxException("incomplete reply");
 		}
-	}*/
+	}
 }
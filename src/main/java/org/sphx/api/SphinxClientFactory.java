@@ -0,0 +1,68 @@
+package org.sphx.api;
+
+/**
+ * Creates clients for components running requests on several threads, such as
+ * {@link SphinxBulkUpdater}; a client is not thread safe, so each thread gets
+ * its own. Override {@link #configure(SphinxClient)} to apply common settings.
+ */
+public class SphinxClientFactory {
+
+	private final String host;
+	private final int port;
+
+	/**
+	 * Creates factory of clients for given searchd.
+	 *
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 */
+	public SphinxClientFactory(final String sphinxHost, final int sphinxPort) {
+		this.host = sphinxHost;
+		this.port = sphinxPort;
+	}
+
+	/**
+	 * Get searchd host.
+	 *
+	 * @return the host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Get searchd port.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Create configured client.
+	 *
+	 * @return new client
+	 * @throws SphinxException
+	 *             if configuration failed
+	 */
+	public SphinxClient newClient() throws SphinxException {
+		SphinxClient client = new SphinxClient(host, port);
+		configure(client);
+		return client;
+	}
+
+	/**
+	 * Apply common settings to a new client, e.g. timeouts, retry policy or a
+	 * shared circuit breaker. Does nothing by default.
+	 *
+	 * @param client
+	 *            the new client
+	 * @throws SphinxException
+	 *             if invalid settings
+	 */
+	protected void configure(final SphinxClient client) throws SphinxException {
+	}
+}
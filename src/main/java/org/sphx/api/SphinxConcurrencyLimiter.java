@@ -0,0 +1,257 @@
+package org.sphx.api;
+
+/**
+ * Adaptive limit of concurrent searchd exchanges.
+ *
+ * The limit follows the TCP Vegas congestion algorithm: the lowest observed
+ * round-trip time is taken as the no-load latency, and the number of requests
+ * queued inside searchd is estimated as
+ * <tt>limit * (1 - minRtt / rtt)</tt>. While this estimate is below
+ * <tt>alpha</tt> the limit grows, above <tt>beta</tt> it shrinks, and failed
+ * exchanges shrink it multiplicatively. So the client finds the throughput
+ * knee of the server (e.g. its <tt>max_children</tt>) by itself and keeps
+ * latency flat instead of queuing inside searchd.
+ *
+ * Requests above the limit wait in a short bounded queue and are rejected with
+ * {@link SphinxRejectedException} when the queue is full or the wait times
+ * out. One limiter should be shared by all clients talking to the same
+ * searchd.
+ */
+public class SphinxConcurrencyLimiter {
+
+	private static final int DEFAULT_INITIAL_LIMIT = 10;
+	private static final int DEFAULT_MAX_LIMIT = 30;
+	private static final int DEFAULT_MAX_QUEUE = 50;
+	private static final long DEFAULT_MAX_WAIT_MILLIS = 10;
+	private static final int DEFAULT_ALPHA = 3;
+	private static final int DEFAULT_BETA = 6;
+	private static final double BACKOFF_RATIO = 0.9;
+	private static final int PROBE_INTERVAL = 1000;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private int maxQueue = DEFAULT_MAX_QUEUE;
+	private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+	private int alpha = DEFAULT_ALPHA;
+	private int beta = DEFAULT_BETA;
+
+	private double limit;
+	private int inFlight;
+	private int queued;
+	private long minRttNanos;
+	private int samples;
+	private long rejected;
+
+	/**
+	 * Creates limiter starting at 10 and never exceeding 30 concurrent
+	 * exchanges.
+	 */
+	public SphinxConcurrencyLimiter() {
+		this.minLimit = 1;
+		this.maxLimit = DEFAULT_MAX_LIMIT;
+		this.limit = DEFAULT_INITIAL_LIMIT;
+	}
+
+	/**
+	 * Creates limiter.
+	 *
+	 * @param initialLimit
+	 *            limit to start from
+	 * @param lowLimit
+	 *            limit never goes below this value
+	 * @param highLimit
+	 *            limit never goes above this value, e.g. searchd
+	 *            max_children
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxConcurrencyLimiter(final int initialLimit, final int lowLimit, final int highLimit)
+			throws SphinxException {
+		if (lowLimit < 1 || highLimit < lowLimit || initialLimit < lowLimit || initialLimit > highLimit) {
+			throw new SphinxException("limits must satisfy 1 <= min <= initial <= max");
+		}
+		this.minLimit = lowLimit;
+		this.maxLimit = highLimit;
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * Set queue for requests above the limit.
+	 *
+	 * @param size
+	 *            maximum amount of waiting requests, 0 rejects immediately
+	 * @param waitMillis
+	 *            maximum wait, in milliseconds
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public synchronized void setQueue(final int size, final long waitMillis) throws SphinxException {
+		if (size < 0 || waitMillis < 0) {
+			throw new SphinxException("queue size and wait must not be negative");
+		}
+		maxQueue = size;
+		maxWaitMillis = waitMillis;
+	}
+
+	/**
+	 * Set Vegas thresholds, in estimated queued requests.
+	 *
+	 * @param grow
+	 *            limit grows while fewer requests are queued in searchd
+	 * @param shrink
+	 *            limit shrinks while more requests are queued in searchd
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public synchronized void setThresholds(final int grow, final int shrink) throws SphinxException {
+		if (grow < 0 || shrink < grow) {
+			throw new SphinxException("thresholds must satisfy 0 <= alpha <= beta");
+		}
+		alpha = grow;
+		beta = shrink;
+	}
+
+	/**
+	 * Take a slot, waiting in the queue if the limit is reached.
+	 *
+	 * @throws SphinxException
+	 *             if the request is rejected or the thread is interrupted
+	 */
+	public void acquire() throws SphinxException {
+		acquire(null);
+	}
+
+	/**
+	 * Take a slot, waiting in the queue if the limit is reached, unless
+	 * cancelled.
+	 *
+	 * @param token
+	 *            cancellation token of the request, may be null
+	 * @throws SphinxException
+	 *             if the request is rejected or cancelled or the thread is
+	 *             interrupted
+	 */
+	public synchronized void acquire(final SphinxCancellationToken token) throws SphinxException {
+		if (inFlight < (int) limit) {
+			inFlight++;
+			return;
+		}
+		if (queued >= maxQueue) {
+			throw reject();
+		}
+		queued++;
+		if (token != null) {
+			token.watch(this);
+		}
+		try {
+			long deadline = System.currentTimeMillis() + maxWaitMillis;
+			long left = maxWaitMillis;
+			while (inFlight >= (int) limit) {
+				if (token != null) {
+					token.check();
+				}
+				if (left <= 0) {
+					throw reject();
+				}
+				wait(left);
+				left = deadline - System.currentTimeMillis();
+			}
+			inFlight++;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting for concurrency limit");
+		} finally {
+			queued--;
+			if (token != null) {
+				token.unwatch(this);
+			}
+		}
+	}
+
+	/**
+	 * Return a slot and feed the measured round trip into the limit.
+	 *
+	 * @param rttNanos
+	 *            round-trip time of the exchange, in nanoseconds
+	 * @param failed
+	 *            true if the exchange failed or timed out
+	 */
+	public synchronized void release(final long rttNanos, final boolean failed) {
+		inFlight--;
+		if (failed) {
+			limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+		} else if (rttNanos > 0) {
+			/* forget the no-load latency from time to time, it may have changed */
+			if (++samples >= PROBE_INTERVAL) {
+				samples = 0;
+				minRttNanos = 0;
+			}
+			if (minRttNanos == 0 || rttNanos < minRttNanos) {
+				minRttNanos = rttNanos;
+			}
+			double queue = Math.ceil(limit * (1 - (double) minRttNanos / rttNanos));
+			if (queue < alpha && inFlight * 2 >= (int) limit) {
+				limit = Math.min(maxLimit, limit + 1);
+			} else if (queue > beta) {
+				limit = Math.max(minLimit, limit - 1);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Build rejection (must hold the lock).
+	 *
+	 * @return the exception
+	 */
+	private SphinxRejectedException reject() {
+		rejected++;
+		return new SphinxRejectedException("concurrency limit of " + (int) limit + " reached");
+	}
+
+	/**
+	 * Get current limit.
+	 *
+	 * @return concurrent exchanges allowed
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Get exchanges in progress.
+	 *
+	 * @return in-flight exchanges
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Get requests waiting for a slot.
+	 *
+	 * @return queue depth
+	 */
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	/**
+	 * Get amount of rejected requests.
+	 *
+	 * @return rejected requests
+	 */
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	/**
+	 * Get lowest round-trip time observed since the last probe, i.e. the
+	 * no-load latency estimate.
+	 *
+	 * @return round-trip time in nanoseconds, 0 if unknown
+	 */
+	public synchronized long getMinRttNanos() {
+		return minRttNanos;
+	}
+}
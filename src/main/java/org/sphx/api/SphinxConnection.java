@@ -0,0 +1,217 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Connection to searchd: version handshake, request and response packets.
+ * Usually closed after one exchange; persistent connections stay open for
+ * subsequent requests.
+ */
+final class SphinxConnection {
+
+	private static final int SPH_MSG_OFFSET = 4;
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private String warning;
+	private boolean replied;
+
+	/**
+	 * Create connection on connected socket.
+	 *
+	 * @param sock
+	 *            the socket
+	 * @throws IOException
+	 *             if streams are not available
+	 */
+	SphinxConnection(final Socket sock) throws IOException {
+		this.socket = sock;
+		this.in = new DataInputStream(sock.getInputStream());
+		this.out = new DataOutputStream(sock.getOutputStream());
+	}
+
+	/**
+	 * Get underlying socket.
+	 *
+	 * @return the socket
+	 */
+	Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Exchange versions with searchd.
+	 *
+	 * @param timeoutMillis
+	 *            read timeout
+	 * @throws IOException
+	 *             if IO error occur
+	 * @throws SphinxException
+	 *             if invalid version of searchd.
+	 */
+	void hello(final int timeoutMillis) throws SphinxException, IOException {
+		socket.setSoTimeout(timeoutMillis);
+		int version = in.readInt();
+		if (version < 1) {
+			throw new SphinxException("expected searchd protocol version 1+, got version " + version);
+		}
+		out.writeInt(SphinxClient.VER_MAJOR_PROTO);
+	}
+
+	/**
+	 * Ask searchd to keep the connection open after each request. searchd does
+	 * not reply to this command.
+	 *
+	 * @throws IOException
+	 *             if IO error occur
+	 */
+	void persist() throws IOException {
+		ByteArrayOutputStream req = new ByteArrayOutputStream();
+		new DataOutputStream(req).writeInt(1);
+		request(SphinxClient.SEARCHD_COMMAND_PERSIST, 0, req);
+	}
+
+	/**
+	 * Send request packet.
+	 *
+	 * @param command
+	 *            the command
+	 * @param version
+	 *            the version
+	 * @param req
+	 *            request data
+	 * @throws IOException
+	 *             throw IOException when io error occur.
+	 */
+	void request(final int command, final int version, final ByteArrayOutputStream req) throws IOException {
+		replied = false;
+		out.writeShort(command);
+		out.writeShort(version);
+		byte[] reqBytes = req.toByteArray();
+		out.writeInt(reqBytes.length);
+		out.write(reqBytes);
+		out.flush();
+	}
+
+	/**
+	 * Get and check response packet.
+	 *
+	 * @param dispatcher
+	 *            provides read timeout from the call deadline
+	 * @throws SphinxException
+	 *             when error occur
+	 * @return response data
+	 */
+	byte[] response(final SphinxDispatcher dispatcher) throws SphinxException {
+
+		/* response */
+		short status = 0, ver = 0;
+		int len = 0;
+		warning = null;
+
+		try {
+			socket.setSoTimeout(dispatcher.remainingMillis(SphinxTimeoutException.Stage.READ));
+
+			/* read status fields */
+			status = in.readShort();
+			ver = in.readShort();
+			len = in.readInt();
+
+			/* read response if non-empty */
+			if (len <= 0) {
+				throw new SphinxException("invalid response packet size (len=" + len + ")");
+			}
+
+			byte[] response = new byte[len];
+			socket.setSoTimeout(dispatcher.remainingMillis(SphinxTimeoutException.Stage.READ));
+			in.readFully(response, 0, len);
+
+			/* check status */
+			switch (status) {
+			case SphinxClient.SEARCHD_OK:
+				replied = true;
+				break;
+			case SphinxClient.SEARCHD_WARNING:
+				DataInputStream warnIn = new DataInputStream(new ByteArrayInputStream(response));
+				int iWarnLen = warnIn.readInt();
+				warning = new String(response, SPH_MSG_OFFSET, iWarnLen);
+				System.arraycopy(response, SPH_MSG_OFFSET + iWarnLen, response, 0, response.length
+						- SPH_MSG_OFFSET - iWarnLen);
+				replied = true;
+				break;
+			case SphinxClient.SEARCHD_ERROR:
+				replied = true;
+				throw new SphinxException("searchd error: "
+						+ new String(response, SPH_MSG_OFFSET, response.length - SPH_MSG_OFFSET));
+			case SphinxClient.SEARCHD_RETRY:
+				replied = true;
+				throw new SphinxTemporaryException("temporary searchd error: "
+						+ new String(response, SPH_MSG_OFFSET, response.length - SPH_MSG_OFFSET));
+			default:
+				throw new SphinxException("searched returned unknown status, code=" + status);
+			}
+
+			return response;
+
+		} catch (SocketTimeoutException e) {
+			throw new SphinxTimeoutException(SphinxTimeoutException.Stage.READ, "timed out reading searchd response"
+					+ " (status=" + status + ", ver=" + ver + ", len=" + len + ")");
+		} catch (IOException e) {
+			String message = "received zero-sized searchd response" + " (searchd crashed?): "
+					+ e.getMessage();
+			if (len != 0) {
+				/* get trace, to provide even more failure details */
+				PrintWriter ew = new PrintWriter(new StringWriter());
+				e.printStackTrace(ew);
+				ew.flush();
+				ew.close();
+				String sTrace = ew.toString();
+
+				/* build error message */
+				message = "failed to read searchd response (status=" + status + ", ver=" + ver + ", len="
+						+ len + ", trace=" + sTrace + ")";
+			}
+			throw new SphinxNetworkException(message);
+		}
+	}
+
+	/**
+	 * Check whether the last request got a complete reply with a known
+	 * status, even an error one. searchd keeps a persistent connection open
+	 * after such a reply, so it can carry the next request.
+	 *
+	 * @return true if the reply was read completely
+	 */
+	boolean isReplied() {
+		return replied;
+	}
+
+	/**
+	 * Get warning of the last response.
+	 *
+	 * @return warning message, null if none
+	 */
+	String getWarning() {
+		return warning;
+	}
+
+	/**
+	 * Close connection.
+	 */
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			/* nothing to do */
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package org.sphx.api;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Walks all matches of a query in document ID order, page by page, without
+ * the max matches limit and without deep offsets.
+ *
+ * Every page is a query sorted by <tt>@id</tt> with the ID range starting
+ * after the last document of the previous page (keyset pagination), so each
+ * page costs the same. While the caller consumes a page, the next one is
+ * already fetched in the background; at most two pages are held in memory.
+ *
+ * <pre>
+ * SphinxCursor cursor = new SphinxCursor(client, &quot;phone&quot;, &quot;products&quot;, 1000);
+ * try {
+ * 	for (SphinxResult page = cursor.nextPage(); page != null; page = cursor.nextPage()) {
+ * 		export(page.getMatches());
+ * 	}
+ * } finally {
+ * 	cursor.close();
+ * }
+ * </pre>
+ *
+ * The cursor owns the client: it changes its sort mode, limits and ID range,
+ * and uses it from its own thread. Filters and match mode set before are
+ * kept. Documents are unsigned 64-bit IDs.
+ */
+public class SphinxCursor {
+
+	private final SphinxClient client;
+	private final String query;
+	private final String index;
+	private final int pageSize;
+	private final long maxId;
+	private final ExecutorService fetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable task) {
+			Thread thread = new Thread(task, "sphinx-cursor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private Future<SphinxResult> pending;
+	private long nextId;
+	private long lastId = -1;
+	private boolean done;
+	private boolean prefetch = true;
+
+	/**
+	 * Creates cursor over all document IDs.
+	 *
+	 * @param sphinxClient
+	 *            the client
+	 * @param fullTextQuery
+	 *            the query
+	 * @param indexName
+	 *            the index name
+	 * @param size
+	 *            matches per page, at most max_matches of searchd
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxCursor(final SphinxClient sphinxClient, final String fullTextQuery, final String indexName,
+			final int size) throws SphinxException {
+		this(sphinxClient, fullTextQuery, indexName, size, 0, -1L);
+	}
+
+	/**
+	 * Creates cursor over a document ID range.
+	 *
+	 * @param sphinxClient
+	 *            the client
+	 * @param fullTextQuery
+	 *            the query
+	 * @param indexName
+	 *            the index name
+	 * @param size
+	 *            matches per page, at most max_matches of searchd
+	 * @param minDocId
+	 *            first document ID, inclusive
+	 * @param maxDocId
+	 *            last document ID, inclusive
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxCursor(final SphinxClient sphinxClient, final String fullTextQuery, final String indexName,
+			final int size, final long minDocId, final long maxDocId) throws SphinxException {
+		if (sphinxClient == null || size < 1) {
+			throw new SphinxException("client is required and page size must be positive");
+		}
+		this.client = sphinxClient;
+		this.query = fullTextQuery;
+		this.index = indexName;
+		this.pageSize = size;
+		this.maxId = maxDocId;
+		this.nextId = minDocId;
+		client.setSortMode(SphinxClient.SPH_SORT_EXTENDED, "@id ASC");
+		client.setLimits(0, size, size);
+		client.setIDRange(minDocId, maxDocId);
+	}
+
+	/**
+	 * Set whether the next page is fetched in the background while the
+	 * current one is consumed; enabled by default. When disabled, pages are
+	 * fetched by {@link #nextPage()} in the calling thread, only when asked
+	 * for.
+	 *
+	 * @param enabled
+	 *            true to prefetch
+	 */
+	public void setPrefetch(final boolean enabled) {
+		prefetch = enabled;
+	}
+
+	/**
+	 * Get next page, and start fetching the following one.
+	 *
+	 * @return the page, null after the last one
+	 * @throws SphinxException
+	 *             if the query failed; the cursor may be resumed from
+	 *             {@link #getLastDocId()} with a new cursor
+	 */
+	public SphinxResult nextPage() throws SphinxException {
+		if (pending == null) {
+			if (done) {
+				return null;
+			}
+			pending = fetch(nextId);
+		}
+		SphinxResult page;
+		try {
+			page = pending.get();
+		} catch (ExecutionException e) {
+			done = true;
+			if (e.getCause() instanceof SphinxException) {
+				throw (SphinxException) e.getCause();
+			}
+			throw new SphinxException("page fetch failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting for page");
+		} finally {
+			pending = null;
+		}
+		List<SphinxMatch> matches = page.getMatches();
+		if (matches.isEmpty()) {
+			done = true;
+			return null;
+		}
+		lastId = matches.get(matches.size() - 1).getDocId();
+		if (matches.size() < pageSize || lastId == maxId) {
+			done = true;
+		} else {
+			nextId = lastId + 1;
+			if (prefetch) {
+				pending = fetch(nextId);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Get ID of the last document returned, to resume an interrupted walk
+	 * after it.
+	 *
+	 * @return document ID, -1 if no page was returned yet
+	 */
+	public long getLastDocId() {
+		return lastId;
+	}
+
+	/**
+	 * Stop prefetching. The client may be used again once a running fetch
+	 * finished.
+	 */
+	public void close() {
+		done = true;
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+		fetcher.shutdown();
+	}
+
+	/**
+	 * Start fetching a page.
+	 *
+	 * @param fromId
+	 *            first document ID of the page
+	 * @return the page
+	 */
+	private Future<SphinxResult> fetch(final long fromId) {
+		Callable<SphinxResult> page = new Callable<SphinxResult>() {
+			public SphinxResult call() throws SphinxException {
+				client.setIDRange(fromId, maxId);
+				return client.query(query, index);
+			}
+		};
+		if (prefetch) {
+			return fetcher.submit(page);
+		}
+		FutureTask<SphinxResult> task = new FutureTask<SphinxResult>(page);
+		task.run();
+		return task;
+	}
+}
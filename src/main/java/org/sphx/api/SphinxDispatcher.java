@@ -0,0 +1,525 @@
+package org.sphx.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends searchd commands on behalf of a {@link SphinxClient}: keeps the call
+ * deadline, picks the endpoint of every attempt, guards attempts with the
+ * circuit breaker and retries temporary failures.
+ */
+final class SphinxDispatcher {
+
+	private static final long NANOS_IN_MILLISEC = 1000000L;
+
+	private final SphinxClient client;
+	private SphinxCircuitBreaker circuitBreaker;
+	private SphinxRetryPolicy retryPolicy;
+	private SphinxRetryBudget retryBudget;
+	private SphinxConcurrencyLimiter concurrencyLimiter;
+	private SphinxScheduler scheduler;
+	private String trafficClass;
+	private String tenant;
+	private final Map<Integer, SphinxBulkhead> bulkheads = new HashMap<Integer, SphinxBulkhead>();
+	private SphinxCancellationToken cancellationToken;
+	private final ArrayList<String> failoverHosts = new ArrayList<String>();
+	private final ArrayList<Integer> failoverPorts = new ArrayList<Integer>();
+	private int requestTimeout;
+	private long deadline;
+	private int deadlineTimeout;
+
+	/**
+	 * Create dispatcher.
+	 *
+	 * @param owner
+	 *            client doing the exchanges
+	 */
+	SphinxDispatcher(final SphinxClient owner) {
+		this.client = owner;
+	}
+
+	/**
+	 * Set circuit breaker.
+	 *
+	 * @param breaker
+	 *            the breaker, null to disable
+	 */
+	void setCircuitBreaker(final SphinxCircuitBreaker breaker) {
+		circuitBreaker = breaker;
+	}
+
+	/**
+	 * Set retry policy and budget.
+	 *
+	 * @param policy
+	 *            the policy, null to disable
+	 * @param budget
+	 *            the budget, null for unlimited
+	 */
+	void setRetryPolicy(final SphinxRetryPolicy policy, final SphinxRetryBudget budget) {
+		retryPolicy = policy;
+		retryBudget = budget;
+	}
+
+	/**
+	 * Set concurrency limiter.
+	 *
+	 * @param limiter
+	 *            the limiter, null to disable
+	 */
+	void setConcurrencyLimiter(final SphinxConcurrencyLimiter limiter) {
+		concurrencyLimiter = limiter;
+	}
+
+	/**
+	 * Set scheduler admitting searches and excerpts.
+	 *
+	 * @param shared
+	 *            the scheduler, null to disable
+	 * @param className
+	 *            traffic class of the client
+	 * @param tenantName
+	 *            tenant of the client
+	 */
+	void setScheduler(final SphinxScheduler shared, final String className, final String tenantName) {
+		scheduler = shared;
+		trafficClass = className;
+		tenant = tenantName;
+	}
+
+	/**
+	 * Set bulkhead of a command.
+	 *
+	 * @param command
+	 *            searchd command
+	 * @param bulkhead
+	 *            the bulkhead, null to remove
+	 */
+	void setBulkhead(final int command, final SphinxBulkhead bulkhead) {
+		if (bulkhead == null) {
+			bulkheads.remove(Integer.valueOf(command));
+		} else {
+			bulkheads.put(Integer.valueOf(command), bulkhead);
+		}
+	}
+
+	/**
+	 * Set cancellation token of the following requests.
+	 *
+	 * @param token
+	 *            the token, null for none
+	 */
+	void setCancellationToken(final SphinxCancellationToken token) {
+		cancellationToken = token;
+	}
+
+	/**
+	 * Register connection of the exchange in progress with the cancellation
+	 * token, if any.
+	 *
+	 * @param sock
+	 *            the connection
+	 * @throws SphinxCancelledException
+	 *             if the request is already cancelled
+	 */
+	void attach(final Socket sock) throws SphinxCancelledException {
+		if (cancellationToken != null) {
+			cancellationToken.attach(sock);
+		}
+	}
+
+	/**
+	 * Connect socket and set its read timeout; cancelling the request
+	 * meanwhile closes it.
+	 *
+	 * @param sock
+	 *            unconnected socket
+	 * @param address
+	 *            searchd address
+	 * @throws IOException
+	 *             if connect failed or the request was cancelled
+	 */
+	void connect(final Socket sock, final InetSocketAddress address) throws IOException {
+		try {
+			attach(sock);
+		} catch (SphinxCancelledException e) {
+			sock.close();
+			throw new SocketException(e.getMessage());
+		}
+		try {
+			sock.connect(address, timeoutMillis());
+			sock.setSoTimeout(timeoutMillis());
+		} finally {
+			detach(sock);
+		}
+	}
+
+	/**
+	 * Forget connection of a finished exchange.
+	 *
+	 * @param sock
+	 *            the connection
+	 */
+	void detach(final Socket sock) {
+		if (cancellationToken != null) {
+			cancellationToken.detach(sock);
+		}
+	}
+
+	/**
+	 * Add failover endpoint.
+	 *
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 */
+	void addFailoverServer(final String sphinxHost, final int sphinxPort) {
+		failoverHosts.add(sphinxHost);
+		failoverPorts.add(Integer.valueOf(sphinxPort));
+	}
+
+	/**
+	 * Set time budget of a call.
+	 *
+	 * @param millis
+	 *            timeout in milliseconds, 0 for none
+	 */
+	void setRequestTimeout(final int millis) {
+		requestTimeout = millis;
+	}
+
+	/**
+	 * Start the deadline of a call unless one is already running, so nested
+	 * calls share the deadline of the outermost one.
+	 *
+	 * @return true if the deadline was started and must be ended by the caller
+	 */
+	boolean beginCall() {
+		if (deadline != 0 || requestTimeout == 0) {
+			return false;
+		}
+		deadline = System.nanoTime() + requestTimeout * NANOS_IN_MILLISEC;
+		deadlineTimeout = requestTimeout;
+		return true;
+	}
+
+	/**
+	 * End the deadline started by {@link #beginCall()}.
+	 *
+	 * @param started
+	 *            value returned by beginCall()
+	 */
+	void endCall(final boolean started) {
+		if (started) {
+			deadline = 0;
+		}
+	}
+
+	/**
+	 * Check whether the current call has a deadline.
+	 *
+	 * @return true if deadline is running
+	 */
+	boolean hasDeadline() {
+		return deadline != 0;
+	}
+
+	/**
+	 * Get socket timeout for the current call.
+	 *
+	 * @return milliseconds left (at least 1), or SPH_CLIENT_TIMEOUT_MILLISEC
+	 *         without a deadline
+	 */
+	int timeoutMillis() {
+		if (deadline == 0) {
+			return SphinxClient.SPH_CLIENT_TIMEOUT_MILLISEC;
+		}
+		return (int) Math.max(1, (deadline - System.nanoTime()) / NANOS_IN_MILLISEC);
+	}
+
+	/**
+	 * Get time left for a stage of the current call.
+	 *
+	 * @param stage
+	 *            stage about to start
+	 * @return milliseconds left, or SPH_CLIENT_TIMEOUT_MILLISEC without a
+	 *         deadline
+	 * @throws SphinxTimeoutException
+	 *             if the deadline has passed
+	 */
+	int remainingMillis(final SphinxTimeoutException.Stage stage) throws SphinxTimeoutException {
+		if (deadline == 0) {
+			return SphinxClient.SPH_CLIENT_TIMEOUT_MILLISEC;
+		}
+		long left = (deadline - System.nanoTime()) / NANOS_IN_MILLISEC;
+		if (left <= 0) {
+			throw new SphinxTimeoutException(stage, "request timeout of " + deadlineTimeout
+					+ " ms exceeded before " + stage.name().toLowerCase());
+		}
+		return (int) left;
+	}
+
+	/**
+	 * Run command with retries, failover and circuit breaking. Searches and
+	 * excerpts first wait for admission by the scheduler, if any, then the
+	 * command takes a permit of its bulkhead, if any.
+	 *
+	 * @param command
+	 *            the command
+	 * @param version
+	 *            the command version
+	 * @param req
+	 *            the request data
+	 * @return result data stream
+	 * @throws SphinxException
+	 *             if some error happened
+	 */
+	DataInputStream execute(final int command, final int version, final ByteArrayOutputStream req)
+			throws SphinxException {
+		boolean started = beginCall();
+		SphinxScheduler.Ticket ticket = null;
+		try {
+			if (cancellationToken != null) {
+				cancellationToken.check();
+			}
+			if (scheduler != null
+					&& (command == SphinxClient.SEARCHD_COMMAND_SEARCH || command == SphinxClient.SEARCHD_COMMAND_EXCERPT)) {
+				ticket = scheduler.acquire(trafficClass, tenant, cancellationToken);
+			}
+			SphinxBulkhead bulkhead = bulkheads.get(Integer.valueOf(command));
+			if (bulkhead == null) {
+				return attempts(command, version, req);
+			}
+			bulkhead.acquire(cancellationToken);
+			long savedDeadline = deadline;
+			int savedTimeout = deadlineTimeout;
+			try {
+				int timeout = bulkhead.getTimeout();
+				long bulkheadDeadline = System.nanoTime() + timeout * NANOS_IN_MILLISEC;
+				if (timeout > 0 && (deadline == 0 || bulkheadDeadline < deadline)) {
+					deadline = bulkheadDeadline;
+					deadlineTimeout = timeout;
+				}
+				return attempts(command, version, req);
+			} finally {
+				deadline = savedDeadline;
+				deadlineTimeout = savedTimeout;
+				bulkhead.release();
+			}
+		} finally {
+			if (ticket != null) {
+				scheduler.release(ticket);
+			}
+			endCall(started);
+		}
+	}
+
+	/**
+	 * Run attempts of a command, round-robin over the main and failover
+	 * servers, as long as the retry policy allows.
+	 *
+	 * @param command
+	 *            the command
+	 * @param version
+	 *            the command version
+	 * @param req
+	 *            the request data
+	 * @return result data stream
+	 * @throws SphinxException
+	 *             if the last attempt failed
+	 */
+	private DataInputStream attempts(final int command, final int version, final ByteArrayOutputStream req)
+			throws SphinxException {
+		int attempts = 1;
+		if (retryPolicy != null && retryPolicy.isRetryable(command)) {
+			attempts = retryPolicy.getMaxAttempts();
+			if (retryBudget != null) {
+				retryBudget.onRequest();
+			}
+		}
+		for (int attempt = 0;; attempt++) {
+			int server = attempt % (failoverHosts.size() + 1);
+			try {
+				if (server == 0) {
+					return limitedExchange(command, version, req, client.getHost(), client.getPort());
+				}
+				return limitedExchange(command, version, req, failoverHosts.get(server - 1),
+						failoverPorts.get(server - 1).intValue());
+			} catch (SphinxException e) {
+				if (attempt + 1 >= attempts || !retryPolicy.isTemporary(e)
+						|| (retryBudget != null && !retryBudget.tryRetry())) {
+					throw e;
+				}
+				if (!(e instanceof SphinxCircuitOpenException) && !pause(attempt + 1)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait before a retry, never past the deadline.
+	 *
+	 * @param retry
+	 *            retry number, starting from 1
+	 * @return false if the deadline does not leave time for a retry
+	 * @throws SphinxException
+	 *             if thread was interrupted or the request was cancelled
+	 */
+	boolean pause(final int retry) throws SphinxException {
+		if (retryPolicy == null) {
+			return true;
+		}
+		long delay = retryPolicy.getDelayMillis(retry);
+		if (deadline != 0 && (deadline - System.nanoTime()) / NANOS_IN_MILLISEC <= delay) {
+			return false;
+		}
+		try {
+			if (cancellationToken != null) {
+				cancellationToken.sleep(delay);
+			} else {
+				Thread.sleep(delay);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting to retry");
+		}
+		return true;
+	}
+
+	/**
+	 * Single exchange admitted by the concurrency limiter, if any. Round trips
+	 * of successful exchanges and transport failures adjust the limit.
+	 *
+	 * @param command
+	 *            the command
+	 * @param version
+	 *            the command version
+	 * @param req
+	 *            the request data
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 * @return result data stream
+	 * @throws SphinxException
+	 *             if some error happened
+	 */
+	private DataInputStream limitedExchange(final int command, final int version,
+			final ByteArrayOutputStream req, final String sphinxHost, final int sphinxPort) throws SphinxException {
+		if (concurrencyLimiter == null) {
+			return guardedExchange(command, version, req, sphinxHost, sphinxPort);
+		}
+		concurrencyLimiter.acquire(cancellationToken);
+		long start = System.nanoTime();
+		long rtt = 0;
+		boolean failed = false;
+		try {
+			DataInputStream in = guardedExchange(command, version, req, sphinxHost, sphinxPort);
+			rtt = System.nanoTime() - start;
+			return in;
+		} catch (SphinxNetworkException e) {
+			failed = true;
+			throw e;
+		} catch (SphinxTemporaryException e) {
+			failed = true;
+			throw e;
+		} finally {
+			concurrencyLimiter.release(rtt, failed);
+		}
+	}
+
+	/**
+	 * Single exchange guarded by the circuit breaker, if any.
+	 *
+	 * @param command
+	 *            the command
+	 * @param version
+	 *            the command version
+	 * @param req
+	 *            the request data
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 * @return result data stream
+	 * @throws SphinxException
+	 *             if some error happened
+	 */
+	private DataInputStream guardedExchange(final int command, final int version,
+			final ByteArrayOutputStream req, final String sphinxHost, final int sphinxPort) throws SphinxException {
+		if (circuitBreaker == null) {
+			return cancellableExchange(command, version, req, sphinxHost, sphinxPort);
+		}
+		String endpoint = sphinxHost + ":" + sphinxPort;
+		if (!circuitBreaker.tryAcquire(endpoint)) {
+			throw new SphinxCircuitOpenException(endpoint);
+		}
+		long start = System.nanoTime();
+		try {
+			DataInputStream in = cancellableExchange(command, version, req, sphinxHost, sphinxPort);
+			circuitBreaker.onSuccess(endpoint, elapsedMillis(start));
+			return in;
+		} catch (SphinxNetworkException e) {
+			circuitBreaker.onFailure(endpoint, elapsedMillis(start));
+			throw e;
+		} catch (SphinxTemporaryException e) {
+			circuitBreaker.onFailure(endpoint, elapsedMillis(start));
+			throw e;
+		} catch (SphinxException e) {
+			/* searchd replied, so the endpoint itself is healthy */
+			circuitBreaker.onSuccess(endpoint, elapsedMillis(start));
+			throw e;
+		}
+	}
+
+	/**
+	 * Single exchange; failures caused by cancellation are reported as such
+	 * and not as network errors, so they neither trip the breaker nor shrink
+	 * the concurrency limit.
+	 *
+	 * @param command
+	 *            the command
+	 * @param version
+	 *            the command version
+	 * @param req
+	 *            the request data
+	 * @param sphinxHost
+	 *            the host
+	 * @param sphinxPort
+	 *            the port
+	 * @return result data stream
+	 * @throws SphinxException
+	 *             if some error happened
+	 */
+	private DataInputStream cancellableExchange(final int command, final int version,
+			final ByteArrayOutputStream req, final String sphinxHost, final int sphinxPort) throws SphinxException {
+		try {
+			return client.exchange(command, version, req, sphinxHost, sphinxPort);
+		} catch (SphinxException e) {
+			if (cancellationToken != null) {
+				cancellationToken.check();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Milliseconds elapsed since given time.
+	 *
+	 * @param startNanos
+	 *            start time, from System.nanoTime()
+	 * @return elapsed milliseconds
+	 */
+	static long elapsedMillis(final long startNanos) {
+		return (System.nanoTime() - startNanos) / NANOS_IN_MILLISEC;
+	}
+}
@@ -0,0 +1,178 @@
+package org.sphx.api;
+
+/**
+ * Progress of a {@link SphinxExporter} run: the document ID partitions and,
+ * for each of them, the next ID to export. Save {@link #toString()} and
+ * restore it with {@link #parse(String)} to resume an export after a
+ * failure; pages delivered but not yet acknowledged are exported again.
+ */
+public class SphinxExportCheckpoint {
+
+	private static final char PARTITION_SEPARATOR = ',';
+	private static final String FIELD_SEPARATOR = ":";
+	private static final int FIELDS = 4;
+
+	private final long[] from;
+	private final long[] to;
+	private final long[] next;
+	private final boolean[] complete;
+
+	/**
+	 * Creates checkpoint of fresh partitions.
+	 *
+	 * @param partitionFrom
+	 *            first document ID of each partition
+	 * @param partitionTo
+	 *            last document ID of each partition
+	 */
+	SphinxExportCheckpoint(final long[] partitionFrom, final long[] partitionTo) {
+		this.from = partitionFrom.clone();
+		this.to = partitionTo.clone();
+		this.next = partitionFrom.clone();
+		this.complete = new boolean[from.length];
+	}
+
+	/**
+	 * Restore checkpoint from its text form.
+	 *
+	 * @param text
+	 *            text returned by {@link #toString()}
+	 * @return the checkpoint
+	 * @throws SphinxException
+	 *             if the text is malformed
+	 */
+	public static SphinxExportCheckpoint parse(final String text) throws SphinxException {
+		if (text == null) {
+			throw new SphinxException("checkpoint must not be null");
+		}
+		if (text.length() == 0) {
+			return new SphinxExportCheckpoint(new long[0], new long[0]);
+		}
+		String[] partitions = text.split(String.valueOf(PARTITION_SEPARATOR));
+		long[] partitionFrom = new long[partitions.length];
+		long[] partitionTo = new long[partitions.length];
+		long[] partitionNext = new long[partitions.length];
+		boolean[] partitionComplete = new boolean[partitions.length];
+		try {
+			for (int i = 0; i < partitions.length; i++) {
+				String[] fields = partitions[i].split(FIELD_SEPARATOR);
+				if (fields.length != FIELDS) {
+					throw new SphinxException("malformed checkpoint partition '" + partitions[i] + "'");
+				}
+				partitionFrom[i] = Long.parseLong(fields[0]);
+				partitionTo[i] = Long.parseLong(fields[1]);
+				partitionNext[i] = Long.parseLong(fields[2]);
+				partitionComplete[i] = "1".equals(fields[3]);
+			}
+		} catch (NumberFormatException e) {
+			throw new SphinxException("malformed checkpoint: " + e.getMessage());
+		}
+		SphinxExportCheckpoint checkpoint = new SphinxExportCheckpoint(partitionFrom, partitionTo);
+		System.arraycopy(partitionNext, 0, checkpoint.next, 0, partitionNext.length);
+		System.arraycopy(partitionComplete, 0, checkpoint.complete, 0, partitionComplete.length);
+		return checkpoint;
+	}
+
+	/**
+	 * Get amount of partitions.
+	 *
+	 * @return partition count
+	 */
+	public int getPartitionCount() {
+		return from.length;
+	}
+
+	/**
+	 * Check whether a partition was exported completely.
+	 *
+	 * @param partition
+	 *            partition number
+	 * @return true if complete
+	 */
+	public synchronized boolean isComplete(final int partition) {
+		return complete[partition];
+	}
+
+	/**
+	 * Check whether all partitions were exported.
+	 *
+	 * @return true if complete
+	 */
+	public synchronized boolean isComplete() {
+		for (int i = 0; i < complete.length; i++) {
+			if (!complete[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get last document ID of a partition.
+	 *
+	 * @param partition
+	 *            partition number
+	 * @return document ID
+	 */
+	long getTo(final int partition) {
+		return to[partition];
+	}
+
+	/**
+	 * Get next document ID to export of a partition.
+	 *
+	 * @param partition
+	 *            partition number
+	 * @return document ID
+	 */
+	synchronized long getNext(final int partition) {
+		return next[partition];
+	}
+
+	/**
+	 * Record exported page.
+	 *
+	 * @param partition
+	 *            partition number
+	 * @param lastDocId
+	 *            last document ID of the page
+	 */
+	synchronized void advance(final int partition, final long lastDocId) {
+		if (lastDocId == to[partition]) {
+			complete[partition] = true;
+		} else {
+			next[partition] = lastDocId + 1;
+		}
+	}
+
+	/**
+	 * Record exported partition.
+	 *
+	 * @param partition
+	 *            partition number
+	 */
+	synchronized void complete(final int partition) {
+		complete[partition] = true;
+	}
+
+	/**
+	 * Get text form, <tt>from:to:next:complete</tt> per partition.
+	 *
+	 * @return the text
+	 */
+	public synchronized String toString() {
+		StringBuffer text = new StringBuffer();
+		for (int i = 0; i < from.length; i++) {
+			if (i > 0) {
+				text.append(PARTITION_SEPARATOR);
+			}
+			text.append(from[i]).append(FIELD_SEPARATOR).append(to[i]).append(FIELD_SEPARATOR).append(next[i]);
+			if (complete[i]) {
+				text.append(FIELD_SEPARATOR).append('1');
+			} else {
+				text.append(FIELD_SEPARATOR).append('0');
+			}
+		}
+		return text.toString();
+	}
+}
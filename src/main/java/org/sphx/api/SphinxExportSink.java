@@ -0,0 +1,21 @@
+package org.sphx.api;
+
+import java.util.List;
+
+/** Receives pages of matches from {@link SphinxExporter}. */
+public interface SphinxExportSink {
+
+	/**
+	 * Consume a page of matches. Called concurrently for different
+	 * partitions; pages of one partition come in document ID order. The
+	 * checkpoint advances past the page once this method returns.
+	 * 
+	 * @param partition
+	 *            partition number
+	 * @param matches
+	 *            the matches
+	 * @throws SphinxException
+	 *             to stop the export
+	 */
+	void page(int partition, List<SphinxMatch> matches) throws SphinxException;
+}
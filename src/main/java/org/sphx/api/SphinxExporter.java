@@ -0,0 +1,274 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports all matches of a query by splitting the document ID space into
+ * disjoint partitions drained in parallel.
+ *
+ * {@link #plan(String, String)} samples the lowest and highest document IDs
+ * and the amount of matches, and picks the partition count from it: one
+ * partition per {@link #setPartitionSize(int) partition size} matches, at
+ * least one per thread. Partitions outnumbering the threads are taken by
+ * whichever connection gets idle first, so skewed ID distributions still
+ * keep all connections busy. Every partition is walked with a
+ * {@link SphinxCursor} over its own client, and its pages are pushed to a
+ * {@link SphinxExportSink}.
+ *
+ * <pre>
+ * SphinxExporter exporter = new SphinxExporter(new SphinxClientFactory(&quot;localhost&quot;, 3312), 8);
+ * SphinxExportCheckpoint checkpoint = exporter.plan(&quot;&quot;, &quot;products&quot;);
+ * exporter.export(&quot;&quot;, &quot;products&quot;, checkpoint, sink);
+ * </pre>
+ *
+ * The checkpoint records the progress of every partition; after a failure
+ * the same checkpoint, or one restored from its text form, resumes the
+ * export. Document IDs must be below 2^63.
+ */
+public class SphinxExporter {
+
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+	private static final int DEFAULT_PARTITION_SIZE = 100000;
+
+	private final SphinxClientFactory factory;
+	private final int threads;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private int partitionSize = DEFAULT_PARTITION_SIZE;
+
+	/**
+	 * Creates exporter.
+	 *
+	 * @param clientFactory
+	 *            creates the client of every partition, with filters and
+	 *            match mode of the export
+	 * @param threadCount
+	 *            amount of partitions drained in parallel
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxExporter(final SphinxClientFactory clientFactory, final int threadCount) throws SphinxException {
+		if (clientFactory == null || threadCount < 1) {
+			throw new SphinxException("client factory is required and thread count must be positive");
+		}
+		this.factory = clientFactory;
+		this.threads = threadCount;
+	}
+
+	/**
+	 * Set matches per page; default is 1000. Must not exceed max_matches of
+	 * searchd.
+	 *
+	 * @param size
+	 *            matches per page
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public void setPageSize(final int size) throws SphinxException {
+		if (size < 1) {
+			throw new SphinxException("page size must be positive");
+		}
+		pageSize = size;
+	}
+
+	/**
+	 * Set matches per partition planned by {@link #plan(String, String)};
+	 * default is 100000.
+	 *
+	 * @param size
+	 *            matches per partition
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public void setPartitionSize(final int size) throws SphinxException {
+		if (size < 1) {
+			throw new SphinxException("partition size must be positive");
+		}
+		partitionSize = size;
+	}
+
+	/**
+	 * Plan partitions from the ID bounds and match count of the query.
+	 *
+	 * @param query
+	 *            the query
+	 * @param index
+	 *            the index name
+	 * @return checkpoint of fresh partitions, without any if nothing matches
+	 * @throws SphinxException
+	 *             if sampling failed
+	 */
+	public SphinxExportCheckpoint plan(final String query, final String index) throws SphinxException {
+		SphinxClient client = factory.newClient();
+		client.setLimits(0, 1, 1);
+		client.setSortMode(SphinxClient.SPH_SORT_EXTENDED, "@id ASC");
+		SphinxResult lowest = client.query(query, index);
+		if (lowest.getMatches().isEmpty()) {
+			return new SphinxExportCheckpoint(new long[0], new long[0]);
+		}
+		client.setSortMode(SphinxClient.SPH_SORT_EXTENDED, "@id DESC");
+		SphinxResult highest = client.query(query, index);
+		if (highest.getMatches().isEmpty()) {
+			return new SphinxExportCheckpoint(new long[0], new long[0]);
+		}
+		int partitions = Math.max(threads, (int) ((lowest.totalFound + (long) partitionSize - 1) / partitionSize));
+		return plan(lowest.getMatches().get(0).getDocId(), highest.getMatches().get(0).getDocId(), partitions);
+	}
+
+	/**
+	 * Plan partitions of equal ID ranges.
+	 *
+	 * @param minId
+	 *            lowest document ID
+	 * @param maxId
+	 *            highest document ID
+	 * @param partitions
+	 *            amount of partitions; fewer are planned if the range is
+	 *            smaller
+	 * @return checkpoint of fresh partitions
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxExportCheckpoint plan(final long minId, final long maxId, final int partitions)
+			throws SphinxException {
+		if (minId < 0 || maxId < minId || partitions < 1) {
+			throw new SphinxException("ID bounds must satisfy 0 <= min <= max and partitions must be positive");
+		}
+		long step = (maxId - minId) / partitions + 1;
+		int count = (int) ((maxId - minId) / step + 1);
+		long[] from = new long[count];
+		long[] to = new long[count];
+		for (int i = 0; i < count; i++) {
+			from[i] = minId + i * step;
+			to[i] = Math.min(maxId, from[i] + step - 1);
+		}
+		return new SphinxExportCheckpoint(from, to);
+	}
+
+	/**
+	 * Export incomplete partitions of the checkpoint.
+	 *
+	 * @param query
+	 *            the query
+	 * @param index
+	 *            the index name
+	 * @param checkpoint
+	 *            partitions and their progress, updated as pages are
+	 *            consumed
+	 * @param sink
+	 *            receives the pages
+	 * @throws SphinxException
+	 *             if some partition failed; the other partitions stop after
+	 *             their current page
+	 */
+	public void export(final String query, final String index, final SphinxExportCheckpoint checkpoint,
+			final SphinxExportSink sink) throws SphinxException {
+		if (checkpoint == null || sink == null) {
+			throw new SphinxException("checkpoint and sink must be provided");
+		}
+		AtomicBoolean stopped = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Object>> partitions = new ArrayList<Future<Object>>();
+		try {
+			for (int i = 0; i < checkpoint.getPartitionCount(); i++) {
+				if (!checkpoint.isComplete(i)) {
+					partitions.add(pool.submit(new Partition(i, query, index, checkpoint, sink, stopped)));
+				}
+			}
+			SphinxException failure = null;
+			for (Future<Object> partition : partitions) {
+				try {
+					partition.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						if (e.getCause() instanceof SphinxException) {
+							failure = (SphinxException) e.getCause();
+						} else {
+							failure = new SphinxException("export partition failed: " + e.getCause());
+						}
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (InterruptedException e) {
+			stopped.set(true);
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting for export");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Drains one partition over its own client. */
+	private final class Partition implements Callable<Object> {
+		private final int partition;
+		private final String query;
+		private final String index;
+		private final SphinxExportCheckpoint checkpoint;
+		private final SphinxExportSink sink;
+		private final AtomicBoolean stopped;
+
+		/**
+		 * Create partition task.
+		 *
+		 * @param number
+		 *            partition number
+		 * @param fullTextQuery
+		 *            the query
+		 * @param indexName
+		 *            the index name
+		 * @param progress
+		 *            the checkpoint
+		 * @param pageSink
+		 *            receives the pages
+		 * @param stop
+		 *            set when some partition failed
+		 */
+		private Partition(final int number, final String fullTextQuery, final String indexName,
+				final SphinxExportCheckpoint progress, final SphinxExportSink pageSink, final AtomicBoolean stop) {
+			this.partition = number;
+			this.query = fullTextQuery;
+			this.index = indexName;
+			this.checkpoint = progress;
+			this.sink = pageSink;
+			this.stopped = stop;
+		}
+
+		/**
+		 * Export the partition.
+		 *
+		 * @return nothing
+		 * @throws SphinxException
+		 *             if a page failed
+		 */
+		public Object call() throws SphinxException {
+			SphinxCursor cursor = new SphinxCursor(factory.newClient(), query, index, pageSize,
+					checkpoint.getNext(partition), checkpoint.getTo(partition));
+			try {
+				while (!stopped.get()) {
+					SphinxResult page = cursor.nextPage();
+					if (page == null) {
+						checkpoint.complete(partition);
+						break;
+					}
+					sink.page(partition, page.getMatches());
+					checkpoint.advance(partition, cursor.getLastDocId());
+				}
+				return null;
+			} catch (SphinxException e) {
+				stopped.set(true);
+				throw e;
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+}
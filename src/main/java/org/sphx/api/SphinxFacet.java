@@ -0,0 +1,144 @@
+package org.sphx.api;
+
+/**
+ * Counts of one facet returned by {@link SphinxFacetSearch}, in the order
+ * sorted by searchd.
+ *
+ * Values are the group keys: attribute values for attribute facets,
+ * <tt>YYYYMMDD</tt>, <tt>YYYYNNN</tt>, <tt>YYYYMM</tt> or <tt>YYYY</tt>
+ * numbers for date facets, and the bucket number for range facets, where
+ * bucket 0 is below the first bound and bucket N at or above the Nth.
+ */
+public class SphinxFacet {
+
+	private static final String GROUP_ATTR = "@groupby";
+	private static final String COUNT_ATTR = "@count";
+
+	private final String name;
+	private final long[] values;
+	private final int[] counts;
+	private final int total;
+	private final String error;
+
+	/**
+	 * Creates facet from counts assembled on the client.
+	 *
+	 * @param facetName
+	 *            the facet name
+	 * @param facetValues
+	 *            the group keys
+	 * @param facetCounts
+	 *            the counts
+	 */
+	SphinxFacet(final String facetName, final long[] facetValues, final int[] facetCounts) {
+		this.name = facetName;
+		this.values = facetValues;
+		this.counts = facetCounts;
+		this.total = facetValues.length;
+		this.error = null;
+	}
+
+	/**
+	 * Creates facet from the result of its group-by query.
+	 *
+	 * @param facetName
+	 *            the facet name
+	 * @param result
+	 *            the result
+	 */
+	SphinxFacet(final String facetName, final SphinxResult result) {
+		this.name = facetName;
+		int size = result.getMatches().size();
+		if (result.error != null) {
+			size = 0;
+		}
+		this.values = new long[size];
+		this.counts = new int[size];
+		for (int i = 0; i < size; i++) {
+			SphinxMatch match = result.getMatches().get(i);
+			values[i] = ((Number) match.getAttribute(GROUP_ATTR)).longValue();
+			counts[i] = ((Number) match.getAttribute(COUNT_ATTR)).intValue();
+		}
+		if (result.error != null) {
+			this.total = 0;
+			this.error = result.error;
+		} else {
+			this.total = result.totalFound;
+			this.error = null;
+		}
+	}
+
+	/**
+	 * Get facet name.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get amount of returned values.
+	 *
+	 * @return value count
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * Get a value.
+	 *
+	 * @param i
+	 *            position
+	 * @return the group key
+	 */
+	public long getValue(final int i) {
+		return values[i];
+	}
+
+	/**
+	 * Get amount of matches having a value.
+	 *
+	 * @param i
+	 *            position
+	 * @return the count
+	 */
+	public int getCount(final int i) {
+		return counts[i];
+	}
+
+	/**
+	 * Get amount of matches having a value, 0 if it was not returned.
+	 *
+	 * @param value
+	 *            the group key
+	 * @return the count
+	 */
+	public int getCountOf(final long value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == value) {
+				return counts[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Get amount of distinct values, including those beyond the facet limit.
+	 *
+	 * @return distinct value count
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Get error of the facet query.
+	 *
+	 * @return the error, null if succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+}
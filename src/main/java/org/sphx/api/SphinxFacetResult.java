@@ -0,0 +1,58 @@
+package org.sphx.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/** Main result and facets of one {@link SphinxFacetSearch} page. */
+public class SphinxFacetResult {
+
+	private final SphinxResult result;
+	private final List<SphinxFacet> facets;
+
+	/**
+	 * Creates result.
+	 *
+	 * @param mainResult
+	 *            result of the base search
+	 * @param facetList
+	 *            facets in the order they were defined
+	 */
+	SphinxFacetResult(final SphinxResult mainResult, final List<SphinxFacet> facetList) {
+		this.result = mainResult;
+		this.facets = Collections.unmodifiableList(facetList);
+	}
+
+	/**
+	 * Get result of the base search.
+	 *
+	 * @return the result
+	 */
+	public SphinxResult getResult() {
+		return result;
+	}
+
+	/**
+	 * Get all facets.
+	 *
+	 * @return facets in the order they were defined
+	 */
+	public List<SphinxFacet> getFacets() {
+		return facets;
+	}
+
+	/**
+	 * Get facet by name.
+	 *
+	 * @param name
+	 *            the facet name
+	 * @return the facet, null if not defined
+	 */
+	public SphinxFacet getFacet(final String name) {
+		for (SphinxFacet facet : facets) {
+			if (facet.getName().equals(name)) {
+				return facet;
+			}
+		}
+		return null;
+	}
+}
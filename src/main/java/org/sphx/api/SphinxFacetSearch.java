@@ -0,0 +1,211 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a search together with its facets as one multi-query, so searchd
+ * matches the full-text query once and reuses it for every facet.
+ *
+ * <pre>
+ * SphinxFacetSearch facets = new SphinxFacetSearch();
+ * facets.addAttributeFacet(&quot;brand_id&quot;, 10);
+ * facets.addDateFacet(&quot;created_at&quot;, SphinxClient.SPH_GROUPBY_MONTH, 12);
+ * facets.addRangeFacet(&quot;price_range&quot;, &quot;price&quot;, new long[] { 100, 500, 1000 });
+ * SphinxFacetResult page = facets.query(client, &quot;phone&quot;, &quot;products&quot;);
+ * </pre>
+ *
+ * Filters, match mode, sorting and limits set on the client apply to the
+ * main search; facets share the filters and return their groups in limits of
+ * their own. The base search must not be grouped: grouping settings are reset
+ * once the facets were added. Definitions are reusable for many pages.
+ */
+public class SphinxFacetSearch {
+
+	private static final String COUNT_DESC = "@count desc";
+
+	private final List<Facet> facets = new ArrayList<Facet>();
+
+	/**
+	 * Add facet counting matches per attribute value, most frequent first.
+	 *
+	 * @param attribute
+	 *            the attribute, also the facet name
+	 * @param limit
+	 *            maximum values returned
+	 * @return this facet search
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxFacetSearch addAttributeFacet(final String attribute, final int limit) throws SphinxException {
+		return add(new Facet(attribute, attribute, SphinxClient.SPH_GROUPBY_ATTR, COUNT_DESC, null, limit));
+	}
+
+	/**
+	 * Add facet counting matches per day, week, month or year of a timestamp
+	 * attribute, latest first.
+	 *
+	 * @param attribute
+	 *            the timestamp attribute, also the facet name
+	 * @param func
+	 *            one of SPH_GROUPBY_DAY, SPH_GROUPBY_WEEK, SPH_GROUPBY_MONTH,
+	 *            SPH_GROUPBY_YEAR
+	 * @param limit
+	 *            maximum buckets returned
+	 * @return this facet search
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxFacetSearch addDateFacet(final String attribute, final int func, final int limit)
+			throws SphinxException {
+		if (func != SphinxClient.SPH_GROUPBY_DAY && func != SphinxClient.SPH_GROUPBY_WEEK
+				&& func != SphinxClient.SPH_GROUPBY_MONTH && func != SphinxClient.SPH_GROUPBY_YEAR) {
+			throw new SphinxException("date facets need one of SPH_GROUPBY_DAY/WEEK/MONTH/YEAR");
+		}
+		return add(new Facet(attribute, attribute, func, "@group desc", null, limit));
+	}
+
+	/**
+	 * Add facet counting matches per numeric range, computed by searchd as
+	 * <tt>INTERVAL(attribute, bounds...)</tt> in the select-list; values are
+	 * bucket numbers in ascending order.
+	 *
+	 * @param name
+	 *            the facet name, used as alias of the expression
+	 * @param attribute
+	 *            the numeric attribute
+	 * @param bounds
+	 *            ascending lower bounds of the buckets after the first
+	 * @return this facet search
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxFacetSearch addRangeFacet(final String name, final String attribute, final long[] bounds)
+			throws SphinxException {
+		if (attribute == null || bounds == null || bounds.length == 0) {
+			throw new SphinxException("range facet needs an attribute and bounds");
+		}
+		StringBuffer expression = new StringBuffer("INTERVAL(").append(attribute);
+		for (int i = 0; i < bounds.length; i++) {
+			if (i > 0 && bounds[i] <= bounds[i - 1]) {
+				throw new SphinxException("range facet bounds must be ascending");
+			}
+			expression.append(',').append(bounds[i]);
+		}
+		expression.append(") AS ").append(name);
+		return add(new Facet(name, name, SphinxClient.SPH_GROUPBY_ATTR, "@group asc", expression.toString(),
+				bounds.length + 1));
+	}
+
+	/**
+	 * Get amount of facets.
+	 *
+	 * @return facet count
+	 */
+	public int getFacetCount() {
+		return facets.size();
+	}
+
+	/**
+	 * Run the search and its facets as one batch. Queries added to the client
+	 * before are sent in the same batch, and their results are dropped.
+	 *
+	 * @param client
+	 *            client configured for the base search
+	 * @param query
+	 *            the query
+	 * @param index
+	 *            the index name
+	 * @return main result and facets
+	 * @throws SphinxException
+	 *             if the request failed
+	 */
+	public SphinxFacetResult query(final SphinxClient client, final String query, final String index)
+			throws SphinxException {
+		int offset = client.getOffset();
+		int limit = client.getLimit();
+		String select = client.getSelectList();
+		int main = client.addQuery(query, index, "");
+		try {
+			for (Facet facet : facets) {
+				client.setGroupBy(facet.groupBy, facet.func, facet.groupSort);
+				client.setLimits(0, facet.limit);
+				if (facet.expression != null) {
+					client.setSelectList(select + ", " + facet.expression);
+				}
+				client.addQuery(query, index, "");
+				client.setSelectList(select);
+			}
+		} finally {
+			client.resetGroupBy();
+			client.setSelectList(select);
+			client.setLimits(offset, limit);
+		}
+		SphinxResult[] results = client.runQueries();
+		List<SphinxFacet> counts = new ArrayList<SphinxFacet>(facets.size());
+		for (int i = 0; i < facets.size(); i++) {
+			counts.add(new SphinxFacet(facets.get(i).name, results[main + 1 + i]));
+		}
+		return new SphinxFacetResult(results[main], counts);
+	}
+
+	/**
+	 * Add a facet, checking its name is unique.
+	 *
+	 * @param facet
+	 *            the facet
+	 * @return this facet search
+	 * @throws SphinxException
+	 *             if the name is taken
+	 */
+	private SphinxFacetSearch add(final Facet facet) throws SphinxException {
+		for (Facet defined : facets) {
+			if (defined.name.equals(facet.name)) {
+				throw new SphinxException("facet '" + facet.name + "' is already defined");
+			}
+		}
+		facets.add(facet);
+		return this;
+	}
+
+	/** Facet definition. */
+	private static final class Facet {
+		private final String name;
+		private final String groupBy;
+		private final int func;
+		private final String groupSort;
+		private final String expression;
+		private final int limit;
+
+		/**
+		 * Create definition.
+		 *
+		 * @param facetName
+		 *            the name
+		 * @param groupAttribute
+		 *            attribute or alias to group by
+		 * @param groupFunc
+		 *            the grouping function
+		 * @param sort
+		 *            the group sort
+		 * @param selectExpression
+		 *            select-list expression, null if none
+		 * @param maxValues
+		 *            maximum values returned
+		 * @throws SphinxException
+		 *             if invalid values
+		 */
+		private Facet(final String facetName, final String groupAttribute, final int groupFunc, final String sort,
+				final String selectExpression, final int maxValues) throws SphinxException {
+			if (facetName == null || facetName.length() == 0 || maxValues < 1) {
+				throw new SphinxException("facet needs a name and a positive limit");
+			}
+			this.name = facetName;
+			this.groupBy = groupAttribute;
+			this.func = groupFunc;
+			this.groupSort = sort;
+			this.expression = selectExpression;
+			this.limit = maxValues;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package org.sphx.api;
+
+import static org.sphx.util.Validator.isNotEmpty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable set of filters, encoded once when built and attachable to any
+ * number of queries, see {@link SphinxClient#addFilterSet(SphinxFilterSet)}
+ * and {@link SphinxSearch#addFilterSet(SphinxFilterSet)}.
+ *
+ * <pre>
+ * SphinxFilterSet inStock = new SphinxFilterSet.Builder().range(&quot;stock&quot;, 1, Integer.MAX_VALUE, false).build();
+ * SphinxFilterSet tenant = new SphinxFilterSet.Builder().values(&quot;tenant_id&quot;, new long[] { 42 }, false).build();
+ * client.addFilterSet(tenant);
+ * client.addFilterSet(inStock);
+ * </pre>
+ *
+ * Filter sets are thread safe and may be shared by all clients.
+ */
+public final class SphinxFilterSet {
+
+	private static final int LONG_SIZE = 8;
+	private static final int LONG_BITS = 64;
+
+	/** Empty filter set. */
+	public static final SphinxFilterSet EMPTY = new SphinxFilterSet(0, new byte[0]);
+
+	private final int count;
+	private final byte[] encoded;
+
+	/**
+	 * Create filter set.
+	 *
+	 * @param filterCount
+	 *            amount of filters
+	 * @param filters
+	 *            encoded filters
+	 */
+	private SphinxFilterSet(final int filterCount, final byte[] filters) {
+		this.count = filterCount;
+		this.encoded = filters;
+	}
+
+	/**
+	 * Get amount of filters.
+	 *
+	 * @return filter count
+	 */
+	public int getFilterCount() {
+		return count;
+	}
+
+	/**
+	 * Get size of the encoded filters.
+	 *
+	 * @return size in bytes
+	 */
+	public int getEncodedSize() {
+		return encoded.length;
+	}
+
+	/**
+	 * Write encoded filters to a search request.
+	 *
+	 * @param out
+	 *            request stream
+	 * @throws IOException
+	 *             if write failed
+	 */
+	void encode(final DataOutputStream out) throws IOException {
+		out.write(encoded);
+	}
+
+	/**
+	 * Write values filter.
+	 *
+	 * @param out
+	 *            filters stream
+	 * @param attribute
+	 *            the attribute for filter
+	 * @param values
+	 *            array of values
+	 * @param exclude
+	 *            exclude
+	 * @throws IOException
+	 *             if write failed
+	 */
+	static void writeValues(final DataOutputStream out, final String attribute, final long[] values,
+			final boolean exclude) throws IOException {
+		SphinxClient.writeNetUTF8(out, attribute);
+		out.writeInt(SphinxClient.SPH_FILTER_VALUES);
+		out.writeInt(values.length);
+		byte[] bytes = new byte[values.length * LONG_SIZE];
+		int pos = 0;
+		for (int i = 0; i < values.length; i++) {
+			for (int shift = LONG_BITS - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+				bytes[pos++] = (byte) (values[i] >>> shift);
+			}
+		}
+		out.write(bytes);
+		writeExclude(out, exclude);
+	}
+
+	/**
+	 * Get sorted copy of values without duplicates.
+	 *
+	 * @param values
+	 *            the values
+	 * @return distinct values
+	 */
+	static long[] distinct(final long[] values) {
+		long[] sorted = Arrays.copyOf(values, values.length);
+		Arrays.sort(sorted);
+		int size = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (size == 0 || sorted[i] != sorted[size - 1]) {
+				sorted[size++] = sorted[i];
+			}
+		}
+		if (size == sorted.length) {
+			return sorted;
+		}
+		return Arrays.copyOf(sorted, size);
+	}
+
+	/**
+	 * Write integer range filter.
+	 *
+	 * @param out
+	 *            filters stream
+	 * @param attribute
+	 *            the attribute for filter
+	 * @param min
+	 *            minimum value
+	 * @param max
+	 *            maximum value
+	 * @param exclude
+	 *            exclude
+	 * @throws IOException
+	 *             if write failed
+	 */
+	static void writeRange(final DataOutputStream out, final String attribute, final long min, final long max,
+			final boolean exclude) throws IOException {
+		SphinxClient.writeNetUTF8(out, attribute);
+		out.writeInt(SphinxClient.SPH_FILTER_RANGE);
+		out.writeLong(min);
+		out.writeLong(max);
+		writeExclude(out, exclude);
+	}
+
+	/**
+	 * Write float range filter.
+	 *
+	 * @param out
+	 *            filters stream
+	 * @param attribute
+	 *            the attribute for filter
+	 * @param min
+	 *            minimum value
+	 * @param max
+	 *            maximum value
+	 * @param exclude
+	 *            exclude
+	 * @throws IOException
+	 *             if write failed
+	 */
+	static void writeFloatRange(final DataOutputStream out, final String attribute, final float min,
+			final float max, final boolean exclude) throws IOException {
+		SphinxClient.writeNetUTF8(out, attribute);
+		out.writeInt(SphinxClient.SPH_FILTER_FLOATRANGE);
+		out.writeFloat(min);
+		out.writeFloat(max);
+		writeExclude(out, exclude);
+	}
+
+	/**
+	 * Write exclude flag.
+	 *
+	 * @param out
+	 *            filters stream
+	 * @param exclude
+	 *            exclude
+	 * @throws IOException
+	 *             if write failed
+	 */
+	private static void writeExclude(final DataOutputStream out, final boolean exclude) throws IOException {
+		if (exclude) {
+			out.writeInt(1);
+		} else {
+			out.writeInt(0);
+		}
+	}
+
+	/**
+	 * Throw exception if condition is false.
+	 *
+	 * @param condition
+	 *            the condition
+	 * @param message
+	 *            the exception message
+	 * @throws SphinxException
+	 *             if condition is false
+	 */
+	private static void check(final boolean condition, final String message) throws SphinxException {
+		if (!condition) {
+			throw new SphinxException(message);
+		}
+	}
+
+	/** Collects filters of a filter set. Not thread safe. */
+	public static final class Builder {
+		private final ByteArrayOutputStream rawFilters = new ByteArrayOutputStream();
+		private final DataOutputStream filters = new DataOutputStream(rawFilters);
+		private int filterCount;
+
+		/**
+		 * Add values filter. Only match records where attribute value is in
+		 * given set. Values are sent sorted and without duplicates.
+		 *
+		 * @param attribute
+		 *            the attribute for filter
+		 * @param values
+		 *            array of values
+		 * @param exclude
+		 *            exclude
+		 * @return this builder
+		 * @throws SphinxException
+		 *             if invalid value
+		 */
+		public Builder values(final String attribute, final long[] values, final boolean exclude)
+				throws SphinxException {
+			check(isNotEmpty(values), "values array must not be null or empty");
+			check(isNotEmpty(attribute), "attribute name must not be null or empty");
+			try {
+				writeValues(filters, attribute, distinct(values), exclude);
+			} catch (IOException e) {
+				check(false, "IOException: " + e.getMessage());
+			}
+			filterCount++;
+			return this;
+		}
+
+		/**
+		 * Add integer range filter. Only match records if attribute value is
+		 * between min and max (inclusive).
+		 *
+		 * @param attribute
+		 *            the attribute for filter
+		 * @param min
+		 *            minimum value
+		 * @param max
+		 *            maximum value
+		 * @param exclude
+		 *            exclude
+		 * @return this builder
+		 * @throws SphinxException
+		 *             if invalid value
+		 */
+		public Builder range(final String attribute, final long min, final long max, final boolean exclude)
+				throws SphinxException {
+			check(isNotEmpty(attribute), "attribute name must not be null or empty");
+			check(min <= max, "min must be less or equal to max");
+			try {
+				writeRange(filters, attribute, min, max, exclude);
+			} catch (IOException e) {
+				check(false, "IOException: " + e.getMessage());
+			}
+			filterCount++;
+			return this;
+		}
+
+		/**
+		 * Add float range filter. Only match records if attribute value is
+		 * between min and max (inclusive).
+		 *
+		 * @param attribute
+		 *            the attribute for filter
+		 * @param min
+		 *            minimum value
+		 * @param max
+		 *            maximum value
+		 * @param exclude
+		 *            exclude
+		 * @return this builder
+		 * @throws SphinxException
+		 *             if invalid value
+		 */
+		public Builder floatRange(final String attribute, final float min, final float max, final boolean exclude)
+				throws SphinxException {
+			check(isNotEmpty(attribute), "attribute name must not be null or empty");
+			check(min <= max, "min must be less or equal to max");
+			try {
+				writeFloatRange(filters, attribute, min, max, exclude);
+			} catch (IOException e) {
+				check(false, "IOException: " + e.getMessage());
+			}
+			filterCount++;
+			return this;
+		}
+
+		/**
+		 * Add all filters of another filter set; its encoding is copied as is.
+		 *
+		 * @param set
+		 *            the filter set
+		 * @return this builder
+		 * @throws SphinxException
+		 *             if no filter set
+		 */
+		public Builder add(final SphinxFilterSet set) throws SphinxException {
+			check(set != null, "filter set must not be null");
+			try {
+				set.encode(filters);
+			} catch (IOException e) {
+				check(false, "IOException: " + e.getMessage());
+			}
+			filterCount += set.count;
+			return this;
+		}
+
+		/**
+		 * Create filter set of the filters added so far. The builder may be
+		 * used further.
+		 *
+		 * @return the filter set
+		 */
+		public SphinxFilterSet build() {
+			return new SphinxFilterSet(filterCount, rawFilters.toByteArray());
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.sphx.api;
+
+/**
+ * Restricts a search to documents within a radius of a point.
+ *
+ * Besides the anchor of <tt>@geodist</tt>, it adds float range filters on the
+ * latitude and longitude attributes covering the bounding box of the circle,
+ * so searchd rejects most documents with two comparisons and computes the
+ * distance only for the candidates inside the box; an exact
+ * <tt>@geodist</tt> range filter then drops the corners of the box.
+ *
+ * <pre>
+ * SphinxGeoRadius nearby = new SphinxGeoRadius(&quot;lat&quot;, &quot;lon&quot;, lat, lon, 5000);
+ * nearby.apply(client);
+ * client.setSortMode(SphinxClient.SPH_SORT_EXTENDED, &quot;@geodist ASC&quot;);
+ * </pre>
+ *
+ * Coordinates are in radians, as {@link SphinxClient#setGeoAnchor} expects;
+ * distances are in meters on the sphere searchd uses. The box is widened by
+ * a few meters so float rounding never drops a document inside the radius.
+ */
+public class SphinxGeoRadius {
+
+	/** Earth radius used by searchd for <tt>@geodist</tt>, in meters. */
+	private static final double EARTH_RADIUS = 6384000.0;
+	private static final double MARGIN = 1e-6;
+	private static final String GEODIST = "@geodist";
+
+	private final String latitudeAttr;
+	private final String longitudeAttr;
+	private final float latitude;
+	private final float longitude;
+	private final SphinxFilterSet filters;
+	private final float minLatitude;
+	private final float maxLatitude;
+	private final float minLongitude;
+	private final float maxLongitude;
+	private final boolean wrapped;
+
+	/**
+	 * Creates radius restriction.
+	 *
+	 * @param latitudeAttrValue
+	 *            the latitude attribute
+	 * @param longitudeAttrValue
+	 *            the longitude attribute
+	 * @param latitudeValue
+	 *            latitude of the center, in radians
+	 * @param longitudeValue
+	 *            longitude of the center, in radians
+	 * @param radius
+	 *            radius in meters
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxGeoRadius(final String latitudeAttrValue, final String longitudeAttrValue,
+			final float latitudeValue, final float longitudeValue, final float radius) throws SphinxException {
+		if (Math.abs(latitudeValue) > Math.PI / 2 || Math.abs(longitudeValue) > Math.PI || !(radius >= 0)) {
+			throw new SphinxException("center must be in radians and radius must not be negative");
+		}
+		this.latitudeAttr = latitudeAttrValue;
+		this.longitudeAttr = longitudeAttrValue;
+		this.latitude = latitudeValue;
+		this.longitude = longitudeValue;
+
+		double angle = radius / EARTH_RADIUS + MARGIN;
+		double south = latitudeValue - angle;
+		double north = latitudeValue + angle;
+		double west = -Math.PI;
+		double east = Math.PI;
+		double spread = Math.sin(angle) / Math.cos(latitudeValue);
+		if (south > -Math.PI / 2 && north < Math.PI / 2 && spread < 1) {
+			/* the box does not reach a pole */
+			double delta = Math.asin(spread);
+			west = longitudeValue - delta;
+			east = longitudeValue + delta;
+		}
+		this.minLatitude = (float) Math.max(south, -Math.PI / 2);
+		this.maxLatitude = (float) Math.min(north, Math.PI / 2);
+
+		SphinxFilterSet.Builder builder = new SphinxFilterSet.Builder();
+		builder.floatRange(latitudeAttrValue, minLatitude, maxLatitude, false);
+		if (west < -Math.PI) {
+			/* crosses the antimeridian: exclude the part of the globe between both edges */
+			this.minLongitude = (float) (west + 2 * Math.PI);
+			this.maxLongitude = (float) east;
+			this.wrapped = true;
+			builder.floatRange(longitudeAttrValue, maxLongitude, minLongitude, true);
+		} else if (east > Math.PI) {
+			this.minLongitude = (float) west;
+			this.maxLongitude = (float) (east - 2 * Math.PI);
+			this.wrapped = true;
+			builder.floatRange(longitudeAttrValue, maxLongitude, minLongitude, true);
+		} else {
+			this.minLongitude = (float) west;
+			this.maxLongitude = (float) east;
+			this.wrapped = false;
+			if (west > -Math.PI || east < Math.PI) {
+				builder.floatRange(longitudeAttrValue, minLongitude, maxLongitude, false);
+			}
+		}
+		builder.floatRange(GEODIST, 0, radius, false);
+		this.filters = builder.build();
+	}
+
+	/**
+	 * Set the geo anchor of the client and add the filters to the following
+	 * queries.
+	 *
+	 * @param client
+	 *            the client
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public void apply(final SphinxClient client) throws SphinxException {
+		client.setGeoAnchor(latitudeAttr, longitudeAttr, latitude, longitude);
+		client.addFilterSet(filters);
+	}
+
+	/**
+	 * Get the bounding box and distance filters, e.g. to attach them to a
+	 * {@link SphinxSearch} of a client whose anchor is already set.
+	 *
+	 * @return the filters
+	 */
+	public SphinxFilterSet getFilterSet() {
+		return filters;
+	}
+
+	/**
+	 * Get southern edge of the box.
+	 *
+	 * @return latitude in radians
+	 */
+	public float getMinLatitude() {
+		return minLatitude;
+	}
+
+	/**
+	 * Get northern edge of the box.
+	 *
+	 * @return latitude in radians
+	 */
+	public float getMaxLatitude() {
+		return maxLatitude;
+	}
+
+	/**
+	 * Get western edge of the box.
+	 *
+	 * @return longitude in radians, greater than the eastern edge if the box
+	 *         crosses the antimeridian
+	 */
+	public float getMinLongitude() {
+		return minLongitude;
+	}
+
+	/**
+	 * Get eastern edge of the box.
+	 *
+	 * @return longitude in radians
+	 */
+	public float getMaxLongitude() {
+		return maxLongitude;
+	}
+
+	/**
+	 * Check whether the box crosses the antimeridian.
+	 *
+	 * @return true if the longitude filter excludes the gap between the edges
+	 */
+	public boolean isWrapped() {
+		return wrapped;
+	}
+}
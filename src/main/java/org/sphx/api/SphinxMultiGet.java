@@ -0,0 +1,223 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches attributes of known documents without a full-text query.
+ *
+ * Document IDs are split into chunks of at most max matches documents; every
+ * chunk is a {@link SphinxClient#SPH_MATCH_FULLSCAN} query filtered on
+ * <tt>@id</tt>. Up to 32 chunks go into one multi-query, and multi-queries
+ * are sent in parallel, every worker thread keeping its own persistent
+ * connection. Matches are decoded straight into a {@link SphinxAttributeMap}.
+ *
+ * <pre>
+ * SphinxMultiGet multiGet = new SphinxMultiGet(new SphinxClientFactory(&quot;localhost&quot;, 3312), 4);
+ * SphinxAttributeMap attrs = multiGet.get(&quot;products&quot;, docIds);
+ * </pre>
+ */
+public class SphinxMultiGet {
+
+	/** Maximum queries of one multi-query accepted by searchd. */
+	private static final int MAX_QUERIES = 32;
+	private static final int DEFAULT_CHUNK_DOCS = 1000;
+
+	private final SphinxClientFactory factory;
+	private final int threads;
+	private int chunkDocs = DEFAULT_CHUNK_DOCS;
+
+	/**
+	 * Creates multi-get.
+	 *
+	 * @param clientFactory
+	 *            creates clients of the worker threads
+	 * @param threadCount
+	 *            amount of multi-queries sent in parallel
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxMultiGet(final SphinxClientFactory clientFactory, final int threadCount) throws SphinxException {
+		if (clientFactory == null || threadCount < 1) {
+			throw new SphinxException("client factory is required and thread count must be positive");
+		}
+		this.factory = clientFactory;
+		this.threads = threadCount;
+	}
+
+	/**
+	 * Set documents per query; default is 1000, the default max_matches of
+	 * searchd. Must not exceed max_matches of searchd.
+	 *
+	 * @param maxDocs
+	 *            maximum documents per query
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public void setChunkSize(final int maxDocs) throws SphinxException {
+		if (maxDocs < 1) {
+			throw new SphinxException("chunk size must be positive");
+		}
+		chunkDocs = maxDocs;
+	}
+
+	/**
+	 * Fetch attributes of documents.
+	 *
+	 * @param index
+	 *            index name(s)
+	 * @param docIds
+	 *            document IDs; duplicates are fetched once
+	 * @return attributes of the found documents
+	 * @throws SphinxException
+	 *             on invalid parameters or if some query failed
+	 */
+	public SphinxAttributeMap get(final String index, final long[] docIds) throws SphinxException {
+		if (index == null || index.length() == 0 || docIds == null) {
+			throw new SphinxException("index name and document IDs must be provided");
+		}
+		SphinxAttributeMap attrs = new SphinxAttributeMap();
+		if (docIds.length == 0) {
+			return attrs;
+		}
+		long[] ids = SphinxFilterSet.distinct(docIds);
+		int batchDocs = chunkDocs * MAX_QUERIES;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		BlockingQueue<SphinxClient> clients = new LinkedBlockingQueue<SphinxClient>();
+		List<Future<SphinxAttributeMap>> batches = new ArrayList<Future<SphinxAttributeMap>>();
+		try {
+			for (int from = 0; from < ids.length; from += batchDocs) {
+				batches.add(pool.submit(new Batch(index, ids, from, Math.min(ids.length, from + batchDocs), clients)));
+			}
+			for (int i = 0; i < batches.size(); i++) {
+				attrs.addAll(result(batches.get(i), i));
+			}
+			return attrs;
+		} finally {
+			pool.shutdownNow();
+			try {
+				/* let running batches return their clients, if some batch failed */
+				pool.awaitTermination(SphinxClient.SPH_CLIENT_TIMEOUT_MILLISEC, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (SphinxClient client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a batch.
+	 *
+	 * @param batch
+	 *            the batch
+	 * @param i
+	 *            batch number
+	 * @return attributes found by the batch
+	 * @throws SphinxException
+	 *             if the batch failed
+	 */
+	private static SphinxAttributeMap result(final Future<SphinxAttributeMap> batch, final int i)
+			throws SphinxException {
+		try {
+			return batch.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SphinxException) {
+				throw (SphinxException) e.getCause();
+			}
+			throw new SphinxException("multi-get batch #" + i + " failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting for multi-get batch #" + i);
+		}
+	}
+
+	/** One multi-query over a pooled persistent connection. */
+	private final class Batch implements Callable<SphinxAttributeMap> {
+		private final String index;
+		private final long[] ids;
+		private final int from;
+		private final int to;
+		private final BlockingQueue<SphinxClient> clients;
+
+		/**
+		 * Create batch.
+		 *
+		 * @param indexName
+		 *            index name(s)
+		 * @param docIds
+		 *            all distinct document IDs
+		 * @param fromRow
+		 *            first ID of the batch
+		 * @param toRow
+		 *            end of the batch, exclusive
+		 * @param pool
+		 *            idle clients
+		 */
+		private Batch(final String indexName, final long[] docIds, final int fromRow, final int toRow,
+				final BlockingQueue<SphinxClient> pool) {
+			this.index = indexName;
+			this.ids = docIds;
+			this.from = fromRow;
+			this.to = toRow;
+			this.clients = pool;
+		}
+
+		/**
+		 * Run the multi-query.
+		 *
+		 * @return attributes found
+		 * @throws SphinxException
+		 *             if some query failed
+		 */
+		public SphinxAttributeMap call() throws SphinxException {
+			SphinxClient client = clients.poll();
+			if (client == null) {
+				client = factory.newClient();
+				client.open();
+				client.setMatchMode(SphinxClient.SPH_MATCH_FULLSCAN);
+				client.setLimits(0, chunkDocs, chunkDocs);
+			}
+			boolean ok = false;
+			try {
+				long[] chunk = new long[Math.min(chunkDocs, to - from)];
+				for (int start = from; start < to; start += chunkDocs) {
+					int n = Math.min(chunkDocs, to - start);
+					if (n != chunk.length) {
+						chunk = new long[n];
+					}
+					System.arraycopy(ids, start, chunk, 0, n);
+					client.resetFilters();
+					client.setFilter("@id", chunk, false);
+					client.addQuery("", index, "");
+				}
+				SphinxAttributeMap attrs = new SphinxAttributeMap();
+				SphinxResult[] results = client.runQueries(attrs);
+				for (int i = 0; i < results.length; i++) {
+					if (results[i].error != null) {
+						throw new SphinxException(results[i].error);
+					}
+				}
+				ok = true;
+				return attrs;
+			} finally {
+				client.resetFilters();
+				if (ok) {
+					clients.add(client);
+				} else {
+					client.close();
+				}
+			}
+		}
+	}
+}
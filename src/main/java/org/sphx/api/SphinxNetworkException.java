@@ -0,0 +1,17 @@
+package org.sphx.api;
+
+/** Exception thrown when searchd could not be reached or the
+ *  connection failed before a complete reply was received. */
+public class SphinxNetworkException extends SphinxException {
+	/**
+	 * serial Version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Constructor from error message string.
+	 * @param message message about error.
+	 */
+	public SphinxNetworkException(final String message) {
+		super(message);
+	}
+}
@@ -1,12 +1,14 @@
 package org.sphx.api;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Map;
 
 /**
  * Sphinx Override inner class.
  * 
  */
-public class SphinxOverride {
+public class SphinxOverride extends SphinxAttributeOverride {
 	private String attrName;
 	private int attrType;
 	private Map values;
@@ -69,41 +71,32 @@ public class SphinxOverride {
 	}
 
 	/**
-	 * Get hash code.
-	 * @return hashcode
-	 */
-	public int hashCode() {
-		int result = 0;
-		if (attrName != null) {
-			result = attrName.hashCode();
-		}
-		return result;
-	}
-
-	/**
-	 * Equals.
-	 * @param obj another object
-	 * @return true if equal
+	 * Write override block of a search request.
+	 * 
+	 * @param out
+	 *            request stream
+	 * @throws IOException
+	 *             if write failed
 	 */
-	public boolean equals(final Object obj) {
-		if (this == obj) {
-			return true;
-		}
-		if (obj == null) {
-			return false;
-		}
-		if (getClass() != obj.getClass()) {
-			return false;
-		}
-		final SphinxOverride other = (SphinxOverride) obj;
-		if (attrName == null) {
-			if (other.attrName != null) {
-				return false;
+	void encode(final DataOutputStream out) throws IOException {
+		SphinxClient.writeNetUTF8(out, attrName);
+		out.writeInt(attrType);
+		out.writeInt(values.size());
+		for (Object o : values.entrySet()) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			out.writeLong(((Number) entry.getKey()).longValue());
+			Number value = (Number) entry.getValue();
+			switch (attrType) {
+			case SphinxClient.SPH_ATTR_FLOAT:
+				out.writeFloat(value.floatValue());
+				break;
+			case SphinxClient.SPH_ATTR_BIGINT:
+				out.writeLong(value.longValue());
+				break;
+			default:
+				out.writeInt(value.intValue());
+				break;
 			}
-		} else if (!attrName.equals(other.attrName)) {
-			return false;
 		}
-		return true;
 	}
-
 }
@@ -0,0 +1,390 @@
+package org.sphx.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves result pages and speculatively fetches the following page in the
+ * background, so a user paging forward gets it without a searchd round trip.
+ *
+ * Each session, e.g. a user, has one slot holding the prefetched page. The
+ * slot is used only by a request for exactly that page of the same search
+ * key within the time to live; any other request of the session discards it
+ * and cancels the prefetch if still running. Prefetches are skipped rather
+ * than queued when the load budget of concurrent prefetches is exhausted or
+ * when there is no next page.
+ *
+ * <pre>
+ * SphinxResult page = prefetcher.page(userId, query + filters, source, offset, 20);
+ * </pre>
+ *
+ * The prefetcher is thread safe and usually shared by all request threads.
+ */
+public class SphinxPagePrefetcher {
+
+	private final SphinxClientFactory factory;
+	private final int budget;
+	private final long ttlMillis;
+	private final ExecutorService prefetcher;
+	private final Map<String, Slot> slots = new LinkedHashMap<String, Slot>();
+	private int inFlight;
+	private long hits;
+	private long misses;
+	private long skipped;
+
+	/**
+	 * Creates prefetcher.
+	 *
+	 * @param clientFactory
+	 *            creates the clients of all requests
+	 * @param maxPrefetches
+	 *            load budget, maximum concurrent prefetch queries
+	 * @param slotTtlMillis
+	 *            time a prefetched page is kept for its session
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxPagePrefetcher(final SphinxClientFactory clientFactory, final int maxPrefetches,
+			final long slotTtlMillis) throws SphinxException {
+		if (clientFactory == null || maxPrefetches < 1 || slotTtlMillis <= 0) {
+			throw new SphinxException("client factory is required, budget and time to live must be positive");
+		}
+		this.factory = clientFactory;
+		this.budget = maxPrefetches;
+		this.ttlMillis = slotTtlMillis;
+		this.prefetcher = Executors.newFixedThreadPool(maxPrefetches, new ThreadFactory() {
+			public Thread newThread(final Runnable task) {
+				Thread thread = new Thread(task, "sphinx-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Get a page, from the session slot if it was prefetched, and start
+	 * prefetching the next one.
+	 *
+	 * @param session
+	 *            session key
+	 * @param searchKey
+	 *            identity of the search, equal for searches whose pages are
+	 *            interchangeable (query, index, filters, sorting)
+	 * @param source
+	 *            runs the search
+	 * @param offset
+	 *            offset of the page
+	 * @param limit
+	 *            size of the page
+	 * @return the page
+	 * @throws SphinxException
+	 *             if the query failed
+	 */
+	public SphinxResult page(final String session, final String searchKey, final SphinxPageSource source,
+			final int offset, final int limit) throws SphinxException {
+		if (session == null || searchKey == null || source == null) {
+			throw new SphinxException("session, search key and source must be provided");
+		}
+		Slot slot;
+		synchronized (this) {
+			slot = slots.remove(session);
+		}
+		SphinxResult result = null;
+		if (slot != null) {
+			result = slot.take(searchKey, offset, limit);
+		}
+		synchronized (this) {
+			if (result == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+		}
+		if (result == null) {
+			result = source.fetch(factory.newClient(), offset, limit);
+		}
+		if (result.totalFound > offset + limit) {
+			prefetch(session, searchKey, source, offset + limit, limit);
+		}
+		return result;
+	}
+
+	/**
+	 * Discard the slot of a session, cancelling its prefetch, e.g. when the
+	 * session ends.
+	 *
+	 * @param session
+	 *            session key
+	 */
+	public void discard(final String session) {
+		Slot slot;
+		synchronized (this) {
+			slot = slots.remove(session);
+		}
+		if (slot != null) {
+			slot.cancel();
+		}
+	}
+
+	/**
+	 * Cancel all prefetches and stop the background threads.
+	 */
+	public void close() {
+		Slot[] all;
+		synchronized (this) {
+			all = slots.values().toArray(new Slot[slots.size()]);
+			slots.clear();
+			prefetcher.shutdown();
+		}
+		for (int i = 0; i < all.length; i++) {
+			all[i].cancel();
+		}
+	}
+
+	/**
+	 * Get requests served from a prefetched page.
+	 *
+	 * @return hit count
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Get requests that queried searchd themselves.
+	 *
+	 * @return miss count
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Get prefetches skipped because the load budget was exhausted.
+	 *
+	 * @return skipped count
+	 */
+	public synchronized long getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Get prefetch queries in flight.
+	 *
+	 * @return running prefetches
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Start prefetching a page into the session slot, within the budget.
+	 *
+	 * @param session
+	 *            session key
+	 * @param searchKey
+	 *            identity of the search
+	 * @param source
+	 *            runs the search
+	 * @param offset
+	 *            offset of the page
+	 * @param limit
+	 *            size of the page
+	 */
+	private void prefetch(final String session, final String searchKey, final SphinxPageSource source,
+			final int offset, final int limit) {
+		final SphinxCancellationToken token = new SphinxCancellationToken();
+		final Prefetch prefetch = new Prefetch(source, offset, limit, token);
+		FutureTask<SphinxResult> task = new FutureTask<SphinxResult>(prefetch) {
+			protected void done() {
+				if (isCancelled()) {
+					prefetch.cancelled();
+				}
+			}
+		};
+		Slot previous;
+		synchronized (this) {
+			if (inFlight >= budget || prefetcher.isShutdown()) {
+				skipped++;
+				return;
+			}
+			inFlight++;
+			expire(System.currentTimeMillis());
+			previous = slots.remove(session);
+			slots.put(session, new Slot(searchKey, offset, limit, task, token));
+			prefetcher.execute(task);
+		}
+		if (previous != null) {
+			previous.cancel();
+		}
+	}
+
+	/**
+	 * Drop expired slots; slots are kept in creation order, so the oldest
+	 * come first.
+	 *
+	 * @param now
+	 *            current time
+	 */
+	private void expire(final long now) {
+		for (Iterator<Slot> it = slots.values().iterator(); it.hasNext();) {
+			Slot slot = it.next();
+			if (slot.expires > now) {
+				break;
+			}
+			it.remove();
+			slot.cancel();
+		}
+	}
+
+	/**
+	 * Prefetch query, counted in flight from its submission until it returns
+	 * or is cancelled before it started. Cancelling a running query does not
+	 * stop it at once, so only its own return frees the budget.
+	 */
+	private final class Prefetch implements Callable<SphinxResult> {
+		private final SphinxPageSource source;
+		private final int offset;
+		private final int limit;
+		private final SphinxCancellationToken token;
+		private boolean started;
+
+		/**
+		 * Create prefetch query.
+		 *
+		 * @param pageSource
+		 *            runs the search
+		 * @param pageOffset
+		 *            offset of the page
+		 * @param pageLimit
+		 *            size of the page
+		 * @param cancellation
+		 *            token of the prefetch
+		 */
+		private Prefetch(final SphinxPageSource pageSource, final int pageOffset, final int pageLimit,
+				final SphinxCancellationToken cancellation) {
+			this.source = pageSource;
+			this.offset = pageOffset;
+			this.limit = pageLimit;
+			this.token = cancellation;
+		}
+
+		/**
+		 * Run the query unless cancelled before it started.
+		 *
+		 * @return the page, null if cancelled
+		 * @throws SphinxException
+		 *             if the query failed
+		 */
+		public SphinxResult call() throws SphinxException {
+			synchronized (SphinxPagePrefetcher.this) {
+				if (started) {
+					return null;
+				}
+				started = true;
+			}
+			try {
+				SphinxClient client = factory.newClient();
+				client.setCancellationToken(token);
+				return source.fetch(client, offset, limit);
+			} finally {
+				synchronized (SphinxPagePrefetcher.this) {
+					inFlight--;
+				}
+			}
+		}
+
+		/**
+		 * Free the budget of a prefetch cancelled before it started; a
+		 * running one frees it when it returns.
+		 */
+		private void cancelled() {
+			synchronized (SphinxPagePrefetcher.this) {
+				if (!started) {
+					started = true;
+					inFlight--;
+				}
+			}
+		}
+	}
+
+	/** Prefetched page of a session. */
+	private final class Slot {
+		private final String key;
+		private final int offset;
+		private final int limit;
+		private final FutureTask<SphinxResult> task;
+		private final SphinxCancellationToken token;
+		private final long expires = System.currentTimeMillis() + ttlMillis;
+
+		/**
+		 * Create slot.
+		 *
+		 * @param searchKey
+		 *            identity of the search
+		 * @param pageOffset
+		 *            offset of the page
+		 * @param pageLimit
+		 *            size of the page
+		 * @param pageTask
+		 *            the prefetch
+		 * @param cancellation
+		 *            token of the prefetch
+		 */
+		private Slot(final String searchKey, final int pageOffset, final int pageLimit,
+				final FutureTask<SphinxResult> pageTask, final SphinxCancellationToken cancellation) {
+			this.key = searchKey;
+			this.offset = pageOffset;
+			this.limit = pageLimit;
+			this.task = pageTask;
+			this.token = cancellation;
+		}
+
+		/**
+		 * Get the prefetched page if it is the requested one, waiting for a
+		 * running prefetch; cancel it otherwise.
+		 *
+		 * @param searchKey
+		 *            requested search
+		 * @param pageOffset
+		 *            requested offset
+		 * @param pageLimit
+		 *            requested size
+		 * @return the page, null if not usable
+		 */
+		private SphinxResult take(final String searchKey, final int pageOffset, final int pageLimit) {
+			if (!key.equals(searchKey) || offset != pageOffset || limit != pageLimit
+					|| expires <= System.currentTimeMillis()) {
+				cancel();
+				return null;
+			}
+			try {
+				return task.get();
+			} catch (ExecutionException e) {
+				return null;
+			} catch (CancellationException e) {
+				return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel();
+				return null;
+			}
+		}
+
+		/**
+		 * Cancel the prefetch.
+		 */
+		private void cancel() {
+			token.cancel();
+			task.cancel(false);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package org.sphx.api;
+
+/** Runs one page of a search for {@link SphinxPagePrefetcher}. */
+public interface SphinxPageSource {
+
+	/**
+	 * Configure a fresh client for the search and run it for the given page.
+	 * Called from the request thread for pages not prefetched, and from a
+	 * background thread for the speculative next page.
+	 *
+	 * @param client
+	 *            new client from the prefetcher's factory
+	 * @param offset
+	 *            offset of the page, to pass to
+	 *            {@link SphinxClient#setLimits(int, int)}
+	 * @param limit
+	 *            size of the page
+	 * @return the page
+	 * @throws SphinxException
+	 *             if the query failed
+	 */
+	SphinxResult fetch(SphinxClient client, int offset, int limit) throws SphinxException;
+}
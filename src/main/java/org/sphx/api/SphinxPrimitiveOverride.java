@@ -0,0 +1,323 @@
+package org.sphx.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sphx.util.LongIntHashMap;
+
+/**
+ * Attribute override keeping document IDs and values in primitive arrays, for
+ * override sets of many thousands of documents.
+ *
+ * The override block of the search request is encoded once and reused by
+ * every query until the override changes, so a per-user override set shared
+ * by several queries costs no more than copying its bytes. Attribute name
+ * and type are fixed by the constructor.
+ *
+ * <pre>
+ * SphinxPrimitiveOverride scores = new SphinxPrimitiveOverride(&quot;score&quot;, SphinxClient.SPH_ATTR_FLOAT, ids.length);
+ * for (int i = 0; i &lt; ids.length; i++) {
+ * 	scores.put(ids[i], userScores[i]);
+ * }
+ * client.setOverride(scores);
+ * </pre>
+ */
+public class SphinxPrimitiveOverride extends SphinxAttributeOverride {
+
+	private static final int DEFAULT_SIZE = 16;
+	private static final int DOCID_SIZE = 8;
+	private static final int INT_SIZE = 4;
+
+	private final String attrName;
+	private final int attrType;
+	private final LongIntHashMap rows;
+	private long[] docIds;
+	private long[] values;
+	private int size;
+	private boolean sorted;
+	private byte[] block;
+
+	/**
+	 * Creates empty override.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @param type
+	 *            one of SPH_ATTR_INTEGER, SPH_ATTR_TIMESTAMP, SPH_ATTR_BOOL,
+	 *            SPH_ATTR_FLOAT or SPH_ATTR_BIGINT
+	 * @throws SphinxException
+	 *             if parameters are invalid
+	 */
+	public SphinxPrimitiveOverride(final String name, final int type) throws SphinxException {
+		this(name, type, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Creates empty override sized for expected amount of documents.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @param type
+	 *            one of SPH_ATTR_INTEGER, SPH_ATTR_TIMESTAMP, SPH_ATTR_BOOL,
+	 *            SPH_ATTR_FLOAT or SPH_ATTR_BIGINT
+	 * @param expected
+	 *            expected amount of documents
+	 * @throws SphinxException
+	 *             if parameters are invalid
+	 */
+	public SphinxPrimitiveOverride(final String name, final int type, final int expected)
+			throws SphinxException {
+		check(name != null && name.length() > 0, "attrName must not be empty");
+		check(type == SphinxClient.SPH_ATTR_INTEGER || type == SphinxClient.SPH_ATTR_TIMESTAMP
+				|| type == SphinxClient.SPH_ATTR_BOOL || type == SphinxClient.SPH_ATTR_FLOAT
+				|| type == SphinxClient.SPH_ATTR_BIGINT,
+				"unsupported attrType (must be one of INTEGER, TIMESTAMP, BOOL, FLOAT, or BIGINT)");
+		check(expected >= 0, "expected size must not be negative");
+		this.attrName = name;
+		this.attrType = type;
+		int capacity = Math.max(expected, 1);
+		rows = new LongIntHashMap(capacity);
+		docIds = new long[capacity];
+		values = new long[capacity];
+	}
+
+	/**
+	 * Set value of an integer, timestamp, bool or bigint attribute. A value
+	 * already set for the document is replaced.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @param value
+	 *            the value
+	 * @throws SphinxException
+	 *             if the attribute is a float
+	 */
+	public void put(final long docId, final int value) throws SphinxException {
+		check(getAttrType() != SphinxClient.SPH_ATTR_FLOAT, "attribute '" + getAttrName() + "' is a float");
+		store(docId, value);
+	}
+
+	/**
+	 * Set value of a float attribute. A value already set for the document is
+	 * replaced.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @param value
+	 *            the value
+	 * @throws SphinxException
+	 *             if the attribute is not a float
+	 */
+	public void put(final long docId, final float value) throws SphinxException {
+		check(getAttrType() == SphinxClient.SPH_ATTR_FLOAT, "attribute '" + getAttrName() + "' is not a float");
+		store(docId, Float.floatToIntBits(value));
+	}
+
+	/**
+	 * Set value of a bigint attribute. A value already set for the document is
+	 * replaced.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @param value
+	 *            the value
+	 * @throws SphinxException
+	 *             if the attribute is not a bigint
+	 */
+	public void put(final long docId, final long value) throws SphinxException {
+		check(getAttrType() == SphinxClient.SPH_ATTR_BIGINT, "attribute '" + getAttrName() + "' is not a bigint");
+		store(docId, value);
+	}
+
+	/**
+	 * Send documents sorted by ID instead of in insertion order, so searchd
+	 * reads them sequentially. Sorting happens once, when the block is
+	 * encoded.
+	 *
+	 * @param sortByDocId
+	 *            true to sort
+	 */
+	public void setSorted(final boolean sortByDocId) {
+		if (sorted != sortByDocId) {
+			sorted = sortByDocId;
+			block = null;
+		}
+	}
+
+	/**
+	 * Get amount of documents.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get attribute name.
+	 *
+	 * @return the attribute name
+	 */
+	public String getAttrName() {
+		return attrName;
+	}
+
+	/**
+	 * Get attribute type, fixed by the constructor.
+	 *
+	 * @return the attribute type
+	 */
+	public int getAttrType() {
+		return attrType;
+	}
+
+	/**
+	 * Get copy of the values as map of document IDs to boxed values.
+	 *
+	 * @return the values
+	 */
+	public Map<Long, Number> getValues() {
+		Map<Long, Number> map = new LinkedHashMap<Long, Number>();
+		for (int i = 0; i < size; i++) {
+			map.put(Long.valueOf(docIds[i]), box(values[i]));
+		}
+		return map;
+	}
+
+	/**
+	 * Replace values with the entries of a map of document IDs to numbers.
+	 *
+	 * @param map
+	 *            values
+	 */
+	public void setValues(final Map<Long, ? extends Number> map) {
+		rows.clear();
+		size = 0;
+		block = null;
+		for (Map.Entry<Long, ? extends Number> entry : map.entrySet()) {
+			long docId = entry.getKey().longValue();
+			Number value = entry.getValue();
+			if (getAttrType() == SphinxClient.SPH_ATTR_FLOAT) {
+				store(docId, Float.floatToIntBits(value.floatValue()));
+			} else if (getAttrType() == SphinxClient.SPH_ATTR_BIGINT) {
+				store(docId, value.longValue());
+			} else {
+				store(docId, value.intValue());
+			}
+		}
+	}
+
+	/**
+	 * Write the cached override block, encoding it first if changed.
+	 *
+	 * @param out
+	 *            request stream
+	 * @throws IOException
+	 *             if write failed
+	 */
+	void encode(final DataOutputStream out) throws IOException {
+		if (block == null) {
+			block = encodeBlock();
+		}
+		out.write(block);
+	}
+
+	/**
+	 * Encode override block.
+	 *
+	 * @return the block
+	 * @throws IOException
+	 *             if write failed
+	 */
+	private byte[] encodeBlock() throws IOException {
+		boolean wide = getAttrType() == SphinxClient.SPH_ATTR_BIGINT;
+		int entrySize = DOCID_SIZE + INT_SIZE;
+		if (wide) {
+			entrySize += INT_SIZE;
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(INT_SIZE * 3 + getAttrName().length() + size * entrySize);
+		DataOutputStream out = new DataOutputStream(buf);
+		SphinxClient.writeNetUTF8(out, getAttrName());
+		out.writeInt(getAttrType());
+		out.writeInt(size);
+		long[] order = docIds;
+		if (sorted) {
+			order = Arrays.copyOf(docIds, size);
+			Arrays.sort(order);
+		}
+		for (int i = 0; i < size; i++) {
+			long docId = order[i];
+			long value = values[rows.get(docId, i)];
+			out.writeLong(docId);
+			if (wide) {
+				out.writeLong(value);
+			} else {
+				out.writeInt((int) value);
+			}
+		}
+		out.flush();
+		return buf.toByteArray();
+	}
+
+	/**
+	 * Store raw value.
+	 *
+	 * @param docId
+	 *            document ID
+	 * @param value
+	 *            the value, float as its bits
+	 */
+	private void store(final long docId, final long value) {
+		block = null;
+		int row = rows.get(docId, -1);
+		if (row >= 0) {
+			values[row] = value;
+			return;
+		}
+		if (size == docIds.length) {
+			docIds = Arrays.copyOf(docIds, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		rows.put(docId, size);
+		docIds[size] = docId;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Box raw value.
+	 *
+	 * @param value
+	 *            the value
+	 * @return boxed value of the attribute type
+	 */
+	private Number box(final long value) {
+		if (getAttrType() == SphinxClient.SPH_ATTR_FLOAT) {
+			return Float.valueOf(Float.intBitsToFloat((int) value));
+		}
+		if (getAttrType() == SphinxClient.SPH_ATTR_BIGINT) {
+			return Long.valueOf(value);
+		}
+		return Integer.valueOf((int) value);
+	}
+
+	/**
+	 * Throw exception if condition is false.
+	 *
+	 * @param condition
+	 *            the condition
+	 * @param message
+	 *            the exception message
+	 * @throws SphinxException
+	 *             if condition is false
+	 */
+	private static void check(final boolean condition, final String message) throws SphinxException {
+		if (!condition) {
+			throw new SphinxException(message);
+		}
+	}
+}
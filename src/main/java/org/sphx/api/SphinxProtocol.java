@@ -0,0 +1,426 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wire layout of the search and update commands of one searchd version, see
+ * {@link SphinxClient#setProtocol(SphinxProtocol)}.
+ *
+ * Queries are encoded in the layout of their protocol when added, so each
+ * client of a mixed-version fleet talks the newest protocol its searchd
+ * accepts: 64-bit filters, overrides, select lists, multi-value updates and
+ * the status command where supported, while older daemons get the same
+ * requests transcoded to their layout. Requests a daemon cannot serve fail
+ * on the client with a {@link SphinxException} instead of a garbled reply.
+ *
+ * <pre>
+ * SphinxClientFactory factory = new SphinxClientFactory(&quot;localhost&quot;, 3312);
+ * SphinxProtocol protocol = SphinxProtocol.probe(factory, &quot;test1&quot;);
+ * client.setProtocol(protocol);
+ * </pre>
+ *
+ * Protocols are immutable and may be shared by all clients. Subclasses may
+ * support other versions by overriding the encoding hooks.
+ */
+public class SphinxProtocol {
+
+	/** searchd 0.9.8: 32-bit filters, no overrides, select list or status. */
+	public static final SphinxProtocol V0_9_8 = new Legacy();
+
+	/** searchd 0.9.9. */
+	public static final SphinxProtocol V0_9_9 = new SphinxProtocol("0.9.9", SphinxClient.VER_COMMAND_SEARCH,
+			SphinxClient.VER_COMMAND_UPDATE);
+
+	/** searchd 2.0: adds string attributes. */
+	public static final SphinxProtocol V2_0 = new SphinxProtocol("2.0", 0x118, SphinxClient.VER_COMMAND_UPDATE) {
+		public boolean supportsStringAttributes() {
+			return true;
+		}
+
+		void writeSearchHeader(final DataOutputStream out, final int queryCount) throws IOException {
+			/* master/agent flag, always 0 for clients */
+			out.writeInt(0);
+			out.writeInt(queryCount);
+		}
+	};
+
+	private static final SphinxProtocol[] KNOWN = { V2_0, V0_9_9, V0_9_8 };
+	private static final String VERSION_TOO_HIGH = "client version is higher than daemon version";
+
+	private final String name;
+	private final int searchVersion;
+	private final int updateVersion;
+
+	/**
+	 * Creates protocol.
+	 *
+	 * @param protocolName
+	 *            the version name
+	 * @param searchCommandVersion
+	 *            version of the search command
+	 * @param updateCommandVersion
+	 *            version of the update command
+	 */
+	protected SphinxProtocol(final String protocolName, final int searchCommandVersion,
+			final int updateCommandVersion) {
+		this.name = protocolName;
+		this.searchVersion = searchCommandVersion;
+		this.updateVersion = updateCommandVersion;
+	}
+
+	/**
+	 * Find the newest known protocol a searchd accepts by running an empty
+	 * query with each one, newest first.
+	 *
+	 * @param factory
+	 *            creates clients of the searchd
+	 * @param index
+	 *            an index of the searchd
+	 * @return the protocol
+	 * @throws SphinxException
+	 *             if the searchd failed or accepts none of the protocols
+	 */
+	public static SphinxProtocol probe(final SphinxClientFactory factory, final String index)
+			throws SphinxException {
+		SphinxException rejected = null;
+		for (int i = 0; i < KNOWN.length; i++) {
+			SphinxClient client = factory.newClient();
+			client.setProtocol(KNOWN[i]);
+			client.setLimits(0, 1);
+			client.addQuery("", index, "");
+			try {
+				client.runQueries();
+				return KNOWN[i];
+			} catch (SphinxException e) {
+				if (e.getMessage() == null || e.getMessage().indexOf(VERSION_TOO_HIGH) < 0) {
+					throw e;
+				}
+				rejected = e;
+			}
+		}
+		throw rejected;
+	}
+
+	/**
+	 * Get version name.
+	 *
+	 * @return the name, e.g. &quot;0.9.9&quot;
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get version of the search command.
+	 *
+	 * @return the version
+	 */
+	public int getSearchVersion() {
+		return searchVersion;
+	}
+
+	/**
+	 * Get version of the update command.
+	 *
+	 * @return the version
+	 */
+	public int getUpdateVersion() {
+		return updateVersion;
+	}
+
+	/**
+	 * Check whether filter values and ranges are 64-bit; if not, they are
+	 * transcoded to 32 bits.
+	 *
+	 * @return true if supported
+	 */
+	public boolean supportsBigintFilters() {
+		return true;
+	}
+
+	/**
+	 * Check whether queries carry attribute overrides and a select list.
+	 *
+	 * @return true if supported
+	 */
+	public boolean supportsOverrides() {
+		return true;
+	}
+
+	/**
+	 * Check whether searchd answers {@link SphinxClient#status()}.
+	 *
+	 * @return true if supported
+	 */
+	public boolean supportsStatus() {
+		return true;
+	}
+
+	/**
+	 * Check whether multi-valued attributes can be updated.
+	 *
+	 * @return true if supported
+	 */
+	public boolean supportsMultiValueUpdates() {
+		return true;
+	}
+
+	/**
+	 * Check whether results may contain string attributes.
+	 *
+	 * @return true if supported
+	 */
+	public boolean supportsStringAttributes() {
+		return false;
+	}
+
+	/**
+	 * Write header of the search request.
+	 *
+	 * @param out
+	 *            request stream
+	 * @param queryCount
+	 *            amount of queries
+	 * @throws IOException
+	 *             if write failed
+	 */
+	void writeSearchHeader(final DataOutputStream out, final int queryCount) throws IOException {
+		out.writeInt(queryCount);
+	}
+
+	/**
+	 * Write filters of a query.
+	 *
+	 * @param out
+	 *            query stream
+	 * @param count
+	 *            amount of filters
+	 * @param rawFilters
+	 *            filters set on the client, in 64-bit layout
+	 * @param sets
+	 *            filter sets, in 64-bit layout
+	 * @throws IOException
+	 *             if write failed
+	 * @throws SphinxException
+	 *             if the filters cannot be encoded in this protocol
+	 */
+	void writeFilters(final DataOutputStream out, final int count, final byte[] rawFilters,
+			final List<SphinxFilterSet> sets) throws IOException, SphinxException {
+		out.writeInt(count);
+		out.write(rawFilters);
+		for (SphinxFilterSet set : sets) {
+			set.encode(out);
+		}
+	}
+
+	/**
+	 * Write attribute overrides and select list ending a query.
+	 *
+	 * @param out
+	 *            query stream
+	 * @param overrides
+	 *            the overrides
+	 * @param selectList
+	 *            the select list
+	 * @throws IOException
+	 *             if write failed
+	 * @throws SphinxException
+	 *             if they cannot be encoded in this protocol
+	 */
+	void writeQueryTail(final DataOutputStream out, final Collection<SphinxAttributeOverride> overrides, final String selectList)
+			throws IOException, SphinxException {
+		out.writeInt(overrides.size());
+		for (SphinxAttributeOverride override : overrides) {
+			override.encode(out);
+		}
+		SphinxClient.writeNetUTF8(out, selectList);
+	}
+
+	/**
+	 * Convert an update request from the layout with multi-value flags.
+	 *
+	 * @param request
+	 *            the update request
+	 * @return request in the layout of this protocol
+	 * @throws SphinxException
+	 *             if it cannot be encoded in this protocol
+	 */
+	ByteArrayOutputStream encodeUpdate(final ByteArrayOutputStream request) throws SphinxException {
+		return request;
+	}
+
+	/**
+	 * Get description.
+	 *
+	 * @return the version name
+	 */
+	public String toString() {
+		return name;
+	}
+
+	/** Protocol of searchd 0.9.8, transcoding requests of the 0.9.9 layout. */
+	private static final class Legacy extends SphinxProtocol {
+
+		private static final int SEARCH_VERSION = 0x113;
+		private static final int UPDATE_VERSION = 0x101;
+		private static final long MAX_DWORD = 0xFFFFFFFFL;
+
+		/** Creates protocol. */
+		Legacy() {
+			super("0.9.8", SEARCH_VERSION, UPDATE_VERSION);
+		}
+
+		public boolean supportsBigintFilters() {
+			return false;
+		}
+
+		public boolean supportsOverrides() {
+			return false;
+		}
+
+		public boolean supportsStatus() {
+			return false;
+		}
+
+		public boolean supportsMultiValueUpdates() {
+			return false;
+		}
+
+		/**
+		 * Write filters with 32-bit values; ranges are clamped to the
+		 * unsigned 32-bit attributes of 0.9.8.
+		 *
+		 * @param out
+		 *            query stream
+		 * @param count
+		 *            amount of filters
+		 * @param rawFilters
+		 *            filters set on the client, in 64-bit layout
+		 * @param sets
+		 *            filter sets, in 64-bit layout
+		 * @throws IOException
+		 *             if write failed
+		 * @throws SphinxException
+		 *             if a value does not fit in 32 bits
+		 */
+		void writeFilters(final DataOutputStream out, final int count, final byte[] rawFilters,
+				final List<SphinxFilterSet> sets) throws IOException, SphinxException {
+			ByteArrayOutputStream wide = new ByteArrayOutputStream();
+			DataOutputStream wideOut = new DataOutputStream(wide);
+			wideOut.write(rawFilters);
+			for (SphinxFilterSet set : sets) {
+				set.encode(wideOut);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(wide.toByteArray()));
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				String attribute = copyString(in, out);
+				int type = in.readInt();
+				out.writeInt(type);
+				if (type == SphinxClient.SPH_FILTER_VALUES) {
+					int values = in.readInt();
+					out.writeInt(values);
+					for (int j = 0; j < values; j++) {
+						long value = in.readLong();
+						if (value < 0 || value > MAX_DWORD) {
+							throw new SphinxException("filter value " + value + " of '" + attribute
+									+ "' does not fit 32-bit attributes of searchd 0.9.8");
+						}
+						out.writeInt((int) value);
+					}
+				} else if (type == SphinxClient.SPH_FILTER_RANGE) {
+					long min = in.readLong();
+					long max = in.readLong();
+					if (min > MAX_DWORD || max < 0) {
+						throw new SphinxException("filter range of '" + attribute
+								+ "' does not fit 32-bit attributes of searchd 0.9.8");
+					}
+					out.writeInt((int) Math.max(min, 0));
+					out.writeInt((int) Math.min(max, MAX_DWORD));
+				} else {
+					out.writeFloat(in.readFloat());
+					out.writeFloat(in.readFloat());
+				}
+				out.writeInt(in.readInt());
+			}
+		}
+
+		/**
+		 * End the query without overrides and select list, which 0.9.8 does
+		 * not know.
+		 *
+		 * @param out
+		 *            query stream
+		 * @param overrides
+		 *            the overrides, must be empty
+		 * @param selectList
+		 *            the select list, must be &quot;*&quot;
+		 * @throws SphinxException
+		 *             if overrides or a select list are set
+		 */
+		void writeQueryTail(final DataOutputStream out, final Collection<SphinxAttributeOverride> overrides, final String selectList)
+				throws SphinxException {
+			if (!overrides.isEmpty() || !"*".equals(selectList)) {
+				throw new SphinxException("overrides and select lists need searchd 0.9.9 or newer");
+			}
+		}
+
+		/**
+		 * Drop the multi-value flags of the attributes.
+		 *
+		 * @param request
+		 *            the update request
+		 * @return request without the flags
+		 * @throws SphinxException
+		 *             if a multi-valued attribute is updated
+		 */
+		ByteArrayOutputStream encodeUpdate(final ByteArrayOutputStream request) throws SphinxException {
+			byte[] bytes = request.toByteArray();
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			ByteArrayOutputStream reqBuf = new ByteArrayOutputStream(bytes.length);
+			DataOutputStream out = new DataOutputStream(reqBuf);
+			try {
+				copyString(in, out);
+				int attrs = in.readInt();
+				out.writeInt(attrs);
+				for (int i = 0; i < attrs; i++) {
+					String attribute = copyString(in, out);
+					if (in.readInt() != 0) {
+						throw new SphinxException("multi-valued attribute '" + attribute
+								+ "' can only be updated by searchd 0.9.9 or newer");
+					}
+				}
+				byte[] rows = new byte[in.available()];
+				in.readFully(rows);
+				out.write(rows);
+				out.flush();
+			} catch (IOException e) {
+				throw new SphinxException("internal error: failed to build request: " + e);
+			}
+			return reqBuf;
+		}
+
+		/**
+		 * Copy a string of a request.
+		 *
+		 * @param in
+		 *            request in the source layout
+		 * @param out
+		 *            request in the target layout
+		 * @return the string
+		 * @throws IOException
+		 *             if the request is incomplete
+		 */
+		private static String copyString(final DataInputStream in, final DataOutputStream out) throws IOException {
+			String value = SphinxClient.readNetUTF8(in);
+			SphinxClient.writeNetUTF8(out, value);
+			return value;
+		}
+	}
+}
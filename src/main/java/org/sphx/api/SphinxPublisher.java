@@ -0,0 +1,260 @@
+package org.sphx.api;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Publishes all matches of a query in document ID order to a
+ * {@link SphinxSubscriber}, fetching pages only while the subscriber has
+ * outstanding demand. At most one page is held in memory, whatever the size
+ * of the result.
+ *
+ * <pre>
+ * new SphinxPublisher(client, &quot;phone&quot;, &quot;products&quot;, 500).subscribe(new SphinxSubscriber() {
+ * 	private SphinxSubscription subscription;
+ *
+ * 	public void onSubscribe(SphinxSubscription s) {
+ * 		subscription = s;
+ * 		s.request(100);
+ * 	}
+ *
+ * 	public void onNext(SphinxMatch match) {
+ * 		if (write(match)) {
+ * 			subscription.request(1);
+ * 		}
+ * 	}
+ * 	...
+ * });
+ * </pre>
+ *
+ * Pages are walked like {@link SphinxCursor} does, without prefetching; the
+ * publisher owns the client the same way. Signals are delivered from a
+ * dedicated daemon thread. A subscriber throwing from {@link
+ * SphinxSubscriber#onNext(SphinxMatch)} cancels its subscription.
+ */
+public class SphinxPublisher {
+
+	private final SphinxClient client;
+	private final String query;
+	private final String index;
+	private final int pageSize;
+	private final long minId;
+	private final long maxId;
+	private boolean subscribed;
+
+	/**
+	 * Creates publisher of all matches.
+	 *
+	 * @param sphinxClient
+	 *            the client
+	 * @param fullTextQuery
+	 *            the query
+	 * @param indexName
+	 *            the index name
+	 * @param size
+	 *            matches per page, at most max_matches of searchd
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxPublisher(final SphinxClient sphinxClient, final String fullTextQuery, final String indexName,
+			final int size) throws SphinxException {
+		this(sphinxClient, fullTextQuery, indexName, size, 0, -1L);
+	}
+
+	/**
+	 * Creates publisher of the matches in a document ID range.
+	 *
+	 * @param sphinxClient
+	 *            the client
+	 * @param fullTextQuery
+	 *            the query
+	 * @param indexName
+	 *            the index name
+	 * @param size
+	 *            matches per page, at most max_matches of searchd
+	 * @param minDocId
+	 *            first document ID, inclusive
+	 * @param maxDocId
+	 *            last document ID, inclusive
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxPublisher(final SphinxClient sphinxClient, final String fullTextQuery, final String indexName,
+			final int size, final long minDocId, final long maxDocId) throws SphinxException {
+		if (sphinxClient == null || size < 1) {
+			throw new SphinxException("client is required and page size must be positive");
+		}
+		this.client = sphinxClient;
+		this.query = fullTextQuery;
+		this.index = indexName;
+		this.pageSize = size;
+		this.minId = minDocId;
+		this.maxId = maxDocId;
+	}
+
+	/**
+	 * Start publishing to a subscriber. A publisher serves a single
+	 * subscription, as it owns the client.
+	 *
+	 * @param subscriber
+	 *            the subscriber
+	 * @throws SphinxException
+	 *             if subscriber is null or the publisher was already
+	 *             subscribed to
+	 */
+	public synchronized void subscribe(final SphinxSubscriber subscriber) throws SphinxException {
+		if (subscriber == null) {
+			throw new SphinxException("subscriber must not be null");
+		}
+		if (subscribed) {
+			throw new SphinxException("publisher supports a single subscription");
+		}
+		SphinxCursor cursor = new SphinxCursor(client, query, index, pageSize, minId, maxId);
+		cursor.setPrefetch(false);
+		subscribed = true;
+		new Delivery(subscriber, cursor).start();
+	}
+
+	/** Subscription delivering the pages of a cursor from its own thread. */
+	private static final class Delivery implements SphinxSubscription, Runnable {
+		private final SphinxSubscriber subscriber;
+		private final SphinxCursor cursor;
+		private final ExecutorService deliverer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable task) {
+				Thread thread = new Thread(task, "sphinx-publisher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		private List<SphinxMatch> page = Collections.emptyList();
+		private int position;
+		private long demand;
+		private boolean invalid;
+		private boolean draining;
+		private boolean cancelled;
+
+		/**
+		 * Create subscription.
+		 *
+		 * @param target
+		 *            the subscriber
+		 * @param pages
+		 *            the cursor
+		 */
+		private Delivery(final SphinxSubscriber target, final SphinxCursor pages) {
+			this.subscriber = target;
+			this.cursor = pages;
+		}
+
+		/**
+		 * Signal the subscription.
+		 */
+		private void start() {
+			deliverer.execute(new Runnable() {
+				public void run() {
+					try {
+						subscriber.onSubscribe(Delivery.this);
+					} catch (RuntimeException e) {
+						cancel();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Add demand.
+		 *
+		 * @param n
+		 *            additional matches
+		 */
+		public synchronized void request(final long n) {
+			if (n <= 0) {
+				invalid = true;
+			} else {
+				demand += n;
+				if (demand < 0) {
+					demand = Long.MAX_VALUE;
+				}
+			}
+			drain();
+		}
+
+		/**
+		 * Cancel the subscription.
+		 */
+		public synchronized void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		/**
+		 * Schedule delivery unless already running or finished.
+		 */
+		private synchronized void drain() {
+			if (!draining) {
+				draining = true;
+				deliverer.execute(this);
+			}
+		}
+
+		/**
+		 * Deliver matches while there is demand, fetching pages as needed.
+		 */
+		public void run() {
+			SphinxException failure = null;
+			boolean completed = false;
+			try {
+				while (true) {
+					synchronized (this) {
+						if (cancelled) {
+							break;
+						}
+						if (invalid) {
+							failure = new SphinxException("requested amount must be positive");
+							break;
+						}
+						if (demand == 0) {
+							draining = false;
+							return;
+						}
+					}
+					if (position == page.size()) {
+						SphinxResult next = cursor.nextPage();
+						if (next == null) {
+							completed = true;
+							break;
+						}
+						page = next.getMatches();
+						position = 0;
+					} else {
+						synchronized (this) {
+							if (demand != Long.MAX_VALUE) {
+								demand--;
+							}
+						}
+						subscriber.onNext(page.get(position++));
+					}
+				}
+			} catch (SphinxException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				/* the subscriber failed, which cancels the subscription */
+				cancel();
+			}
+			synchronized (this) {
+				cancelled = true;
+			}
+			page = Collections.emptyList();
+			cursor.close();
+			deliverer.shutdown();
+			if (failure != null) {
+				subscriber.onError(failure);
+			} else if (completed) {
+				subscriber.onComplete();
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package org.sphx.api;
+
+/** Exception thrown without contacting searchd when the client sheds load:
+ *  a concurrency limit is reached and the request could not be queued. */
+public class SphinxRejectedException extends SphinxException {
+	/**
+	 * serial Version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Constructor from error message string.
+	 * @param message message about error.
+	 */
+	public SphinxRejectedException(final String message) {
+		super(message);
+	}
+}
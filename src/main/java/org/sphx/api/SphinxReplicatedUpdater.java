@@ -0,0 +1,434 @@
+package org.sphx.api;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies attribute updates to every replica of an index.
+ *
+ * Each update gets a sequence number and is sent to all replicas in parallel;
+ * {@link #update(String, SphinxAttributeUpdate)} returns once a quorum of
+ * replicas acknowledged it. Every replica applies updates strictly in
+ * sequence order from its own queue, so a replica failing with a temporary
+ * error keeps its pending updates and retries them with the backoff of the
+ * retry policy, while the other replicas go on. The last sequence
+ * acknowledged by each replica and the updates it rejected are tracked, so
+ * reads needing their own writes can be routed with {@link #replicaFor(long)}.
+ * A replica that fell out of sync is brought back with
+ * {@link #resync(int)} after a reindex.
+ *
+ * <pre>
+ * long seq = updater.update(&quot;products&quot;, update);
+ * SphinxClient client = updater.replicaFor(seq).newClient();
+ * </pre>
+ */
+public class SphinxReplicatedUpdater {
+
+	private static final int DEFAULT_MAX_QUEUE = 10000;
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final int quorum;
+	private SphinxRetryPolicy retryPolicy = new SphinxRetryPolicy();
+	private long ackTimeoutMillis = SphinxClient.SPH_CLIENT_TIMEOUT_MILLISEC;
+	private int maxQueue = DEFAULT_MAX_QUEUE;
+	private long sequence;
+	private int nextRead;
+	private boolean closed;
+
+	/**
+	 * Creates updater.
+	 *
+	 * @param replicaFactories
+	 *            one client factory per replica
+	 * @param ackQuorum
+	 *            amount of replicas acknowledging an update before it is
+	 *            reported done
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxReplicatedUpdater(final SphinxClientFactory[] replicaFactories, final int ackQuorum)
+			throws SphinxException {
+		if (replicaFactories == null || ackQuorum < 1 || ackQuorum > replicaFactories.length) {
+			throw new SphinxException("quorum must be in 1..replicas range");
+		}
+		this.quorum = ackQuorum;
+		for (int i = 0; i < replicaFactories.length; i++) {
+			replicas.add(new Replica(replicaFactories[i]));
+		}
+	}
+
+	/**
+	 * Set policy deciding which failures are retried and the delays between
+	 * retries. The amount of attempts is not limited: failed updates stay
+	 * queued until the replica accepts them.
+	 *
+	 * @param policy
+	 *            the policy
+	 */
+	public synchronized void setRetryPolicy(final SphinxRetryPolicy policy) {
+		retryPolicy = policy;
+	}
+
+	/**
+	 * Set limits.
+	 *
+	 * @param timeoutMillis
+	 *            maximum wait for the quorum
+	 * @param queueSize
+	 *            maximum updates queued or rejected per replica; a replica
+	 *            exceeding it is marked out of sync and needs a reindex
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public synchronized void setLimits(final long timeoutMillis, final int queueSize) throws SphinxException {
+		if (timeoutMillis < 1 || queueSize < 1) {
+			throw new SphinxException("timeout and queue size must be positive");
+		}
+		ackTimeoutMillis = timeoutMillis;
+		maxQueue = queueSize;
+	}
+
+	/**
+	 * Update attributes on all replicas and wait for the quorum.
+	 *
+	 * @param index
+	 *            index name(s) to update
+	 * @param update
+	 *            documents and their new attribute values
+	 * @return sequence number of the update
+	 * @throws SphinxException
+	 *             on invalid parameters, if searchd rejected the update or
+	 *             the quorum was not reached; in the latter case failed
+	 *             replicas still retry the update
+	 */
+	public long update(final String index, final SphinxAttributeUpdate update) throws SphinxException {
+		if (index == null || index.length() == 0 || update == null || update.size() == 0) {
+			throw new SphinxException("index name and update entries must be provided");
+		}
+		Update entry;
+		List<Replica> idle = new ArrayList<Replica>();
+		synchronized (this) {
+			if (closed) {
+				throw new SphinxException("replicated updater is closed");
+			}
+			entry = new Update(++sequence, update.encode(index));
+			for (Replica replica : replicas) {
+				replica.enqueue(entry);
+				/* failing replicas pick the update up with their scheduled retry */
+				if (!replica.failing) {
+					idle.add(replica);
+				}
+			}
+		}
+		for (Replica replica : idle) {
+			replica.executor.execute(replica);
+		}
+		synchronized (this) {
+			long until = System.currentTimeMillis() + ackTimeoutMillis;
+			while (true) {
+				if (entry.error != null) {
+					throw entry.error;
+				}
+				if (entry.acks >= quorum) {
+					return entry.seq;
+				}
+				int down = 0;
+				for (Replica replica : replicas) {
+					if (replica.acked < entry.seq && (replica.failing || replica.outOfSync)) {
+						down++;
+					}
+				}
+				long left = until - System.currentTimeMillis();
+				if (replicas.size() - down < quorum || left <= 0) {
+					throw new SphinxException("update " + entry.seq + " acknowledged by " + entry.acks + " of "
+							+ replicas.size() + " replicas, quorum is " + quorum);
+				}
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SphinxException("interrupted while waiting for update quorum");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find replica which applied given update, for reads that need to see it.
+	 * Replicas are taken round-robin.
+	 *
+	 * @param seq
+	 *            sequence number returned by update(), 0 for any replica
+	 * @return client factory of the replica, null if no replica applied the
+	 *         update yet
+	 */
+	public synchronized SphinxClientFactory replicaFor(final long seq) {
+		for (int i = 0; i < replicas.size(); i++) {
+			Replica replica = replicas.get((nextRead + i) % replicas.size());
+			if (replica.acked >= seq && !replica.outOfSync && !replica.rejected.contains(Long.valueOf(seq))) {
+				nextRead = (nextRead + i + 1) % replicas.size();
+				return replica.factory;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get last sequence number acknowledged by a replica.
+	 *
+	 * @param replica
+	 *            replica number, in constructor order
+	 * @return the sequence, 0 if none
+	 */
+	public synchronized long getAckedSequence(final int replica) {
+		return replicas.get(replica).acked;
+	}
+
+	/**
+	 * Get updates waiting to be applied by a replica.
+	 *
+	 * @param replica
+	 *            replica number, in constructor order
+	 * @return queue depth
+	 */
+	public synchronized int getQueueDepth(final int replica) {
+		return replicas.get(replica).queue.size();
+	}
+
+	/**
+	 * Get failed attempts of a replica.
+	 *
+	 * @param replica
+	 *            replica number, in constructor order
+	 * @return failed attempts
+	 */
+	public synchronized long getFailedCount(final int replica) {
+		return replicas.get(replica).failures;
+	}
+
+	/**
+	 * Check whether a replica dropped updates because its queue overflowed.
+	 *
+	 * @param replica
+	 *            replica number, in constructor order
+	 * @return true if the replica needs a reindex
+	 */
+	public synchronized boolean isOutOfSync(final int replica) {
+		return replicas.get(replica).outOfSync;
+	}
+
+	/**
+	 * Put a replica back in sync after its index was rebuilt. The reindex
+	 * must cover all updates up to the current sequence, so updates still
+	 * queued for the replica are dropped; later updates are queued for the
+	 * replica again.
+	 *
+	 * @param replica
+	 *            replica number, in constructor order
+	 */
+	public synchronized void resync(final int replica) {
+		Replica target = replicas.get(replica);
+		target.outOfSync = false;
+		target.failing = false;
+		target.retry = 0;
+		target.rejected.clear();
+		target.queue.clear();
+		target.acked = sequence;
+		notifyAll();
+	}
+
+	/**
+	 * Get sequence number of the last update.
+	 *
+	 * @return the sequence
+	 */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Stop retrying and close replica connections. Queued updates are lost.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		for (final Replica replica : replicas) {
+			replica.executor.execute(new Runnable() {
+				public void run() {
+					replica.disconnect();
+				}
+			});
+			replica.executor.shutdown();
+		}
+	}
+
+	/** Update shared by the replica queues. */
+	private static final class Update {
+		private final long seq;
+		private final ByteArrayOutputStream request;
+		private int acks;
+		private SphinxException error;
+
+		/**
+		 * Create update.
+		 *
+		 * @param updateSeq
+		 *            sequence number
+		 * @param req
+		 *            encoded request
+		 */
+		private Update(final long updateSeq, final ByteArrayOutputStream req) {
+			this.seq = updateSeq;
+			this.request = req;
+		}
+	}
+
+	/** Replica with its queue, applied on its own thread. */
+	private final class Replica implements Runnable {
+		private final SphinxClientFactory factory;
+		private final ScheduledExecutorService executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(final Runnable task) {
+						Thread thread = new Thread(task, "sphinx-replica");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		private final LinkedList<Update> queue = new LinkedList<Update>();
+		private final Set<Long> rejected = new HashSet<Long>();
+		private SphinxClient client;
+		private long acked;
+		private long failures;
+		private int retry;
+		private boolean failing;
+		private boolean outOfSync;
+
+		/**
+		 * Create replica.
+		 *
+		 * @param clientFactory
+		 *            creates the client of the replica
+		 */
+		private Replica(final SphinxClientFactory clientFactory) {
+			this.factory = clientFactory;
+		}
+
+		/**
+		 * Queue update (must hold the updater lock).
+		 *
+		 * @param entry
+		 *            the update
+		 */
+		private void enqueue(final Update entry) {
+			if (outOfSync) {
+				return;
+			}
+			if (queue.size() >= maxQueue) {
+				outOfSync = true;
+				queue.clear();
+				return;
+			}
+			queue.add(entry);
+		}
+
+		/**
+		 * Apply queued updates in order; reschedules itself after a
+		 * temporary failure.
+		 */
+		public void run() {
+			while (true) {
+				Update head;
+				synchronized (SphinxReplicatedUpdater.this) {
+					head = queue.peek();
+					if (head == null || closed) {
+						break;
+					}
+				}
+				try {
+					if (client == null) {
+						client = factory.newClient();
+						client.open();
+					}
+					SphinxBulkUpdater.send(client, head.request);
+					done(head, null);
+				} catch (SphinxException e) {
+					if (client != null) {
+						client.close();
+						client = null;
+					}
+					if (!retryPolicy.isTemporary(e)) {
+						/* searchd rejected the update itself; repeating will not help */
+						done(head, e);
+						continue;
+					}
+					long delay;
+					synchronized (SphinxReplicatedUpdater.this) {
+						failing = true;
+						failures++;
+						delay = retryPolicy.getDelayMillis(++retry);
+						SphinxReplicatedUpdater.this.notifyAll();
+						if (closed) {
+							break;
+						}
+					}
+					executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Close connection, on the replica thread.
+		 */
+		private void disconnect() {
+			if (client != null) {
+				client.close();
+				client = null;
+			}
+		}
+
+		/**
+		 * Record processed update.
+		 *
+		 * @param head
+		 *            the update
+		 * @param error
+		 *            searchd error, null if applied
+		 */
+		private void done(final Update head, final SphinxException error) {
+			synchronized (SphinxReplicatedUpdater.this) {
+				if (queue.peek() == head) {
+					queue.poll();
+				}
+				failing = false;
+				retry = 0;
+				if (error == null) {
+					/* an update sent before a resync must not move the replica back */
+					acked = Math.max(acked, head.seq);
+					head.acks++;
+				} else {
+					/* the replica moves on, but never applied this update */
+					rejected.add(Long.valueOf(head.seq));
+					if (rejected.size() > maxQueue) {
+						outOfSync = true;
+						queue.clear();
+						rejected.clear();
+					}
+					if (head.error == null) {
+						head.error = error;
+					}
+				}
+				SphinxReplicatedUpdater.this.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package org.sphx.api;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Parses the reply of a search multi-query. Matches go into the results, or
+ * straight into a {@link SphinxAttributeMap} when attributes of known
+ * documents are fetched.
+ */
+final class SphinxResultReader {
+
+	private static final float MILLSEC_IN_SEC = 1000.0f;
+
+	/** Static methods only. */
+	private SphinxResultReader() {
+	}
+
+	/**
+	 * Read result sets.
+	 *
+	 * @param in
+	 *            reply stream
+	 * @param count
+	 *            amount of queries
+	 * @param into
+	 *            receives the matches instead of the results, null to keep
+	 *            them in the results
+	 * @return results
+	 * @throws SphinxException
+	 *             if reply is incomplete
+	 */
+	static SphinxResult[] read(final DataInputStream in, final int count, final SphinxAttributeMap into)
+			throws SphinxException {
+		SphinxResult[] results = new SphinxResult[count];
+		try {
+			for (int ires = 0; ires < count; ires++) {
+				SphinxResult res = new SphinxResult();
+				results[ires] = res;
+
+				int status = in.readInt();
+				res.setStatus(status);
+				if (status != SphinxClient.SEARCHD_OK) {
+					String message = SphinxClient.readNetUTF8(in);
+					if (status == SphinxClient.SEARCHD_WARNING) {
+						res.warning = message;
+					} else {
+						res.error = message;
+						continue;
+					}
+				}
+
+				/* read fields */
+				int nfields = in.readInt();
+				res.fields = new String[nfields];
+				for (int i = 0; i < nfields; i++) {
+					res.fields[i] = SphinxClient.readNetUTF8(in);
+				}
+
+				/* read attrs */
+				int nattrs = in.readInt();
+				res.attrTypes = new int[nattrs];
+				res.attrNames = new String[nattrs];
+				for (int i = 0; i < nattrs; i++) {
+					res.attrNames[i] = SphinxClient.readNetUTF8(in);
+					res.attrTypes[i] = in.readInt();
+				}
+				if (into != null) {
+					into.setSchema(res.attrNames, res.attrTypes);
+				}
+
+				/* read match count */
+				int matches = in.readInt();
+				boolean id64 = in.readInt() != 0;
+				for (int i = 0; i < matches; i++) {
+					readMatch(in, res, id64, into);
+				}
+
+				res.total = in.readInt();
+				res.totalFound = in.readInt();
+				res.time = in.readInt() / MILLSEC_IN_SEC;
+
+				res.words = new SphinxWordInfo[in.readInt()];
+				for (int i = 0; i < res.words.length; i++) {
+					res.words[i] = new SphinxWordInfo(SphinxClient.readNetUTF8(in), SphinxClient.readDword(in),
+							SphinxClient.readDword(in));
+				}
+			}
+			return results;
+
+		} catch (IOException e) {
+			throw new SphinxException("incomplete reply");
+		}
+	}
+
+	/**
+	 * Read one match.
+	 *
+	 * @param in
+	 *            reply stream
+	 * @param res
+	 *            result of the query
+	 * @param id64
+	 *            true if document IDs are 64-bit
+	 * @param into
+	 *            receives the match instead of the result, may be null
+	 * @throws IOException
+	 *             if reply is incomplete
+	 */
+	private static void readMatch(final DataInputStream in, final SphinxResult res, final boolean id64,
+			final SphinxAttributeMap into) throws IOException {
+		long docId;
+		if (id64) {
+			docId = in.readLong();
+		} else {
+			docId = SphinxClient.readDword(in);
+		}
+		int weight = in.readInt();
+		SphinxMatch docInfo = null;
+		int row = -1;
+		if (into == null) {
+			docInfo = new SphinxMatch(docId, weight);
+			res.addMatch(docInfo);
+		} else {
+			row = into.addDocument(docId);
+		}
+
+		for (int attr = 0; attr < res.attrTypes.length; attr++) {
+			int type = res.attrTypes[attr];
+
+			/* handle multi-valued attributes */
+			if ((type & SphinxClient.SPH_ATTR_MULTI) != 0) {
+				long[] vals = new long[(int) SphinxClient.readDword(in)];
+				for (int k = 0; k < vals.length; k++) {
+					vals[k] = SphinxClient.readDword(in);
+				}
+				if (into == null) {
+					docInfo.setAttribute(res.attrNames[attr], vals);
+				} else {
+					into.setMulti(row, attr, vals);
+				}
+				continue;
+			}
+
+			/* handle strings of searchd 2.0; attribute maps keep numbers only */
+			if (type == SphinxClient.SPH_ATTR_STRING) {
+				String value = SphinxClient.readNetUTF8(in);
+				if (into == null) {
+					docInfo.setAttribute(res.attrNames[attr], value);
+				}
+				continue;
+			}
+
+			/* handle bigints and floats, everything else as unsigned ints */
+			long raw;
+			if (type == SphinxClient.SPH_ATTR_BIGINT) {
+				raw = in.readLong();
+			} else if (type == SphinxClient.SPH_ATTR_FLOAT) {
+				raw = in.readInt();
+			} else {
+				raw = SphinxClient.readDword(in);
+			}
+			if (into != null) {
+				into.set(row, attr, raw);
+			} else if (type == SphinxClient.SPH_ATTR_FLOAT) {
+				docInfo.setAttribute(res.attrNames[attr], Float.valueOf(Float.intBitsToFloat((int) raw)));
+			} else {
+				docInfo.setAttribute(res.attrNames[attr], Long.valueOf(raw));
+			}
+		}
+	}
+}
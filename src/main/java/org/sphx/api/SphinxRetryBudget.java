@@ -0,0 +1,98 @@
+package org.sphx.api;
+
+/**
+ * Token bucket limiting client-side retries to a fraction of the requests.
+ *
+ * Every request deposits a fraction of a token, every retry withdraws a whole
+ * one. While searchd is healthy the bucket stays full; during an outage
+ * retries stop as soon as the bucket is drained, so they cannot multiply the
+ * load on an already failing server. One budget is usually shared by all
+ * clients of an application.
+ */
+public class SphinxRetryBudget {
+
+	private static final double DEFAULT_CAPACITY = 10.0;
+	private static final double DEFAULT_RATIO = 0.1;
+
+	private final double capacity;
+	private final double ratio;
+	private double tokens;
+	private long retries;
+	private long exhausted;
+
+	/**
+	 * Creates budget of 10 tokens allowing one retry per 10 requests.
+	 */
+	public SphinxRetryBudget() {
+		this.capacity = DEFAULT_CAPACITY;
+		this.ratio = DEFAULT_RATIO;
+		this.tokens = DEFAULT_CAPACITY;
+	}
+
+	/**
+	 * Creates budget.
+	 *
+	 * @param maxTokens
+	 *            bucket capacity, i.e. maximum burst of retries
+	 * @param retryRatio
+	 *            tokens deposited per request, i.e. allowed retries per
+	 *            request
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public SphinxRetryBudget(final double maxTokens, final double retryRatio) throws SphinxException {
+		if (maxTokens < 1 || retryRatio < 0) {
+			throw new SphinxException("capacity must be at least 1 and ratio must not be negative");
+		}
+		this.capacity = maxTokens;
+		this.ratio = retryRatio;
+		this.tokens = maxTokens;
+	}
+
+	/** Record a request. */
+	public synchronized void onRequest() {
+		tokens = Math.min(capacity, tokens + ratio);
+	}
+
+	/**
+	 * Take a token for a retry.
+	 *
+	 * @return true if retry is allowed
+	 */
+	public synchronized boolean tryRetry() {
+		if (tokens < 1) {
+			exhausted++;
+			return false;
+		}
+		tokens -= 1;
+		retries++;
+		return true;
+	}
+
+	/**
+	 * Get currently available tokens.
+	 *
+	 * @return tokens
+	 */
+	public synchronized double getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * Get amount of retries granted.
+	 *
+	 * @return retries
+	 */
+	public synchronized long getRetryCount() {
+		return retries;
+	}
+
+	/**
+	 * Get amount of retries refused because the budget was drained.
+	 *
+	 * @return refused retries
+	 */
+	public synchronized long getExhaustedCount() {
+		return exhausted;
+	}
+}
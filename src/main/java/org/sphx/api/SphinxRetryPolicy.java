@@ -0,0 +1,124 @@
+package org.sphx.api;
+
+import java.util.Random;
+
+/**
+ * Client-side retry policy: how many attempts are made and how long to wait
+ * between them. Delays grow exponentially from the base delay up to the
+ * maximum delay and are fully jittered, i.e. a random value between zero and
+ * the current exponential delay is used, so clients failing at the same time
+ * do not retry in lockstep.
+ *
+ * Only temporary failures are retried: connection and network errors,
+ * SEARCHD_RETRY replies and open circuits. Update commands are not retried
+ * unless explicitly enabled.
+ */
+public class SphinxRetryPolicy {
+
+	private static final int DEFAULT_MAX_ATTEMPTS = 3;
+	private static final long DEFAULT_BASE_DELAY_MILLIS = 50;
+	private static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+	private static final int MAX_SHIFT = 30;
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+	private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private boolean retryUpdates;
+	private final Random random = new Random();
+
+	/**
+	 * Set maximum amount of attempts, including the first one.
+	 *
+	 * @param attempts
+	 *            maximum attempts
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public void setMaxAttempts(final int attempts) throws SphinxException {
+		if (attempts < 1) {
+			throw new SphinxException("max attempts must be positive");
+		}
+		maxAttempts = attempts;
+	}
+
+	/**
+	 * Get maximum amount of attempts, including the first one.
+	 *
+	 * @return max attempts
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Set backoff delays.
+	 *
+	 * @param baseMillis
+	 *            delay before the first retry, in milliseconds
+	 * @param maxMillis
+	 *            maximum delay, in milliseconds
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public void setBackoff(final long baseMillis, final long maxMillis) throws SphinxException {
+		if (baseMillis < 0 || maxMillis < baseMillis) {
+			throw new SphinxException("base delay must not be negative and not greater than max delay");
+		}
+		baseDelayMillis = baseMillis;
+		maxDelayMillis = maxMillis;
+	}
+
+	/**
+	 * Allow retries of SEARCHD_COMMAND_UPDATE. Updates set absolute values so
+	 * repeating them is harmless, but a retried update may be applied after a
+	 * newer one sent by another client.
+	 *
+	 * @param retry
+	 *            true to retry updates
+	 */
+	public void setRetryUpdates(final boolean retry) {
+		retryUpdates = retry;
+	}
+
+	/**
+	 * Check whether a command may be retried.
+	 *
+	 * @param command
+	 *            SEARCHD_COMMAND_xxx constant
+	 * @return true if retryable
+	 */
+	public boolean isRetryable(final int command) {
+		return command != SphinxClient.SEARCHD_COMMAND_UPDATE || retryUpdates;
+	}
+
+	/**
+	 * Check whether a failure is temporary.
+	 *
+	 * @param e
+	 *            the failure
+	 * @return true if the request may succeed when repeated
+	 */
+	public boolean isTemporary(final SphinxException e) {
+		return e instanceof SphinxNetworkException || e instanceof SphinxTemporaryException
+				|| e instanceof SphinxCircuitOpenException;
+	}
+
+	/**
+	 * Get jittered delay before a retry.
+	 *
+	 * @param retry
+	 *            retry number, starting from 1
+	 * @return delay in milliseconds
+	 */
+	public long getDelayMillis(final int retry) {
+		long delay = maxDelayMillis;
+		int shift = Math.min(retry - 1, MAX_SHIFT);
+		if (baseDelayMillis << shift < maxDelayMillis) {
+			delay = baseDelayMillis << shift;
+		}
+		if (delay == 0) {
+			return 0;
+		}
+		return (long) (random.nextDouble() * (delay + 1));
+	}
+}
@@ -0,0 +1,496 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admission scheduler for search traffic sharing one searchd capacity.
+ *
+ * Requests belong to a traffic class and a tenant. Classes are served in
+ * strict priority order (lower value first), so e.g. batch exports only get
+ * capacity interactive searches leave idle. Within a class, waiting requests
+ * are served by weighted fair queuing over tenants: every request gets a
+ * virtual finish tag of <tt>max(classTime, tenantLastTag) + 1 / weight</tt>,
+ * with the last tag kept per class and tenant, and the smallest tag goes
+ * first. A request shed before it ran does not count against its tenant.
+ * Tenants without settings are forgotten once idle and caught up with the
+ * class time. Classes and tenants have their own
+ * concurrency bounds, classes have a bounded queue and a maximum wait after
+ * which the request is shed with {@link SphinxRejectedException}.
+ *
+ * One scheduler is shared by all clients; see
+ * {@link SphinxClient#setScheduler(SphinxScheduler, String, String)}.
+ */
+public class SphinxScheduler {
+
+	private final int capacity;
+	private int inFlight;
+	private final Map<String, TrafficClass> classes = new HashMap<String, TrafficClass>();
+	private final List<TrafficClass> byPriority = new ArrayList<TrafficClass>();
+	private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+
+	/**
+	 * Creates scheduler.
+	 *
+	 * @param maxConcurrency
+	 *            total concurrent requests of all classes
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public SphinxScheduler(final int maxConcurrency) throws SphinxException {
+		if (maxConcurrency < 1) {
+			throw new SphinxException("max concurrency must be positive");
+		}
+		this.capacity = maxConcurrency;
+	}
+
+	/**
+	 * Define traffic class.
+	 *
+	 * @param name
+	 *            class name
+	 * @param priority
+	 *            classes with lower value are served first
+	 * @param maxConcurrency
+	 *            concurrent requests of the class
+	 * @param maxQueue
+	 *            waiting requests of the class
+	 * @param maxWaitMillis
+	 *            maximum wait before the request is shed
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public synchronized void addClass(final String name, final int priority, final int maxConcurrency,
+			final int maxQueue, final long maxWaitMillis) throws SphinxException {
+		if (name == null || classes.containsKey(name)) {
+			throw new SphinxException("class name must be unique and not null");
+		}
+		if (maxConcurrency < 1 || maxQueue < 0 || maxWaitMillis < 0) {
+			throw new SphinxException("concurrency must be positive, queue and wait must not be negative");
+		}
+		TrafficClass trafficClass = new TrafficClass(name, priority, maxConcurrency, maxQueue, maxWaitMillis);
+		classes.put(name, trafficClass);
+		int pos = 0;
+		while (pos < byPriority.size() && byPriority.get(pos).priority <= priority) {
+			pos++;
+		}
+		byPriority.add(pos, trafficClass);
+	}
+
+	/**
+	 * Set share and bound of a tenant. Tenants default to weight 1 and no
+	 * bound besides the class one.
+	 *
+	 * @param tenant
+	 *            tenant name
+	 * @param weight
+	 *            relative share within a class
+	 * @param maxConcurrency
+	 *            concurrent requests of the tenant, over all classes
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public synchronized void setTenant(final String tenant, final int weight, final int maxConcurrency)
+			throws SphinxException {
+		if (weight < 1 || maxConcurrency < 1) {
+			throw new SphinxException("weight and concurrency must be positive");
+		}
+		Tenant t = tenant(tenant);
+		t.weight = weight;
+		t.maxConcurrency = maxConcurrency;
+		t.configured = true;
+	}
+
+	/**
+	 * Wait for a slot.
+	 *
+	 * @param className
+	 *            traffic class
+	 * @param tenant
+	 *            tenant, may be null
+	 * @return ticket which must be passed to {@link #release(Ticket)}
+	 * @throws SphinxException
+	 *             if the class is unknown, the request was shed or the thread
+	 *             was interrupted
+	 */
+	public Ticket acquire(final String className, final String tenant) throws SphinxException {
+		return acquire(className, tenant, null);
+	}
+
+	/**
+	 * Wait for a slot unless cancelled.
+	 *
+	 * @param className
+	 *            traffic class
+	 * @param tenant
+	 *            tenant, may be null
+	 * @param token
+	 *            cancellation token of the request, may be null
+	 * @return ticket which must be passed to {@link #release(Ticket)}
+	 * @throws SphinxException
+	 *             if the class is unknown, the request was shed or cancelled
+	 *             or the thread was interrupted
+	 */
+	public synchronized Ticket acquire(final String className, final String tenant,
+			final SphinxCancellationToken token) throws SphinxException {
+		TrafficClass trafficClass = classes.get(className);
+		if (trafficClass == null) {
+			throw new SphinxException("unknown traffic class '" + className + "'");
+		}
+		Tenant t = tenant(tenant);
+		Ticket ticket = new Ticket(trafficClass, t);
+		ticket.previousTag = t.lastTag(trafficClass);
+		ticket.tag = Math.max(trafficClass.virtualTime, ticket.previousTag) + 1.0 / t.weight;
+		trafficClass.waiting.add(ticket);
+		t.waiting++;
+		dispatch();
+		if (!ticket.granted && trafficClass.waiting.size() > trafficClass.maxQueue) {
+			unqueue(ticket);
+			trafficClass.shed++;
+			throw new SphinxRejectedException("queue of traffic class '" + className + "' is full");
+		}
+		/* queued or running: later requests of the tenant queue behind it */
+		t.lastTags.put(trafficClass.name, Double.valueOf(ticket.tag));
+		long deadline = ticket.enqueued + trafficClass.maxWaitMillis;
+		if (token != null) {
+			token.watch(this);
+		}
+		try {
+			while (!ticket.granted) {
+				if (token != null && token.isCancelled()) {
+					unqueue(ticket);
+					token.check();
+				}
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					unqueue(ticket);
+					trafficClass.shed++;
+					throw new SphinxRejectedException("request of traffic class '" + className + "' waited "
+							+ trafficClass.maxWaitMillis + " ms and was shed");
+				}
+				wait(left);
+			}
+		} catch (InterruptedException e) {
+			if (ticket.granted) {
+				release(ticket);
+			} else {
+				unqueue(ticket);
+			}
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting for traffic class '" + className + "'");
+		} finally {
+			if (token != null) {
+				token.unwatch(this);
+			}
+		}
+		long waited = System.currentTimeMillis() - ticket.enqueued;
+		trafficClass.waitedMillis += waited;
+		trafficClass.maxWaitedMillis = Math.max(trafficClass.maxWaitedMillis, waited);
+		trafficClass.admitted++;
+		return ticket;
+	}
+
+	/**
+	 * Return a slot.
+	 *
+	 * @param ticket
+	 *            ticket from {@link #acquire(String, String)}
+	 */
+	public synchronized void release(final Ticket ticket) {
+		if (ticket.released) {
+			return;
+		}
+		ticket.released = true;
+		inFlight--;
+		ticket.trafficClass.inFlight--;
+		ticket.tenant.inFlight--;
+		dispatch();
+		evictIfIdle(ticket.tenant);
+	}
+
+	/**
+	 * Remove a request that did not run from its queue, and take back its
+	 * tag if no later request of the tenant was tagged after it (must hold
+	 * the lock).
+	 *
+	 * @param ticket
+	 *            the waiting ticket
+	 */
+	private void unqueue(final Ticket ticket) {
+		ticket.trafficClass.waiting.remove(ticket);
+		ticket.tenant.waiting--;
+		if (ticket.tenant.lastTag(ticket.trafficClass) == ticket.tag) {
+			ticket.tenant.lastTags.put(ticket.trafficClass.name, Double.valueOf(ticket.previousTag));
+		}
+		evictIfIdle(ticket.tenant);
+	}
+
+	/**
+	 * Forget a tenant without settings once it has no requests and its tags
+	 * no longer matter, i.e. are not ahead of the class times (must hold the
+	 * lock).
+	 *
+	 * @param t
+	 *            the tenant
+	 */
+	private void evictIfIdle(final Tenant t) {
+		if (t.configured || t.inFlight > 0 || t.waiting > 0) {
+			return;
+		}
+		for (Map.Entry<String, Double> tag : t.lastTags.entrySet()) {
+			if (tag.getValue().doubleValue() > classes.get(tag.getKey()).virtualTime) {
+				return;
+			}
+		}
+		tenants.remove(t.name);
+	}
+
+	/**
+	 * Grant free slots to waiting requests (must hold the lock).
+	 */
+	private void dispatch() {
+		boolean granted = false;
+		while (inFlight < capacity) {
+			Ticket next = null;
+			for (TrafficClass trafficClass : byPriority) {
+				if (trafficClass.inFlight >= trafficClass.maxConcurrency) {
+					continue;
+				}
+				for (Ticket ticket : trafficClass.waiting) {
+					if (ticket.tenant.inFlight < ticket.tenant.maxConcurrency
+							&& (next == null || ticket.tag < next.tag)) {
+						next = ticket;
+					}
+				}
+				if (next != null) {
+					break;
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			next.trafficClass.waiting.remove(next);
+			next.tenant.waiting--;
+			next.trafficClass.virtualTime = next.tag;
+			next.granted = true;
+			inFlight++;
+			next.trafficClass.inFlight++;
+			next.tenant.inFlight++;
+			granted = true;
+		}
+		if (granted) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Get or create tenant (must hold the lock).
+	 *
+	 * @param name
+	 *            tenant name, may be null
+	 * @return the tenant
+	 */
+	private Tenant tenant(final String name) {
+		Tenant t = tenants.get(name);
+		if (t == null) {
+			t = new Tenant(name);
+			tenants.put(name, t);
+		}
+		return t;
+	}
+
+	/**
+	 * Get amount of tenants tracked, including idle ones not yet forgotten.
+	 *
+	 * @return tenant count
+	 */
+	public synchronized int getTenantCount() {
+		return tenants.size();
+	}
+
+	/**
+	 * Get class or fail (must hold the lock).
+	 *
+	 * @param className
+	 *            class name
+	 * @return the class
+	 */
+	private TrafficClass trafficClass(final String className) {
+		TrafficClass trafficClass = classes.get(className);
+		if (trafficClass == null) {
+			throw new IllegalArgumentException("unknown traffic class '" + className + "'");
+		}
+		return trafficClass;
+	}
+
+	/**
+	 * Get requests of a class being served.
+	 *
+	 * @param className
+	 *            class name
+	 * @return in-flight requests
+	 */
+	public synchronized int getInFlight(final String className) {
+		return trafficClass(className).inFlight;
+	}
+
+	/**
+	 * Get requests of a class waiting for a slot.
+	 *
+	 * @param className
+	 *            class name
+	 * @return queue depth
+	 */
+	public synchronized int getQueueDepth(final String className) {
+		return trafficClass(className).waiting.size();
+	}
+
+	/**
+	 * Get requests of a class shed because the queue was full or the wait
+	 * was too long.
+	 *
+	 * @param className
+	 *            class name
+	 * @return shed requests
+	 */
+	public synchronized long getShedCount(final String className) {
+		return trafficClass(className).shed;
+	}
+
+	/**
+	 * Get average queue wait of admitted requests of a class.
+	 *
+	 * @param className
+	 *            class name
+	 * @return average wait in milliseconds
+	 */
+	public synchronized double getAverageWaitMillis(final String className) {
+		TrafficClass trafficClass = trafficClass(className);
+		if (trafficClass.admitted == 0) {
+			return 0;
+		}
+		return (double) trafficClass.waitedMillis / trafficClass.admitted;
+	}
+
+	/**
+	 * Get longest queue wait of admitted requests of a class.
+	 *
+	 * @param className
+	 *            class name
+	 * @return maximum wait in milliseconds
+	 */
+	public synchronized long getMaxWaitMillis(final String className) {
+		return trafficClass(className).maxWaitedMillis;
+	}
+
+	/** Admission of one request. */
+	public static final class Ticket {
+		private final TrafficClass trafficClass;
+		private final Tenant tenant;
+		private final long enqueued = System.currentTimeMillis();
+		private double tag;
+		private double previousTag;
+		private boolean granted;
+		private boolean released;
+
+		/**
+		 * Create ticket.
+		 *
+		 * @param owner
+		 *            traffic class
+		 * @param requester
+		 *            tenant
+		 */
+		private Ticket(final TrafficClass owner, final Tenant requester) {
+			this.trafficClass = owner;
+			this.tenant = requester;
+		}
+
+		/**
+		 * Get traffic class name.
+		 *
+		 * @return class name
+		 */
+		public String getClassName() {
+			return trafficClass.name;
+		}
+	}
+
+	/** Traffic class state. */
+	private static final class TrafficClass {
+		private final String name;
+		private final int priority;
+		private final int maxConcurrency;
+		private final int maxQueue;
+		private final long maxWaitMillis;
+		private final LinkedList<Ticket> waiting = new LinkedList<Ticket>();
+		private int inFlight;
+		private double virtualTime;
+		private long shed;
+		private long admitted;
+		private long waitedMillis;
+		private long maxWaitedMillis;
+
+		/**
+		 * Create class.
+		 *
+		 * @param className
+		 *            name
+		 * @param classPriority
+		 *            priority
+		 * @param concurrency
+		 *            max concurrency
+		 * @param queue
+		 *            max queue
+		 * @param waitMillis
+		 *            max wait
+		 */
+		private TrafficClass(final String className, final int classPriority, final int concurrency,
+				final int queue, final long waitMillis) {
+			this.name = className;
+			this.priority = classPriority;
+			this.maxConcurrency = concurrency;
+			this.maxQueue = queue;
+			this.maxWaitMillis = waitMillis;
+		}
+	}
+
+	/** Tenant state. */
+	private static final class Tenant {
+		private final String name;
+		private final Map<String, Double> lastTags = new HashMap<String, Double>();
+		private int weight = 1;
+		private int maxConcurrency = Integer.MAX_VALUE;
+		private int inFlight;
+		private int waiting;
+		private boolean configured;
+
+		/**
+		 * Create tenant.
+		 *
+		 * @param tenantName
+		 *            name, may be null
+		 */
+		private Tenant(final String tenantName) {
+			this.name = tenantName;
+		}
+
+		/**
+		 * Get finish tag of the last request in a class.
+		 *
+		 * @param trafficClass
+		 *            the class
+		 * @return the tag, 0 if none
+		 */
+		private double lastTag(final TrafficClass trafficClass) {
+			Double tag = lastTags.get(trafficClass.name);
+			if (tag == null) {
+				return 0;
+			}
+			return tag.doubleValue();
+		}
+	}
+}
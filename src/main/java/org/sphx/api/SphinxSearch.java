@@ -13,6 +13,7 @@ public class SphinxSearch {
   private String index;
   private String comment;
   private List<String> queries;
+  private List<SphinxFilterSet> filterSets;
 
   /**
    * Create new SphinxSearch.
@@ -40,6 +41,7 @@ public class SphinxSearch {
     this.index = searchIndex;
     this.comment = searchComment;
     this.queries = new ArrayList<String>();
+    this.filterSets = new ArrayList<SphinxFilterSet>();
   }
 
   /**
@@ -95,6 +97,27 @@ public class SphinxSearch {
     queries.add(search.toString());
   }
 
+  /**
+   * Attach pre-encoded filters to this search only.
+   *
+   * @param set SphinxFilterSet
+   */
+  public void addFilterSet(final SphinxFilterSet set) {
+    if (set == null) {
+      throw new IllegalArgumentException("filter set must not be null");
+    }
+    filterSets.add(set);
+  }
+
+  /**
+   * Get filter sets attached to this search.
+   *
+   * @return List
+   */
+  public List<SphinxFilterSet> getFilterSets() {
+    return filterSets;
+  }
+
   /**
    * Get index used for this search.
    *
@@ -0,0 +1,103 @@
+package org.sphx.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps at most one request in flight per key, e.g. per user of a
+ * search-as-you-type box: issuing a request for a key cancels the previous one
+ * for the same key, so searchd stops working on results nobody will see.
+ * Sessions are thread safe and usually shared by all request threads.
+ *
+ * <pre>
+ * SphinxResult result = session.query(client, userId, typed, &quot;products&quot;);
+ * </pre>
+ *
+ * A superseded call fails with {@link SphinxCancelledException}.
+ */
+public class SphinxSearchSession {
+
+	private final Map<String, SphinxCancellationToken> current = new HashMap<String, SphinxCancellationToken>();
+	private long cancelled;
+
+	/**
+	 * Start request for a key, cancelling the previous one for the key.
+	 *
+	 * @param key
+	 *            request key
+	 * @return token of the new request
+	 */
+	public SphinxCancellationToken begin(final String key) {
+		SphinxCancellationToken token = new SphinxCancellationToken();
+		SphinxCancellationToken previous;
+		synchronized (this) {
+			previous = current.put(key, token);
+			if (previous != null) {
+				cancelled++;
+			}
+		}
+		if (previous != null) {
+			previous.cancel();
+		}
+		return token;
+	}
+
+	/**
+	 * Finish request for a key.
+	 *
+	 * @param key
+	 *            request key
+	 * @param token
+	 *            token returned by {@link #begin(String)}
+	 */
+	public synchronized void end(final String key, final SphinxCancellationToken token) {
+		if (current.get(key) == token) {
+			current.remove(key);
+		}
+	}
+
+	/**
+	 * Run query for a key, cancelling the previous query for the key.
+	 *
+	 * @param client
+	 *            client used by the calling thread
+	 * @param key
+	 *            request key
+	 * @param query
+	 *            query string
+	 * @param index
+	 *            index name(s) to query
+	 * @return search result
+	 * @throws SphinxException
+	 *             if error, {@link SphinxCancelledException} if superseded
+	 */
+	public SphinxResult query(final SphinxClient client, final String key, final String query, final String index)
+			throws SphinxException {
+		SphinxCancellationToken token = begin(key);
+		client.setCancellationToken(token);
+		try {
+			return client.query(query, index);
+		} finally {
+			client.setCancellationToken(null);
+			end(key, token);
+		}
+	}
+
+	/**
+	 * Get requests in flight.
+	 *
+	 * @return amount of keys with a running request
+	 */
+	public synchronized int getInFlight() {
+		return current.size();
+	}
+
+	/**
+	 * Get requests cancelled because a newer one was issued for the same key.
+	 *
+	 * @return cancelled requests
+	 */
+	public synchronized long getCancelledCount() {
+		return cancelled;
+	}
+}
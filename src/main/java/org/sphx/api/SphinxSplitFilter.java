@@ -0,0 +1,288 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Include filter over a value list too large for one searchd packet, such as
+ * ACL filters with hundreds of thousands of group IDs.
+ *
+ * Values are sorted, deduplicated and split into chunks, so that every search
+ * request stays below the given size, headers and the rest of the query
+ * included. A query with the filter becomes one sub-query per chunk; the
+ * sub-queries are sent in as many {@link SphinxClient#runQueries()} batches as
+ * needed, at most 32 per batch, and their results are merged back into one
+ * result:
+ *
+ * <pre>
+ * SphinxSplitFilter acl = new SphinxSplitFilter(&quot;group_id&quot;, groupIds, 8 * 1024 * 1024);
+ * SphinxResult result = acl.query(client, search);
+ * </pre>
+ *
+ * Sub-queries fetch offset + limit matches each, which must not exceed max
+ * matches of the client; the merged matches are ordered by weight, or by the
+ * comparator given to the query for other sort modes, and cut to the
+ * requested window. Documents matching several chunks, which happens with
+ * multi-valued attributes, are returned once; total counts are summed and may
+ * then count them more than once.
+ *
+ * Only include filters can be split this way: an exclude filter must see all
+ * values in one query.
+ */
+public class SphinxSplitFilter {
+
+	/* command header, and search header of the newest protocol */
+	private static final int REQUEST_HEADER = 16;
+	private static final int VALUE_SIZE = 8;
+	private static final int MAX_QUERIES = 32;
+
+	/** Orders matches like searchd with SPH_SORT_RELEVANCE. */
+	public static final Comparator<SphinxMatch> BY_RELEVANCE = new Comparator<SphinxMatch>() {
+		public int compare(final SphinxMatch a, final SphinxMatch b) {
+			if (a.getWeight() != b.getWeight()) {
+				return compareLongs(b.getWeight(), a.getWeight());
+			}
+			return compareLongs(a.getDocId(), b.getDocId());
+		}
+	};
+
+	private final String attribute;
+	private final long[] values;
+	private final int maxRequestBytes;
+	private final int filterOverhead;
+
+	/**
+	 * Creates filter.
+	 *
+	 * @param attr
+	 *            the attribute for filter
+	 * @param filterValues
+	 *            array of values
+	 * @param maxRequest
+	 *            maximum size of one search request; keep it below
+	 *            max_packet_size of searchd
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxSplitFilter(final String attr, final long[] filterValues, final int maxRequest)
+			throws SphinxException {
+		if (attr == null || attr.length() == 0 || filterValues == null || filterValues.length == 0) {
+			throw new SphinxException("attribute name and values must not be null or empty");
+		}
+		this.attribute = attr;
+		this.values = SphinxFilterSet.distinct(filterValues);
+		this.maxRequestBytes = maxRequest;
+		this.filterOverhead = chunk(0, 1).getEncodedSize() - VALUE_SIZE;
+		if (REQUEST_HEADER + filterOverhead + VALUE_SIZE > maxRequest) {
+			throw new SphinxException("request size " + maxRequest + " is too small for one value");
+		}
+	}
+
+	/**
+	 * Run search with this filter, merging by relevance. No other queries may
+	 * be added to the client.
+	 *
+	 * @param client
+	 *            the client, with offset and limit of the search set
+	 * @param search
+	 *            the search
+	 * @return merged result
+	 * @throws SphinxException
+	 *             if the search or one of its sub-queries failed
+	 */
+	public SphinxResult query(final SphinxClient client, final SphinxSearch search) throws SphinxException {
+		return query(client, search, BY_RELEVANCE);
+	}
+
+	/**
+	 * Run search with this filter. No other queries may be added to the
+	 * client.
+	 *
+	 * @param client
+	 *            the client, with offset and limit of the search set
+	 * @param search
+	 *            the search
+	 * @param order
+	 *            order of the merged matches, matching the sort mode of the
+	 *            client
+	 * @return merged result
+	 * @throws SphinxException
+	 *             if the search or one of its sub-queries failed
+	 */
+	public SphinxResult query(final SphinxClient client, final SphinxSearch search,
+			final Comparator<SphinxMatch> order) throws SphinxException {
+		/* measure the query without the values */
+		if (client.addQuery(subQuery(search, null)) != 0) {
+			client.removeLastQuery();
+			throw new SphinxException("AddQuery() and split filter queries can not be combined; "
+					+ "use RunQueries() instead");
+		}
+		int querySize = client.removeLastQuery() + filterOverhead;
+		int perChunk = (maxRequestBytes - REQUEST_HEADER - querySize) / VALUE_SIZE;
+		if (perChunk < 1) {
+			throw new SphinxException("request size " + maxRequestBytes + " is too small for the query and one value");
+		}
+		List<SphinxResult> results = new ArrayList<SphinxResult>();
+		if (perChunk >= values.length) {
+			client.addQuery(subQuery(search, chunk(0, values.length)));
+			runBatch(client, results);
+			return results.get(0);
+		}
+
+		int offset = client.getOffset();
+		int limit = client.getLimit();
+		if (offset + limit > client.getMaxMatches()) {
+			throw new SphinxException("offset + limit " + (offset + limit) + " exceeds max matches "
+					+ client.getMaxMatches());
+		}
+		client.setLimits(0, offset + limit);
+		try {
+			int batchQueries = 0;
+			int batchBytes = REQUEST_HEADER;
+			for (int from = 0; from < values.length; from += perChunk) {
+				int n = Math.min(perChunk, values.length - from);
+				int size = querySize + n * VALUE_SIZE;
+				if (batchQueries == MAX_QUERIES || batchBytes + size > maxRequestBytes) {
+					runBatch(client, results);
+					batchQueries = 0;
+					batchBytes = REQUEST_HEADER;
+				}
+				client.addQuery(subQuery(search, chunk(from, n)));
+				batchQueries++;
+				batchBytes += size;
+			}
+			runBatch(client, results);
+		} finally {
+			client.setLimits(offset, limit);
+		}
+		return merge(results, offset, limit, order);
+	}
+
+	/**
+	 * Build filter of a chunk of values.
+	 *
+	 * @param from
+	 *            index of the first value
+	 * @param n
+	 *            amount of values
+	 * @return the filter
+	 * @throws SphinxException
+	 *             if filter can not be built
+	 */
+	private SphinxFilterSet chunk(final int from, final int n) throws SphinxException {
+		long[] chunk = new long[n];
+		System.arraycopy(values, from, chunk, 0, n);
+		return new SphinxFilterSet.Builder().values(attribute, chunk, false).build();
+	}
+
+	/**
+	 * Build sub-query of a search.
+	 *
+	 * @param search
+	 *            the search
+	 * @param chunk
+	 *            filter of the sub-query, null for none
+	 * @return the sub-query
+	 * @throws SphinxException
+	 *             if search is invalid
+	 */
+	private static SphinxSearch subQuery(final SphinxSearch search, final SphinxFilterSet chunk)
+			throws SphinxException {
+		SphinxSearch sub = new SphinxSearch(search.getIndex(), search.getComment());
+		sub.addQuery(search.buildQuery());
+		for (SphinxFilterSet set : search.getFilterSets()) {
+			sub.addFilterSet(set);
+		}
+		if (chunk != null) {
+			sub.addFilterSet(chunk);
+		}
+		return sub;
+	}
+
+	/**
+	 * Run queries added to the client.
+	 *
+	 * @param client
+	 *            the client
+	 * @param results
+	 *            receives the results
+	 * @throws SphinxException
+	 *             if the batch or one of its queries failed
+	 */
+	private static void runBatch(final SphinxClient client, final List<SphinxResult> results)
+			throws SphinxException {
+		for (SphinxResult result : client.runQueries()) {
+			if (result.error != null) {
+				throw new SphinxException(result.error);
+			}
+			results.add(result);
+		}
+	}
+
+	/**
+	 * Merge sub-query results.
+	 *
+	 * @param results
+	 *            results of all sub-queries
+	 * @param offset
+	 *            requested offset
+	 * @param limit
+	 *            requested limit
+	 * @param order
+	 *            order of merged matches
+	 * @return merged result
+	 */
+	private static SphinxResult merge(final List<SphinxResult> results, final int offset, final int limit,
+			final Comparator<SphinxMatch> order) {
+		SphinxResult merged = new SphinxResult();
+		List<SphinxMatch> matches = new ArrayList<SphinxMatch>();
+		Set<Long> seen = new HashSet<Long>();
+		for (SphinxResult res : results) {
+			if (merged.warning == null) {
+				merged.warning = res.warning;
+			}
+			for (SphinxMatch match : res.getMatches()) {
+				if (seen.add(Long.valueOf(match.getDocId()))) {
+					matches.add(match);
+				}
+			}
+			merged.total += res.total;
+			merged.totalFound += res.totalFound;
+			merged.time += res.time;
+		}
+		SphinxResult head = results.get(0);
+		merged.fields = head.fields;
+		merged.attrNames = head.attrNames;
+		merged.attrTypes = head.attrTypes;
+		merged.words = head.words;
+		merged.setStatus(head.getStatus());
+		Collections.sort(matches, order);
+		int from = Math.min(offset, matches.size());
+		int to = Math.min(offset + limit, matches.size());
+		merged.setMatches(new ArrayList<SphinxMatch>(matches.subList(from, to)));
+		return merged;
+	}
+
+	/**
+	 * Compare longs.
+	 *
+	 * @param a
+	 *            first value
+	 * @param b
+	 *            second value
+	 * @return comparison result
+	 */
+	private static int compareLongs(final long a, final long b) {
+		if (a < b) {
+			return -1;
+		}
+		if (a > b) {
+			return 1;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,43 @@
+package org.sphx.api;
+
+/**
+ * Receives matches from a {@link SphinxPublisher}. Signals are delivered one
+ * at a time from the publisher thread: first {@link #onSubscribe}, then at
+ * most as many {@link #onNext} as requested, then either
+ * {@link #onComplete()} or {@link #onError}. The methods mirror
+ * <tt>java.util.concurrent.Flow.Subscriber</tt>, so an adapter is a few
+ * lines on Java 9 and later.
+ */
+public interface SphinxSubscriber {
+
+	/**
+	 * Subscription started; nothing is fetched until the subscriber asks for
+	 * matches with {@link SphinxSubscription#request(long)}.
+	 *
+	 * @param subscription
+	 *            the subscription
+	 */
+	void onSubscribe(SphinxSubscription subscription);
+
+	/**
+	 * Next match.
+	 *
+	 * @param match
+	 *            the match
+	 */
+	void onNext(SphinxMatch match);
+
+	/**
+	 * The query failed or the subscription was invalid; no further signals
+	 * follow.
+	 *
+	 * @param error
+	 *            the failure
+	 */
+	void onError(SphinxException error);
+
+	/**
+	 * All matches were delivered; no further signals follow.
+	 */
+	void onComplete();
+}
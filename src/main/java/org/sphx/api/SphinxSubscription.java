@@ -0,0 +1,26 @@
+package org.sphx.api;
+
+/**
+ * Link between a {@link SphinxPublisher} and its {@link SphinxSubscriber},
+ * through which the subscriber signals demand. Both methods may be called
+ * from any thread, including from within the subscriber callbacks.
+ */
+public interface SphinxSubscription {
+
+	/**
+	 * Ask for more matches. Pages are fetched only while there is
+	 * outstanding demand.
+	 *
+	 * @param n
+	 *            additional matches, must be positive; demand saturates at
+	 *            {@link Long#MAX_VALUE}
+	 */
+	void request(long n);
+
+	/**
+	 * Stop delivering matches and fetching pages. A page being fetched is
+	 * discarded; no further signals follow, except those already being
+	 * delivered.
+	 */
+	void cancel();
+}
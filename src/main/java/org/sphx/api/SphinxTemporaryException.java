@@ -0,0 +1,17 @@
+package org.sphx.api;
+
+/** Exception thrown when searchd replied with a temporary error
+ *  (SEARCHD_RETRY status); the same request may succeed later. */
+public class SphinxTemporaryException extends SphinxException {
+	/**
+	 * serial Version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Constructor from error message string.
+	 * @param message message about error.
+	 */
+	public SphinxTemporaryException(final String message) {
+		super(message);
+	}
+}
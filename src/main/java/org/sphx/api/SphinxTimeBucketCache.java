@@ -0,0 +1,324 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Caches time-bucketed match counts of a timestamp attribute, e.g. a
+ * dashboard series of <tt>SPH_GROUPBY_DAY</tt> counts over the last 90 days.
+ *
+ * Counts are kept per day. Days that ended before the grace period are
+ * closed and cached; only the open and not yet cached days are queried,
+ * narrowed by a range filter on the timestamp, and the series is stitched
+ * together from both. Week, month and year buckets are rolled up from the
+ * days with the same keys searchd uses, so a refresh costs a query over the
+ * current day whatever the bucket size.
+ *
+ * <pre>
+ * SphinxTimeBucketCache series = new SphinxTimeBucketCache(&quot;created_at&quot;, SphinxClient.SPH_GROUPBY_DAY);
+ * SphinxFacet perDay = series.query(client, &quot;tenant=42&quot;, &quot;&quot;, &quot;orders&quot;, now - 90 * 86400, now);
+ * </pre>
+ *
+ * Filters set on the client apply to the counts, so they must be part of the
+ * search key. The time zone must match the one of searchd. Counts are exact
+ * only for <tt>@count</tt>; distinct counts cannot be summed. The cache is
+ * thread safe and may be shared by all request threads.
+ */
+public class SphinxTimeBucketCache {
+
+	private static final int DEFAULT_MAX_SERIES = 1000;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int DAYS_PER_QUERY = 500;
+	private static final long MILLIS_IN_SECOND = 1000L;
+	private static final int YEAR_DAY_FACTOR = 10000;
+	private static final int YEAR_WEEK_FACTOR = 1000;
+	private static final int YEAR_MONTH_FACTOR = 100;
+
+	private final String attribute;
+	private final int func;
+	private final Map<String, Map<Long, Integer>> series;
+	private TimeZone timeZone = TimeZone.getDefault();
+	private long graceSeconds;
+	private long queriedDays;
+
+	/**
+	 * Creates cache with room for 1000 series.
+	 *
+	 * @param timestampAttribute
+	 *            the timestamp attribute
+	 * @param groupFunc
+	 *            one of SPH_GROUPBY_DAY, SPH_GROUPBY_WEEK, SPH_GROUPBY_MONTH,
+	 *            SPH_GROUPBY_YEAR
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxTimeBucketCache(final String timestampAttribute, final int groupFunc) throws SphinxException {
+		this(timestampAttribute, groupFunc, DEFAULT_MAX_SERIES);
+	}
+
+	/**
+	 * Creates cache.
+	 *
+	 * @param timestampAttribute
+	 *            the timestamp attribute
+	 * @param groupFunc
+	 *            one of SPH_GROUPBY_DAY, SPH_GROUPBY_WEEK, SPH_GROUPBY_MONTH,
+	 *            SPH_GROUPBY_YEAR
+	 * @param maxSeries
+	 *            series kept, least recently used are dropped first
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxTimeBucketCache(final String timestampAttribute, final int groupFunc, final int maxSeries)
+			throws SphinxException {
+		if (timestampAttribute == null || timestampAttribute.length() == 0 || maxSeries < 1) {
+			throw new SphinxException("attribute is required and series limit must be positive");
+		}
+		if (groupFunc != SphinxClient.SPH_GROUPBY_DAY && groupFunc != SphinxClient.SPH_GROUPBY_WEEK
+				&& groupFunc != SphinxClient.SPH_GROUPBY_MONTH && groupFunc != SphinxClient.SPH_GROUPBY_YEAR) {
+			throw new SphinxException("time buckets need one of SPH_GROUPBY_DAY/WEEK/MONTH/YEAR");
+		}
+		this.attribute = timestampAttribute;
+		this.func = groupFunc;
+		this.series = new LinkedHashMap<String, Map<Long, Integer>>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+			protected boolean removeEldestEntry(final Map.Entry<String, Map<Long, Integer>> eldest) {
+				return size() > maxSeries;
+			}
+		};
+	}
+
+	/**
+	 * Set time zone of searchd, which defines the day boundaries; default is
+	 * the local one.
+	 *
+	 * @param zone
+	 *            the time zone
+	 */
+	public synchronized void setTimeZone(final TimeZone zone) {
+		timeZone = (TimeZone) zone.clone();
+	}
+
+	/**
+	 * Set how long a day stays open after it ended, for documents indexed
+	 * late; default is 0.
+	 *
+	 * @param seconds
+	 *            grace period
+	 * @throws SphinxException
+	 *             if invalid value
+	 */
+	public synchronized void setGracePeriod(final long seconds) throws SphinxException {
+		if (seconds < 0) {
+			throw new SphinxException("grace period must not be negative");
+		}
+		graceSeconds = seconds;
+	}
+
+	/**
+	 * Get count series of the days covering a time range.
+	 *
+	 * @param client
+	 *            client configured with the filters of the search
+	 * @param searchKey
+	 *            identity of the search (query, index and client filters)
+	 * @param query
+	 *            the query
+	 * @param index
+	 *            the index name
+	 * @param from
+	 *            start of the range, unix time in seconds; rounded down to
+	 *            the start of its day
+	 * @param to
+	 *            end of the range, exclusive; rounded up to the end of its day
+	 * @return counts per bucket in ascending time order, empty buckets
+	 *         included
+	 * @throws SphinxException
+	 *             if the request failed
+	 */
+	public SphinxFacet query(final SphinxClient client, final String searchKey, final String query,
+			final String index, final long from, final long to) throws SphinxException {
+		if (searchKey == null || from >= to) {
+			throw new SphinxException("search key is required and the range must not be empty");
+		}
+		TimeZone zone;
+		long closedBefore;
+		synchronized (this) {
+			zone = timeZone;
+			closedBefore = System.currentTimeMillis() / MILLIS_IN_SECOND - graceSeconds;
+		}
+		Calendar day = Calendar.getInstance(zone);
+		day.setTimeInMillis(from * MILLIS_IN_SECOND);
+		day.set(Calendar.HOUR_OF_DAY, 0);
+		day.set(Calendar.MINUTE, 0);
+		day.set(Calendar.SECOND, 0);
+		day.set(Calendar.MILLISECOND, 0);
+		List<Long> starts = new ArrayList<Long>();
+		List<Long> keys = new ArrayList<Long>();
+		List<Long> buckets = new ArrayList<Long>();
+		while (day.getTimeInMillis() < to * MILLIS_IN_SECOND) {
+			starts.add(Long.valueOf(day.getTimeInMillis() / MILLIS_IN_SECOND));
+			keys.add(Long.valueOf(key(day, SphinxClient.SPH_GROUPBY_DAY)));
+			buckets.add(Long.valueOf(key(day, func)));
+			day.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		starts.add(Long.valueOf(day.getTimeInMillis() / MILLIS_IN_SECOND));
+
+		String cacheKey = searchKey + '\0' + query + '\0' + index;
+		Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		synchronized (this) {
+			Map<Long, Integer> cached = series.get(cacheKey);
+			if (cached != null) {
+				counts.putAll(cached);
+			}
+		}
+		int first = 0;
+		while (first < keys.size() && counts.containsKey(keys.get(first))) {
+			first++;
+		}
+		if (first < keys.size()) {
+			for (int i = first; i < keys.size(); i++) {
+				counts.put(keys.get(i), Integer.valueOf(0));
+			}
+			fetch(client, query, index, starts, first, counts);
+			synchronized (this) {
+				Map<Long, Integer> cached = series.get(cacheKey);
+				if (cached == null) {
+					cached = new HashMap<Long, Integer>();
+					series.put(cacheKey, cached);
+				}
+				for (int i = first; i < keys.size() && starts.get(i + 1).longValue() <= closedBefore; i++) {
+					cached.put(keys.get(i), counts.get(keys.get(i)));
+				}
+				queriedDays += keys.size() - first;
+			}
+		}
+
+		TreeMap<Long, Integer> rolled = new TreeMap<Long, Integer>();
+		for (int i = 0; i < keys.size(); i++) {
+			Integer sum = rolled.get(buckets.get(i));
+			int count = counts.get(keys.get(i)).intValue();
+			if (sum != null) {
+				count += sum.intValue();
+			}
+			rolled.put(buckets.get(i), Integer.valueOf(count));
+		}
+		long[] values = new long[rolled.size()];
+		int[] totals = new int[rolled.size()];
+		int i = 0;
+		for (Map.Entry<Long, Integer> bucket : rolled.entrySet()) {
+			values[i] = bucket.getKey().longValue();
+			totals[i] = bucket.getValue().intValue();
+			i++;
+		}
+		return new SphinxFacet(attribute, values, totals);
+	}
+
+	/**
+	 * Drop the cached days of a search, e.g. after documents were reindexed.
+	 *
+	 * @param searchKey
+	 *            identity of the search
+	 * @param query
+	 *            the query
+	 * @param index
+	 *            the index name
+	 */
+	public synchronized void invalidate(final String searchKey, final String query, final String index) {
+		series.remove(searchKey + '\0' + query + '\0' + index);
+	}
+
+	/**
+	 * Get total days queried from searchd, to monitor the cache efficiency.
+	 *
+	 * @return queried days
+	 */
+	public synchronized long getQueriedDays() {
+		return queriedDays;
+	}
+
+	/**
+	 * Query day counts from a day on, in chunks of at most 500 days per query
+	 * of one batch.
+	 *
+	 * @param client
+	 *            the client
+	 * @param query
+	 *            the query
+	 * @param index
+	 *            the index name
+	 * @param starts
+	 *            day starts, followed by the end of the last day
+	 * @param first
+	 *            first day to query
+	 * @param counts
+	 *            receives counts by day key
+	 * @throws SphinxException
+	 *             if the request failed
+	 */
+	private void fetch(final SphinxClient client, final String query, final String index, final List<Long> starts,
+			final int first, final Map<Long, Integer> counts) throws SphinxException {
+		int offset = client.getOffset();
+		int limit = client.getLimit();
+		int queries = 0;
+		try {
+			client.setGroupBy(attribute, SphinxClient.SPH_GROUPBY_DAY, "@group asc");
+			for (int from = first; from < starts.size() - 1; from += DAYS_PER_QUERY) {
+				int to = Math.min(starts.size() - 1, from + DAYS_PER_QUERY);
+				SphinxSearch search = new SphinxSearch(index);
+				search.addQuery(query);
+				search.addFilterSet(new SphinxFilterSet.Builder().range(attribute, starts.get(from).longValue(),
+						starts.get(to).longValue() - 1, false).build());
+				client.setLimits(0, to - from);
+				client.addQuery(search);
+				queries++;
+			}
+		} finally {
+			client.resetGroupBy();
+			client.setLimits(offset, limit);
+		}
+		SphinxResult[] results = client.runQueries();
+		for (int q = results.length - queries; q < results.length; q++) {
+			/* SEARCHD_RETRY fails as well, its days must not be cached as empty */
+			if (results[q].error != null) {
+				throw new SphinxException(results[q].error);
+			}
+			for (SphinxMatch match : results[q].getMatches()) {
+				counts.put(Long.valueOf(((Number) match.getAttribute("@groupby")).longValue()), Integer
+						.valueOf(((Number) match.getAttribute("@count")).intValue()));
+			}
+		}
+	}
+
+	/**
+	 * Compute the group key searchd assigns to a day.
+	 *
+	 * @param day
+	 *            the day
+	 * @param groupFunc
+	 *            the grouping function
+	 * @return the key
+	 */
+	private static long key(final Calendar day, final int groupFunc) {
+		int year = day.get(Calendar.YEAR);
+		int month = day.get(Calendar.MONTH) + 1;
+		switch (groupFunc) {
+		case SphinxClient.SPH_GROUPBY_DAY:
+			return year * YEAR_DAY_FACTOR + month * YEAR_MONTH_FACTOR + day.get(Calendar.DAY_OF_MONTH);
+		case SphinxClient.SPH_GROUPBY_WEEK:
+			/* day of year of the previous Sunday, which may be before January 1st */
+			return year * YEAR_WEEK_FACTOR + day.get(Calendar.DAY_OF_YEAR) - day.get(Calendar.DAY_OF_WEEK)
+					+ Calendar.SUNDAY;
+		case SphinxClient.SPH_GROUPBY_MONTH:
+			return year * YEAR_MONTH_FACTOR + month;
+		default:
+			return year;
+		}
+	}
+}
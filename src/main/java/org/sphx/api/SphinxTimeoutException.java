@@ -0,0 +1,39 @@
+package org.sphx.api;
+
+/** Exception thrown when a searchd exchange ran out of time. */
+public class SphinxTimeoutException extends SphinxNetworkException {
+	/**
+	 * serial Version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Stages of a searchd exchange. */
+	public enum Stage {
+		/** Establishing TCP connection. */
+		CONNECT,
+		/** Sending the request. */
+		WRITE,
+		/** Waiting for and reading the reply. */
+		READ
+	}
+
+	/** Stage which ran out of time. */
+	private final Stage stage;
+
+	/** Constructor from stage and error message string.
+	 * @param timedOut stage which ran out of time.
+	 * @param message message about error.
+	 */
+	public SphinxTimeoutException(final Stage timedOut, final String message) {
+		super(message);
+		this.stage = timedOut;
+	}
+
+	/**
+	 * Get stage which ran out of time.
+	 * @return the stage
+	 */
+	public final Stage getStage() {
+		return stage;
+	}
+}
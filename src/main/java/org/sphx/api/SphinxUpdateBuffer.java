@@ -0,0 +1,585 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sphx.util.LongIntHashMap;
+
+/**
+ * Write-behind buffer of attribute updates.
+ *
+ * Updates are coalesced per index, document and attribute, keeping only the
+ * latest value, and are sent by a background thread once enough documents are
+ * pending or the flush interval elapsed. Hot documents, such as view counters
+ * or stock levels changed by many events, then cost one update per flush
+ * instead of one request per event.
+ *
+ * searchd requires a value of every listed attribute for every document of an
+ * update request, so a flush sends one request per index and combination of
+ * changed attributes; usually that is one request per index.
+ *
+ * Memory is bounded: when the pending documents reach the maximum,
+ * {@link #update(String, long, String, int)} blocks until a flush frees room
+ * (updates of already pending documents never block).
+ *
+ * The updates of a failed flush are put back, under newer values of the same
+ * attributes, and sent by the next flush. After {@link #MAX_FLUSH_RETRIES}
+ * failed flushes in a row, or when the buffer is closed, they are dropped; the
+ * failure of a background flush that dropped updates is thrown by the next
+ * {@link #update(String, long, String, int)}, {@link #flush()} or
+ * {@link #close()}, which also sends whatever is still pending.
+ */
+public class SphinxUpdateBuffer {
+
+	/** Failed flushes in a row after which pending updates are dropped. */
+	public static final int MAX_FLUSH_RETRIES = 3;
+
+	private static final int MAX_ATTRS = 64;
+	private static final int INITIAL_ROWS = 64;
+	private static final long NANOS_IN_MILLISEC = 1000000L;
+
+	private final SphinxClientFactory factory;
+	private final int flushSize;
+	private final int maxPending;
+	private final long flushIntervalMillis;
+	private final Object flushLock = new Object();
+	private final Thread flusher;
+
+	private Map<String, Pending> buffers = new LinkedHashMap<String, Pending>();
+	private int buffered;
+	private int flushing;
+	private int failedInRow;
+	private boolean closed;
+	private SphinxException failure;
+	private SphinxClient client;
+
+	private long received;
+	private long sent;
+	private long flushes;
+	private long failedFlushes;
+	private long flushNanos;
+	private long maxFlushNanos;
+
+	/**
+	 * Creates buffer and starts its flush thread.
+	 *
+	 * @param clientFactory
+	 *            creates the client used for flushing
+	 * @param flushDocs
+	 *            pending documents starting a flush
+	 * @param maxDocs
+	 *            pending documents blocking further updates
+	 * @param intervalMillis
+	 *            maximum time an update stays pending
+	 * @throws SphinxException
+	 *             if invalid values
+	 */
+	public SphinxUpdateBuffer(final SphinxClientFactory clientFactory, final int flushDocs, final int maxDocs,
+			final long intervalMillis) throws SphinxException {
+		if (clientFactory == null || flushDocs < 1 || maxDocs < flushDocs || intervalMillis < 1) {
+			throw new SphinxException("values must satisfy 1 <= flush size <= max pending and interval > 0");
+		}
+		this.factory = clientFactory;
+		this.flushSize = flushDocs;
+		this.maxPending = maxDocs;
+		this.flushIntervalMillis = intervalMillis;
+		flusher = new Thread("sphinx-update-buffer") {
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Set attribute of a document, replacing a pending value of the same
+	 * attribute.
+	 *
+	 * @param index
+	 *            index name(s) to update
+	 * @param docId
+	 *            document ID
+	 * @param attr
+	 *            attribute name
+	 * @param value
+	 *            new value
+	 * @throws SphinxException
+	 *             if the buffer is closed, too many attributes are used, the
+	 *             thread is interrupted while blocked or a background flush
+	 *             dropped updates since the last report
+	 */
+	public synchronized void update(final String index, final long docId, final String attr, final int value)
+			throws SphinxException {
+		reportFailure();
+		Pending pending = buffers.get(index);
+		try {
+			while (!closed && (pending == null || !pending.contains(docId)) && buffered + flushing >= maxPending) {
+				notifyAll();
+				wait();
+				pending = buffers.get(index);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SphinxException("interrupted while waiting for update buffer");
+		}
+		if (closed) {
+			throw new SphinxException("update buffer is closed");
+		}
+		if (pending == null) {
+			pending = new Pending(index);
+			buffers.put(index, pending);
+		}
+		if (pending.set(docId, attr, value)) {
+			buffered++;
+		}
+		received++;
+		if (buffered >= flushSize) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Send pending updates now.
+	 *
+	 * @throws SphinxException
+	 *             if sending failed, the updates are kept for the next flush
+	 *             unless the retries are exhausted; or if a background flush
+	 *             dropped updates since the last report
+	 */
+	public void flush() throws SphinxException {
+		send(false);
+		synchronized (this) {
+			reportFailure();
+		}
+	}
+
+	/**
+	 * Send pending updates, putting them back if sending failed.
+	 *
+	 * @param background
+	 *            true if called by the flush thread, which records a failure
+	 *            dropping updates for the next caller
+	 * @throws SphinxException
+	 *             if sending failed
+	 */
+	private void send(final boolean background) throws SphinxException {
+		synchronized (flushLock) {
+			Map<String, Pending> batch;
+			int docs;
+			long cells = 0;
+			synchronized (this) {
+				batch = buffers;
+				buffers = new LinkedHashMap<String, Pending>();
+				docs = buffered;
+				buffered = 0;
+				flushing += docs;
+			}
+			if (docs == 0) {
+				return;
+			}
+			long start = System.nanoTime();
+			SphinxException error = null;
+			try {
+				if (client == null) {
+					client = factory.newClient();
+					client.open();
+				}
+				for (Iterator<Pending> it = batch.values().iterator(); it.hasNext();) {
+					Pending pending = it.next();
+					pending.send(client);
+					cells += pending.cells;
+					it.remove();
+				}
+			} catch (SphinxException e) {
+				error = e;
+				if (client != null) {
+					client.close();
+					client = null;
+				}
+			} finally {
+				synchronized (this) {
+					long took = System.nanoTime() - start;
+					flushing -= docs;
+					flushes++;
+					sent += cells;
+					flushNanos += took;
+					maxFlushNanos = Math.max(maxFlushNanos, took);
+					if (error == null) {
+						failedInRow = 0;
+					} else {
+						failedFlushes++;
+						failedInRow++;
+						if (closed || failedInRow > MAX_FLUSH_RETRIES || !requeue(batch)) {
+							failedInRow = 0;
+							if (background && failure == null) {
+								failure = error;
+							}
+						}
+					}
+					notifyAll();
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * Put updates of a failed flush back into the buffer. Values updated
+	 * meanwhile are newer and are kept.
+	 *
+	 * @param batch
+	 *            unsent updates
+	 * @return false if the updates could not all be put back
+	 */
+	private boolean requeue(final Map<String, Pending> batch) {
+		Map<String, Pending> newer = buffers;
+		buffers = batch;
+		boolean complete = true;
+		for (Pending pending : newer.values()) {
+			Pending older = buffers.get(pending.index);
+			if (older == null) {
+				buffers.put(pending.index, pending);
+				continue;
+			}
+			try {
+				pending.addOlder(older);
+			} catch (SphinxException e) {
+				complete = false;
+			}
+			buffers.put(pending.index, pending);
+		}
+		buffered = 0;
+		for (Pending pending : buffers.values()) {
+			buffered += pending.size;
+		}
+		return complete;
+	}
+
+	/**
+	 * Throw the failure of a background flush that dropped updates, once.
+	 *
+	 * @throws SphinxException
+	 *             the failure
+	 */
+	private void reportFailure() throws SphinxException {
+		if (failure != null) {
+			SphinxException e = failure;
+			failure = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop the flush thread and send pending updates.
+	 *
+	 * @throws SphinxException
+	 *             if the final flush or an earlier background flush failed
+	 */
+	public void close() throws SphinxException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			send(false);
+		} finally {
+			synchronized (flushLock) {
+				if (client != null) {
+					client.close();
+					client = null;
+				}
+			}
+		}
+		synchronized (this) {
+			reportFailure();
+		}
+	}
+
+	/**
+	 * Body of the flush thread.
+	 */
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				long due = System.currentTimeMillis() + flushIntervalMillis;
+				long left = flushIntervalMillis;
+				while (!closed && buffered < flushSize && left > 0) {
+					try {
+						wait(left);
+					} catch (InterruptedException e) {
+						return;
+					}
+					left = due - System.currentTimeMillis();
+				}
+				if (closed) {
+					return;
+				}
+			}
+			try {
+				send(true);
+			} catch (SphinxException e) {
+				/* kept for the next flush or recorded for the next caller */
+			}
+		}
+	}
+
+	/**
+	 * Get documents waiting or being sent.
+	 *
+	 * @return pending documents
+	 */
+	public synchronized int getPendingCount() {
+		return buffered + flushing;
+	}
+
+	/**
+	 * Get amount of attribute updates received.
+	 *
+	 * @return received updates
+	 */
+	public synchronized long getReceivedCount() {
+		return received;
+	}
+
+	/**
+	 * Get amount of attribute values sent to searchd.
+	 *
+	 * @return sent values
+	 */
+	public synchronized long getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * Get received updates per sent value.
+	 *
+	 * @return coalescing ratio, 1 if nothing was sent yet
+	 */
+	public synchronized double getCoalescingRatio() {
+		if (sent == 0) {
+			return 1;
+		}
+		return (double) received / sent;
+	}
+
+	/**
+	 * Get amount of flushes.
+	 *
+	 * @return flushes
+	 */
+	public synchronized long getFlushCount() {
+		return flushes;
+	}
+
+	/**
+	 * Get amount of failed flushes.
+	 *
+	 * @return failed flushes
+	 */
+	public synchronized long getFailedFlushCount() {
+		return failedFlushes;
+	}
+
+	/**
+	 * Get average flush latency.
+	 *
+	 * @return milliseconds
+	 */
+	public synchronized double getAverageFlushMillis() {
+		if (flushes == 0) {
+			return 0;
+		}
+		return (double) flushNanos / flushes / NANOS_IN_MILLISEC;
+	}
+
+	/**
+	 * Get longest flush latency.
+	 *
+	 * @return milliseconds
+	 */
+	public synchronized long getMaxFlushMillis() {
+		return maxFlushNanos / NANOS_IN_MILLISEC;
+	}
+
+	/** Pending updates of one index, stored by columns. */
+	private static final class Pending {
+		private final String index;
+		private final Map<String, Integer> attrIds = new HashMap<String, Integer>();
+		private final List<String> attrs = new ArrayList<String>();
+		private final List<int[]> columns = new ArrayList<int[]>();
+		private final LongIntHashMap rows = new LongIntHashMap();
+		private long[] ids = new long[INITIAL_ROWS];
+		private long[] masks = new long[INITIAL_ROWS];
+		private int size;
+		private int cells;
+
+		/**
+		 * Create buffer of an index.
+		 *
+		 * @param indexName
+		 *            index name
+		 */
+		private Pending(final String indexName) {
+			this.index = indexName;
+		}
+
+		/**
+		 * Check whether the document has pending updates.
+		 *
+		 * @param docId
+		 *            document ID
+		 * @return true if pending
+		 */
+		private boolean contains(final long docId) {
+			return rows.containsKey(docId);
+		}
+
+		/**
+		 * Check whether an attribute of the document has a pending value.
+		 *
+		 * @param docId
+		 *            document ID
+		 * @param attr
+		 *            attribute name
+		 * @return true if pending
+		 */
+		private boolean contains(final long docId, final String attr) {
+			Integer attrId = attrIds.get(attr);
+			int row = rows.get(docId, -1);
+			return attrId != null && row >= 0 && (masks[row] & (1L << attrId.intValue())) != 0;
+		}
+
+		/**
+		 * Add values of older updates of the same index unless this buffer
+		 * has newer values of the same attributes.
+		 *
+		 * @param older
+		 *            older updates
+		 * @throws SphinxException
+		 *             if too many attributes
+		 */
+		private void addOlder(final Pending older) throws SphinxException {
+			for (int row = 0; row < older.size; row++) {
+				for (int attr = 0; attr < older.attrs.size(); attr++) {
+					String name = older.attrs.get(attr);
+					if ((older.masks[row] & (1L << attr)) != 0 && !contains(older.ids[row], name)) {
+						set(older.ids[row], name, older.columns.get(attr)[row]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Set attribute value.
+		 *
+		 * @param docId
+		 *            document ID
+		 * @param attr
+		 *            attribute name
+		 * @param value
+		 *            the value
+		 * @return true if the document was not pending yet
+		 * @throws SphinxException
+		 *             if too many attributes
+		 */
+		private boolean set(final long docId, final String attr, final int value) throws SphinxException {
+			Integer attrId = attrIds.get(attr);
+			if (attrId == null) {
+				if (attrs.size() >= MAX_ATTRS) {
+					throw new SphinxException("update buffer supports up to " + MAX_ATTRS + " attributes per index");
+				}
+				attrId = Integer.valueOf(attrs.size());
+				attrIds.put(attr, attrId);
+				attrs.add(attr);
+				columns.add(new int[ids.length]);
+			}
+			int row = rows.get(docId, -1);
+			boolean added = row < 0;
+			if (added) {
+				if (size == ids.length) {
+					grow();
+				}
+				row = size++;
+				rows.put(docId, row);
+				ids[row] = docId;
+				masks[row] = 0;
+			}
+			long bit = 1L << attrId.intValue();
+			if ((masks[row] & bit) == 0) {
+				masks[row] |= bit;
+				cells++;
+			}
+			columns.get(attrId.intValue())[row] = value;
+			return added;
+		}
+
+		/**
+		 * Double row capacity.
+		 */
+		private void grow() {
+			ids = Arrays.copyOf(ids, ids.length * 2);
+			masks = Arrays.copyOf(masks, masks.length * 2);
+			for (int i = 0; i < columns.size(); i++) {
+				columns.set(i, Arrays.copyOf(columns.get(i), ids.length));
+			}
+		}
+
+		/**
+		 * Send one update request per combination of changed attributes.
+		 *
+		 * @param client
+		 *            the client
+		 * @throws SphinxException
+		 *             if update failed
+		 */
+		private void send(final SphinxClient client) throws SphinxException {
+			boolean[] done = new boolean[size];
+			for (int first = 0; first < size; first++) {
+				if (done[first]) {
+					continue;
+				}
+				long mask = masks[first];
+				int count = 0;
+				for (int row = first; row < size; row++) {
+					if (masks[row] == mask) {
+						count++;
+					}
+				}
+				int[] selected = new int[Long.bitCount(mask)];
+				String[] names = new String[selected.length];
+				int[][] values = new int[selected.length][count];
+				int i = 0;
+				for (int attr = 0; attr < attrs.size(); attr++) {
+					if ((mask & (1L << attr)) != 0) {
+						selected[i] = attr;
+						names[i++] = attrs.get(attr);
+					}
+				}
+				long[] groupIds = new long[count];
+				int n = 0;
+				for (int row = first; row < size; row++) {
+					if (masks[row] == mask) {
+						done[row] = true;
+						groupIds[n] = ids[row];
+						for (i = 0; i < selected.length; i++) {
+							values[i][n] = columns.get(selected[i])[row];
+						}
+						n++;
+					}
+				}
+				SphinxBulkUpdater.send(client, SphinxBulkUpdater.encode(index, names, groupIds, values, count));
+			}
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.sphx.api;
+
+/** Streams attribute updates into {@link SphinxBulkUpdater} in columnar form. */
+public interface SphinxUpdateSource {
+
+	/**
+	 * Fill next rows of updates, from position 0 of the given arrays.
+	 * 
+	 * @param docIds
+	 *            receives document IDs; its length is the maximum amount of
+	 *            rows
+	 * @param columns
+	 *            receives values, one array per attribute in the order of
+	 *            the attribute names
+	 * @return amount of filled rows, 0 when there are no more updates
+	 * @throws SphinxException
+	 *             if updates could not be read
+	 */
+	int next(long[] docIds, int[][] columns) throws SphinxException;
+}
@@ -0,0 +1,156 @@
+package org.sphx.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to int values without boxing, for document IDs.
+ * Open addressing with linear probing; not thread safe.
+ */
+public final class LongIntHashMap {
+
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final int MAX_LOAD_PERCENT = 50;
+	private static final int PERCENT = 100;
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+	private static final int INT_BITS = 32;
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+
+	/**
+	 * Creates empty map.
+	 */
+	public LongIntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates empty map sized for expected amount of entries.
+	 * 
+	 * @param expected
+	 *            expected amount of entries
+	 */
+	public LongIntHashMap(final int expected) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * MAX_LOAD_PERCENT / PERCENT < expected) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Get value of a key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param missing
+	 *            value returned if the key is absent
+	 * @return the value
+	 */
+	public int get(final long key, final int missing) {
+		int slot = slot(key);
+		if (used[slot]) {
+			return values[slot];
+		}
+		return missing;
+	}
+
+	/**
+	 * Check whether the key is present.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return true if present
+	 */
+	public boolean containsKey(final long key) {
+		return used[slot(key)];
+	}
+
+	/**
+	 * Set value of a key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 */
+	public void put(final long key, final int value) {
+		int slot = slot(key);
+		if (!used[slot]) {
+			if ((size + 1) * PERCENT > keys.length * MAX_LOAD_PERCENT) {
+				rehash();
+				slot = slot(key);
+			}
+			used[slot] = true;
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+	}
+
+	/**
+	 * Get amount of entries.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all entries, keeping the allocated capacity.
+	 */
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * Find slot of a key, or the free slot where it belongs.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the slot
+	 */
+	private int slot(final long key) {
+		long h = key * GOLDEN_RATIO;
+		int mask = keys.length - 1;
+		int slot = (int) (h ^ (h >>> INT_BITS)) & mask;
+		while (used[slot] && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Double the capacity.
+	 */
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int slot = slot(oldKeys[i]);
+				used[slot] = true;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Allocate empty tables.
+	 * 
+	 * @param capacity
+	 *            table size, power of two
+	 */
+	private void allocate(final int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+	}
+}
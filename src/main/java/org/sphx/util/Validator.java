@@ -50,6 +50,17 @@ public final class Validator {
 		return elements != null && elements.length != 0;
 	}
 
+	/**
+	 * Validate that an array of longs is not empty.
+	 * 
+	 * @param elements
+	 *            an array of longs
+	 * @return true if not empty
+	 */
+	public static boolean isNotEmpty(final long[] elements) {
+		return elements != null && elements.length != 0;
+	}
+
 	/**
 	 * Validate that a collection is not empty.
 	 * 
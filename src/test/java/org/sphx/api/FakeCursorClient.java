@@ -0,0 +1,52 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Index of 2500 documents with IDs first + step * N, answering pages sorted by ID like a cursor expects. */
+class FakeCursorClient extends SphinxClient {
+
+	static final int DOCUMENTS = 2500;
+
+	/** Start of the ID range of every query, in query order. */
+	final List<Long> ranges = Collections.synchronizedList(new ArrayList<Long>());
+	volatile boolean failing;
+
+	private final long first;
+	private final long step;
+	private long min;
+	private long max;
+	private int limit = 20;
+
+	FakeCursorClient(long firstId, long idStep) {
+		first = firstId;
+		step = idStep;
+	}
+
+	public void setIDRange(long minValue, long maxValue) throws SphinxException {
+		super.setIDRange(minValue, maxValue);
+		min = minValue;
+		max = maxValue;
+	}
+
+	public void setLimits(int offsetValue, int limitValue, int maxValue) throws SphinxException {
+		super.setLimits(offsetValue, limitValue, maxValue);
+		limit = limitValue;
+	}
+
+	public SphinxResult query(String query, String index) throws SphinxException {
+		if (failing) {
+			throw new SphinxNetworkException("connection refused");
+		}
+		ranges.add(Long.valueOf(min));
+		SphinxResult result = new SphinxResult();
+		for (long n = 0; n < DOCUMENTS && result.getMatches().size() < limit; n++) {
+			long id = first + step * n;
+			if (id >= min && (max == -1L || id <= max)) {
+				result.addMatch(new SphinxMatch(id, 1));
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,106 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class SphinxAttributeUpdateTest extends TestCase {
+
+	public void testEncodesTypedValues() throws SphinxException, IOException {
+		SphinxAttributeUpdate update = new SphinxAttributeUpdate();
+		update.addAttribute("rating", SphinxClient.SPH_ATTR_FLOAT);
+		update.addAttribute("views", SphinxClient.SPH_ATTR_BIGINT);
+		update.addAttribute("tags", SphinxClient.SPH_ATTR_MULTI | SphinxClient.SPH_ATTR_INTEGER);
+		for (int i = 0; i < 20; i++) {
+			update.addDocument(i + 1);
+			update.setFloat("rating", 4.5f);
+			update.setBigint("views", 4000000000L);
+			update.setMulti("tags", new int[] { 5, 6 });
+		}
+
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		SphinxClient client = new SphinxClient() {
+			DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req) {
+				assertEquals(SphinxClient.SEARCHD_COMMAND_UPDATE, command);
+				assertEquals(SphinxClient.VER_COMMAND_UPDATE, version);
+				sent.write(req.toByteArray(), 0, req.size());
+				return new DataInputStream(new ByteArrayInputStream(new byte[] { 0, 0, 0, 20 }));
+			}
+		};
+		assertEquals(20, client.updateAttributes("test1", update));
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(sent.toByteArray()));
+		assertEquals("test1", SphinxClient.readNetUTF8(in));
+		assertEquals(3, in.readInt());
+		assertEquals("rating", SphinxClient.readNetUTF8(in));
+		assertEquals(0, in.readInt());
+		assertEquals("views", SphinxClient.readNetUTF8(in));
+		assertEquals(0, in.readInt());
+		assertEquals("tags", SphinxClient.readNetUTF8(in));
+		assertEquals(1, in.readInt());
+		assertEquals(20, in.readInt());
+		assertEquals(1, in.readLong());
+		assertEquals(4.5f, in.readFloat(), 0);
+		assertEquals(4000000000L, SphinxClient.readDword(in));
+		assertEquals(2, in.readInt());
+		assertEquals(5, in.readInt());
+		assertEquals(6, in.readInt());
+		assertEquals(2, in.readLong());
+	}
+
+	public void testRejectsWideBigint() throws SphinxException {
+		SphinxAttributeUpdate update = new SphinxAttributeUpdate();
+		update.addAttribute("views", SphinxClient.SPH_ATTR_BIGINT);
+		update.addDocument(1);
+		try {
+			update.setBigint("views", 1L << 40);
+			fail();
+		} catch (SphinxException e) {
+			assertTrue(e.getMessage().startsWith("bigint value 1099511627776 of attribute 'views' is out of"));
+		}
+		try {
+			update.setFloat("views", 1);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("attribute 'views' is not a float", e.getMessage());
+		}
+	}
+
+	public void testIntIsUnsignedForBigint() throws Exception {
+		SphinxAttributeUpdate update = new SphinxAttributeUpdate();
+		update.addAttribute("views", SphinxClient.SPH_ATTR_BIGINT);
+		update.addDocument(1);
+		update.setInt("views", -1);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(update.encode("test1").toByteArray()));
+		assertEquals("test1", SphinxClient.readNetUTF8(in));
+		assertEquals(1, in.readInt());
+		assertEquals("views", SphinxClient.readNetUTF8(in));
+		assertEquals(0, in.readInt());
+		assertEquals(1, in.readInt());
+		assertEquals(1, in.readLong());
+		assertEquals(4294967295L, SphinxClient.readDword(in));
+	}
+
+	public void testMissingValue() throws SphinxException {
+		SphinxAttributeUpdate update = new SphinxAttributeUpdate();
+		update.addAttribute("group_id", SphinxClient.SPH_ATTR_INTEGER);
+		update.addAttribute("rating", SphinxClient.SPH_ATTR_FLOAT);
+		update.addDocument(7);
+		update.setInt("group_id", 1);
+		try {
+			update.encode("test1");
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("document 7 has no value of attribute 'rating'", e.getMessage());
+		}
+		try {
+			update.addAttribute("price", SphinxClient.SPH_ATTR_INTEGER);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("attributes must be added before documents", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxBulkUpdaterTest extends TestCase {
+
+	private final List<byte[]> requests = Collections.synchronizedList(new ArrayList<byte[]>());
+	private final List<SphinxClient> opened = Collections.synchronizedList(new ArrayList<SphinxClient>());
+
+	private final SphinxClientFactory factory = new SphinxClientFactory("localhost", 3312) {
+		public SphinxClient newClient() {
+			return new SphinxClient() {
+				public void open() {
+					opened.add(this);
+				}
+
+				DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req)
+						throws SphinxException {
+					assertEquals(SphinxClient.SEARCHD_COMMAND_UPDATE, command);
+					requests.add(req.toByteArray());
+					try {
+						/* pretend every document is found */
+						ByteArrayOutputStream reply = new ByteArrayOutputStream();
+						new DataOutputStream(reply).writeInt(rows(req.toByteArray()));
+						return new DataInputStream(new ByteArrayInputStream(reply.toByteArray()));
+					} catch (IOException e) {
+						throw new SphinxException(e.getMessage());
+					}
+				}
+			};
+		}
+	};
+
+	public void testChunks() throws SphinxException, IOException {
+		long[] ids = new long[25];
+		int[] prices = new int[25];
+		int[] stocks = new int[25];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = 1000 + i;
+			prices[i] = i * 10;
+			stocks[i] = i;
+		}
+		SphinxBulkUpdater updater = new SphinxBulkUpdater(factory, 3);
+		updater.setChunkSize(10, 1024 * 1024);
+		int[] updated = updater.update("products", new String[] { "price", "stock" }, ids, new int[][] { prices,
+				stocks });
+		assertEquals(3, updated.length);
+		assertEquals(10, updated[0]);
+		assertEquals(10, updated[1]);
+		assertEquals(5, updated[2]);
+		assertEquals(3, requests.size());
+		assertTrue(opened.size() >= 1 && opened.size() <= 3);
+
+		/* find the last chunk and check its encoding */
+		byte[] last = null;
+		for (byte[] req : requests) {
+			if (rows(req) == 5) {
+				last = req;
+			}
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(last));
+		assertEquals("products", SphinxClient.readNetUTF8(in));
+		assertEquals(2, in.readInt());
+		assertEquals("price", SphinxClient.readNetUTF8(in));
+		assertEquals(0, in.readInt());
+		assertEquals("stock", SphinxClient.readNetUTF8(in));
+		assertEquals(0, in.readInt());
+		assertEquals(5, in.readInt());
+		assertEquals(1020, in.readLong());
+		assertEquals(200, in.readInt());
+		assertEquals(20, in.readInt());
+	}
+
+	public void testStreamingSource() throws SphinxException {
+		SphinxBulkUpdater updater = new SphinxBulkUpdater(factory, 2);
+		/* 8 byte id and 4 byte value per row leave room for about 4 rows */
+		updater.setChunkSize(1000, 80);
+		int[] updated = updater.update("products", new String[] { "stock" }, new SphinxUpdateSource() {
+			private int left = 100;
+
+			public int next(long[] docIds, int[][] columns) {
+				int n = Math.min(left, docIds.length);
+				for (int i = 0; i < n; i++) {
+					docIds[i] = left - i;
+					columns[0][i] = 1;
+				}
+				left -= n;
+				return n;
+			}
+		});
+		int total = 0;
+		for (int i = 0; i < updated.length; i++) {
+			assertTrue(updated[i] <= 5);
+			total += updated[i];
+		}
+		assertEquals(100, total);
+	}
+
+	public void testChunkSizeCountsEncodedNames() throws SphinxException {
+		SphinxBulkUpdater updater = new SphinxBulkUpdater(factory, 1);
+		/* 24 characters, 48 bytes each in UTF-8 */
+		String index = "\u0442\u043e\u0432\u0430\u0440\u044b\u0442\u043e\u0432\u0430\u0440\u044b"
+				+ "\u0442\u043e\u0432\u0430\u0440\u044b\u0442\u043e\u0432\u0430\u0440\u044b";
+		String attr = "\u0446\u0435\u043d\u0430\u0446\u0435\u043d\u0430\u0446\u0435\u043d\u0430"
+				+ "\u0446\u0435\u043d\u0430\u0446\u0435\u043d\u0430\u0446\u0435\u043d\u0430";
+		updater.setChunkSize(1000, 200);
+		long[] ids = new long[20];
+		int[] prices = new int[20];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = i + 1;
+		}
+		updater.update(index, new String[] { attr }, ids, new int[][] { prices });
+		for (byte[] req : requests) {
+			assertTrue(req.length <= 200);
+		}
+	}
+
+	public void testWrongColumns() throws SphinxException {
+		SphinxBulkUpdater updater = new SphinxBulkUpdater(factory, 1);
+		try {
+			updater.update("products", new String[] { "price" }, new long[] { 1, 2 }, new int[][] { { 1 } });
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("column #0 has wrong length", e.getMessage());
+		}
+	}
+
+	private static int rows(byte[] req) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(req));
+			SphinxClient.readNetUTF8(in);
+			int attrs = in.readInt();
+			for (int i = 0; i < attrs; i++) {
+				SphinxClient.readNetUTF8(in);
+				in.readInt();
+			}
+			return in.readInt();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+}
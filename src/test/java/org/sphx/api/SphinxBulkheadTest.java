@@ -0,0 +1,126 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+public class SphinxBulkheadTest extends TestCase {
+
+	public void testRejectsWhenFull() throws SphinxException {
+		SphinxBulkhead bulkhead = new SphinxBulkhead("excerpt", 1, 0);
+		bulkhead.acquire();
+		try {
+			bulkhead.acquire();
+			fail();
+		} catch (SphinxRejectedException e) {
+			assertEquals("bulkhead 'excerpt' is full (1 concurrent commands)", e.getMessage());
+		}
+		assertEquals(1, bulkhead.getRejectedCount());
+		assertEquals(1, bulkhead.getPeakInFlight());
+		bulkhead.release();
+		assertEquals(0, bulkhead.getInFlight());
+	}
+
+	public void testWaitsForPermit() throws Exception {
+		final SphinxBulkhead bulkhead = new SphinxBulkhead("search", 1, 5000);
+		bulkhead.acquire();
+		Thread releaser = new Thread() {
+			public void run() {
+				while (bulkhead.getQueueDepth() == 0) {
+					Thread.yield();
+				}
+				bulkhead.release();
+			}
+		};
+		releaser.start();
+		bulkhead.acquire();
+		releaser.join();
+		assertEquals(1, bulkhead.getInFlight());
+		assertEquals(0, bulkhead.getRejectedCount());
+	}
+
+	public void testFullExcerptBulkheadDoesNotBlockSearch() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SphinxClient client = new SphinxClient() {
+			protected Socket getSocket() throws IOException {
+				return socket(out);
+			}
+		};
+		SphinxBulkhead excerpts = new SphinxBulkhead("excerpt", 1, 0);
+		client.setBulkhead(SphinxClient.SEARCHD_COMMAND_EXCERPT, excerpts);
+		client.setBulkhead(SphinxClient.SEARCHD_COMMAND_SEARCH, new SphinxBulkhead("search", 1, 0));
+		excerpts.acquire();
+		try {
+			client.buildExcerpts(new String[] { "doc" }, "test1", "word", new HashMap<String, Object>());
+			fail();
+		} catch (SphinxRejectedException e) {
+			assertEquals(0, out.size());
+		}
+		try {
+			client.query("test", "test1");
+			fail();
+		} catch (SphinxException e) {
+			assertFalse(e instanceof SphinxRejectedException);
+		}
+		assertTrue(out.size() > 0);
+	}
+
+	public void testTimeoutTightensRequestTimeout() throws Exception {
+		SphinxClient client = new SphinxClient() {
+			protected Socket getSocket() throws IOException {
+				try {
+					Thread.sleep(30);
+				} catch (InterruptedException e) {
+					throw new IOException(e.getMessage());
+				}
+				return socket(new ByteArrayOutputStream());
+			}
+		};
+		client.setRequestTimeout(10000);
+		SphinxBulkhead bulkhead = new SphinxBulkhead("search", 1, 0);
+		bulkhead.setTimeout(10);
+		client.setBulkhead(SphinxClient.SEARCHD_COMMAND_SEARCH, bulkhead);
+		try {
+			client.query("test", "test1");
+			fail();
+		} catch (SphinxTimeoutException e) {
+			assertEquals("request timeout of 10 ms exceeded before read", e.getMessage());
+		}
+		assertEquals(0, bulkhead.getInFlight());
+	}
+
+	public void testWrongValues() throws SphinxException {
+		try {
+			new SphinxBulkhead("search", 0, 0);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("concurrency must be positive and wait must not be negative", e.getMessage());
+		}
+		try {
+			new SphinxClient().setBulkhead(-1, null);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("unknown searchd command", e.getMessage());
+		}
+	}
+
+	private static Socket socket(final ByteArrayOutputStream out) {
+		/* handshake only, the reply is cut on purpose */
+		final InputStream in = new ByteArrayInputStream(new byte[] { 0, 0, 0, 1 });
+		return new Socket() {
+			public InputStream getInputStream() throws IOException {
+				return in;
+			}
+
+			public OutputStream getOutputStream() throws IOException {
+				return out;
+			}
+		};
+	}
+}
@@ -0,0 +1,137 @@
+package org.sphx.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxCircuitBreakerTest extends TestCase {
+
+	private static final String ENDPOINT = "localhost:3312";
+
+	private SphinxCircuitBreaker breaker;
+	private List<String> transitions;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		breaker = new SphinxCircuitBreaker();
+		breaker.setWindowSize(4);
+		breaker.setMinimumCalls(4);
+		breaker.setFailureRateThreshold(50);
+		breaker.setHalfOpenCalls(2);
+		transitions = new ArrayList<String>();
+		breaker.addListener(new SphinxCircuitBreakerListener() {
+			public void onStateTransition(String endpoint, SphinxCircuitBreaker.State from,
+					SphinxCircuitBreaker.State to) {
+				transitions.add(endpoint + " " + from + "->" + to);
+			}
+		});
+	}
+
+	public void testOpensOnFailureRate() {
+		for (int i = 0; i < 3; i++) {
+			assertTrue(breaker.tryAcquire(ENDPOINT));
+			breaker.onSuccess(ENDPOINT, 1);
+		}
+		assertEquals(-1.0f, breaker.getFailureRate(ENDPOINT), 0.001f);
+		assertTrue(breaker.tryAcquire(ENDPOINT));
+		breaker.onFailure(ENDPOINT, 1);
+		assertEquals(25.0f, breaker.getFailureRate(ENDPOINT), 0.001f);
+		assertEquals(SphinxCircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+
+		assertTrue(breaker.tryAcquire(ENDPOINT));
+		breaker.onFailure(ENDPOINT, 1);
+		assertEquals(SphinxCircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+		assertFalse(breaker.tryAcquire(ENDPOINT));
+		assertEquals(1, breaker.getRejectedCount(ENDPOINT));
+		assertEquals(1, breaker.getOpenCount(ENDPOINT));
+		assertEquals("localhost:3312 CLOSED->OPEN", transitions.get(0));
+	}
+
+	public void testOpensOnSlowCallRate() throws SphinxException {
+		breaker.setSlowCallRateThreshold(75, 100);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(breaker.tryAcquire(ENDPOINT));
+			breaker.onSuccess(ENDPOINT, 150);
+		}
+		assertTrue(breaker.tryAcquire(ENDPOINT));
+		breaker.onSuccess(ENDPOINT, 10);
+		assertEquals(75.0f, breaker.getSlowCallRate(ENDPOINT), 0.001f);
+		assertEquals(SphinxCircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+	}
+
+	public void testHalfOpenProbes() throws SphinxException {
+		breaker.setOpenDuration(0);
+		open();
+		assertTrue(breaker.tryAcquire(ENDPOINT));
+		assertEquals(SphinxCircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+		assertTrue(breaker.tryAcquire(ENDPOINT));
+		assertFalse(breaker.tryAcquire(ENDPOINT));
+		breaker.onSuccess(ENDPOINT, 1);
+		breaker.onSuccess(ENDPOINT, 1);
+		assertEquals(SphinxCircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+		assertEquals(-1.0f, breaker.getFailureRate(ENDPOINT), 0.001f);
+
+		open();
+		assertTrue(breaker.tryAcquire(ENDPOINT));
+		breaker.onFailure(ENDPOINT, 1);
+		assertEquals(SphinxCircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+		assertEquals("localhost:3312 HALF_OPEN->OPEN", transitions.get(transitions.size() - 1));
+	}
+
+	public void testClientFailsFast() throws IOException {
+		final int[] connects = new int[1];
+		SphinxClient client = new SphinxClient() {
+			protected Socket getSocket() throws IOException {
+				connects[0]++;
+				throw new ConnectException("refused");
+			}
+		};
+		client.setCircuitBreaker(breaker);
+		for (int i = 0; i < 4; i++) {
+			try {
+				client.executeCommand(SphinxClient.SEARCHD_COMMAND_SEARCH, SphinxClient.VER_COMMAND_SEARCH,
+						new ByteArrayOutputStream());
+				fail();
+			} catch (SphinxException e) {
+				assertTrue(e instanceof SphinxNetworkException);
+			}
+		}
+		try {
+			client.executeCommand(SphinxClient.SEARCHD_COMMAND_SEARCH, SphinxClient.VER_COMMAND_SEARCH,
+					new ByteArrayOutputStream());
+			fail();
+		} catch (SphinxException e) {
+			assertTrue(e instanceof SphinxCircuitOpenException);
+			assertEquals(ENDPOINT, ((SphinxCircuitOpenException) e).getEndpoint());
+		}
+		assertEquals(4, connects[0]);
+	}
+
+	public void testWrongSettings() {
+		try {
+			breaker.setFailureRateThreshold(101);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("failure rate must be in 0..100 range", e.getMessage());
+		}
+		try {
+			breaker.setWindowSize(0);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("window size must be positive", e.getMessage());
+		}
+	}
+
+	private void open() {
+		for (int i = 0; i < 4; i++) {
+			breaker.tryAcquire(ENDPOINT);
+			breaker.onFailure(ENDPOINT, 1);
+		}
+		assertEquals(SphinxCircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+	}
+}
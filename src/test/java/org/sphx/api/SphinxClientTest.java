@@ -13,6 +13,7 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -638,6 +639,154 @@ public class SphinxClientTest extends TestCase {
 		assertTrue(socket.isClosed());
 	}
 
+	public void testPersistentConnection() throws IOException, SphinxException {
+		byte[] replies = new byte[] { 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 7, 0, 0, 0, 1, 0, 0, 0, 1, 8 };
+		final InputStream in = new ByteArrayInputStream(replies);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final int[] connects = new int[1];
+		final Socket socket = new Socket() {
+			public InputStream getInputStream() throws IOException {
+				return in;
+			}
+
+			public OutputStream getOutputStream() throws IOException {
+				return out;
+			}
+		};
+		sphinxClient = new SphinxClient() {
+			protected Socket getSocket() {
+				connects[0]++;
+				return socket;
+			}
+		};
+		sphinxClient.open();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(new byte[] { 9 });
+		assertEquals(7, sphinxClient.executeCommand(SphinxClient.SEARCHD_COMMAND_UPDATE,
+				SphinxClient.VER_COMMAND_UPDATE, data).read());
+		assertEquals(8, sphinxClient.executeCommand(SphinxClient.SEARCHD_COMMAND_UPDATE,
+				SphinxClient.VER_COMMAND_UPDATE, data).read());
+		assertEquals(1, connects[0]);
+		assertFalse(socket.isClosed());
+
+		byte[] expectedBytes = { 0, 0, 0, 1, 0, 4, 0, 0, 0, 0, 0, 4, 0, 0, 0, 1, 0, 2, 1, 2, 0, 0, 0, 1, 9, 0, 2, 1,
+				2, 0, 0, 0, 1, 9 };
+		assertEquals(expectedBytes, out.toByteArray());
+		sphinxClient.close();
+		assertTrue(socket.isClosed());
+	}
+
+	public void testPersistentConnectionSurvivesErrorReply() throws IOException, SphinxException {
+		byte[] replies = new byte[] { 0, 0, 0, 1, 0, 1, 0, 0, 0, 0, 0, 9, 0, 0, 0, 5, 'w', 'r', 'o', 'n', 'g', 0, 0,
+				0, 0, 0, 0, 0, 1, 8 };
+		final InputStream in = new ByteArrayInputStream(replies);
+		final int[] connects = new int[1];
+		final Socket socket = new Socket() {
+			public InputStream getInputStream() throws IOException {
+				return in;
+			}
+
+			public OutputStream getOutputStream() throws IOException {
+				return new ByteArrayOutputStream();
+			}
+		};
+		sphinxClient = new SphinxClient() {
+			protected Socket getSocket() {
+				connects[0]++;
+				return socket;
+			}
+		};
+		sphinxClient.open();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(new byte[] { 9 });
+		try {
+			sphinxClient.executeCommand(SphinxClient.SEARCHD_COMMAND_UPDATE, SphinxClient.VER_COMMAND_UPDATE, data);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("searchd error: wrong", e.getMessage());
+		}
+		assertFalse(socket.isClosed());
+		assertEquals(8, sphinxClient.executeCommand(SphinxClient.SEARCHD_COMMAND_UPDATE,
+				SphinxClient.VER_COMMAND_UPDATE, data).read());
+		assertEquals(1, connects[0]);
+		sphinxClient.close();
+	}
+
+	private static byte[] searchReply(int[] statuses) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		for (int i = 0; i < statuses.length; i++) {
+			out.writeInt(statuses[i]);
+			if (statuses[i] != SphinxClient.SEARCHD_OK) {
+				SphinxClient.writeNetUTF8(out, "failed");
+				continue;
+			}
+			out.writeInt(0); // fields
+			out.writeInt(0); // attrs
+			out.writeInt(0); // matches
+			out.writeInt(0); // id64
+			out.writeInt(i); // total
+			out.writeInt(i); // total found
+			out.writeInt(0); // time
+			out.writeInt(0); // words
+		}
+		ByteArrayOutputStream reply = new ByteArrayOutputStream();
+		DataOutputStream replyOut = new DataOutputStream(reply);
+		replyOut.writeInt(1);
+		replyOut.writeShort(SphinxClient.SEARCHD_OK);
+		replyOut.writeShort(SphinxClient.VER_COMMAND_SEARCH);
+		replyOut.writeInt(body.size());
+		replyOut.write(body.toByteArray());
+		return reply.toByteArray();
+	}
+
+	public void testSubQueryRetries() throws Exception {
+		final byte[][] replies = { searchReply(new int[] { SphinxClient.SEARCHD_OK, SphinxClient.SEARCHD_RETRY,
+				SphinxClient.SEARCHD_OK, SphinxClient.SEARCHD_ERROR }),
+				searchReply(new int[] { SphinxClient.SEARCHD_OK, SphinxClient.SEARCHD_ERROR }),
+				searchReply(new int[] { SphinxClient.SEARCHD_OK }) };
+		final List<ByteArrayOutputStream> requests = new ArrayList<ByteArrayOutputStream>();
+		sphinxClient = new SphinxClient() {
+			protected Socket getSocket() throws IOException {
+				final InputStream in = new ByteArrayInputStream(replies[requests.size()]);
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				requests.add(out);
+				return new Socket() {
+					public InputStream getInputStream() throws IOException {
+						return in;
+					}
+
+					public OutputStream getOutputStream() throws IOException {
+						return out;
+					}
+				};
+			}
+		};
+		sphinxClient.setSubQueryRetries(2);
+		for (int i = 0; i < 4; i++) {
+			sphinxClient.addQuery("query" + i, "test1", "");
+		}
+		SphinxResult[] results = sphinxClient.runQueries();
+		assertEquals(3, requests.size());
+		assertEquals(4, results.length);
+		assertEquals(SphinxClient.SEARCHD_OK, results[0].getStatus());
+		assertEquals(SphinxClient.SEARCHD_OK, results[1].getStatus());
+		assertEquals(SphinxClient.SEARCHD_OK, results[2].getStatus());
+		assertEquals(2, results[2].total);
+		assertEquals(SphinxClient.SEARCHD_OK, results[3].getStatus());
+		assertEquals(0, results[3].total);
+
+		/* second round carries two queries, the third one only the last query */
+		DataInputStream second = new DataInputStream(new ByteArrayInputStream(requests.get(1).toByteArray()));
+		second.skipBytes(12);
+		assertEquals(2, second.readInt());
+		byte[] third = requests.get(2).toByteArray();
+		byte[] first = requests.get(0).toByteArray();
+		assertEquals(1, new DataInputStream(new ByteArrayInputStream(third, 12, 4)).readInt());
+		assertTrue(new String(third, "ISO-8859-1").contains("query3"));
+		assertTrue(first.length > third.length);
+	}
+
 	public void testGetSocket() {
 		Socket socket = null;
 
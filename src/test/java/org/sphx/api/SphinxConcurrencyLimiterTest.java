@@ -0,0 +1,103 @@
+package org.sphx.api;
+
+import junit.framework.TestCase;
+
+public class SphinxConcurrencyLimiterTest extends TestCase {
+
+	private static final long MILLISEC = 1000000L;
+
+	public void testRejectsAboveLimit() throws SphinxException {
+		SphinxConcurrencyLimiter limiter = new SphinxConcurrencyLimiter(2, 1, 4);
+		limiter.setQueue(0, 0);
+		limiter.acquire();
+		limiter.acquire();
+		assertEquals(2, limiter.getInFlight());
+		try {
+			limiter.acquire();
+			fail();
+		} catch (SphinxRejectedException e) {
+			assertEquals("concurrency limit of 2 reached", e.getMessage());
+		}
+		assertEquals(1, limiter.getRejectedCount());
+		limiter.release(0, false);
+		limiter.acquire();
+	}
+
+	public void testQueuedRequestGetsReleasedSlot() throws Exception {
+		final SphinxConcurrencyLimiter limiter = new SphinxConcurrencyLimiter(1, 1, 1);
+		limiter.setQueue(1, 5000);
+		limiter.acquire();
+		Thread releaser = new Thread() {
+			public void run() {
+				while (limiter.getQueueDepth() == 0) {
+					Thread.yield();
+				}
+				limiter.release(MILLISEC, false);
+			}
+		};
+		releaser.start();
+		limiter.acquire();
+		releaser.join();
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(0, limiter.getQueueDepth());
+	}
+
+	public void testQueueTimeout() throws SphinxException {
+		SphinxConcurrencyLimiter limiter = new SphinxConcurrencyLimiter(1, 1, 1);
+		limiter.setQueue(10, 20);
+		limiter.acquire();
+		long start = System.currentTimeMillis();
+		try {
+			limiter.acquire();
+			fail();
+		} catch (SphinxRejectedException e) {
+			assertTrue(System.currentTimeMillis() - start >= 15);
+		}
+		assertEquals(0, limiter.getQueueDepth());
+	}
+
+	public void testLimitFollowsLatency() throws SphinxException {
+		SphinxConcurrencyLimiter limiter = new SphinxConcurrencyLimiter(4, 1, 8);
+		/* fast round trips at full utilisation grow the limit */
+		for (int i = 0; i < 10; i++) {
+			fill(limiter);
+			drain(limiter, MILLISEC);
+		}
+		assertEquals(8, limiter.getLimit());
+		assertEquals(MILLISEC, limiter.getMinRttNanos());
+
+		/* latency ten times the no-load one means requests queue in searchd */
+		for (int i = 0; i < 10; i++) {
+			fill(limiter);
+			drain(limiter, 10 * MILLISEC);
+		}
+		assertTrue(limiter.getLimit() < 8);
+
+		int before = limiter.getLimit();
+		limiter.acquire();
+		limiter.release(0, true);
+		assertTrue(limiter.getLimit() <= before);
+	}
+
+	public void testWrongLimits() {
+		try {
+			new SphinxConcurrencyLimiter(5, 1, 4);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("limits must satisfy 1 <= min <= initial <= max", e.getMessage());
+		}
+	}
+
+	private static void fill(SphinxConcurrencyLimiter limiter) throws SphinxException {
+		int limit = limiter.getLimit();
+		for (int i = 0; i < limit; i++) {
+			limiter.acquire();
+		}
+	}
+
+	private static void drain(SphinxConcurrencyLimiter limiter, long rtt) {
+		while (limiter.getInFlight() > 0) {
+			limiter.release(rtt, false);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.sphx.api;
+
+import junit.framework.TestCase;
+
+public class SphinxCursorTest extends TestCase {
+
+	private static final long BASE = 1L << 40;
+
+	public void testWalksAllPages() throws Exception {
+		FakeCursorClient client = new FakeCursorClient(BASE, 2);
+		SphinxCursor cursor = new SphinxCursor(client, "", "products", 1000);
+		long expected = BASE;
+		int pages = 0;
+		for (SphinxResult page = cursor.nextPage(); page != null; page = cursor.nextPage()) {
+			for (SphinxMatch match : page.getMatches()) {
+				assertEquals(expected, match.getDocId());
+				expected += 2;
+			}
+			pages++;
+		}
+		cursor.close();
+		assertEquals(3, pages);
+		assertEquals(BASE + 2 * 2500, expected);
+		assertEquals(BASE + 2 * 2499, cursor.getLastDocId());
+		assertEquals(3, client.ranges.size());
+		assertEquals(Long.valueOf(BASE + 2 * 999 + 1), client.ranges.get(1));
+		assertNull(cursor.nextPage());
+	}
+
+	public void testRangeAndExactLastPage() throws Exception {
+		FakeCursorClient client = new FakeCursorClient(BASE, 2);
+		SphinxCursor cursor = new SphinxCursor(client, "", "products", 5, BASE + 10, BASE + 28);
+		int matches = 0;
+		for (SphinxResult page = cursor.nextPage(); page != null; page = cursor.nextPage()) {
+			matches += page.getMatches().size();
+		}
+		cursor.close();
+		assertEquals(10, matches);
+		/* the page ending at the maximum ID is the last one */
+		assertEquals(2, client.ranges.size());
+	}
+
+	public void testFailureStopsCursor() throws Exception {
+		FakeCursorClient client = new FakeCursorClient(BASE, 2);
+		SphinxCursor cursor = new SphinxCursor(client, "", "products", 1000);
+		assertEquals(1000, cursor.nextPage().getMatches().size());
+		long last = cursor.getLastDocId();
+		client.failing = true;
+		/* the prefetched page may already be there */
+		try {
+			cursor.nextPage();
+			cursor.nextPage();
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("connection refused", e.getMessage());
+		}
+		assertNull(cursor.nextPage());
+		assertTrue(cursor.getLastDocId() >= last);
+		cursor.close();
+	}
+
+	public void testUnsignedIdRange() throws Exception {
+		SphinxClient client = new SphinxClient();
+		client.setIDRange(1L, -1L);
+		client.setIDRange(-1, -1);
+		try {
+			client.setIDRange(-1L, 1L);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("min must be less or equal to max", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class SphinxExporterTest extends TestCase {
+
+	/** Index of 1000 documents with IDs 10 + 3 * N. */
+	private final SphinxClientFactory factory = new SphinxClientFactory("localhost", 3312) {
+		public SphinxClient newClient() {
+			return new SphinxClient() {
+				private long min;
+				private long max = -1L;
+				private int limit = 20;
+				private String sortBy = "";
+
+				public void setIDRange(long minValue, long maxValue) throws SphinxException {
+					super.setIDRange(minValue, maxValue);
+					min = minValue;
+					max = maxValue;
+				}
+
+				public void setLimits(int offsetValue, int limitValue, int maxValue) throws SphinxException {
+					super.setLimits(offsetValue, limitValue, maxValue);
+					limit = limitValue;
+				}
+
+				public void setSortMode(int mode, String sortClause) throws SphinxException {
+					super.setSortMode(mode, sortClause);
+					sortBy = sortClause;
+				}
+
+				public SphinxResult query(String query, String index) {
+					SphinxResult result = new SphinxResult();
+					for (int n = 0; n < 1000 && result.getMatches().size() < limit; n++) {
+						long id = 10 + 3 * n;
+						if (sortBy.endsWith("DESC")) {
+							id = 10 + 3 * (999 - n);
+						}
+						if (id >= min && (max == -1L || id <= max)) {
+							result.addMatch(new SphinxMatch(id, 1));
+						}
+					}
+					result.totalFound = 1000;
+					return result;
+				}
+			};
+		}
+	};
+
+	private final Set<Long> exported = Collections.synchronizedSet(new HashSet<Long>());
+
+	private final SphinxExportSink sink = new SphinxExportSink() {
+		public void page(int partition, List<SphinxMatch> matches) {
+			for (SphinxMatch match : matches) {
+				assertTrue("duplicate " + match.getDocId(), exported.add(Long.valueOf(match.getDocId())));
+			}
+		}
+	};
+
+	public void testPlansFromSampledBounds() throws Exception {
+		SphinxExporter exporter = new SphinxExporter(factory, 2);
+		exporter.setPartitionSize(150);
+		SphinxExportCheckpoint checkpoint = exporter.plan("", "products");
+		assertEquals(7, checkpoint.getPartitionCount());
+		assertEquals(10, checkpoint.getNext(0));
+		assertEquals(10 + 3 * 999, checkpoint.getTo(6));
+		for (int i = 1; i < 7; i++) {
+			assertEquals(checkpoint.getTo(i - 1) + 1, checkpoint.getNext(i));
+		}
+
+		assertEquals(3, exporter.plan(0, 2, 8).getPartitionCount());
+		assertEquals(1, exporter.plan(Long.MAX_VALUE, Long.MAX_VALUE, 8).getPartitionCount());
+	}
+
+	public void testExportsAllDocumentsOnce() throws Exception {
+		SphinxExporter exporter = new SphinxExporter(factory, 3);
+		exporter.setPartitionSize(100);
+		exporter.setPageSize(40);
+		SphinxExportCheckpoint checkpoint = exporter.plan("", "products");
+		exporter.export("", "products", checkpoint, sink);
+		assertEquals(1000, exported.size());
+		assertTrue(checkpoint.isComplete());
+		exporter.export("", "products", checkpoint, sink);
+		assertEquals(1000, exported.size());
+	}
+
+	public void testResumesFromCheckpoint() throws Exception {
+		SphinxExporter exporter = new SphinxExporter(factory, 4);
+		exporter.setPageSize(50);
+		final List<Integer> failed = new ArrayList<Integer>();
+		SphinxExportSink failing = new SphinxExportSink() {
+			public void page(int partition, List<SphinxMatch> matches) throws SphinxException {
+				synchronized (failed) {
+					if (partition == 2 && exported.size() > 0 && failed.isEmpty()) {
+						failed.add(Integer.valueOf(partition));
+						throw new SphinxException("disk full");
+					}
+				}
+				sink.page(partition, matches);
+			}
+		};
+		SphinxExportCheckpoint checkpoint = exporter.plan("", "products");
+		try {
+			exporter.export("", "products", checkpoint, failing);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("disk full", e.getMessage());
+		}
+		assertFalse(checkpoint.isComplete());
+
+		SphinxExportCheckpoint restored = SphinxExportCheckpoint.parse(checkpoint.toString());
+		assertEquals(checkpoint.toString(), restored.toString());
+		exporter.export("", "products", restored, failing);
+		assertEquals(1000, exported.size());
+		assertTrue(restored.isComplete());
+	}
+
+	public void testMalformedCheckpoint() throws Exception {
+		assertEquals(0, SphinxExportCheckpoint.parse("").getPartitionCount());
+		try {
+			SphinxExportCheckpoint.parse("1:2:x:0");
+			fail();
+		} catch (SphinxException e) {
+			assertTrue(e.getMessage().startsWith("malformed checkpoint"));
+		}
+	}
+}
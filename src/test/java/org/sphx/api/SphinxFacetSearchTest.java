@@ -0,0 +1,130 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxFacetSearchTest extends TestCase {
+
+	/** Records the grouping of every added query and answers each group query with two groups. */
+	private static class FakeClient extends SphinxClient {
+		private final List<String> added = new ArrayList<String>();
+		private String group = "";
+		private String select = "*";
+
+		public void setGroupBy(String attribute, int func, String groupSortValue) throws SphinxException {
+			super.setGroupBy(attribute, func, groupSortValue);
+			group = attribute + "/" + func + "/" + groupSortValue;
+		}
+
+		public void resetGroupBy() {
+			super.resetGroupBy();
+			group = "";
+		}
+
+		public void setSelectList(String selectValue) throws SphinxException {
+			super.setSelectList(selectValue);
+			select = selectValue;
+		}
+
+		public int addQuery(String query, String index, String comment) throws SphinxException {
+			added.add(group + "|" + select + "|" + getLimit());
+			return added.size() - 1;
+		}
+
+		public SphinxResult[] runQueries() {
+			SphinxResult[] results = new SphinxResult[added.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = new SphinxResult();
+				results[i].setStatus(SEARCHD_OK);
+				if (added.get(i).startsWith("|")) {
+					results[i].addMatch(new SphinxMatch(1, 1));
+					results[i].totalFound = 120;
+					continue;
+				}
+				for (int g = 0; g < 2; g++) {
+					SphinxMatch match = new SphinxMatch(g + 1, 1);
+					match.setAttribute("@groupby", Long.valueOf(10 * i + g));
+					match.setAttribute("@count", Integer.valueOf(5 - g));
+					results[i].addMatch(match);
+				}
+				results[i].totalFound = 7;
+			}
+			results[results.length - 1].setStatus(SEARCHD_ERROR);
+			results[results.length - 1].error = "unknown attribute 'color'";
+			return results;
+		}
+	}
+
+	public void testBuildsOneBatch() throws Exception {
+		FakeClient client = new FakeClient();
+		client.setLimits(40, 20);
+		client.setSelectList("*, @weight * 2 AS w");
+		SphinxFacetSearch facets = new SphinxFacetSearch();
+		facets.addAttributeFacet("brand_id", 10).addDateFacet("created_at", SphinxClient.SPH_GROUPBY_MONTH, 12);
+		facets.addRangeFacet("price_range", "price", new long[] { 100, 500 });
+		facets.addAttributeFacet("color", 5);
+		SphinxFacetResult page = facets.query(client, "phone", "products");
+
+		assertEquals(5, client.added.size());
+		assertEquals("|*, @weight * 2 AS w|20", client.added.get(0));
+		assertEquals("brand_id/4/@count desc|*, @weight * 2 AS w|10", client.added.get(1));
+		assertEquals("created_at/2/@group desc|*, @weight * 2 AS w|12", client.added.get(2));
+		assertEquals("price_range/4/@group asc|*, @weight * 2 AS w, INTERVAL(price,100,500) AS price_range|3",
+				client.added.get(3));
+		assertEquals(40, client.getOffset());
+		assertEquals(20, client.getLimit());
+		assertEquals("*, @weight * 2 AS w", client.getSelectList());
+		assertEquals("", client.group);
+
+		assertEquals(120, page.getResult().totalFound);
+		assertEquals(4, page.getFacets().size());
+		SphinxFacet brands = page.getFacet("brand_id");
+		assertEquals(2, brands.size());
+		assertEquals(10, brands.getValue(0));
+		assertEquals(5, brands.getCount(0));
+		assertEquals(4, brands.getCountOf(11));
+		assertEquals(0, brands.getCountOf(12));
+		assertEquals(7, brands.getTotal());
+		assertNull(brands.getError());
+		assertEquals(30, page.getFacet("price_range").getValue(0));
+		assertEquals(0, page.getFacet("color").size());
+		assertEquals("unknown attribute 'color'", page.getFacet("color").getError());
+		assertNull(page.getFacet("size"));
+	}
+
+	public void testRetryStatusIsAnError() throws Exception {
+		SphinxResult result = new SphinxResult();
+		result.setStatus(SphinxClient.SEARCHD_RETRY);
+		result.error = "server busy";
+		SphinxFacet facet = new SphinxFacet("size", result);
+		assertEquals(0, facet.size());
+		assertEquals(0, facet.getTotal());
+		assertEquals("server busy", facet.getError());
+	}
+
+	public void testInvalidDefinitions() throws Exception {
+		SphinxFacetSearch facets = new SphinxFacetSearch();
+		facets.addAttributeFacet("brand_id", 10);
+		try {
+			facets.addAttributeFacet("brand_id", 5);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("facet 'brand_id' is already defined", e.getMessage());
+		}
+		try {
+			facets.addDateFacet("created_at", SphinxClient.SPH_GROUPBY_ATTR, 5);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("date facets need one of SPH_GROUPBY_DAY/WEEK/MONTH/YEAR", e.getMessage());
+		}
+		try {
+			facets.addRangeFacet("price_range", "price", new long[] { 500, 100 });
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("range facet bounds must be ascending", e.getMessage());
+		}
+		assertEquals(1, facets.getFacetCount());
+	}
+}
@@ -0,0 +1,129 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SphinxFilterSetTest extends TestCase {
+
+	/** Client keeping the last search request instead of sending it. */
+	private static class CapturingClient extends SphinxClient {
+		private byte[] request;
+
+		DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req) throws SphinxException {
+			request = req.toByteArray();
+			throw new SphinxException("captured");
+		}
+
+		byte[] send() {
+			try {
+				runQueries();
+			} catch (SphinxException e) {
+				assertEquals("captured", e.getMessage());
+			}
+			return request;
+		}
+	}
+
+	public void testEncodesLikeClientFilters() throws Exception {
+		CapturingClient plain = new CapturingClient();
+		plain.setFilter("tenant_id", new int[] { 42, 7 }, false);
+		plain.setFilterRange("stock", 1, 100, false);
+		plain.setFilterFloatRange("price", 1.5f, 9.5f, true);
+		plain.addQuery("phone", "products", "");
+		/* a failed request dequeues its queries, so capture it once */
+		byte[] expected = plain.send();
+
+		SphinxFilterSet tenant = new SphinxFilterSet.Builder().values("tenant_id", new long[] { 42, 7 }, false).build();
+		SphinxFilterSet rest = new SphinxFilterSet.Builder().range("stock", 1, 100, false)
+				.floatRange("price", 1.5f, 9.5f, true).build();
+		assertEquals(1, tenant.getFilterCount());
+		assertEquals(2, rest.getFilterCount());
+
+		CapturingClient withSets = new CapturingClient();
+		withSets.addFilterSet(tenant);
+		withSets.addFilterSet(rest);
+		withSets.addQuery("phone", "products", "");
+		assertTrue(Arrays.equals(expected, withSets.send()));
+
+		CapturingClient mixed = new CapturingClient();
+		mixed.setFilter("tenant_id", new int[] { 42, 7 }, false);
+		mixed.addFilterSet(new SphinxFilterSet.Builder().add(rest).build());
+		mixed.addQuery("phone", "products", "");
+		assertTrue(Arrays.equals(expected, mixed.send()));
+	}
+
+	public void testSearchFilterSets() throws Exception {
+		CapturingClient plain = new CapturingClient();
+		plain.setFilterRange("stock", 1, 100, false);
+		plain.addQuery("phone", "products", "");
+		plain.resetFilters();
+		plain.addQuery("phone", "products", "");
+
+		SphinxSearch search = new SphinxSearch("products");
+		search.addQuery("phone");
+		search.addFilterSet(new SphinxFilterSet.Builder().range("stock", 1, 100, false).build());
+		CapturingClient client = new CapturingClient();
+		client.addQuery(search);
+		client.addQuery("phone", "products", "");
+		assertTrue(Arrays.equals(plain.send(), client.send()));
+	}
+
+	public void testResetFilters() throws Exception {
+		CapturingClient plain = new CapturingClient();
+		plain.addQuery("phone", "products", "");
+		CapturingClient client = new CapturingClient();
+		client.addFilterSet(new SphinxFilterSet.Builder().range("stock", 1, 100, false).build());
+		client.resetFilters();
+		client.addQuery("phone", "products", "");
+		assertTrue(Arrays.equals(plain.send(), client.send()));
+		assertEquals(0, SphinxFilterSet.EMPTY.getEncodedSize());
+	}
+
+	public void testInvalidFilters() throws Exception {
+		try {
+			new SphinxFilterSet.Builder().values("tenant_id", new long[0], false);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("values array must not be null or empty", e.getMessage());
+		}
+		try {
+			new SphinxFilterSet.Builder().range("stock", 2, 1, false);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("min must be less or equal to max", e.getMessage());
+		}
+	}
+
+	public void testFloatAndBigintRangeLayout() throws Exception {
+		SphinxFilterSet set = new SphinxFilterSet.Builder().floatRange("price", 1.5f, 9.5f, false)
+				.range("owner_id", 1L << 40, Long.MAX_VALUE, true).build();
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		set.encode(new DataOutputStream(buf));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.toByteArray()));
+		assertEquals("price", SphinxClient.readNetUTF8(in));
+		assertEquals(SphinxClient.SPH_FILTER_FLOATRANGE, in.readInt());
+		assertEquals(1.5f, in.readFloat(), 0);
+		assertEquals(9.5f, in.readFloat(), 0);
+		assertEquals(0, in.readInt());
+		assertEquals("owner_id", SphinxClient.readNetUTF8(in));
+		assertEquals(SphinxClient.SPH_FILTER_RANGE, in.readInt());
+		assertEquals(1L << 40, in.readLong());
+		assertEquals(Long.MAX_VALUE, in.readLong());
+		assertEquals(1, in.readInt());
+		assertEquals(0, in.available());
+
+		CapturingClient plain = new CapturingClient();
+		plain.setFilterFloatRange("price", 1.5f, 9.5f, false);
+		plain.setFilterRange("owner_id", 1L << 40, Long.MAX_VALUE, true);
+		plain.addQuery("phone", "products", "");
+		CapturingClient withSet = new CapturingClient();
+		withSet.addFilterSet(set);
+		withSet.addQuery("phone", "products", "");
+		assertTrue(Arrays.equals(plain.send(), withSet.send()));
+	}
+}
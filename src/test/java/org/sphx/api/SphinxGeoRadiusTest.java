@@ -0,0 +1,65 @@
+package org.sphx.api;
+
+import junit.framework.TestCase;
+
+public class SphinxGeoRadiusTest extends TestCase {
+
+	private static final float BERLIN_LAT = (float) Math.toRadians(52.52);
+	private static final float BERLIN_LON = (float) Math.toRadians(13.405);
+
+	/** Distance on the sphere searchd uses, in meters. */
+	private static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dlat = Math.sin((lat2 - lat1) / 2);
+		double dlon = Math.sin((lon2 - lon1) / 2);
+		double a = dlat * dlat + Math.cos(lat1) * Math.cos(lat2) * dlon * dlon;
+		return 6384000.0 * 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	public void testBoxCoversCircle() throws Exception {
+		SphinxGeoRadius nearby = new SphinxGeoRadius("lat", "lon", BERLIN_LAT, BERLIN_LON, 5000);
+		assertFalse(nearby.isWrapped());
+		assertEquals(3, nearby.getFilterSet().getFilterCount());
+		/* the edges of the box are just beyond the radius, north and east of the center */
+		double north = distance(BERLIN_LAT, BERLIN_LON, nearby.getMaxLatitude(), BERLIN_LON);
+		double east = distance(BERLIN_LAT, BERLIN_LON, BERLIN_LAT, nearby.getMaxLongitude());
+		assertTrue(north > 5000 && north < 5020);
+		assertTrue(east > 5000 && east < 5020);
+		assertTrue(nearby.getMinLongitude() < BERLIN_LON && nearby.getMinLatitude() < BERLIN_LAT);
+		/* a box only a couple of kilometers wide instead of the whole country */
+		assertTrue(nearby.getMaxLongitude() - nearby.getMinLongitude() < 0.003);
+
+		SphinxClient client = new SphinxClient();
+		nearby.apply(client);
+	}
+
+	public void testBoxCrossingAntimeridian() throws Exception {
+		float lon = (float) (Math.PI - 0.0001);
+		SphinxGeoRadius nearby = new SphinxGeoRadius("lat", "lon", 0.3f, lon, 5000);
+		assertTrue(nearby.isWrapped());
+		assertEquals(3, nearby.getFilterSet().getFilterCount());
+		assertTrue(nearby.getMinLongitude() > 3.1f);
+		assertTrue(nearby.getMaxLongitude() < -3.1f);
+	}
+
+	public void testBoxAroundPole() throws Exception {
+		SphinxGeoRadius nearby = new SphinxGeoRadius("lat", "lon", (float) (Math.PI / 2 - 0.0001), 0, 5000);
+		assertEquals(2, nearby.getFilterSet().getFilterCount());
+		assertEquals((float) (Math.PI / 2), nearby.getMaxLatitude(), 0);
+		assertEquals((float) -Math.PI, nearby.getMinLongitude(), 0);
+	}
+
+	public void testInvalidValues() throws Exception {
+		try {
+			new SphinxGeoRadius("lat", "lon", 52.52f, 13.405f, 5000);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("center must be in radians and radius must not be negative", e.getMessage());
+		}
+		try {
+			new SphinxGeoRadius("lat", "lon", BERLIN_LAT, BERLIN_LON, -1);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("center must be in radians and radius must not be negative", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxMultiGetTest extends TestCase {
+
+	private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+	/** Index where document N has rating N / 2, group N % 10 and tags {N, N + 1}; documents over 900 do not exist. */
+	private final SphinxClientFactory factory = new SphinxClientFactory("localhost", 3312) {
+		public SphinxClient newClient() {
+			return new SphinxClient() {
+				private final List<long[]> chunks = new ArrayList<long[]>();
+
+				public void open() {
+				}
+
+				public void setFilter(String attribute, long[] values, boolean exclude) throws SphinxException {
+					assertEquals("@id", attribute);
+					chunks.add(values.clone());
+					super.setFilter(attribute, values, exclude);
+				}
+
+				DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req)
+						throws SphinxException {
+					assertEquals(SEARCHD_COMMAND_SEARCH, command);
+					batchSizes.add(Integer.valueOf(chunks.size()));
+					try {
+						return new DataInputStream(new ByteArrayInputStream(reply(chunks)));
+					} catch (IOException e) {
+						throw new SphinxException(e.getMessage());
+					} finally {
+						chunks.clear();
+					}
+				}
+			};
+		}
+	};
+
+	private static byte[] reply(final List<long[]> chunks) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		for (long[] chunk : chunks) {
+			out.writeInt(SphinxClient.SEARCHD_OK);
+			out.writeInt(0);
+			out.writeInt(3);
+			SphinxClient.writeNetUTF8(out, "rating");
+			out.writeInt(SphinxClient.SPH_ATTR_FLOAT);
+			SphinxClient.writeNetUTF8(out, "group_id");
+			out.writeInt(SphinxClient.SPH_ATTR_INTEGER);
+			SphinxClient.writeNetUTF8(out, "tags");
+			out.writeInt(SphinxClient.SPH_ATTR_MULTI | SphinxClient.SPH_ATTR_INTEGER);
+			int found = 0;
+			for (long id : chunk) {
+				if (id <= 900) {
+					found++;
+				}
+			}
+			out.writeInt(found);
+			out.writeInt(1);
+			for (long id : chunk) {
+				if (id <= 900) {
+					out.writeLong(id);
+					out.writeInt(1);
+					out.writeFloat(id / 2f);
+					out.writeInt((int) (id % 10));
+					out.writeInt(2);
+					out.writeInt((int) id);
+					out.writeInt((int) id + 1);
+				}
+			}
+			out.writeInt(found);
+			out.writeInt(found);
+			out.writeInt(1);
+			out.writeInt(0);
+		}
+		return buf.toByteArray();
+	}
+
+	public void testFetchesInChunks() throws Exception {
+		long[] ids = new long[1000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = ids.length - i;
+		}
+		SphinxMultiGet multiGet = new SphinxMultiGet(factory, 3);
+		multiGet.setChunkSize(10);
+		SphinxAttributeMap attrs = multiGet.get("products", ids);
+
+		/* 100 chunks of 10, up to 32 per multi-query */
+		assertEquals(4, batchSizes.size());
+		int chunks = 0;
+		for (Integer size : batchSizes) {
+			assertTrue(size.intValue() <= 32);
+			chunks += size.intValue();
+		}
+		assertEquals(100, chunks);
+
+		assertEquals(900, attrs.size());
+		int rating = attrs.getAttrIndex("rating");
+		int group = attrs.getAttrIndex("group_id");
+		int tags = attrs.getAttrIndex("tags");
+		assertEquals(SphinxClient.SPH_ATTR_FLOAT, attrs.getAttrType(rating));
+		assertEquals(-1, attrs.getAttrIndex("missing"));
+		assertTrue(attrs.contains(123));
+		assertFalse(attrs.contains(950));
+		assertEquals(61.5f, attrs.getFloat(123, rating, 0), 0);
+		assertEquals(3, attrs.getLong(123, group, -1));
+		assertEquals(-1, attrs.getLong(950, group, -1));
+		assertEquals(124, attrs.getMulti(123, tags)[1]);
+		assertNull(attrs.getMulti(950, tags));
+	}
+
+	public void testEmptyAndDuplicateIds() throws Exception {
+		SphinxMultiGet multiGet = new SphinxMultiGet(factory, 2);
+		assertEquals(0, multiGet.get("products", new long[0]).size());
+		assertEquals(0, batchSizes.size());
+
+		SphinxAttributeMap attrs = multiGet.get("products", new long[] { 5, 5, 7, 5 });
+		assertEquals(2, attrs.size());
+		assertEquals(1, batchSizes.size());
+		assertEquals(Integer.valueOf(1), batchSizes.get(0));
+	}
+
+	public void testFullscanMode() throws Exception {
+		new SphinxClient().setMatchMode(SphinxClient.SPH_MATCH_FULLSCAN);
+		try {
+			new SphinxMultiGet(factory, 0);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("client factory is required and thread count must be positive", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class SphinxPagePrefetcherTest extends TestCase {
+
+	private final SphinxClientFactory factory = new SphinxClientFactory("localhost", 3312);
+
+	/** Search of 45 matches with IDs 1 + N, recording the offsets queried. */
+	private static class Source implements SphinxPageSource {
+		private final List<Integer> offsets = Collections.synchronizedList(new ArrayList<Integer>());
+		private volatile CountDownLatch blocked;
+
+		public SphinxResult fetch(SphinxClient client, int offset, int limit) throws SphinxException {
+			offsets.add(Integer.valueOf(offset));
+			if (blocked != null && offset >= 40) {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					throw new SphinxException("interrupted");
+				}
+			}
+			SphinxResult result = new SphinxResult();
+			for (int id = offset + 1; id <= Math.min(45, offset + limit); id++) {
+				result.addMatch(new SphinxMatch(id, 1));
+			}
+			result.totalFound = 45;
+			return result;
+		}
+	}
+
+	private static void awaitIdle(SphinxPagePrefetcher prefetcher) throws InterruptedException {
+		for (int i = 0; i < 100 && prefetcher.getInFlight() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, prefetcher.getInFlight());
+	}
+
+	public void testServesNextPageFromSlot() throws Exception {
+		Source source = new Source();
+		SphinxPagePrefetcher prefetcher = new SphinxPagePrefetcher(factory, 2, 60000);
+		assertEquals(1, prefetcher.page("alice", "phone", source, 0, 20).getMatches().get(0).getDocId());
+		SphinxResult second = prefetcher.page("alice", "phone", source, 20, 20);
+		assertEquals(21, second.getMatches().get(0).getDocId());
+		SphinxResult last = prefetcher.page("alice", "phone", source, 40, 20);
+		assertEquals(5, last.getMatches().size());
+		awaitIdle(prefetcher);
+		/* no page after the last one is prefetched */
+		assertEquals(3, source.offsets.size());
+		assertEquals(2, prefetcher.getHitCount());
+		assertEquals(1, prefetcher.getMissCount());
+		prefetcher.close();
+	}
+
+	public void testOtherSearchDiscardsSlot() throws Exception {
+		Source source = new Source();
+		SphinxPagePrefetcher prefetcher = new SphinxPagePrefetcher(factory, 2, 60000);
+		prefetcher.page("alice", "phone", source, 0, 20);
+		prefetcher.page("bob", "phone", source, 0, 20);
+		awaitIdle(prefetcher);
+		prefetcher.page("alice", "tablet", source, 20, 20);
+		prefetcher.page("bob", "phone", source, 0, 20);
+		assertEquals(0, prefetcher.getHitCount());
+		assertEquals(4, prefetcher.getMissCount());
+		prefetcher.close();
+	}
+
+	public void testExpiredSlotIsNotUsed() throws Exception {
+		Source source = new Source();
+		SphinxPagePrefetcher prefetcher = new SphinxPagePrefetcher(factory, 1, 20);
+		prefetcher.page("alice", "phone", source, 0, 20);
+		awaitIdle(prefetcher);
+		Thread.sleep(40);
+		prefetcher.page("alice", "phone", source, 20, 20);
+		assertEquals(0, prefetcher.getHitCount());
+		prefetcher.close();
+	}
+
+	public void testBudgetSkipsPrefetch() throws Exception {
+		Source source = new Source();
+		source.blocked = new CountDownLatch(1);
+		SphinxPagePrefetcher prefetcher = new SphinxPagePrefetcher(factory, 1, 60000);
+		prefetcher.page("alice", "phone", source, 20, 20);
+		for (int i = 0; i < 100 && source.offsets.size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, prefetcher.getInFlight());
+		prefetcher.page("bob", "phone", source, 20, 20);
+		assertEquals(1, prefetcher.getSkippedCount());
+		prefetcher.discard("alice");
+		/* the cancelled query still runs, so it keeps its budget until it returns */
+		assertEquals(1, prefetcher.getInFlight());
+		prefetcher.page("bob", "phone", source, 20, 20);
+		assertEquals(2, prefetcher.getSkippedCount());
+		source.blocked.countDown();
+		awaitIdle(prefetcher);
+		prefetcher.close();
+	}
+
+	public void testCancelledPrefetchesFreeBudget() throws Exception {
+		Source source = new Source();
+		SphinxPagePrefetcher prefetcher = new SphinxPagePrefetcher(factory, 1, 60000);
+		for (int i = 0; i < 50; i++) {
+			/* cancelled before or while running */
+			prefetcher.page("alice", "phone", source, 0, 20);
+			prefetcher.discard("alice");
+			awaitIdle(prefetcher);
+		}
+		assertEquals(0, prefetcher.getSkippedCount());
+		prefetcher.close();
+	}
+}
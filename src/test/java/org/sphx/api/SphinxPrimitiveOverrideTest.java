@@ -0,0 +1,118 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class SphinxPrimitiveOverrideTest extends TestCase {
+
+	private static byte[] encode(final SphinxAttributeOverride override) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		override.encode(out);
+		out.flush();
+		return buf.toByteArray();
+	}
+
+	public void testEncodesLikeBoxedOverride() throws Exception {
+		int[] types = new int[] { SphinxClient.SPH_ATTR_INTEGER, SphinxClient.SPH_ATTR_FLOAT,
+				SphinxClient.SPH_ATTR_BIGINT };
+		for (int t = 0; t < types.length; t++) {
+			Map<Long, Number> values = new LinkedHashMap<Long, Number>();
+			SphinxPrimitiveOverride primitive = new SphinxPrimitiveOverride("score", types[t]);
+			for (int i = 0; i < 100; i++) {
+				long docId = 1000 - i * 7;
+				if (types[t] == SphinxClient.SPH_ATTR_FLOAT) {
+					values.put(Long.valueOf(docId), Float.valueOf(i / 3f));
+					primitive.put(docId, i / 3f);
+				} else if (types[t] == SphinxClient.SPH_ATTR_BIGINT) {
+					values.put(Long.valueOf(docId), Long.valueOf(i * 10000000000L));
+					primitive.put(docId, i * 10000000000L);
+				} else {
+					values.put(Long.valueOf(docId), Integer.valueOf(i));
+					primitive.put(docId, i);
+				}
+			}
+			SphinxOverride boxed = new SphinxOverride();
+			boxed.setAttrName("score");
+			boxed.setAttrType(types[t]);
+			boxed.setValues(values);
+			assertTrue(Arrays.equals(encode(boxed), encode(primitive)));
+			assertEquals(values, primitive.getValues());
+		}
+	}
+
+	public void testReplacesAndSorts() throws Exception {
+		SphinxPrimitiveOverride override = new SphinxPrimitiveOverride("rank", SphinxClient.SPH_ATTR_INTEGER, 2);
+		override.put(30, 1);
+		override.put(10, 2);
+		override.put(20, 3);
+		override.put(30, 4);
+		assertEquals(3, override.size());
+		byte[] unsorted = encode(override);
+		assertTrue(Arrays.equals(unsorted, encode(override)));
+
+		override.setSorted(true);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encode(override)));
+		assertEquals("rank", SphinxClient.readNetUTF8(in));
+		assertEquals(SphinxClient.SPH_ATTR_INTEGER, in.readInt());
+		assertEquals(3, in.readInt());
+		assertEquals(10, in.readLong());
+		assertEquals(2, in.readInt());
+		assertEquals(20, in.readLong());
+		assertEquals(3, in.readInt());
+		assertEquals(30, in.readLong());
+		assertEquals(4, in.readInt());
+		assertEquals(0, in.available());
+
+		override.setSorted(false);
+		in = new DataInputStream(new ByteArrayInputStream(encode(override)));
+		SphinxClient.readNetUTF8(in);
+		in.readInt();
+		in.readInt();
+		assertEquals(30, in.readLong());
+		assertEquals(4, in.readInt());
+	}
+
+	public void testTypeChecks() throws Exception {
+		try {
+			new SphinxPrimitiveOverride("rank", SphinxClient.SPH_ATTR_ORDINAL);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("unsupported attrType (must be one of INTEGER, TIMESTAMP, BOOL, FLOAT, or BIGINT)",
+					e.getMessage());
+		}
+		SphinxPrimitiveOverride override = new SphinxPrimitiveOverride("rank", SphinxClient.SPH_ATTR_INTEGER);
+		try {
+			override.put(1, 1.5f);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("attribute 'rank' is not a float", e.getMessage());
+		}
+		try {
+			override.put(1, 1L << 40);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("attribute 'rank' is not a bigint", e.getMessage());
+		}
+	}
+
+	public void testClientReplacesOverride() throws Exception {
+		SphinxClient client = new SphinxClient();
+		Map<Long, Integer> values = new LinkedHashMap<Long, Integer>();
+		values.put(Long.valueOf(1), Integer.valueOf(1));
+		client.setOverride("rank", SphinxClient.SPH_ATTR_INTEGER, values);
+		SphinxPrimitiveOverride override = new SphinxPrimitiveOverride("rank", SphinxClient.SPH_ATTR_INTEGER);
+		override.put(2, 2);
+		client.setOverride(override);
+		assertEquals(1, client.overrides.size());
+		assertSame(override, client.overrides.iterator().next());
+	}
+}
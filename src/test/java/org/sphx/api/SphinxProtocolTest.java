@@ -0,0 +1,172 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxProtocolTest extends TestCase {
+
+	/** searchd of a given search command version, answering every query with an empty result. */
+	private static class FakeClient extends SphinxClient {
+		private final int daemonVersion;
+		private final List<byte[]> requests = new ArrayList<byte[]>();
+		private final List<Integer> versions = new ArrayList<Integer>();
+
+		FakeClient(int daemonVersion) {
+			this.daemonVersion = daemonVersion;
+		}
+
+		DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req) throws SphinxException {
+			requests.add(req.toByteArray());
+			versions.add(Integer.valueOf(version));
+			ByteArrayOutputStream reply = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(reply);
+			try {
+				if (command == SEARCHD_COMMAND_STATUS) {
+					out.writeInt(2);
+					out.writeInt(2);
+					writeNetUTF8(out, "uptime");
+					writeNetUTF8(out, "42");
+					writeNetUTF8(out, "queries");
+					writeNetUTF8(out, "7");
+				} else if (command == SEARCHD_COMMAND_UPDATE) {
+					out.writeInt(1);
+				} else if (version > daemonVersion) {
+					throw new SphinxException("searchd error: client version is higher than daemon version");
+				} else {
+					for (int i = 0; i < 9; i++) {
+						out.writeInt(0);
+					}
+				}
+			} catch (IOException e) {
+				throw new SphinxException(e.getMessage());
+			}
+			return new DataInputStream(new ByteArrayInputStream(reply.toByteArray()));
+		}
+
+		DataInputStream lastRequest() {
+			return new DataInputStream(new ByteArrayInputStream(requests.get(requests.size() - 1)));
+		}
+	}
+
+	/** Skip the search header and query up to the filters. */
+	private static DataInputStream filters(FakeClient client) throws IOException {
+		DataInputStream in = client.lastRequest();
+		assertEquals(1, in.readInt());
+		for (int i = 0; i < 5; i++) {
+			in.readInt();
+		}
+		SphinxClient.readNetUTF8(in);
+		SphinxClient.readNetUTF8(in);
+		assertEquals(0, in.readInt());
+		assertEquals("test1", SphinxClient.readNetUTF8(in));
+		in.readInt();
+		in.readLong();
+		in.readLong();
+		return in;
+	}
+
+	public void testLegacyTranscodesFilters() throws Exception {
+		FakeClient client = new FakeClient(0x113);
+		client.setProtocol(SphinxProtocol.V0_9_8);
+		client.setFilter("group_id", new long[] { 1, 4000000000L }, false);
+		client.addFilterSet(new SphinxFilterSet.Builder().range("created", 100, Long.MAX_VALUE, true).build());
+		client.addQuery("", "test1", "");
+		client.runQueries();
+		assertEquals(Integer.valueOf(0x113), client.versions.get(0));
+
+		DataInputStream in = filters(client);
+		assertEquals(2, in.readInt());
+		assertEquals("group_id", SphinxClient.readNetUTF8(in));
+		assertEquals(SphinxClient.SPH_FILTER_VALUES, in.readInt());
+		assertEquals(2, in.readInt());
+		assertEquals(1, in.readInt());
+		assertEquals(4000000000L, in.readInt() & 0xFFFFFFFFL);
+		assertEquals(0, in.readInt());
+		assertEquals("created", SphinxClient.readNetUTF8(in));
+		assertEquals(SphinxClient.SPH_FILTER_RANGE, in.readInt());
+		assertEquals(100, in.readInt());
+		assertEquals(-1, in.readInt());
+		assertEquals(1, in.readInt());
+		assertEquals(0, in.readInt());
+
+		client.resetFilters();
+		client.setFilter("group_id", new long[] { 1L << 40 }, false);
+		try {
+			client.addQuery("", "test1", "");
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("filter value 1099511627776 of 'group_id' does not fit 32-bit attributes of searchd 0.9.8", e
+					.getMessage());
+		}
+		client.resetFilters();
+		client.setSelectList("@id");
+		try {
+			client.addQuery("", "test1", "");
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("overrides and select lists need searchd 0.9.9 or newer", e.getMessage());
+		}
+		try {
+			client.status();
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("status needs searchd 0.9.9 or newer", e.getMessage());
+		}
+	}
+
+	public void testLegacyUpdatesWithoutMultiValueFlags() throws Exception {
+		FakeClient client = new FakeClient(0x113);
+		client.setProtocol(SphinxProtocol.V0_9_8);
+		assertEquals(1, client.updateAttributes("test1", new String[] { "group_id" }, new long[][] { { 5, 9 } }));
+		assertEquals(Integer.valueOf(0x101), client.versions.get(0));
+		DataInputStream in = client.lastRequest();
+		assertEquals("test1", SphinxClient.readNetUTF8(in));
+		assertEquals(1, in.readInt());
+		assertEquals("group_id", SphinxClient.readNetUTF8(in));
+		assertEquals(1, in.readInt());
+		assertEquals(5, in.readLong());
+		assertEquals(9, in.readInt());
+		assertEquals(-1, in.read());
+
+		try {
+			client.updateAttributes("test1", new String[] { "tags" }, new long[][] { { 5, 1, 2 } }, true);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("multi-valued attribute 'tags' can only be updated by searchd 0.9.9 or newer", e
+					.getMessage());
+		}
+	}
+
+	public void testProbeFallsBackToAcceptedVersion() throws Exception {
+		final List<FakeClient> clients = new ArrayList<FakeClient>();
+		SphinxClientFactory factory = new SphinxClientFactory("localhost", 3312) {
+			public SphinxClient newClient() {
+				FakeClient client = new FakeClient(SphinxClient.VER_COMMAND_SEARCH);
+				clients.add(client);
+				return client;
+			}
+		};
+		assertSame(SphinxProtocol.V0_9_9, SphinxProtocol.probe(factory, "test1"));
+		assertEquals(2, clients.size());
+		assertEquals(Integer.valueOf(0x118), clients.get(0).versions.get(0));
+		DataInputStream in = clients.get(0).lastRequest();
+		assertEquals(0, in.readInt());
+		assertEquals(1, in.readInt());
+	}
+
+	public void testStatus() throws Exception {
+		FakeClient client = new FakeClient(SphinxClient.VER_COMMAND_SEARCH);
+		String[][] status = client.status();
+		assertEquals(2, status.length);
+		assertEquals("uptime", status[0][0]);
+		assertEquals("7", status[1][1]);
+		assertEquals(1, client.lastRequest().readInt());
+	}
+}
@@ -0,0 +1,102 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class SphinxPublisherTest extends TestCase {
+
+	private static class RecordingSubscriber implements SphinxSubscriber {
+		private final List<Long> ids = Collections.synchronizedList(new ArrayList<Long>());
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private final CountDownLatch received;
+		private final long initial;
+		private volatile SphinxSubscription subscription;
+		private volatile SphinxException error;
+		private volatile boolean completed;
+
+		RecordingSubscriber(long initialDemand, int expected) {
+			initial = initialDemand;
+			received = new CountDownLatch(expected);
+		}
+
+		public void onSubscribe(SphinxSubscription s) {
+			subscription = s;
+			s.request(initial);
+		}
+
+		public void onNext(SphinxMatch match) {
+			ids.add(Long.valueOf(match.getDocId()));
+			received.countDown();
+		}
+
+		public void onError(SphinxException e) {
+			error = e;
+			finished.countDown();
+		}
+
+		public void onComplete() {
+			completed = true;
+			finished.countDown();
+		}
+	}
+
+	public void testFetchesPagesOnDemand() throws Exception {
+		FakeCursorClient client = new FakeCursorClient(1, 1);
+		RecordingSubscriber subscriber = new RecordingSubscriber(10, 10);
+		new SphinxPublisher(client, "", "products", 1000).subscribe(subscriber);
+		assertTrue(subscriber.received.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals(10, subscriber.ids.size());
+		assertEquals(1, client.ranges.size());
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(subscriber.completed);
+		assertEquals(2500, subscriber.ids.size());
+		for (int i = 0; i < 2500; i++) {
+			assertEquals(Long.valueOf(i + 1), subscriber.ids.get(i));
+		}
+		assertEquals(3, client.ranges.size());
+	}
+
+	public void testCancelStopsDelivery() throws Exception {
+		FakeCursorClient client = new FakeCursorClient(1, 1);
+		RecordingSubscriber subscriber = new RecordingSubscriber(5, 5);
+		new SphinxPublisher(client, "", "products", 1000).subscribe(subscriber);
+		assertTrue(subscriber.received.await(5, TimeUnit.SECONDS));
+		subscriber.subscription.cancel();
+		subscriber.subscription.request(100);
+		Thread.sleep(50);
+		assertEquals(5, subscriber.ids.size());
+		assertEquals(1, client.ranges.size());
+		assertFalse(subscriber.completed);
+		assertNull(subscriber.error);
+	}
+
+	public void testErrors() throws Exception {
+		FakeCursorClient client = new FakeCursorClient(1, 1);
+		client.failing = true;
+		RecordingSubscriber subscriber = new RecordingSubscriber(1, 0);
+		SphinxPublisher publisher = new SphinxPublisher(client, "", "products", 1000);
+		publisher.subscribe(subscriber);
+		assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+		assertEquals("connection refused", subscriber.error.getMessage());
+		try {
+			publisher.subscribe(new RecordingSubscriber(1, 0));
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("publisher supports a single subscription", e.getMessage());
+		}
+
+		subscriber = new RecordingSubscriber(0, 0);
+		new SphinxPublisher(new FakeCursorClient(1, 1), "", "products", 1000).subscribe(subscriber);
+		assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+		assertEquals("requested amount must be positive", subscriber.error.getMessage());
+	}
+}
@@ -0,0 +1,224 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+
+import junit.framework.TestCase;
+
+public class SphinxReplicatedUpdaterTest extends TestCase {
+
+	private static final long WAIT_MILLIS = 5000;
+
+	/** Replica failing with network errors while down, searchd errors while rejecting. */
+	private static class FakeReplica extends SphinxClientFactory {
+		private volatile boolean down;
+		private volatile boolean rejecting;
+		private int applied;
+
+		FakeReplica() {
+			super("localhost", 3312);
+		}
+
+		public SphinxClient newClient() {
+			return new SphinxClient() {
+				public void open() {
+				}
+
+				DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req)
+						throws SphinxException {
+					if (down) {
+						throw new SphinxNetworkException("connection refused");
+					}
+					if (rejecting) {
+						throw new SphinxException("searchd error: index 'products': attribute 'price' not found");
+					}
+					synchronized (FakeReplica.this) {
+						applied++;
+					}
+					return new DataInputStream(new ByteArrayInputStream(new byte[] { 0, 0, 0, 1 }));
+				}
+			};
+		}
+
+		synchronized int getApplied() {
+			return applied;
+		}
+	}
+
+	private final FakeReplica[] replicas = new FakeReplica[] { new FakeReplica(), new FakeReplica(), new FakeReplica() };
+
+	private SphinxReplicatedUpdater updater;
+
+	protected void setUp() throws Exception {
+		updater = new SphinxReplicatedUpdater(replicas, 2);
+		SphinxRetryPolicy policy = new SphinxRetryPolicy();
+		policy.setBackoff(1, 10);
+		updater.setRetryPolicy(policy);
+	}
+
+	protected void tearDown() {
+		updater.close();
+	}
+
+	private static SphinxAttributeUpdate update(final int price) throws SphinxException {
+		SphinxAttributeUpdate update = new SphinxAttributeUpdate();
+		update.addAttribute("price", SphinxClient.SPH_ATTR_INTEGER);
+		update.addDocument(1);
+		update.setInt("price", price);
+		return update;
+	}
+
+	private void waitForAck(final int replica, final long seq) throws InterruptedException {
+		long until = System.currentTimeMillis() + WAIT_MILLIS;
+		while (updater.getAckedSequence(replica) < seq && System.currentTimeMillis() < until) {
+			Thread.sleep(1);
+		}
+	}
+
+	private void waitForQueue(final int replica) throws InterruptedException {
+		long until = System.currentTimeMillis() + WAIT_MILLIS;
+		while (updater.getQueueDepth(replica) > 0 && System.currentTimeMillis() < until) {
+			Thread.sleep(1);
+		}
+	}
+
+	public void testFailedReplicaCatchesUpInOrder() throws Exception {
+		replicas[2].down = true;
+		assertEquals(1, updater.update("products", update(10)));
+		assertEquals(2, updater.update("products", update(11)));
+		while (updater.getFailedCount(2) == 0) {
+			Thread.sleep(1);
+		}
+		assertEquals(0, updater.getAckedSequence(2));
+		assertEquals(2, updater.getQueueDepth(2));
+
+		replicas[2].down = false;
+		waitForAck(2, 2);
+		assertEquals(2, updater.getAckedSequence(2));
+		assertEquals(0, updater.getQueueDepth(2));
+		assertEquals(2, replicas[2].getApplied());
+		assertFalse(updater.isOutOfSync(2));
+	}
+
+	public void testQuorumNotReached() throws Exception {
+		replicas[1].down = true;
+		replicas[2].down = true;
+		try {
+			updater.update("products", update(10));
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("update 1 acknowledged by 1 of 3 replicas, quorum is 2", e.getMessage());
+		}
+		/* failed replicas keep retrying */
+		replicas[1].down = false;
+		waitForAck(1, 1);
+		assertEquals(1, updater.getAckedSequence(1));
+	}
+
+	public void testReadYourWrites() throws Exception {
+		replicas[0].down = true;
+		long seq = updater.update("products", update(10));
+		assertEquals(seq, updater.getSequence());
+		for (int i = 0; i < 4; i++) {
+			assertNotSame(replicas[0], updater.replicaFor(seq));
+		}
+		SphinxClientFactory first = updater.replicaFor(seq);
+		assertNotSame(first, updater.replicaFor(seq));
+		assertNull(updater.replicaFor(seq + 1));
+	}
+
+	public void testRejectedUpdate() throws Exception {
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i].rejecting = true;
+		}
+		try {
+			updater.update("products", update(10));
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("searchd error: index 'products': attribute 'price' not found", e.getMessage());
+		}
+		for (int i = 0; i < replicas.length; i++) {
+			waitForQueue(i);
+			assertEquals(0, updater.getAckedSequence(i));
+			replicas[i].rejecting = false;
+		}
+		/* rejected update is not repeated and does not block later ones */
+		long seq = updater.update("products", update(11));
+		waitForAck(0, seq);
+		waitForAck(1, seq);
+		waitForAck(2, seq);
+		for (int i = 0; i < replicas.length; i++) {
+			assertEquals(1, replicas[i].getApplied());
+		}
+		/* reads of the rejected update are not routed to replicas that never applied it */
+		assertNull(updater.replicaFor(1));
+		assertNotNull(updater.replicaFor(seq));
+	}
+
+	public void testResyncAfterOverflow() throws Exception {
+		updater.setLimits(WAIT_MILLIS, 1);
+		replicas[2].down = true;
+		updater.update("products", update(10));
+		updater.update("products", update(11));
+		assertTrue(updater.isOutOfSync(2));
+		assertEquals(0, updater.getQueueDepth(2));
+
+		/* reindexed meanwhile */
+		replicas[2].down = false;
+		updater.resync(2);
+		assertFalse(updater.isOutOfSync(2));
+		assertEquals(2, updater.getAckedSequence(2));
+		long seq = updater.update("products", update(12));
+		waitForAck(2, seq);
+		assertEquals(seq, updater.getAckedSequence(2));
+		assertEquals(1, replicas[2].getApplied());
+	}
+
+	public void testResyncDropsQueuedUpdates() throws Exception {
+		replicas[2].down = true;
+		updater.update("products", update(10));
+		updater.update("products", update(11));
+		while (updater.getFailedCount(2) == 0) {
+			Thread.sleep(1);
+		}
+		assertEquals(2, updater.getQueueDepth(2));
+
+		/* reindexed with both updates */
+		updater.resync(2);
+		assertEquals(0, updater.getQueueDepth(2));
+		assertEquals(2, updater.getAckedSequence(2));
+		replicas[2].down = false;
+		long seq = updater.update("products", update(12));
+		waitForAck(2, seq);
+		assertEquals(seq, updater.getAckedSequence(2));
+		assertEquals(1, replicas[2].getApplied());
+	}
+
+	public void testReplicaThreadsAreDaemons() throws Exception {
+		updater.update("products", update(10));
+		boolean found = false;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if ("sphinx-replica".equals(thread.getName())) {
+				assertTrue(thread.isDaemon());
+				found = true;
+			}
+		}
+		assertTrue(found);
+	}
+
+	public void testInvalidValues() throws Exception {
+		try {
+			new SphinxReplicatedUpdater(replicas, 4);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("quorum must be in 1..replicas range", e.getMessage());
+		}
+		try {
+			updater.update("products", new SphinxAttributeUpdate());
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("index name and update entries must be provided", e.getMessage());
+		}
+	}
+}
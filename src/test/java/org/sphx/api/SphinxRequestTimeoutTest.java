@@ -0,0 +1,126 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+public class SphinxRequestTimeoutTest extends TestCase {
+
+	public void testReadTimeout() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		try {
+			SphinxClient client = new SphinxClient("localhost", server.getLocalPort());
+			client.setRequestTimeout(100);
+			long start = System.currentTimeMillis();
+			try {
+				client.query("test", "test1");
+				fail();
+			} catch (SphinxTimeoutException e) {
+				assertEquals(SphinxTimeoutException.Stage.READ, e.getStage());
+			}
+			assertTrue(System.currentTimeMillis() - start < SphinxClient.SPH_CLIENT_TIMEOUT_MILLISEC);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testDeadlineBeforeConnect() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SphinxClient client = new SphinxClient() {
+			protected Socket getSocket() throws IOException {
+				try {
+					Thread.sleep(30);
+				} catch (InterruptedException e) {
+					throw new IOException(e.getMessage());
+				}
+				return socket(new byte[] { 0, 0, 0, 1 }, out);
+			}
+		};
+		client.setRequestTimeout(10);
+		try {
+			client.query("test", "test1");
+			fail();
+		} catch (SphinxTimeoutException e) {
+			assertEquals(SphinxTimeoutException.Stage.READ, e.getStage());
+			assertEquals("request timeout of 10 ms exceeded before read", e.getMessage());
+		}
+		assertEquals(0, out.size());
+	}
+
+	public void testWrongValue() {
+		try {
+			new SphinxClient().setRequestTimeout(-1);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("request timeout must not be negative", e.getMessage());
+		}
+	}
+
+	public void testMaxQueryTimeIsCapped() throws Exception {
+		byte[] plain = sentRequest(0, 0);
+		byte[] limited = sentRequest(100, 0);
+		/* 100 fits into the lowest byte of the big-endian maxQueryTime */
+		int offset = -1;
+		for (int i = 0; i < plain.length && offset < 0; i++) {
+			if (plain[i] != limited[i]) {
+				offset = i - 3;
+			}
+		}
+		assertEquals(100, readInt(limited, offset));
+
+		int sent = readInt(sentRequest(0, 5000), offset);
+		assertTrue(sent > 0 && sent <= 5000);
+		assertEquals(100, readInt(sentRequest(100, 5000), offset));
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+
+	private static byte[] sentRequest(int maxQueryTime, int requestTimeout) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream reply = new ByteArrayOutputStream();
+		DataOutputStream replyOut = new DataOutputStream(reply);
+		replyOut.writeInt(1);
+		replyOut.writeShort(SphinxClient.SEARCHD_OK);
+		replyOut.writeShort(SphinxClient.VER_COMMAND_SEARCH);
+		replyOut.writeInt(4);
+		replyOut.writeInt(SphinxClient.SEARCHD_ERROR);
+		final byte[] replyBytes = reply.toByteArray();
+		SphinxClient client = new SphinxClient() {
+			protected Socket getSocket() throws IOException {
+				return socket(replyBytes, out);
+			}
+		};
+		client.setMaxQueryTime(maxQueryTime);
+		client.setRequestTimeout(requestTimeout);
+		client.addQuery("test", "test1", "");
+		try {
+			client.runQueries();
+		} catch (SphinxException e) {
+			/* reply is truncated on purpose */
+		}
+		return out.toByteArray();
+	}
+
+	private static Socket socket(final byte[] reply, final ByteArrayOutputStream out) {
+		final InputStream in = new ByteArrayInputStream(reply);
+		return new Socket() {
+			public InputStream getInputStream() throws IOException {
+				return in;
+			}
+
+			public OutputStream getOutputStream() throws IOException {
+				return out;
+			}
+		};
+	}
+}
@@ -0,0 +1,87 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.TestCase;
+
+public class SphinxResultReaderTest extends TestCase {
+
+	public void testReadsBigintFollowedByOtherAttributes() throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(SphinxClient.SEARCHD_WARNING);
+		SphinxClient.writeNetUTF8(out, "index is old");
+		out.writeInt(1);
+		SphinxClient.writeNetUTF8(out, "title");
+		out.writeInt(2);
+		SphinxClient.writeNetUTF8(out, "owner_id");
+		out.writeInt(SphinxClient.SPH_ATTR_BIGINT);
+		SphinxClient.writeNetUTF8(out, "price");
+		out.writeInt(SphinxClient.SPH_ATTR_FLOAT);
+		out.writeInt(1);
+		out.writeInt(0);
+		out.writeInt(-2);
+		out.writeInt(7);
+		out.writeLong(1L << 40);
+		out.writeFloat(9.5f);
+		out.writeInt(1);
+		out.writeInt(3);
+		out.writeInt(1500);
+		out.writeInt(1);
+		SphinxClient.writeNetUTF8(out, "phone");
+		out.writeInt(3);
+		out.writeInt(4);
+
+		SphinxResult[] results = SphinxResultReader.read(new DataInputStream(new ByteArrayInputStream(buf
+				.toByteArray())), 1, null);
+		SphinxResult res = results[0];
+		assertEquals("index is old", res.warning);
+		assertEquals("title", res.fields[0]);
+		SphinxMatch match = res.getMatches().get(0);
+		assertEquals(4294967294L, match.getDocId());
+		assertEquals(7, match.getWeight());
+		assertEquals(Long.valueOf(1L << 40), match.getAttribute("owner_id"));
+		assertEquals(Float.valueOf(9.5f), match.getAttribute("price"));
+		assertEquals(3, res.totalFound);
+		assertEquals(1.5f, res.time, 0);
+		assertEquals(1, res.words.length);
+	}
+
+	public void testReadsStringAttributes() throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(SphinxClient.SEARCHD_OK);
+		out.writeInt(0);
+		out.writeInt(2);
+		SphinxClient.writeNetUTF8(out, "title");
+		out.writeInt(SphinxClient.SPH_ATTR_STRING);
+		SphinxClient.writeNetUTF8(out, "group_id");
+		out.writeInt(SphinxClient.SPH_ATTR_INTEGER);
+		out.writeInt(1);
+		out.writeInt(1);
+		out.writeLong(5);
+		out.writeInt(1);
+		SphinxClient.writeNetUTF8(out, "hello");
+		out.writeInt(3);
+		for (int i = 0; i < 4; i++) {
+			out.writeInt(0);
+		}
+
+		SphinxMatch match = SphinxResultReader.read(new DataInputStream(new ByteArrayInputStream(buf
+				.toByteArray())), 1, null)[0].getMatches().get(0);
+		assertEquals("hello", match.getAttribute("title"));
+		assertEquals(Long.valueOf(3), match.getAttribute("group_id"));
+	}
+
+	public void testIncompleteReply() throws Exception {
+		try {
+			SphinxResultReader.read(new DataInputStream(new ByteArrayInputStream(new byte[] { 0, 0 })), 1, null);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("incomplete reply", e.getMessage());
+		}
+	}
+}
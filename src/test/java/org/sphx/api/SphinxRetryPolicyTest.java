@@ -0,0 +1,139 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxRetryPolicyTest extends TestCase {
+
+	private static final byte[] OK_REPLY = new byte[] { 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 3, 2, 5, 12 };
+	private static final byte[] RETRY_REPLY = new byte[] { 0, 0, 0, 1, 0, 2, 0, 1, 0, 0, 0, 6, 0, 0, 0, 2, 'n', 'o' };
+
+	private SphinxRetryPolicy policy;
+	private List<String> connects;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		policy = new SphinxRetryPolicy();
+		policy.setBackoff(0, 0);
+		connects = new ArrayList<String>();
+	}
+
+	private SphinxClient client(final byte[][] replies) {
+		return new SphinxClient() {
+			protected Socket getSocket(String sphinxHost, int sphinxPort) throws IOException {
+				connects.add(sphinxHost + ":" + sphinxPort);
+				byte[] reply = replies[connects.size() - 1];
+				if (reply == null) {
+					throw new ConnectException("refused");
+				}
+				return socket(reply);
+			}
+		};
+	}
+
+	private static Socket socket(final byte[] reply) {
+		final InputStream in = new ByteArrayInputStream(reply);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		return new Socket() {
+			public InputStream getInputStream() throws IOException {
+				return in;
+			}
+
+			public OutputStream getOutputStream() throws IOException {
+				return out;
+			}
+		};
+	}
+
+	private DataInputStream execute(SphinxClient client, int command) throws SphinxException {
+		return client.executeCommand(command, SphinxClient.VER_COMMAND_SEARCH, new ByteArrayOutputStream());
+	}
+
+	public void testNoRetriesByDefault() {
+		SphinxClient client = client(new byte[][] { null, OK_REPLY });
+		try {
+			execute(client, SphinxClient.SEARCHD_COMMAND_SEARCH);
+			fail();
+		} catch (SphinxException e) {
+			assertTrue(e instanceof SphinxNetworkException);
+		}
+		assertEquals(1, connects.size());
+	}
+
+	public void testRetriesConnectFailureAndTemporaryError() throws Exception {
+		SphinxClient client = client(new byte[][] { null, RETRY_REPLY, OK_REPLY });
+		client.setRetryPolicy(policy, null);
+		DataInputStream in = execute(client, SphinxClient.SEARCHD_COMMAND_SEARCH);
+		assertEquals(2, in.readByte());
+		assertEquals(3, connects.size());
+	}
+
+	public void testTemporaryError() {
+		SphinxClient client = client(new byte[][] { RETRY_REPLY });
+		try {
+			execute(client, SphinxClient.SEARCHD_COMMAND_SEARCH);
+			fail();
+		} catch (SphinxException e) {
+			assertTrue(e instanceof SphinxTemporaryException);
+			assertEquals("temporary searchd error: no", e.getMessage());
+		}
+	}
+
+	public void testUpdatesAreNotRetried() throws Exception {
+		SphinxClient client = client(new byte[][] { null, OK_REPLY });
+		client.setRetryPolicy(policy, null);
+		try {
+			execute(client, SphinxClient.SEARCHD_COMMAND_UPDATE);
+			fail();
+		} catch (SphinxNetworkException e) {
+			assertEquals(1, connects.size());
+		}
+		policy.setRetryUpdates(true);
+		execute(client, SphinxClient.SEARCHD_COMMAND_UPDATE);
+		assertEquals(2, connects.size());
+	}
+
+	public void testFailover() throws Exception {
+		SphinxClient client = client(new byte[][] { null, OK_REPLY });
+		client.setRetryPolicy(policy, null);
+		client.addFailoverServer("replica", 3313);
+		execute(client, SphinxClient.SEARCHD_COMMAND_SEARCH);
+		assertEquals("localhost:3312", connects.get(0));
+		assertEquals("replica:3313", connects.get(1));
+	}
+
+	public void testBudget() throws Exception {
+		SphinxRetryBudget budget = new SphinxRetryBudget(1, 0);
+		SphinxClient client = client(new byte[][] { null, OK_REPLY, null, OK_REPLY });
+		client.setRetryPolicy(policy, budget);
+		execute(client, SphinxClient.SEARCHD_COMMAND_SEARCH);
+		try {
+			execute(client, SphinxClient.SEARCHD_COMMAND_SEARCH);
+			fail();
+		} catch (SphinxNetworkException e) {
+			assertEquals(3, connects.size());
+		}
+		assertEquals(1, budget.getRetryCount());
+		assertEquals(1, budget.getExhaustedCount());
+	}
+
+	public void testDelay() throws SphinxException {
+		policy.setBackoff(10, 25);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(policy.getDelayMillis(1) <= 10);
+			assertTrue(policy.getDelayMillis(2) <= 20);
+			assertTrue(policy.getDelayMillis(5) <= 25);
+			assertTrue(policy.getDelayMillis(100) >= 0);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxSchedulerTest extends TestCase {
+
+	public void testClassBound() throws SphinxException {
+		SphinxScheduler scheduler = new SphinxScheduler(10);
+		scheduler.addClass("batch", 1, 1, 0, 0);
+		SphinxScheduler.Ticket ticket = scheduler.acquire("batch", null);
+		assertEquals(1, scheduler.getInFlight("batch"));
+		try {
+			scheduler.acquire("batch", null);
+			fail();
+		} catch (SphinxRejectedException e) {
+			assertEquals("queue of traffic class 'batch' is full", e.getMessage());
+		}
+		assertEquals(1, scheduler.getShedCount("batch"));
+		scheduler.release(ticket);
+		scheduler.release(ticket);
+		assertEquals(0, scheduler.getInFlight("batch"));
+		scheduler.acquire("batch", null);
+	}
+
+	public void testWaitTimeout() throws SphinxException {
+		SphinxScheduler scheduler = new SphinxScheduler(1);
+		scheduler.addClass("interactive", 0, 1, 5, 20);
+		scheduler.acquire("interactive", "a");
+		long start = System.currentTimeMillis();
+		try {
+			scheduler.acquire("interactive", "b");
+			fail();
+		} catch (SphinxRejectedException e) {
+			assertTrue(System.currentTimeMillis() - start >= 15);
+		}
+		assertEquals(0, scheduler.getQueueDepth("interactive"));
+		assertEquals(1, scheduler.getShedCount("interactive"));
+	}
+
+	public void testCancelWakesWaiter() throws Exception {
+		final SphinxScheduler scheduler = new SphinxScheduler(1);
+		scheduler.addClass("interactive", 0, 1, 5, 10000);
+		SphinxScheduler.Ticket first = scheduler.acquire("interactive", "a");
+		final SphinxCancellationToken token = new SphinxCancellationToken();
+		final SphinxException[] failure = new SphinxException[1];
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					scheduler.acquire("interactive", "b", token);
+				} catch (SphinxException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		waiter.start();
+		while (scheduler.getQueueDepth("interactive") == 0) {
+			Thread.sleep(1);
+		}
+		token.cancel();
+		waiter.join(5000);
+		assertTrue(failure[0] instanceof SphinxCancelledException);
+		assertEquals(0, scheduler.getQueueDepth("interactive"));
+		scheduler.release(first);
+		assertEquals(0, scheduler.getInFlight("interactive"));
+	}
+
+	public void testPriorityAndFairness() throws Exception {
+		final SphinxScheduler scheduler = new SphinxScheduler(1);
+		scheduler.addClass("batch", 1, 1, 10, 5000);
+		scheduler.addClass("interactive", 0, 1, 10, 5000);
+		scheduler.setTenant("big", 3, 1);
+		SphinxScheduler.Ticket first = scheduler.acquire("interactive", "small");
+
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(waiter(scheduler, "batch", "small", order));
+		threads.add(waiter(scheduler, "interactive", "small", order));
+		threads.add(waiter(scheduler, "interactive", "big", order));
+		threads.add(waiter(scheduler, "interactive", "big", order));
+		for (Thread thread : threads) {
+			thread.start();
+			/* enqueue one by one so the order of arrival is fixed */
+			while (scheduler.getQueueDepth("batch") + scheduler.getQueueDepth("interactive") < threads.indexOf(thread) + 1) {
+				Thread.yield();
+			}
+		}
+		scheduler.release(first);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		/* weight 3 gives "big" both its requests before "small"; batch goes last */
+		assertEquals("interactive/big", order.get(0));
+		assertEquals("interactive/big", order.get(1));
+		assertEquals("interactive/small", order.get(2));
+		assertEquals("batch/small", order.get(3));
+		assertTrue(scheduler.getMaxWaitMillis("batch") >= scheduler.getMaxWaitMillis("interactive"));
+		assertEquals(0, scheduler.getShedCount("batch"));
+	}
+
+	public void testTagsArePerClass() throws Exception {
+		SphinxScheduler scheduler = new SphinxScheduler(1);
+		scheduler.addClass("interactive", 0, 1, 10, 5000);
+		scheduler.addClass("batch", 1, 1, 10, 5000);
+		/* "a" is busy exporting */
+		for (int i = 0; i < 10; i++) {
+			scheduler.release(scheduler.acquire("batch", "a"));
+		}
+		SphinxScheduler.Ticket first = scheduler.acquire("interactive", "c");
+		assertEquals(Arrays.asList("interactive/a", "interactive/b"), race(scheduler, first, "interactive", "a",
+				"b"));
+	}
+
+	public void testShedRequestsAreNotCharged() throws Exception {
+		SphinxScheduler scheduler = new SphinxScheduler(1);
+		scheduler.addClass("interactive", 0, 1, 2, 5000);
+		SphinxScheduler.Ticket first = scheduler.acquire("interactive", "c");
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		Thread queued = waiter(scheduler, "interactive", "b", order);
+		Thread other = waiter(scheduler, "interactive", "e", order);
+		queued.start();
+		other.start();
+		while (scheduler.getQueueDepth("interactive") < 2) {
+			Thread.yield();
+		}
+		for (int i = 0; i < 5; i++) {
+			try {
+				scheduler.acquire("interactive", "a");
+				fail();
+			} catch (SphinxRejectedException e) {
+				assertEquals("queue of traffic class 'interactive' is full", e.getMessage());
+			}
+		}
+		scheduler.release(first);
+		queued.join();
+		other.join();
+		first = scheduler.acquire("interactive", "c");
+		assertEquals(Arrays.asList("interactive/a", "interactive/d"), race(scheduler, first, "interactive", "a",
+				"d"));
+	}
+
+	public void testIdleTenantsAreForgotten() throws Exception {
+		SphinxScheduler scheduler = new SphinxScheduler(1);
+		scheduler.addClass("interactive", 0, 1, 10, 5000);
+		scheduler.setTenant("big", 2, 1);
+		for (int i = 0; i < 100; i++) {
+			scheduler.release(scheduler.acquire("interactive", "user" + i));
+		}
+		assertEquals(1, scheduler.getTenantCount());
+	}
+
+	public void testWrongValues() throws SphinxException {
+		try {
+			new SphinxScheduler(0);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("max concurrency must be positive", e.getMessage());
+		}
+		SphinxScheduler scheduler = new SphinxScheduler(1);
+		try {
+			scheduler.acquire("unknown", null);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("unknown traffic class 'unknown'", e.getMessage());
+		}
+	}
+
+	/** Queue two tenants in order while a ticket is held, then release it and return the serving order. */
+	private static List<String> race(final SphinxScheduler scheduler, final SphinxScheduler.Ticket held,
+			final String className, final String firstTenant, final String secondTenant) throws Exception {
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		Thread first = waiter(scheduler, className, firstTenant, order);
+		Thread second = waiter(scheduler, className, secondTenant, order);
+		first.start();
+		while (scheduler.getQueueDepth(className) < 1) {
+			Thread.yield();
+		}
+		second.start();
+		while (scheduler.getQueueDepth(className) < 2) {
+			Thread.yield();
+		}
+		scheduler.release(held);
+		first.join();
+		second.join();
+		return order;
+	}
+
+	private static Thread waiter(final SphinxScheduler scheduler, final String className, final String tenant,
+			final List<String> order) {
+		return new Thread() {
+			public void run() {
+				try {
+					SphinxScheduler.Ticket ticket = scheduler.acquire(className, tenant);
+					order.add(className + "/" + tenant);
+					scheduler.release(ticket);
+				} catch (SphinxException e) {
+					order.add(e.getMessage());
+				}
+			}
+		};
+	}
+}
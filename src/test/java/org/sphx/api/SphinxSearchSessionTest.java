@@ -0,0 +1,143 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+public class SphinxSearchSessionTest extends TestCase {
+
+	public void testNewRequestCancelsPrevious() throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		try {
+			final SphinxSearchSession session = new SphinxSearchSession();
+			final SphinxException[] failure = new SphinxException[1];
+			Thread typing = new Thread() {
+				public void run() {
+					try {
+						session.query(new SphinxClient("localhost", server.getLocalPort()), "user", "te", "test1");
+					} catch (SphinxException e) {
+						failure[0] = e;
+					}
+				}
+			};
+			long start = System.currentTimeMillis();
+			typing.start();
+			/* searchd never answers */
+			Socket accepted = server.accept();
+			SphinxCancellationToken token = session.begin("user");
+			typing.join();
+			accepted.close();
+			assertTrue(failure[0] instanceof SphinxCancelledException);
+			assertTrue(System.currentTimeMillis() - start < SphinxClient.SPH_CLIENT_TIMEOUT_MILLISEC);
+			assertEquals(1, session.getCancelledCount());
+			assertEquals(1, session.getInFlight());
+			session.end("user", token);
+			assertEquals(0, session.getInFlight());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testClientReusableAfterCancelledRequest() throws Exception {
+		final SphinxSearchSession session = new SphinxSearchSession();
+		SphinxClient client = new SphinxClient() {
+			private int calls;
+
+			DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req)
+					throws SphinxException {
+				if (calls++ == 0) {
+					/* the next keystroke supersedes this request */
+					session.begin("user");
+					throw new SphinxCancelledException("request cancelled");
+				}
+				/* empty result */
+				return new DataInputStream(new ByteArrayInputStream(new byte[9 * 4]));
+			}
+		};
+		try {
+			session.query(client, "user", "te", "test1");
+			fail();
+		} catch (SphinxCancelledException e) {
+			assertEquals("request cancelled", e.getMessage());
+		}
+		SphinxResult result = session.query(client, "user", "tes", "test1");
+		assertEquals(SphinxClient.SEARCHD_OK, result.getStatus());
+		assertEquals(0, result.getMatches().size());
+	}
+
+	public void testCancelledTokenStopsRequest() throws Exception {
+		SphinxClient client = new SphinxClient() {
+			protected Socket getSocket() {
+				fail("no connection expected");
+				return null;
+			}
+		};
+		SphinxCancellationToken token = new SphinxCancellationToken();
+		token.cancel();
+		client.setCancellationToken(token);
+		try {
+			client.query("test", "test1");
+			fail();
+		} catch (SphinxCancelledException e) {
+			assertEquals("request cancelled", e.getMessage());
+		}
+	}
+
+	public void testCancelWakesBulkheadWaiter() throws Exception {
+		final SphinxBulkhead bulkhead = new SphinxBulkhead("search", 1, 10000);
+		bulkhead.acquire();
+		final SphinxCancellationToken token = new SphinxCancellationToken();
+		final SphinxException[] failure = new SphinxException[1];
+		Thread waiter = new Thread() {
+			public void run() {
+				SphinxClient client = new SphinxClient();
+				client.setCancellationToken(token);
+				try {
+					client.setBulkhead(SphinxClient.SEARCHD_COMMAND_SEARCH, bulkhead);
+					client.query("test", "test1");
+				} catch (SphinxException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		waiter.start();
+		while (bulkhead.getQueueDepth() == 0) {
+			Thread.sleep(1);
+		}
+		token.cancel();
+		waiter.join(5000);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue(failure[0] instanceof SphinxCancelledException);
+		assertEquals(0, bulkhead.getQueueDepth());
+		assertEquals(1, bulkhead.getInFlight());
+		bulkhead.release();
+	}
+
+	public void testCancelWakesRetryPause() throws Exception {
+		final SphinxCancellationToken token = new SphinxCancellationToken();
+		Thread canceller = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					return;
+				}
+				token.cancel();
+			}
+		};
+		canceller.start();
+		long start = System.currentTimeMillis();
+		try {
+			token.sleep(5000);
+			fail();
+		} catch (SphinxCancelledException e) {
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		}
+		canceller.join();
+	}
+}
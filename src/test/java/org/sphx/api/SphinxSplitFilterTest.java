@@ -0,0 +1,187 @@
+package org.sphx.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxSplitFilterTest extends TestCase {
+
+	private static class FakeClient extends SphinxClient {
+		final List<Integer> batches = new ArrayList<Integer>();
+		final List<Integer> requests = new ArrayList<Integer>();
+		final List<String> limits = new ArrayList<String>();
+		final List<SphinxResult> answers = new ArrayList<SphinxResult>();
+		int queued;
+
+		public int addQuery(final SphinxSearch search) throws SphinxException {
+			int qIndex = super.addQuery(search);
+			queued = qIndex + 1;
+			return qIndex;
+		}
+
+		public SphinxResult[] runQueries() {
+			SphinxResult[] results = new SphinxResult[queued];
+			int size = 16;
+			for (int i = 0; i < queued; i++) {
+				size += removeLastQuery();
+				if (answers.isEmpty()) {
+					results[i] = result(0, new long[0], new int[0]);
+				} else {
+					results[i] = answers.remove(0);
+				}
+			}
+			batches.add(Integer.valueOf(queued));
+			requests.add(Integer.valueOf(size));
+			limits.add(getOffset() + "," + getLimit());
+			queued = 0;
+			return results;
+		}
+	}
+
+	private static SphinxResult result(final int totalFound, final long[] docIds, final int[] weights) {
+		SphinxResult result = new SphinxResult();
+		result.setStatus(SphinxClient.SEARCHD_OK);
+		result.total = totalFound;
+		result.totalFound = totalFound;
+		result.time = 0.01f;
+		for (int i = 0; i < docIds.length; i++) {
+			result.addMatch(new SphinxMatch(docIds[i], weights[i]));
+		}
+		return result;
+	}
+
+	/* size of the search without values, and of a filter with n values */
+	private static int requestSize(final SphinxClient client, final SphinxSearch search, final int n)
+			throws SphinxException {
+		client.addQuery(search);
+		return 16 + client.removeLastQuery() + 16 + "group_id".length() + 8 * n;
+	}
+
+	public void testSplitsIntoBatches() throws Exception {
+		long[] values = new long[1000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (i % 500) + (1L << 40);
+		}
+		FakeClient client = new FakeClient();
+		client.setLimits(20, 10);
+		SphinxSearch search = new SphinxSearch("products");
+		search.addQuery("phone");
+		/* 500 distinct values, 100 per request */
+		int maxRequest = requestSize(client, search, 100);
+		SphinxSplitFilter filter = new SphinxSplitFilter("group_id", values, maxRequest);
+		filter.query(client, search);
+
+		assertEquals(Arrays.asList(1, 1, 1, 1, 1), client.batches);
+		for (Integer size : client.requests) {
+			assertTrue(size.intValue() <= maxRequest);
+		}
+		assertEquals(maxRequest, client.requests.get(0).intValue());
+		assertEquals(Arrays.asList("0,30", "0,30", "0,30", "0,30", "0,30"), client.limits);
+		assertEquals(20, client.getOffset());
+		assertEquals(10, client.getLimit());
+		assertEquals(0, search.getFilterSets().size());
+
+		client = new FakeClient();
+		client.setLimits(20, 10);
+		new SphinxSplitFilter("group_id", values, 1 << 20).query(client, search);
+		assertEquals(Arrays.asList(1), client.batches);
+		assertEquals(Arrays.asList("20,10"), client.limits);
+	}
+
+	public void testMergesResults() throws Exception {
+		FakeClient client = new FakeClient();
+		client.setLimits(1, 3);
+		SphinxSearch search = new SphinxSearch("products");
+		SphinxSplitFilter filter = new SphinxSplitFilter("group_id", new long[] { 1, 2, 3 }, requestSize(client,
+				search, 2));
+		client.answers.add(result(3, new long[] { 10, 11, 12 }, new int[] { 9, 5, 1 }));
+		client.answers.add(result(2, new long[] { 20, 11 }, new int[] { 7, 5 }));
+		SphinxResult merged = filter.query(client, search);
+		assertEquals(Arrays.asList(1, 1), client.batches);
+		assertEquals(5, merged.totalFound);
+		assertEquals(SphinxClient.SEARCHD_OK, merged.getStatus());
+		List<SphinxMatch> matches = merged.getMatches();
+		assertEquals(3, matches.size());
+		assertEquals(20, matches.get(0).getDocId());
+		assertEquals(11, matches.get(1).getDocId());
+		assertEquals(12, matches.get(2).getDocId());
+
+		client.answers.add(result(3, new long[] { 10, 11, 12 }, new int[] { 9, 5, 1 }));
+		client.answers.add(result(0, new long[0], new int[0]));
+		client.answers.get(1).error = "unknown local index 'products' in search request";
+		try {
+			filter.query(client, search);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("unknown local index 'products' in search request", e.getMessage());
+		}
+		assertEquals(1, client.getOffset());
+		assertEquals(3, client.getLimit());
+	}
+
+	public void testWindowBeyondMaxMatches() throws Exception {
+		FakeClient client = new FakeClient();
+		client.setLimits(995, 10);
+		SphinxSearch search = new SphinxSearch("products");
+		SphinxSplitFilter filter = new SphinxSplitFilter("group_id", new long[] { 1, 2, 3 }, requestSize(client,
+				search, 2));
+		try {
+			filter.query(client, search);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("offset + limit 1005 exceeds max matches 1000", e.getMessage());
+		}
+		assertEquals(0, client.batches.size());
+		assertEquals(995, client.getOffset());
+
+		client.setLimits(995, 10, 1005);
+		filter.query(client, search);
+		assertEquals(2, client.batches.size());
+	}
+
+	public void testQueuedQueriesAreRejected() throws Exception {
+		FakeClient client = new FakeClient();
+		client.addQuery("other", "products", "");
+		try {
+			new SphinxSplitFilter("group_id", new long[] { 1 }, 1 << 20).query(client, new SphinxSearch("products"));
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("AddQuery() and split filter queries can not be combined; use RunQueries() instead",
+					e.getMessage());
+		}
+		assertEquals(0, client.batches.size());
+	}
+
+	public void testInvalidValues() throws Exception {
+		try {
+			new SphinxSplitFilter("group_id", new long[0], 1024);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("attribute name and values must not be null or empty", e.getMessage());
+		}
+		try {
+			new SphinxSplitFilter("group_id", new long[] { 1 }, 16);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("request size 16 is too small for one value", e.getMessage());
+		}
+		int tooSmall = 16 + 16 + "group_id".length() + 8;
+		try {
+			new SphinxSplitFilter("group_id", new long[] { 1 }, tooSmall).query(new FakeClient(),
+					new SphinxSearch("products"));
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("request size " + tooSmall + " is too small for the query and one value", e.getMessage());
+		}
+	}
+
+	public void testLongFilterIsSortedAndDistinct() throws Exception {
+		SphinxFilterSet set = new SphinxFilterSet.Builder().values("id", new long[] { 3, 1, 3, 2, 1 }, false).build();
+		SphinxFilterSet expected = new SphinxFilterSet.Builder().values("id", new long[] { 1, 2, 3 }, false).build();
+		assertEquals(expected.getEncodedSize(), set.getEncodedSize());
+		assertTrue(Arrays.equals(SphinxFilterSet.distinct(new long[] { 3, 1, 3, 2, 1 }),
+				new long[] { 1, 2, 3 }));
+	}
+}
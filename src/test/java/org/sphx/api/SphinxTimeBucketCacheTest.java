@@ -0,0 +1,164 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class SphinxTimeBucketCacheTest extends TestCase {
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	private static final long HOUR = 3600;
+	private static final long DAY = 24 * HOUR;
+
+	/** Index with one document per full hour up to now, answering day group-by queries. */
+	private static class FakeClient extends SphinxClient {
+		private final List<long[]> ranges = new ArrayList<long[]>();
+		private boolean busy;
+
+		public int addQuery(SphinxSearch search) throws SphinxException {
+			try {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				search.getFilterSets().get(0).encode(new DataOutputStream(buf));
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.toByteArray()));
+				assertEquals("created_at", readNetUTF8(in));
+				assertEquals(SPH_FILTER_RANGE, in.readInt());
+				ranges.add(new long[] { in.readLong(), in.readLong() });
+			} catch (IOException e) {
+				throw new SphinxException(e.getMessage());
+			}
+			return ranges.size() - 1;
+		}
+
+		public SphinxResult[] runQueries() {
+			long now = System.currentTimeMillis() / 1000;
+			SphinxResult[] results = new SphinxResult[ranges.size()];
+			for (int i = 0; i < results.length; i++) {
+				TreeMap<Long, Integer> days = new TreeMap<Long, Integer>();
+				long[] range = ranges.get(i);
+				for (long t = (range[0] + HOUR - 1) / HOUR * HOUR; t <= Math.min(range[1], now); t += HOUR) {
+					Long key = Long.valueOf(dayKey(t));
+					int count = 1;
+					if (days.containsKey(key)) {
+						count += days.get(key).intValue();
+					}
+					days.put(key, Integer.valueOf(count));
+				}
+				results[i] = new SphinxResult();
+				if (busy) {
+					results[i].setStatus(SEARCHD_RETRY);
+					results[i].error = "server busy";
+					continue;
+				}
+				results[i].setStatus(SEARCHD_OK);
+				for (Long key : days.keySet()) {
+					SphinxMatch match = new SphinxMatch(1, 1);
+					match.setAttribute("@groupby", key);
+					match.setAttribute("@count", days.get(key));
+					results[i].addMatch(match);
+				}
+			}
+			ranges.clear();
+			return results;
+		}
+	}
+
+	private static long dayKey(long time) {
+		Calendar day = Calendar.getInstance(UTC);
+		day.setTimeInMillis(time * 1000);
+		return day.get(Calendar.YEAR) * 10000 + (day.get(Calendar.MONTH) + 1) * 100 + day.get(Calendar.DAY_OF_MONTH);
+	}
+
+	private static long time(int year, int month, int day) {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.clear();
+		calendar.set(year, month - 1, day);
+		return calendar.getTimeInMillis() / 1000;
+	}
+
+	private static SphinxTimeBucketCache cache(int func) throws SphinxException {
+		SphinxTimeBucketCache cache = new SphinxTimeBucketCache("created_at", func);
+		cache.setTimeZone(UTC);
+		return cache;
+	}
+
+	public void testClosedDaysAreQueriedOnce() throws Exception {
+		FakeClient client = new FakeClient();
+		SphinxTimeBucketCache cache = cache(SphinxClient.SPH_GROUPBY_DAY);
+		SphinxFacet series = cache.query(client, "all", "", "orders", time(2021, 3, 1) + 5, time(2021, 3, 11) - 5);
+		assertEquals(10, series.size());
+		assertEquals(20210301, series.getValue(0));
+		assertEquals(24, series.getCount(9));
+		assertEquals(10, cache.getQueriedDays());
+
+		series = cache.query(client, "all", "", "orders", time(2021, 3, 3), time(2021, 3, 13));
+		assertEquals(10, series.size());
+		assertEquals(20210312, series.getValue(9));
+		assertEquals(24, series.getCount(9));
+		assertEquals(12, cache.getQueriedDays());
+
+		cache.query(client, "other", "", "orders", time(2021, 3, 3), time(2021, 3, 4));
+		assertEquals(13, cache.getQueriedDays());
+	}
+
+	public void testRetryStatusIsNotCached() throws Exception {
+		FakeClient client = new FakeClient();
+		SphinxTimeBucketCache cache = cache(SphinxClient.SPH_GROUPBY_DAY);
+		client.busy = true;
+		try {
+			cache.query(client, "all", "", "orders", time(2021, 3, 1), time(2021, 3, 3));
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("server busy", e.getMessage());
+		}
+		client.busy = false;
+		SphinxFacet series = cache.query(client, "all", "", "orders", time(2021, 3, 1), time(2021, 3, 3));
+		assertEquals(24, series.getCount(0));
+		assertEquals(24, series.getCount(1));
+	}
+
+	public void testOpenDayIsRequeried() throws Exception {
+		FakeClient client = new FakeClient();
+		SphinxTimeBucketCache cache = cache(SphinxClient.SPH_GROUPBY_DAY);
+		long now = System.currentTimeMillis() / 1000;
+		SphinxFacet series = cache.query(client, "all", "", "orders", now - 3 * DAY, now);
+		assertEquals(4, series.size());
+		assertEquals(24, series.getCount(1));
+		assertEquals(4, cache.getQueriedDays());
+		cache.query(client, "all", "", "orders", now - 3 * DAY, now);
+		assertEquals(5, cache.getQueriedDays());
+
+		cache.invalidate("all", "", "orders");
+		cache.query(client, "all", "", "orders", now - 3 * DAY, now);
+		assertEquals(9, cache.getQueriedDays());
+	}
+
+	public void testRollsUpWeeksAndMonths() throws Exception {
+		FakeClient client = new FakeClient();
+		SphinxTimeBucketCache months = cache(SphinxClient.SPH_GROUPBY_MONTH);
+		SphinxFacet series = months.query(client, "all", "", "orders", time(2021, 1, 28), time(2021, 2, 3));
+		assertEquals(2, series.size());
+		assertEquals(202101, series.getValue(0));
+		assertEquals(4 * 24, series.getCount(0));
+		assertEquals(202102, series.getValue(1));
+		assertEquals(2 * 24, series.getCount(1));
+
+		/* 2020-12-27 is a Sunday; searchd keys the days of 2021 by their own year */
+		SphinxTimeBucketCache weeks = cache(SphinxClient.SPH_GROUPBY_WEEK);
+		series = weeks.query(client, "all", "", "orders", time(2020, 12, 27), time(2021, 1, 4));
+		assertEquals(3, series.size());
+		assertEquals(2020362, series.getValue(0));
+		assertEquals(5 * 24, series.getCount(0));
+		assertEquals(2020996, series.getValue(1));
+		assertEquals(2 * 24, series.getCount(1));
+		assertEquals(2021003, series.getValue(2));
+	}
+}
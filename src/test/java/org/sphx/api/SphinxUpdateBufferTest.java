@@ -0,0 +1,228 @@
+package org.sphx.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SphinxUpdateBufferTest extends TestCase {
+
+	private static final long HOUR = 3600000L;
+
+	private final List<byte[]> requests = Collections.synchronizedList(new ArrayList<byte[]>());
+
+	private final SphinxClientFactory factory = new SphinxClientFactory("localhost", 3312) {
+		public SphinxClient newClient() {
+			return new SphinxClient() {
+				public void open() {
+				}
+
+				DataInputStream executeCommand(int command, int version, ByteArrayOutputStream req) {
+					requests.add(req.toByteArray());
+					return new DataInputStream(new ByteArrayInputStream(new byte[] { 0, 0, 0, 1 }));
+				}
+			};
+		}
+	};
+
+	public void testCoalescesHotDocuments() throws Exception {
+		SphinxUpdateBuffer buffer = new SphinxUpdateBuffer(factory, 100, 100, HOUR);
+		for (int i = 0; i < 1000; i++) {
+			buffer.update("products", i % 3, "views", i);
+		}
+		assertEquals(3, buffer.getPendingCount());
+		buffer.close();
+		assertEquals(1, requests.size());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(requests.get(0)));
+		assertEquals("products", SphinxClient.readNetUTF8(in));
+		assertEquals(1, in.readInt());
+		assertEquals("views", SphinxClient.readNetUTF8(in));
+		assertEquals(0, in.readInt());
+		assertEquals(3, in.readInt());
+		assertEquals(0, in.readLong());
+		assertEquals(999, in.readInt());
+		assertEquals(1, in.readLong());
+		assertEquals(997, in.readInt());
+		assertEquals(1000, buffer.getReceivedCount());
+		assertEquals(3, buffer.getSentCount());
+		assertTrue(buffer.getCoalescingRatio() > 300);
+		assertEquals(1, buffer.getFlushCount());
+		assertEquals(0, buffer.getPendingCount());
+		try {
+			buffer.update("products", 1, "views", 1);
+			fail();
+		} catch (SphinxException e) {
+			assertEquals("update buffer is closed", e.getMessage());
+		}
+	}
+
+	public void testGroupsByChangedAttributes() throws Exception {
+		SphinxUpdateBuffer buffer = new SphinxUpdateBuffer(factory, 100, 100, HOUR);
+		buffer.update("products", 1, "price", 10);
+		buffer.update("products", 1, "stock", 5);
+		buffer.update("products", 2, "stock", 7);
+		buffer.update("products", 3, "price", 12);
+		buffer.update("products", 3, "stock", 0);
+		buffer.update("orders", 1, "state", 2);
+		buffer.flush();
+		/* products with price and stock, products with stock only, orders */
+		assertEquals(3, requests.size());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(requests.get(0)));
+		assertEquals("products", SphinxClient.readNetUTF8(in));
+		assertEquals(2, in.readInt());
+		SphinxClient.readNetUTF8(in);
+		in.readInt();
+		SphinxClient.readNetUTF8(in);
+		in.readInt();
+		assertEquals(2, in.readInt());
+		assertEquals(1, in.readLong());
+		assertEquals(10, in.readInt());
+		assertEquals(5, in.readInt());
+		assertEquals(3, in.readLong());
+		buffer.close();
+	}
+
+	public void testBackpressureAndSizeFlush() throws Exception {
+		SphinxUpdateBuffer buffer = new SphinxUpdateBuffer(factory, 2, 2, HOUR);
+		for (int i = 0; i < 10; i++) {
+			/* blocks whenever two documents are pending until the flush thread sends them */
+			buffer.update("products", i, "stock", i);
+			assertTrue(buffer.getPendingCount() <= 2);
+		}
+		buffer.close();
+		assertEquals(10, buffer.getSentCount());
+		assertTrue(buffer.getFlushCount() >= 4);
+	}
+
+	public void testIntervalFlush() throws Exception {
+		SphinxUpdateBuffer buffer = new SphinxUpdateBuffer(factory, 100, 100, 10);
+		buffer.update("products", 1, "stock", 1);
+		long start = System.currentTimeMillis();
+		while (requests.isEmpty() && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, requests.size());
+		buffer.close();
+	}
+
+	public void testFailedFlushIsReported() throws Exception {
+		SphinxUpdateBuffer buffer = new SphinxUpdateBuffer(new SphinxClientFactory("localhost", 3312) {
+			public SphinxClient newClient() throws SphinxException {
+				throw new SphinxNetworkException("searchd is down");
+			}
+		}, 100, 100, HOUR);
+		buffer.update("products", 1, "stock", 1);
+		try {
+			buffer.close();
+			fail();
+		} catch (SphinxNetworkException e) {
+			assertEquals("searchd is down", e.getMessage());
+		}
+		assertEquals(1, buffer.getFailedFlushCount());
+	}
+
+	public void testFailedFlushIsRetried() throws Exception {
+		final boolean[] down = new boolean[] { true };
+		SphinxUpdateBuffer buffer = new SphinxUpdateBuffer(new SphinxClientFactory("localhost", 3312) {
+			public SphinxClient newClient() throws SphinxException {
+				if (down[0]) {
+					throw new SphinxNetworkException("searchd is down");
+				}
+				return factory.newClient();
+			}
+		}, 100, 100, HOUR);
+		buffer.update("products", 1, "price", 10);
+		buffer.update("products", 1, "stock", 5);
+		try {
+			buffer.flush();
+			fail();
+		} catch (SphinxNetworkException e) {
+			assertEquals("searchd is down", e.getMessage());
+		}
+		assertEquals(1, buffer.getPendingCount());
+		/* replaces the kept value */
+		buffer.update("products", 1, "stock", 4);
+		down[0] = false;
+		buffer.flush();
+		assertEquals(1, requests.size());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(requests.get(0)));
+		assertEquals("products", SphinxClient.readNetUTF8(in));
+		assertEquals(2, in.readInt());
+		assertEquals("price", SphinxClient.readNetUTF8(in));
+		in.readInt();
+		assertEquals("stock", SphinxClient.readNetUTF8(in));
+		in.readInt();
+		assertEquals(1, in.readInt());
+		assertEquals(1, in.readLong());
+		assertEquals(10, in.readInt());
+		assertEquals(4, in.readInt());
+		assertEquals(2, buffer.getSentCount());
+		buffer.close();
+	}
+
+	public void testDroppedUpdatesAreReported() throws Exception {
+		SphinxUpdateBuffer buffer = new SphinxUpdateBuffer(new SphinxClientFactory("localhost", 3312) {
+			public SphinxClient newClient() throws SphinxException {
+				throw new SphinxNetworkException("searchd is down");
+			}
+		}, 1, 100, HOUR);
+		buffer.update("products", 1, "stock", 1);
+		long start = System.currentTimeMillis();
+		while (buffer.getPendingCount() > 0 && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, buffer.getPendingCount());
+		assertEquals(SphinxUpdateBuffer.MAX_FLUSH_RETRIES + 1, buffer.getFailedFlushCount());
+		try {
+			buffer.update("products", 2, "stock", 1);
+			fail();
+		} catch (SphinxNetworkException e) {
+			assertEquals("searchd is down", e.getMessage());
+		}
+		buffer.update("products", 2, "stock", 1);
+		assertEquals(1, buffer.getPendingCount());
+	}
+
+	public void testNewerUpdatesWinOverRetriedOnes() throws Exception {
+		final SphinxUpdateBuffer[] buffer = new SphinxUpdateBuffer[1];
+		final boolean[] down = new boolean[] { true };
+		buffer[0] = new SphinxUpdateBuffer(new SphinxClientFactory("localhost", 3312) {
+			public SphinxClient newClient() throws SphinxException {
+				if (down[0]) {
+					/* arrives while the failing batch is being sent */
+					buffer[0].update("products", 1, "stock", 4);
+					throw new SphinxNetworkException("searchd is down");
+				}
+				return factory.newClient();
+			}
+		}, 100, 100, HOUR);
+		buffer[0].update("products", 1, "price", 10);
+		buffer[0].update("products", 1, "stock", 5);
+		try {
+			buffer[0].flush();
+			fail();
+		} catch (SphinxNetworkException e) {
+			assertEquals("searchd is down", e.getMessage());
+		}
+		assertEquals(1, buffer[0].getPendingCount());
+		down[0] = false;
+		buffer[0].flush();
+		assertEquals(1, requests.size());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(requests.get(0)));
+		assertEquals("products", SphinxClient.readNetUTF8(in));
+		assertEquals(2, in.readInt());
+		assertEquals("stock", SphinxClient.readNetUTF8(in));
+		in.readInt();
+		assertEquals("price", SphinxClient.readNetUTF8(in));
+		in.readInt();
+		assertEquals(1, in.readInt());
+		assertEquals(1, in.readLong());
+		assertEquals(4, in.readInt());
+		assertEquals(10, in.readInt());
+		buffer[0].close();
+	}
+}
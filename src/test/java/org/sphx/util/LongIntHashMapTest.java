@@ -0,0 +1,35 @@
+package org.sphx.util;
+
+import junit.framework.TestCase;
+
+public class LongIntHashMapTest extends TestCase {
+
+	public void testPutAndGet() {
+		LongIntHashMap map = new LongIntHashMap();
+		map.put(1, 10);
+		map.put(-5, 20);
+		map.put(1L << 40, 30);
+		map.put(1, 11);
+		assertEquals(3, map.size());
+		assertEquals(11, map.get(1, -1));
+		assertEquals(20, map.get(-5, -1));
+		assertEquals(30, map.get(1L << 40, -1));
+		assertEquals(-1, map.get(2, -1));
+		assertTrue(map.containsKey(-5));
+		assertFalse(map.containsKey(0));
+	}
+
+	public void testGrows() {
+		LongIntHashMap map = new LongIntHashMap(4);
+		for (int i = 0; i < 10000; i++) {
+			map.put(i * 1024L, i);
+		}
+		assertEquals(10000, map.size());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, map.get(i * 1024L, -1));
+		}
+		map.clear();
+		assertEquals(0, map.size());
+		assertFalse(map.containsKey(0));
+	}
+}
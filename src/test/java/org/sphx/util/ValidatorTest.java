@@ -33,6 +33,15 @@ public class ValidatorTest extends TestCase {
 		assertTrue(Validator.isNotEmpty(array));
 	}
 
+	public void testIsNotEmptyLongArray() {
+		long[] array = null;
+		assertFalse(Validator.isNotEmpty(array));
+		array = new long[0];
+		assertFalse(Validator.isNotEmpty(array));
+		array = new long[] { 1 };
+		assertTrue(Validator.isNotEmpty(array));
+	}
+
 	public void testIsNotEmptyCollectionArray() {
 		LinkedList<Object> collection = null;
 		assertFalse(Validator.isNotEmpty(collection));